@@ -0,0 +1,308 @@
+package com.jc.net;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * CRC-32C checksums of the fixed size blocks of a request body, computed as the body is sent or received. Blocks
+ * are aligned to the start of the content rather than the body, so a body sent from an offset starts with part of
+ * a block, and the checksums of a body that resends particular blocks are of those blocks alone.
+ *
+ * The sender passes its checksums to the receiver as the 'blockChecksums' trailer, in hex and in block order. The
+ * receiver records the blocks that didn't match next to the cache file as '&lt;uniqueId&gt;.corrupt' until they
+ * have been resent.
+ *
+ * @author John Carter
+ * @version 1.0
+ */
+class BlockChecksums
+{
+	static final String		PENDING_SUFFIX = ".corrupt";
+
+	private int				_blockSize;
+	private int[]			_blocks;		// blocks being resent, null if the body is sent in one piece
+	private int				_next;
+	private long			_position;
+	private long			_blockStart;
+	private Crc32c			_crc;
+	private List<Long>		_values;
+	private List<Integer>	_indexes;
+
+	/**
+	 * Checksums for a body that is the content from the given offset onwards
+	 */
+	BlockChecksums(int blockSize, long offset)
+	{
+		this(blockSize, null, offset);
+	}
+
+	/**
+	 * Checksums for a body made up of the given blocks, in ascending order
+	 */
+	BlockChecksums(int blockSize, int[] blocks)
+	{
+		this(blockSize, blocks, blocks.length > 0 ? (long) blocks[0] * blockSize : 0);
+	}
+
+	private BlockChecksums(int blockSize, int[] blocks, long offset)
+	{
+		if (blockSize <= 0)
+			throw new IllegalArgumentException("Invalid checksum block size: " + blockSize);
+
+		_blockSize = blockSize;
+		_blocks = blocks;
+		_next = 0;
+		_position = offset;
+		_blockStart = offset;
+		_crc = new Crc32c();
+		_values = new ArrayList<Long>();
+		_indexes = new ArrayList<Integer>();
+	}
+
+	public int getBlockSize()
+	{
+		return _blockSize;
+	}
+
+	/**
+	 * Position in the content of the next byte of the body
+	 */
+	public long getPosition()
+	{
+		return _position;
+	}
+
+	/**
+	 * Position in the content at which the block of the next byte ends
+	 */
+	public long getBlockEnd()
+	{
+		return (_position / _blockSize + 1) * _blockSize;
+	}
+
+	public void update(byte[] b, int off, int len)
+	{
+		while (len > 0)
+		{
+			int count = (int) Math.min(len, getBlockEnd() - _position);
+
+			_crc.update(b, off, count);
+			_position += count;
+			off += count;
+			len -= count;
+
+			if (_position % _blockSize == 0)
+				endBlock();
+		}
+	}
+
+	/**
+	 * Ends any partial block at the end of the body
+	 */
+	public void finish()
+	{
+		endBlock();
+	}
+
+	private void endBlock()
+	{
+		if (_position == _blockStart)
+			return;
+
+		_values.add(_crc.getValue());
+		_indexes.add((int) ((_position - 1) / _blockSize));
+		_crc.reset();
+
+		// move on to the next of the blocks being resent
+
+		if (_blocks != null && ++_next < _blocks.length)
+			_position = (long) _blocks[_next] * _blockSize;
+
+		_blockStart = _position;
+	}
+
+	/**
+	 * Checksums of the blocks so far, as sent in the trailer
+	 */
+	public String format()
+	{
+		StringBuffer s = new StringBuffer();
+
+		for (Long value : _values)
+		{
+			if (s.length() > 0)
+				s.append(',');
+
+			s.append(Long.toHexString(value));
+		}
+
+		return s.toString();
+	}
+
+	/**
+	 * Compares the blocks received with the checksums sent by the sender, returning the indexes of those that
+	 * don't match, including any that the sender didn't send a checksum for
+	 */
+	public int[] verify(String expected)
+	{
+		String[] values = expected.isEmpty() ? new String[0] : expected.split(",");
+		List<Integer> corrupt = new ArrayList<Integer>();
+
+		for (int i = 0; i < _values.size(); i++)
+		{
+			boolean matches = false;
+
+			try {
+				matches = i < values.length && Long.parseLong(values[i].trim(), 16) == _values.get(i);
+			} catch (NumberFormatException e) {
+				// treat as not matching
+			}
+
+			if (!matches)
+				corrupt.add(_indexes.get(i));
+		}
+
+		int[] blocks = new int[corrupt.size()];
+
+		for (int i = 0; i < blocks.length; i++)
+			blocks[i] = corrupt.get(i);
+
+		return blocks;
+	}
+
+	/**
+	 * Indexes of the blocks checksummed so far
+	 */
+	public int[] getBlocks()
+	{
+		int[] blocks = new int[_indexes.size()];
+
+		for (int i = 0; i < blocks.length; i++)
+			blocks[i] = _indexes.get(i);
+
+		return blocks;
+	}
+
+	static String formatBlocks(int[] blocks)
+	{
+		StringBuffer s = new StringBuffer();
+
+		for (int block : blocks)
+		{
+			if (s.length() > 0)
+				s.append(',');
+
+			s.append(block);
+		}
+
+		return s.toString();
+	}
+
+	static int[] parseBlocks(String blocks)
+	{
+		String[] values = blocks.trim().isEmpty() ? new String[0] : blocks.split(",");
+		int[] indexes = new int[values.length];
+
+		for (int i = 0; i < values.length; i++)
+		{
+			indexes[i] = Integer.parseInt(values[i].trim());
+
+			if (indexes[i] < 0 || (i > 0 && indexes[i] <= indexes[i - 1]))
+				throw new NumberFormatException("Blocks must be in ascending order: " + blocks);
+		}
+
+		return indexes;
+	}
+
+	/**
+	 * Records the blocks of the cache file that have to be resent before the content can be used
+	 */
+	static void savePending(File cacheFile, int blockSize, int[] blocks) throws IOException
+	{
+		File pendingFile = new File(cacheFile.getPath() + PENDING_SUFFIX);
+
+		if (blocks.length == 0)
+		{
+			pendingFile.delete();
+			return;
+		}
+
+		Properties props = new Properties();
+		props.setProperty("blockSize", "" + blockSize);
+		props.setProperty("blocks", formatBlocks(blocks));
+
+		// replace in one go, so that a crash never leaves a half written list
+
+		File tmp = new File(pendingFile.getPath() + ".tmp");
+		OutputStream out = new FileOutputStream(tmp);
+
+		try
+		{
+			props.store(out, null);
+		}
+		finally
+		{
+			out.close();
+		}
+
+		Files.move(tmp.toPath(), pendingFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	/**
+	 * Returns the blocks of the cache file still to be resent, or null if there are none
+	 */
+	static Pending loadPending(File cacheFile) throws IOException
+	{
+		File pendingFile = new File(cacheFile.getPath() + PENDING_SUFFIX);
+
+		if (!pendingFile.exists())
+			return null;
+
+		Properties props = new Properties();
+		InputStream in = new FileInputStream(pendingFile);
+
+		try
+		{
+			props.load(in);
+
+			return new Pending(Integer.parseInt(props.getProperty("blockSize")), parseBlocks(props.getProperty("blocks")));
+		}
+		catch (RuntimeException e)
+		{
+			throw new IOException("Unreadable list of corrupt blocks for " + cacheFile + ": " + e.getMessage());
+		}
+		finally
+		{
+			in.close();
+		}
+	}
+
+	static void clearPending(File cacheFile)
+	{
+		new File(cacheFile.getPath() + PENDING_SUFFIX).delete();
+	}
+
+	/**
+	 * Blocks of a cache file that have to be resent, see {@link BlockChecksums#loadPending(File)}
+	 */
+	static class Pending
+	{
+		final int	blockSize;
+		final int[]	blocks;
+
+		Pending(int blockSize, int[] blocks)
+		{
+			this.blockSize = blockSize;
+			this.blocks = blocks;
+		}
+	}
+}
@@ -0,0 +1,35 @@
+package com.jc.net;
+
+import java.io.IOException;
+
+/**
+ * Compresses the blocks of a {@link BlockCompressedOutputStream}. Each block is compressed on its own, so that a
+ * transfer can resume from any block and blocks can be decompressed in parallel. The id of the codec is written
+ * with each block, so codecs have to be registered via {@link BlockCodecs#register(BlockCodec)} on the receiving
+ * side too.
+ *
+ * @author John Carter
+ * @version 1.0
+ */
+public interface BlockCodec
+{
+	/**
+	 * Identifies the codec in each block, 0 to 15 are reserved for the codecs provided by {@link BlockCodecs}
+	 */
+	public int getId();
+
+	/**
+	 * Name of the codec, sent with the request so the receiver can log what the sender is using
+	 */
+	public String getName();
+
+	/**
+	 * Returns the compressed form of the given bytes
+	 */
+	public byte[] compress(byte[] data, int off, int len) throws IOException;
+
+	/**
+	 * Decompresses the given bytes into the whole of dest, which is exactly the size of the original block
+	 */
+	public void decompress(byte[] data, int off, int len, byte[] dest) throws IOException;
+}
@@ -0,0 +1,242 @@
+package com.jc.net;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.Inflater;
+
+/**
+ * Registry of the codecs that can be used for the blocks of a {@link BlockCompressedOutputStream}. Gzip and
+ * deflate are provided, others such as LZ4 can be plugged in by registering them with an id of 16 or more.
+ *
+ * @author John Carter
+ * @version 1.0
+ */
+public final class BlockCodecs
+{
+	/**
+	 * Block is sent as is, used for blocks that don't get any smaller when compressed
+	 */
+	public static final BlockCodec					STORED = new Stored();
+	public static final BlockCodec					GZIP = new Gzip();
+	public static final BlockCodec					DEFLATE = new Deflate(Deflater.DEFAULT_COMPRESSION);
+
+	public static final int							MAX_RESERVED_ID = 15;
+
+	private static final Map<Integer, BlockCodec>	_codecs = new HashMap<Integer, BlockCodec>();
+
+	static
+	{
+		_codecs.put(STORED.getId(), STORED);
+		_codecs.put(GZIP.getId(), GZIP);
+		_codecs.put(DEFLATE.getId(), DEFLATE);
+	}
+
+	private BlockCodecs()
+	{
+	}
+
+	/**
+	 * Makes the codec available for decompressing blocks
+	 *
+	 * @throws IllegalArgumentException if the id is reserved or already taken by a different codec
+	 */
+	public static synchronized void register(BlockCodec codec)
+	{
+		BlockCodec existing = _codecs.get(codec.getId());
+
+		if (codec.getId() <= MAX_RESERVED_ID || codec.getId() > 255)
+			throw new IllegalArgumentException("Codec id must be between " + (MAX_RESERVED_ID + 1) + " and 255: " + codec.getId());
+		else if (existing != null && existing != codec)
+			throw new IllegalArgumentException("Codec id " + codec.getId() + " is already used by " + existing.getName());
+
+		_codecs.put(codec.getId(), codec);
+	}
+
+	/**
+	 * Returns the codec with the given id, or null if none has been registered
+	 */
+	public static synchronized BlockCodec get(int id)
+	{
+		return _codecs.get(id);
+	}
+
+	private static void readFully(InputStream in, byte[] dest) throws IOException
+	{
+		int count = 0;
+		int bytesRead = -1;
+
+		while (count < dest.length && (bytesRead=in.read(dest, count, dest.length - count)) > 0)
+			count += bytesRead;
+
+		if (count < dest.length || in.read() != -1)
+			throw new IOException("Decompressed block does not match its original length: " + dest.length);
+	}
+
+	private static class Stored implements BlockCodec
+	{
+		@Override
+		public int getId()
+		{
+			return 0;
+		}
+
+		@Override
+		public String getName()
+		{
+			return "stored";
+		}
+
+		@Override
+		public byte[] compress(byte[] data, int off, int len)
+		{
+			byte[] copy = new byte[len];
+			System.arraycopy(data, off, copy, 0, len);
+
+			return copy;
+		}
+
+		@Override
+		public void decompress(byte[] data, int off, int len, byte[] dest) throws IOException
+		{
+			if (len != dest.length)
+				throw new IOException("Stored block does not match its original length: " + dest.length);
+
+			System.arraycopy(data, off, dest, 0, len);
+		}
+	}
+
+	private static class Gzip implements BlockCodec
+	{
+		@Override
+		public int getId()
+		{
+			return 1;
+		}
+
+		@Override
+		public String getName()
+		{
+			return "gzip";
+		}
+
+		@Override
+		public byte[] compress(byte[] data, int off, int len) throws IOException
+		{
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream(len / 2 + 64);
+			GZIPOutputStream out = new GZIPOutputStream(bytes);
+
+			out.write(data, off, len);
+			out.close();
+
+			return bytes.toByteArray();
+		}
+
+		@Override
+		public void decompress(byte[] data, int off, int len, byte[] dest) throws IOException
+		{
+			GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(data, off, len));
+
+			try
+			{
+				readFully(in, dest);
+			}
+			finally
+			{
+				in.close();
+			}
+		}
+	}
+
+	/**
+	 * Raw deflate without the gzip header and trailer, so a little smaller and quicker than {@link Gzip}
+	 */
+	public static class Deflate implements BlockCodec
+	{
+		private int _level;
+
+		/**
+		 * @param level compression level, see {@link Deflater}, only affects compression
+		 */
+		public Deflate(int level)
+		{
+			_level = level;
+		}
+
+		@Override
+		public int getId()
+		{
+			return 2;
+		}
+
+		@Override
+		public String getName()
+		{
+			return "deflate";
+		}
+
+		@Override
+		public byte[] compress(byte[] data, int off, int len)
+		{
+			Deflater deflater = new Deflater(_level, true);
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream(len / 2 + 64);
+			byte[] buf = new byte[8192];
+
+			try
+			{
+				deflater.setInput(data, off, len);
+				deflater.finish();
+
+				while (!deflater.finished())
+					bytes.write(buf, 0, deflater.deflate(buf));
+			}
+			finally
+			{
+				deflater.end();
+			}
+
+			return bytes.toByteArray();
+		}
+
+		@Override
+		public void decompress(byte[] data, int off, int len, byte[] dest) throws IOException
+		{
+			Inflater inflater = new Inflater(true);
+
+			try
+			{
+				inflater.setInput(data, off, len);
+
+				int count = 0;
+
+				while (count < dest.length && !inflater.finished())
+				{
+					int inflated = inflater.inflate(dest, count, dest.length - count);
+
+					if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+						break;
+
+					count += inflated;
+				}
+
+				if (count < dest.length)
+					throw new IOException("Decompressed block does not match its original length: " + dest.length);
+			}
+			catch (DataFormatException e)
+			{
+				throw new IOException("Invalid deflate block: " + e.getMessage());
+			}
+			finally
+			{
+				inflater.end();
+			}
+		}
+	}
+}
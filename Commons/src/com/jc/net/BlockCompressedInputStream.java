@@ -0,0 +1,286 @@
+package com.jc.net;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Reads the blocks written by a {@link BlockCompressedOutputStream}. Frames are read in order, but decompressed
+ * ahead of the reader on a shared pool of threads, so that large content is decompressed on several cores at
+ * once whilst still being returned in order.
+ *
+ * @author John Carter
+ * @version 1.0
+ */
+public class BlockCompressedInputStream extends InputStream
+{
+	private static ExecutorService			_decoders;
+
+	private DataInputStream					_in;
+	private int								_readAhead;
+	private LinkedList<Future<byte[]>>		_pending;
+	private boolean							_endOfFrames;
+	private byte[]							_block;
+	private int								_blockPos;
+
+	public BlockCompressedInputStream(InputStream in)
+	{
+		this(in, Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * @param parallelism number of blocks to decompress ahead of the reader
+	 */
+	public BlockCompressedInputStream(InputStream in, int parallelism)
+	{
+		_in = new DataInputStream(in);
+		_readAhead = Math.max(1, parallelism);
+		_pending = new LinkedList<Future<byte[]>>();
+		_endOfFrames = false;
+	}
+
+	/**
+	 * Finds the end of the last complete frame in the given file, so that a transfer interrupted part way through
+	 * a frame can be resumed from the frame before it
+	 */
+	static Frames scan(File file) throws IOException
+	{
+		FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+
+		try
+		{
+			ByteBuffer header = ByteBuffer.allocate(BlockCompressedOutputStream.HEADER_LENGTH);
+			long size = channel.size();
+			Frames frames = new Frames();
+
+			while (frames.end + BlockCompressedOutputStream.HEADER_LENGTH <= size)
+			{
+				header.clear();
+
+				while (header.hasRemaining() && channel.read(header, frames.end + header.position()) > 0)
+					;
+
+				header.flip();
+
+				int magic = header.get() & 0xFF;
+				header.get();
+				int originalLength = header.getInt();
+				int compressedLength = header.getInt();
+
+				if (magic != BlockCompressedOutputStream.MAGIC || !isValid(originalLength, compressedLength))
+					break;
+
+				long next = frames.end + BlockCompressedOutputStream.HEADER_LENGTH + compressedLength;
+
+				if (next > size)
+					break;
+
+				frames.end = next;
+				frames.sourceLength += originalLength;
+				frames.count += 1;
+			}
+
+			return frames;
+		}
+		finally
+		{
+			channel.close();
+		}
+	}
+
+	private static boolean isValid(int originalLength, int compressedLength)
+	{
+		return originalLength > 0 && originalLength <= BlockCompressedOutputStream.MAX_BLOCK_SIZE && compressedLength >= 0 && compressedLength <= 2 * BlockCompressedOutputStream.MAX_BLOCK_SIZE;
+	}
+
+	private static synchronized ExecutorService decoders()
+	{
+		if (_decoders == null)
+		{
+			_decoders = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), new ThreadFactory() {
+
+				@Override
+				public Thread newThread(Runnable r)
+				{
+					Thread t = new Thread(r, "com.jc.net.BlockCompressedInputStream");
+					t.setDaemon(true);
+
+					return t;
+				}
+			});
+		}
+
+		return _decoders;
+	}
+
+	@Override
+	public int read() throws IOException
+	{
+		if (!nextBlock())
+			return -1;
+
+		return _block[_blockPos++] & 0xFF;
+	}
+
+	@Override
+	public int read(byte[] b) throws IOException
+	{
+		return this.read(b, 0, b.length);
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException
+	{
+		if (len == 0)
+			return 0;
+
+		if (!nextBlock())
+			return -1;
+
+		int count = Math.min(len, _block.length - _blockPos);
+
+		System.arraycopy(_block, _blockPos, b, off, count);
+		_blockPos += count;
+
+		return count;
+	}
+
+	@Override
+	public int available() throws IOException
+	{
+		return _block != null ? _block.length - _blockPos : 0;
+	}
+
+	@Override
+	public void close() throws IOException
+	{
+		for (Future<byte[]> pending : _pending)
+			pending.cancel(false);
+
+		_pending.clear();
+		_in.close();
+	}
+
+	private boolean nextBlock() throws IOException
+	{
+		while (_block == null || _blockPos == _block.length)
+		{
+			readAhead();
+
+			if (_pending.isEmpty())
+				return false;
+
+			try
+			{
+				_block = _pending.removeFirst().get();
+				_blockPos = 0;
+			}
+			catch (ExecutionException e)
+			{
+				if (e.getCause() instanceof IOException)
+					throw (IOException) e.getCause();
+				else
+					throw new IOException(e.getCause());
+			}
+			catch (InterruptedException e)
+			{
+				throw new InterruptedIOException("Interrupted whilst decompressing block");
+			}
+		}
+
+		return true;
+	}
+
+	private void readAhead() throws IOException
+	{
+		while (!_endOfFrames && _pending.size() < _readAhead)
+		{
+			Frame frame = readFrame();
+
+			if (frame == null)
+				_endOfFrames = true;
+			else
+				_pending.add(decoders().submit(frame));
+		}
+	}
+
+	private Frame readFrame() throws IOException
+	{
+		int magic = _in.read();
+
+		if (magic == -1)
+			return null;
+		else if (magic != BlockCompressedOutputStream.MAGIC)
+			throw new IOException("Invalid block header: " + magic);
+
+		try
+		{
+			int codecId = _in.readUnsignedByte();
+			int originalLength = _in.readInt();
+			int compressedLength = _in.readInt();
+
+			if (!isValid(originalLength, compressedLength))
+				throw new IOException("Invalid block lengths: " + originalLength + ", " + compressedLength);
+
+			BlockCodec codec = BlockCodecs.get(codecId);
+
+			if (codec == null)
+				throw new IOException("No codec registered for block codec id: " + codecId);
+
+			byte[] compressed = new byte[compressedLength];
+			_in.readFully(compressed);
+
+			return new Frame(codec, compressed, originalLength);
+		}
+		catch (EOFException e)
+		{
+			throw new IOException("Content ends part way through a block");
+		}
+	}
+
+	/**
+	 * Position reached by the complete frames of a file, see {@link BlockCompressedInputStream#scan(File)}
+	 */
+	static class Frames
+	{
+		long	end;
+		long	sourceLength;
+		int		count;
+	}
+
+	private static class Frame implements Callable<byte[]>
+	{
+		private BlockCodec	_codec;
+		private byte[]		_compressed;
+		private int			_originalLength;
+
+		Frame(BlockCodec codec, byte[] compressed, int originalLength)
+		{
+			_codec = codec;
+			_compressed = compressed;
+			_originalLength = originalLength;
+		}
+
+		@Override
+		public byte[] call() throws IOException
+		{
+			byte[] block = new byte[_originalLength];
+			_codec.decompress(_compressed, 0, _compressed.length, block);
+
+			return block;
+		}
+	}
+}
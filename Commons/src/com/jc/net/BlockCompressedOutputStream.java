@@ -0,0 +1,154 @@
+package com.jc.net;
+
+import java.io.DataOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Compresses data as a series of independent blocks, each framed as
+ *
+ * <pre>
+ *   magic (1 byte) | codec id (1 byte) | original length (4 bytes) | compressed length (4 bytes) | compressed bytes
+ * </pre>
+ *
+ * Unlike a single gzip stream, the output can be cut after any frame and continued later by a new stream, so
+ * that a transfer can resume from the last complete frame the receiver holds rather than compressing the whole
+ * content again. Blocks that don't get any smaller are stored as they are. {@link #finish()} writes the last
+ * block but leaves the underlying stream open.
+ *
+ * @author John Carter
+ * @version 1.0
+ */
+public class BlockCompressedOutputStream extends FilterOutputStream
+{
+	public static final int		DEFAULT_BLOCK_SIZE = 256 * 1024;
+	public static final int		MAX_BLOCK_SIZE = 16 * 1024 * 1024;
+
+	static final int			MAGIC = 0x4A;
+	static final int			HEADER_LENGTH = 10;
+
+	private BlockCodec			_codec;
+	private DataOutputStream	_frameOut;
+	private byte[]				_block;
+	private int					_count;
+	private boolean				_finished;
+
+	public BlockCompressedOutputStream(OutputStream out, BlockCodec codec)
+	{
+		this(out, codec, DEFAULT_BLOCK_SIZE);
+	}
+
+	/**
+	 * @param blockSize number of bytes compressed into each block, the last block may be smaller
+	 */
+	public BlockCompressedOutputStream(OutputStream out, BlockCodec codec, int blockSize)
+	{
+		super(out);
+
+		if (blockSize <= 0 || blockSize > MAX_BLOCK_SIZE)
+			throw new IllegalArgumentException("Block size must be between 1 and " + MAX_BLOCK_SIZE + ": " + blockSize);
+
+		_codec = codec;
+		_frameOut = new DataOutputStream(out);
+		_block = new byte[blockSize];
+		_count = 0;
+		_finished = false;
+	}
+
+	@Override
+	public void write(int b) throws IOException
+	{
+		checkNotFinished();
+
+		_block[_count++] = (byte) b;
+
+		if (_count == _block.length)
+			writeBlock();
+	}
+
+	@Override
+	public void write(byte[] b) throws IOException
+	{
+		this.write(b, 0, b.length);
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException
+	{
+		checkNotFinished();
+
+		while (len > 0)
+		{
+			int copy = Math.min(len, _block.length - _count);
+
+			System.arraycopy(b, off, _block, _count, copy);
+			_count += copy;
+			off += copy;
+			len -= copy;
+
+			if (_count == _block.length)
+				writeBlock();
+		}
+	}
+
+	/**
+	 * Only whole blocks are ever written, so this doesn't write a partly filled block
+	 */
+	@Override
+	public void flush() throws IOException
+	{
+		out.flush();
+	}
+
+	/**
+	 * Writes any partly filled block, leaving the underlying stream open
+	 */
+	public void finish() throws IOException
+	{
+		if (_finished)
+			return;
+
+		if (_count > 0)
+			writeBlock();
+
+		_finished = true;
+		out.flush();
+	}
+
+	@Override
+	public void close() throws IOException
+	{
+		finish();
+		out.close();
+	}
+
+	private void writeBlock() throws IOException
+	{
+		byte[] compressed = _codec.compress(_block, 0, _count);
+		boolean stored = compressed.length >= _count;
+
+		_frameOut.writeByte(MAGIC);
+		_frameOut.writeByte(stored ? BlockCodecs.STORED.getId() : _codec.getId());
+		_frameOut.writeInt(_count);
+
+		if (stored)
+		{
+			_frameOut.writeInt(_count);
+			_frameOut.write(_block, 0, _count);
+		}
+		else
+		{
+			_frameOut.writeInt(compressed.length);
+			_frameOut.write(compressed);
+		}
+
+		_count = 0;
+	}
+
+	private void checkNotFinished() throws IOException
+	{
+		if (_finished)
+			throw new IOException("Stream has already been finished");
+	}
+}
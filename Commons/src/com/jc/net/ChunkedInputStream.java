@@ -2,24 +2,50 @@ package com.jc.net;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
 
+/**
+ * Decodes a http body sent with 'Transfer-Encoding: chunked'. The stream ends after the last chunk and any
+ * trailers that follow it have been read, leaving the underlying stream positioned at the start of the next
+ * request or response, so that it can be used for persistent connections.
+ */
 public class ChunkedInputStream extends InputStream 
 {
-	private InputStream		_wrappedInputStream;
-	private byte[]			_chunkBuf;
-	private int				_chunkIndex;
+	private InputStream			_wrappedInputStream;
+	private byte[]				_chunkBuf;
+	private int					_chunkIndex;
+	private boolean				_eof;
+	private Map<String, String>	_trailers;
 	
 	public ChunkedInputStream(InputStream in)
 	{
 		_wrappedInputStream = in;
 		_chunkBuf = null;
 		_chunkIndex = -1;
+		_eof = false;
+		_trailers = new HashMap<String, String>();
 	}
 
+	/**
+	 * Trailing headers sent after the last chunk, only available once the stream has been read to the end
+	 */
+	public Map<String, String> getTrailers()
+	{
+		return _trailers;
+	}
+	
+	public boolean isEndOfStream()
+	{
+		return _eof;
+	}
+	
 	@Override
 	public int read() throws IOException 
 	{
-		return 0;
+		byte[] b = new byte[1];
+		
+		return read(b, 0, 1) > 0 ? b[0] & 0xff : -1;
 	}
 	
 	@Override
@@ -31,43 +57,63 @@ public class ChunkedInputStream extends InputStream
 	@Override
 	public int read(byte[] buf, int offset, int len) throws IOException
 	{
+		if (_eof)
+			return -1;
+		else if (len == 0)
+			return 0;
+		
 		if (_chunkBuf == null || _chunkIndex >= _chunkBuf.length)
 		{
 			int chunkSize = readChunkSizeFromInputStream(_wrappedInputStream);
-			_chunkBuf = new byte[chunkSize];
-			_chunkIndex = 0;
 						
 			// read next chunk
 			
 			if (chunkSize > 0)
 			{
-				int bytesRead = _wrappedInputStream.read(_chunkBuf);
+				if (_chunkBuf == null || _chunkBuf.length != chunkSize)
+					_chunkBuf = new byte[chunkSize];
 				
-				// read trailing CRLF
-				_wrappedInputStream.read(); //CR \r
-				_wrappedInputStream.read(); //LF \n
+				_chunkIndex = 0;
+				
+				int bytesRead = 0;
+				int n = 0;
+				
+				// a chunk can arrive over several network reads
+				
+				while (bytesRead < chunkSize && (n=_wrappedInputStream.read(_chunkBuf, bytesRead, chunkSize - bytesRead)) != -1)
+					bytesRead += n;
 				
 				if (bytesRead != _chunkBuf.length)
 					throw new IOException("Invalid chunk size, expected: " + _chunkBuf.length + ", but got:" + bytesRead);
+				
+				// read trailing CRLF
+				readLineFromInputStream(_wrappedInputStream);
 			}
 			else
 			{
-				return 0; // reached the end of the stream
+				// reached the end of the stream, read any trailers up to the empty line that ends the body
+				
+				String trailer = null;
+				
+				while ((trailer=readLineFromInputStream(_wrappedInputStream)) != null && !trailer.isEmpty())
+				{
+					int indexOfSeparator = trailer.indexOf(":");
+					
+					if (indexOfSeparator != -1)
+						_trailers.put(trailer.substring(0, indexOfSeparator).trim(), trailer.substring(indexOfSeparator+1).trim());
+				}
+				
+				_eof = true;
+				_chunkBuf = null;
+				
+				return -1;
 			}
 		}
 		
-		int bytesCopied = 0;
+		int bytesCopied = Math.min(len, _chunkBuf.length - _chunkIndex);
 		
-		while(bytesCopied < len)
-		{
-			buf[offset + bytesCopied++] = _chunkBuf[_chunkIndex++];
-			
-			if (_chunkIndex >= _chunkBuf.length)
-			{
-				bytesCopied += read(buf, offset+bytesCopied, len-bytesCopied);
-				break;
-			}
-		}
+		System.arraycopy(_chunkBuf, _chunkIndex, buf, offset, bytesCopied);
+		_chunkIndex += bytesCopied;
 		
 		return bytesCopied;
 	}
@@ -78,8 +124,14 @@ public class ChunkedInputStream extends InputStream
 		
 		try
 		{
-			rawValue = "0x" + readLineFromInputStream(in);
-			return Integer.decode(rawValue);
+			rawValue = readLineFromInputStream(in);
+			
+			// ignore any chunk extensions
+			
+			if (rawValue.indexOf(';') != -1)
+				rawValue = rawValue.substring(0, rawValue.indexOf(';'));
+			
+			return Integer.parseInt(rawValue.trim(), 16);
 		}
 		catch(Exception e)
 		{
@@ -87,15 +139,18 @@ public class ChunkedInputStream extends InputStream
 		}
 	}
 	
-	private String readLineFromInputStream(InputStream in) throws IOException
+	/**
+	 * Reads a line terminated by CRLF or LF, returns null if the stream ended before anything was read
+	 */
+	static String readLineFromInputStream(InputStream in) throws IOException
 	{
 		StringBuffer linebuffer = new StringBuffer();
-		byte[] buf = new byte[1];
+		int c = -1;
 		char nextChar = 0;
 		
-		while(in.read(buf) != -1)
+		while((c=in.read()) != -1)
 		{
-			nextChar = new String(buf).charAt(0);
+			nextChar = (char) c;
 			
 			if (nextChar != '\n' && nextChar != '\r')
 			{
@@ -111,6 +166,9 @@ public class ChunkedInputStream extends InputStream
 			}
 		}
 		
+		if (c == -1 && linebuffer.length() == 0)
+			return null;
+		
 		return linebuffer.toString();
 	}
 }
\ No newline at end of file
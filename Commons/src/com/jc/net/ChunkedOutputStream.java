@@ -0,0 +1,155 @@
+package com.jc.net;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Map;
+
+/**
+ * Encodes a http body with 'Transfer-Encoding: chunked', buffering writes into chunks of the given size.
+ * {@link #finish()} writes the last chunk but leaves the underlying stream open, so that it can be used for
+ * persistent connections.
+ */
+public class ChunkedOutputStream extends FilterOutputStream
+{
+	private static final byte[]	CRLF = "\r\n".getBytes();
+	
+	private byte[]		_chunkBuf;
+	private int			_count;
+	private boolean		_finished;
+	
+	public ChunkedOutputStream(OutputStream out, int chunkSize)
+	{
+		super(out);
+		
+		_chunkBuf = new byte[chunkSize];
+		_count = 0;
+		_finished = false;
+	}
+	
+	@Override
+	public void write(int b) throws IOException
+	{
+		checkNotFinished();
+		
+		if (_count == _chunkBuf.length)
+			writeChunk();
+		
+		_chunkBuf[_count++] = (byte) b;
+	}
+	
+	@Override
+	public void write(byte[] b) throws IOException
+	{
+		this.write(b, 0, b.length);
+	}
+	
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException
+	{
+		checkNotFinished();
+		
+		while (len > 0)
+		{
+			if (_count == 0 && len >= _chunkBuf.length)
+			{
+				// large writes go straight out as a chunk of their own
+				
+				writeChunk(b, off, _chunkBuf.length);
+				off += _chunkBuf.length;
+				len -= _chunkBuf.length;
+			}
+			else
+			{
+				int n = Math.min(len, _chunkBuf.length - _count);
+				
+				System.arraycopy(b, off, _chunkBuf, _count, n);
+				_count += n;
+				off += n;
+				len -= n;
+				
+				if (_count == _chunkBuf.length)
+					writeChunk();
+			}
+		}
+	}
+	
+	/**
+	 * Sends any buffered data as a chunk
+	 */
+	@Override
+	public void flush() throws IOException
+	{
+		if (_count > 0)
+			writeChunk();
+		
+		out.flush();
+	}
+	
+	/**
+	 * Sends any buffered data followed by the last chunk, the underlying stream is left open
+	 */
+	public void finish() throws IOException
+	{
+		finish(null);
+	}
+	
+	/**
+	 * As {@link #finish()}, but also sends the given trailing headers after the last chunk, which should be
+	 * announced in a 'Trailer' header of the request
+	 */
+	public void finish(Map<String, String> trailers) throws IOException
+	{
+		if (_finished)
+			return;
+		
+		if (_count > 0)
+			writeChunk();
+		
+		out.write('0');
+		out.write(CRLF);
+		
+		if (trailers != null)
+		{
+			for (Map.Entry<String, String> trailer : trailers.entrySet())
+			{
+				out.write((trailer.getKey() + ": " + trailer.getValue()).getBytes("ISO-8859-1"));
+				out.write(CRLF);
+			}
+		}
+		
+		out.write(CRLF);
+		out.flush();
+		
+		_finished = true;
+	}
+	
+	/**
+	 * Finishes the body, but leaves the underlying stream open
+	 */
+	@Override
+	public void close() throws IOException
+	{
+		finish();
+	}
+	
+	private void writeChunk() throws IOException
+	{
+		writeChunk(_chunkBuf, 0, _count);
+		_count = 0;
+	}
+	
+	private void writeChunk(byte[] b, int off, int len) throws IOException
+	{
+		out.write(Integer.toHexString(len).getBytes());
+		out.write(CRLF);
+		out.write(b, off, len);
+		out.write(CRLF);
+	}
+	
+	private void checkNotFinished() throws IOException
+	{
+		if (_finished)
+			throw new IOException("Chunked body already finished");
+	}
+}
@@ -0,0 +1,87 @@
+package com.jc.net;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Limits reads to the number of bytes given by a 'Content-Length' header, so that a http body can be read
+ * without consuming anything that follows it on a persistent connection. Closing the stream does not close
+ * the underlying stream.
+ */
+public class ContentLengthInputStream extends FilterInputStream
+{
+	private long	_remaining;
+	
+	public ContentLengthInputStream(InputStream in, long contentLength)
+	{
+		super(in);
+		
+		_remaining = contentLength;
+	}
+	
+	public long getRemaining()
+	{
+		return _remaining;
+	}
+	
+	@Override
+	public int read() throws IOException
+	{
+		if (_remaining <= 0)
+			return -1;
+		
+		int c = super.read();
+		
+		if (c == -1)
+			throw new IOException("Connection closed with " + _remaining + " bytes of content outstanding");
+		
+		_remaining -= 1;
+		
+		return c;
+	}
+	
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException
+	{
+		if (_remaining <= 0)
+			return -1;
+		
+		int numRead = super.read(b, off, (int) Math.min(len, _remaining));
+		
+		if (numRead == -1)
+			throw new IOException("Connection closed with " + _remaining + " bytes of content outstanding");
+		
+		_remaining -= numRead;
+		
+		return numRead;
+	}
+	
+	@Override
+	public long skip(long n) throws IOException
+	{
+		long skipped = super.skip(Math.min(n, _remaining));
+		
+		_remaining -= skipped;
+		
+		return skipped;
+	}
+	
+	@Override
+	public int available() throws IOException
+	{
+		return (int) Math.min(super.available(), _remaining);
+	}
+	
+	@Override
+	public boolean markSupported()
+	{
+		return false;
+	}
+	
+	@Override
+	public void close() throws IOException
+	{
+		// leave the connection open
+	}
+}
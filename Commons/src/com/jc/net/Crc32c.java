@@ -0,0 +1,78 @@
+package com.jc.net;
+
+import java.util.zip.Checksum;
+
+/**
+ * CRC-32C (Castagnoli) checksum, as used by iSCSI, SCTP and most storage systems, which detects more of the
+ * errors typical of networks and disks than the CRC-32 of {@link java.util.zip.CRC32}. Java only provides it
+ * from version 9, so this is a table driven implementation that processes 8 bytes at a time.
+ *
+ * @author John Carter
+ * @version 1.0
+ */
+public class Crc32c implements Checksum
+{
+	private static final int		POLYNOMIAL = 0x82F63B78;	// reversed
+	private static final int[][]	TABLES = new int[8][256];
+
+	static
+	{
+		for (int i = 0; i < 256; i++)
+		{
+			int crc = i;
+
+			for (int j = 0; j < 8; j++)
+				crc = (crc & 1) != 0 ? (crc >>> 1) ^ POLYNOMIAL : crc >>> 1;
+
+			TABLES[0][i] = crc;
+		}
+
+		for (int i = 0; i < 256; i++)
+		{
+			for (int t = 1; t < 8; t++)
+				TABLES[t][i] = (TABLES[t - 1][i] >>> 8) ^ TABLES[0][TABLES[t - 1][i] & 0xFF];
+		}
+	}
+
+	private int _crc = 0xFFFFFFFF;
+
+	@Override
+	public void update(int b)
+	{
+		_crc = (_crc >>> 8) ^ TABLES[0][(_crc ^ b) & 0xFF];
+	}
+
+	@Override
+	public void update(byte[] b, int off, int len)
+	{
+		int crc = _crc;
+
+		while (len >= 8)
+		{
+			crc ^= (b[off] & 0xFF) | (b[off + 1] & 0xFF) << 8 | (b[off + 2] & 0xFF) << 16 | (b[off + 3] & 0xFF) << 24;
+
+			crc = TABLES[7][crc & 0xFF] ^ TABLES[6][(crc >>> 8) & 0xFF] ^ TABLES[5][(crc >>> 16) & 0xFF] ^ TABLES[4][crc >>> 24]
+				^ TABLES[3][b[off + 4] & 0xFF] ^ TABLES[2][b[off + 5] & 0xFF] ^ TABLES[1][b[off + 6] & 0xFF] ^ TABLES[0][b[off + 7] & 0xFF];
+
+			off += 8;
+			len -= 8;
+		}
+
+		while (len-- > 0)
+			crc = (crc >>> 8) ^ TABLES[0][(crc ^ b[off++]) & 0xFF];
+
+		_crc = crc;
+	}
+
+	@Override
+	public long getValue()
+	{
+		return (~_crc) & 0xFFFFFFFFL;
+	}
+
+	@Override
+	public void reset()
+	{
+		_crc = 0xFFFFFFFF;
+	}
+}
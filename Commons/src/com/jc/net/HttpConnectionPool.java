@@ -0,0 +1,611 @@
+package com.jc.net;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.ref.WeakReference;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.SNIHostName;
+import javax.net.ssl.SNIServerName;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+import org.apache.log4j.Logger;
+
+import com.jc.util.ExpiryScheduler;
+
+/**
+ * Pool of persistent HTTP/1.1 connections, so that consecutive requests to the same end point reuse an
+ * open socket rather than paying for a new TCP and TLS handshake each time, e.g.
+ *
+ * <pre>
+ * HttpConnectionPool pool = new HttpConnectionPool(4, 30000);
+ *
+ * PooledConnection conn = pool.acquire(url);
+ * boolean reusable = false;
+ *
+ * try
+ * {
+ *     ... write request and read the whole of the response ...
+ *     reusable = true;
+ * }
+ * finally
+ * {
+ *     pool.release(conn, reusable);
+ * }
+ * </pre>
+ *
+ * At most the given number of connections are open per end point (scheme, host and port), callers
+ * wait for a connection to be released once the limit is reached. Idle connections are closed once they
+ * have not been used for the idle timeout, and are checked before reuse in case the server has closed them
+ * in the meantime.
+ *
+ * @author John Carter
+ * @version 1.0
+ */
+public class HttpConnectionPool implements AutoCloseable
+{
+	public static final int			DEFAULT_MAX_CONNECTIONS_PER_ENDPOINT = 4;
+	public static final long		DEFAULT_IDLE_TIMEOUT_MS = 30000;
+	public static final int			DEFAULT_CONNECT_TIMEOUT_MS = 30000;
+	public static final long		DEFAULT_ACQUIRE_TIMEOUT_MS = 60000;
+
+	private int						_maxConnectionsPerEndpoint;
+	private long					_idleTimeout;
+	private int						_connectTimeout;
+	private int						_readTimeout;
+	private long					_acquireTimeout;
+	private SSLSocketFactory		_sslSocketFactory;
+
+	private Map<String, Endpoint>	_endpoints;
+	private EvictionTask			_evictionTask;
+	private boolean					_closed;
+
+	public HttpConnectionPool()
+	{
+		this(DEFAULT_MAX_CONNECTIONS_PER_ENDPOINT, DEFAULT_IDLE_TIMEOUT_MS);
+	}
+
+	/**
+	 * @param maxConnectionsPerEndpoint maximum number of open connections to any one end point
+	 * @param idleTimeout milli seconds after which an unused connection is closed, 0 to keep them until the pool is closed
+	 */
+	public HttpConnectionPool(int maxConnectionsPerEndpoint, long idleTimeout)
+	{
+		if (maxConnectionsPerEndpoint < 1)
+			throw new IllegalArgumentException("Max connections per end point must be at least 1");
+
+		_maxConnectionsPerEndpoint = maxConnectionsPerEndpoint;
+		_idleTimeout = idleTimeout;
+		_connectTimeout = DEFAULT_CONNECT_TIMEOUT_MS;
+		_readTimeout = 0;
+		_acquireTimeout = DEFAULT_ACQUIRE_TIMEOUT_MS;
+		_endpoints = new HashMap<String, Endpoint>();
+
+		if (idleTimeout > 0)
+		{
+			_evictionTask = new EvictionTask(this);
+			_evictionTask.start(ExpiryScheduler.getDefault(), Math.max(idleTimeout / 2, 1000));
+		}
+	}
+
+	public int getMaxConnectionsPerEndpoint()
+	{
+		return _maxConnectionsPerEndpoint;
+	}
+
+	public long getIdleTimeout()
+	{
+		return _idleTimeout;
+	}
+
+	public void setConnectTimeout(int connectTimeout)
+	{
+		_connectTimeout = connectTimeout;
+	}
+
+	/**
+	 * Socket read timeout in milli seconds for connections opened from now on, 0 for none
+	 */
+	public void setReadTimeout(int readTimeout)
+	{
+		_readTimeout = readTimeout;
+	}
+
+	/**
+	 * Factory used to open https connections from now on, defaults to the JVM's default factory
+	 */
+	public void setSSLSocketFactory(SSLSocketFactory sslSocketFactory)
+	{
+		_sslSocketFactory = sslSocketFactory;
+	}
+
+	public SSLSocketFactory getSSLSocketFactory()
+	{
+		return _sslSocketFactory != null ? _sslSocketFactory : (SSLSocketFactory) SSLSocketFactory.getDefault();
+	}
+
+	/**
+	 * Milli seconds to wait for a connection once the maximum for an end point has been reached
+	 */
+	public void setAcquireTimeout(long acquireTimeout)
+	{
+		_acquireTimeout = acquireTimeout;
+	}
+
+	/**
+	 * Returns an idle connection to the url's end point if there is one, otherwise opens a new one, waiting
+	 * for a connection to be released if the maximum has been reached.
+	 *
+	 * @param url end point to connect to
+	 * @return connection, which must be given back via {@link #release(PooledConnection, boolean)}
+	 * @throws IOException if no connection can be opened or none is released in time
+	 */
+	public PooledConnection acquire(URL url) throws IOException
+	{
+		String key = keyFor(url);
+		long deadline = System.currentTimeMillis() + _acquireTimeout;
+
+		while (true)
+		{
+			PooledConnection idle = null;
+
+			synchronized (this)
+			{
+				if (_closed)
+					throw new IOException("Connection pool has been closed");
+
+				Endpoint endpoint = _endpoints.get(key);
+
+				if (endpoint == null)
+					_endpoints.put(key, endpoint = new Endpoint());
+
+				if (!endpoint._idle.isEmpty())
+				{
+					// most recently used first, as it is the least likely to have been closed by the server
+
+					idle = endpoint._idle.pollFirst();
+					endpoint._leased += 1;
+				}
+				else if (endpoint._leased < _maxConnectionsPerEndpoint)
+				{
+					endpoint._leased += 1;
+				}
+				else
+				{
+					long wait = deadline - System.currentTimeMillis();
+
+					if (wait <= 0)
+						throw new IOException("Timed out waiting for a connection to " + key + ", all " + _maxConnectionsPerEndpoint + " are in use");
+
+					try
+					{
+						wait(wait);
+					}
+					catch (InterruptedException e)
+					{
+						Thread.currentThread().interrupt();
+						throw new IOException("Interrupted whilst waiting for a connection to " + key);
+					}
+
+					continue;
+				}
+			}
+
+			// checks and connects are done outside of the lock, the lease has already been counted
+
+			if (idle != null)
+			{
+				if (!idle.isExpired(_idleTimeout) && !idle.isStale())
+				{
+					Logger.getLogger(HttpConnectionPool.class).debug("Reusing connection to " + key);
+					return idle;
+				}
+
+				Logger.getLogger(HttpConnectionPool.class).debug("Discarding stale connection to " + key);
+				release(idle, false);
+
+				continue;
+			}
+
+			try
+			{
+				Logger.getLogger(HttpConnectionPool.class).debug("Opening new connection to " + key);
+
+				return new PooledConnection(key, open(url));
+			}
+			catch (IOException e)
+			{
+				releaseLease(key);
+				throw e;
+			}
+			catch (RuntimeException e)
+			{
+				releaseLease(key);
+				throw e;
+			}
+		}
+	}
+
+	/**
+	 * Returns the connection to the pool
+	 *
+	 * @param conn connection given by {@link #acquire(URL)}
+	 * @param reusable true if the last response was read in full and the server agreed to keep the connection
+	 * open, otherwise the connection is closed
+	 */
+	public void release(PooledConnection conn, boolean reusable)
+	{
+		boolean close = !reusable;
+
+		synchronized (this)
+		{
+			Endpoint endpoint = _endpoints.get(conn._key);
+
+			if (endpoint != null)
+			{
+				endpoint._leased -= 1;
+
+				if (reusable && !_closed && !conn._socket.isClosed())
+				{
+					conn._lastUsed = System.currentTimeMillis();
+					conn._requestCount += 1;
+					endpoint._idle.offerFirst(conn);
+				}
+				else
+				{
+					close = true;
+				}
+			}
+			else
+			{
+				close = true;
+			}
+
+			notifyAll();
+		}
+
+		if (close)
+			conn.close();
+	}
+
+	/**
+	 * Closes all connections that have been idle for longer than the idle timeout
+	 *
+	 * @return number of connections closed
+	 */
+	public int evictIdle()
+	{
+		List<PooledConnection> expired = new ArrayList<PooledConnection>();
+
+		synchronized (this)
+		{
+			Iterator<Endpoint> it = _endpoints.values().iterator();
+
+			while (it.hasNext())
+			{
+				Endpoint endpoint = it.next();
+				Iterator<PooledConnection> conns = endpoint._idle.iterator();
+
+				while (conns.hasNext())
+				{
+					PooledConnection conn = conns.next();
+
+					if (conn.isExpired(_idleTimeout))
+					{
+						conns.remove();
+						expired.add(conn);
+					}
+				}
+
+				if (endpoint._idle.isEmpty() && endpoint._leased == 0)
+					it.remove();
+			}
+		}
+
+		for (PooledConnection conn : expired)
+			conn.close();
+
+		if (expired.size() > 0)
+			Logger.getLogger(HttpConnectionPool.class).debug("Closed " + expired.size() + " idle connections");
+
+		return expired.size();
+	}
+
+	public synchronized int getIdleCount(URL url)
+	{
+		Endpoint endpoint = _endpoints.get(keyFor(url));
+
+		return endpoint != null ? endpoint._idle.size() : 0;
+	}
+
+	public synchronized int getLeasedCount(URL url)
+	{
+		Endpoint endpoint = _endpoints.get(keyFor(url));
+
+		return endpoint != null ? endpoint._leased : 0;
+	}
+
+	/**
+	 * Closes all idle connections, connections still in use are closed when they are released
+	 */
+	@Override
+	public void close()
+	{
+		List<PooledConnection> idle = new ArrayList<PooledConnection>();
+
+		synchronized (this)
+		{
+			if (_closed)
+				return;
+
+			_closed = true;
+
+			for (Endpoint endpoint : _endpoints.values())
+			{
+				idle.addAll(endpoint._idle);
+				endpoint._idle.clear();
+			}
+
+			notifyAll();
+		}
+
+		if (_evictionTask != null)
+			_evictionTask.cancel();
+
+		for (PooledConnection conn : idle)
+			conn.close();
+	}
+
+	private synchronized void releaseLease(String key)
+	{
+		Endpoint endpoint = _endpoints.get(key);
+
+		if (endpoint != null)
+			endpoint._leased -= 1;
+
+		notifyAll();
+	}
+
+	private Socket open(URL url) throws IOException
+	{
+		String host = url.getHost();
+		int port = url.getPort() != -1 ? url.getPort() : url.getDefaultPort();
+
+		// opened via a channel so that plain connections can be written to directly from a file channel
+
+		Socket socket = SocketChannel.open().socket();
+
+		try
+		{
+			socket.setTcpNoDelay(true);
+			socket.setKeepAlive(true);
+			socket.connect(new InetSocketAddress(host, port), _connectTimeout);
+			socket.setSoTimeout(_readTimeout);
+
+			if (url.getProtocol().equalsIgnoreCase("https"))
+			{
+				SSLSocket sslSocket = (SSLSocket) getSSLSocketFactory().createSocket(socket, host, port, true);
+
+				// check the certificate is for the host, as HttpsURLConnection does, and say which host we want in case the server has several
+
+				SSLParameters params = sslSocket.getSSLParameters();
+				params.setEndpointIdentificationAlgorithm("HTTPS");
+
+				if (!isIpAddress(host))
+					params.setServerNames(Collections.<SNIServerName>singletonList(new SNIHostName(host)));
+
+				sslSocket.setSSLParameters(params);
+				sslSocket.startHandshake();
+
+				return sslSocket;
+			}
+
+			return socket;
+		}
+		catch (IOException e)
+		{
+			socket.close();
+			throw e;
+		}
+	}
+
+	private static boolean isIpAddress(String host)
+	{
+		if (host.indexOf(':') != -1)
+			return true;
+
+		for (int i = 0; i < host.length(); i++)
+		{
+			char c = host.charAt(i);
+
+			if (c != '.' && !Character.isDigit(c))
+				return false;
+		}
+
+		return true;
+	}
+
+	private static String keyFor(URL url)
+	{
+		int port = url.getPort() != -1 ? url.getPort() : url.getDefaultPort();
+
+		return url.getProtocol().toLowerCase() + "://" + url.getHost().toLowerCase() + ":" + port;
+	}
+
+	private static class Endpoint
+	{
+		private Deque<PooledConnection>		_idle = new ArrayDeque<PooledConnection>();
+		private int							_leased;
+	}
+
+	/**
+	 * Open connection to an end point, only to be used by one thread at a time between acquire and release
+	 */
+	public static class PooledConnection
+	{
+		private String			_key;
+		private Socket			_socket;
+		private InputStream		_in;
+		private OutputStream	_out;
+		private long			_lastUsed;
+		private int				_requestCount;
+
+		PooledConnection(String key, Socket socket) throws IOException
+		{
+			_key = key;
+			_socket = socket;
+			_in = new BufferedInputStream(socket.getInputStream(), ReliableInboundHttpConnection.BUFFER_SIZE);
+			_out = new BufferedOutputStream(socket.getOutputStream(), ReliableInboundHttpConnection.BUFFER_SIZE);
+			_lastUsed = System.currentTimeMillis();
+			_requestCount = 0;
+		}
+
+		public InputStream getInputStream()
+		{
+			return _in;
+		}
+
+		public OutputStream getOutputStream()
+		{
+			return _out;
+		}
+
+		/**
+		 * Returns the underlying socket, whose channel can be written to directly for plain connections as
+		 * long as the output stream has been flushed first. The channel is null for https connections.
+		 */
+		public Socket getSocket()
+		{
+			return _socket;
+		}
+
+		/**
+		 * Number of requests completed over this connection
+		 */
+		public int getRequestCount()
+		{
+			return _requestCount;
+		}
+
+		boolean isExpired(long idleTimeout)
+		{
+			return idleTimeout > 0 && System.currentTimeMillis() - _lastUsed > idleTimeout;
+		}
+
+		/**
+		 * An idle connection should have nothing to read, if the server has closed it the read returns end of
+		 * stream straight away
+		 */
+		boolean isStale()
+		{
+			if (_socket.isClosed() || _socket.isInputShutdown() || _socket.isOutputShutdown())
+				return true;
+
+			int soTimeout = 0;
+
+			try
+			{
+				soTimeout = _socket.getSoTimeout();
+				_socket.setSoTimeout(1);
+				_in.mark(1);
+
+				// either end of stream or unexpected data from the server, neither can be trusted
+
+				_in.read();
+
+				return true;
+			}
+			catch (SocketTimeoutException e)
+			{
+				return false;
+			}
+			catch (IOException e)
+			{
+				return true;
+			}
+			finally
+			{
+				try
+				{
+					_in.reset();
+					_socket.setSoTimeout(soTimeout);
+				}
+				catch (IOException e)
+				{
+					// stale anyway
+				}
+			}
+		}
+
+		void close()
+		{
+			try
+			{
+				_socket.close();
+			}
+			catch (IOException e)
+			{
+				// ignore
+			}
+		}
+	}
+
+	/**
+	 * Periodic eviction of idle connections, only holds a weak reference to the pool
+	 */
+	private static class EvictionTask implements Runnable
+	{
+		private WeakReference<HttpConnectionPool> _pool;
+
+		private volatile ScheduledFuture<?> _future;
+
+		EvictionTask(HttpConnectionPool pool)
+		{
+			_pool = new WeakReference<HttpConnectionPool>(pool);
+		}
+
+		void start(ExpiryScheduler scheduler, long interval)
+		{
+			_future = scheduler.scheduleAtFixedRate(this, interval, TimeUnit.MILLISECONDS);
+		}
+
+		void cancel()
+		{
+			if (_future != null)
+				_future.cancel(false);
+		}
+
+		@Override
+		public void run()
+		{
+			HttpConnectionPool pool = _pool.get();
+
+			if (pool == null)
+			{
+				cancel();
+				return;
+			}
+
+			pool.evictIdle();
+		}
+	}
+}
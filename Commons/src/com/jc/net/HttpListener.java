@@ -12,7 +12,7 @@ import org.apache.log4j.ConsoleAppender;
 import org.apache.log4j.Logger;
 import org.apache.log4j.PatternLayout;
 
-import com.jc.net.ReliableInboundHttpConnection.HttpRequest;
+import com.jc.net.ReliableInboundHttpConnection.HttpRequestResponse;
 
 public class HttpListener extends Thread
 {
@@ -77,20 +77,15 @@ public class HttpListener extends Thread
 	    	  
 				  log(client.getHostName() + " connected to server.\n");
 
-				  HttpRequest response = new ReliableInboundHttpConnection("/tmp", true).read(connectionsocket);
+				  // one request per connection, as a client keeping it open would hold up everyone else, see NioHttpListener
 				  
-				  FileOutputStream dump = new FileOutputStream(new File(response.getCachedFileName().toString() + ".dump"));
-				  InputStream in = response.getCachedInputStream();
-				  int bytesRead = 0;
-				  byte buf[] = new byte[1024];
+				  ReliableInboundHttpConnection reader = new ReliableInboundHttpConnection("/tmp", true);
+				  reader.setKeepAlive(false);
 				  
-				  while((bytesRead=in.read(buf)) > 0)
-					 dump.write(buf, 0, bytesRead);
+				  HttpRequestResponse response = reader.read(connectionsocket);
 				  
-				  dump.flush();
-				  dump.close();
-				  
-				  in.close();
+				  if (response != null && response.getResponseCode() == 200)
+					  dump(response);
 			  }
 			  catch (Exception e) 
 			  {
@@ -110,6 +105,22 @@ public class HttpListener extends Thread
 		  } //go back in loop, wait for next request
 	  }
 	  
+	  private void dump(HttpRequestResponse response) throws IOException
+	  {
+		  FileOutputStream dump = new FileOutputStream(new File(response.getCachedFileName().toString() + ".dump"));
+		  InputStream in = response.getCachedInputStream();
+		  int bytesRead = 0;
+		  byte buf[] = new byte[1024];
+		  
+		  while((bytesRead=in.read(buf)) > 0)
+			 dump.write(buf, 0, bytesRead);
+		  
+		  dump.flush();
+		  dump.close();
+		  
+		  in.close();
+	  }
+	  
 	  private void log(String s) 
 	  { 
 		  System.out.println(s);
@@ -0,0 +1,538 @@
+package com.jc.net;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+
+import com.jc.net.ReliableInboundHttpConnection.HttpRequestResponse;
+
+/**
+ * Receives reliable http transfers from many clients at once, as an alternative to {@link HttpListener},
+ * which serves one connection at a time, e.g.
+ *
+ * <pre>
+ * NioHttpListener listener = new NioHttpListener(8090, "/tmp", true);
+ * listener.setWorkers(16);
+ * listener.setRequestHandler(new RequestHandler() { ... });
+ * listener.start();
+ * </pre>
+ *
+ * A single thread waits on a selector for new connections and for idle persistent connections to send
+ * their next request. Once a request arrives, its connection is handed to a bounded pool of workers that
+ * read and cache the body via {@link ReliableInboundHttpConnection#read(java.net.Socket)}, so the existing
+ * resume by offset protocol is unchanged. Connections waiting between requests don't tie up a worker.
+ *
+ * Load is limited in two ways. Once the maximum number of connections is open, new connections are left
+ * in the server socket's backlog until one closes. If all workers are busy and the queue of waiting
+ * requests is full, the request is answered straight away with 503 and a Retry-After header, to which
+ * {@link ReliableOutboundHttpConnection#sendFile(java.io.File, int, long, float, boolean)} responds by
+ * backing off. Connections that stall mid request are dropped after the read timeout and idle persistent
+ * connections after the keep alive timeout.
+ *
+ * @author John Carter
+ * @version 1.0
+ */
+public class NioHttpListener implements AutoCloseable
+{
+	public static final int				DEFAULT_WORKERS = 16;
+	public static final int				DEFAULT_QUEUE_SIZE = 64;
+	public static final int				DEFAULT_MAX_CONNECTIONS = 1024;
+	public static final int				DEFAULT_READ_TIMEOUT_MS = 60000;
+	public static final long			DEFAULT_KEEP_ALIVE_TIMEOUT_MS = 15000;
+
+	private static final long			SWEEP_INTERVAL_MS = 1000;
+	private static final byte[]			BUSY_RESPONSE = ("HTTP/1.1 503 Service Unavailable\r\n"
+											+ "Connection: close\r\n"
+											+ "Content-Length: 0\r\n"
+											+ "Retry-After: 1\r\n\r\n").getBytes();
+
+	private int							_port;
+	private ReliableInboundHttpConnection _inbound;
+	private RequestHandler				_handler;
+
+	private int							_workers;
+	private int							_queueSize;
+	private int							_maxConnections;
+	private int							_readTimeout;
+	private long						_keepAliveTimeout;
+
+	private ServerSocketChannel			_serverChannel;
+	private Selector					_selector;
+	private SelectionKey				_acceptKey;
+	private ThreadPoolExecutor			_executor;
+	private Thread						_selectorThread;
+
+	private Queue<SocketChannel>		_returned;
+	private AtomicInteger				_openConnections;
+	private AtomicInteger				_activeRequests;
+	private AtomicInteger				_rejectedRequests;
+	private volatile boolean			_closed;
+
+	/**
+	 * @param port port to listen on, 0 for any free port, see {@link #getPort()}
+	 * @param tempDir directory in which to cache request bodies
+	 * @param decompressContent true if clients compress their content
+	 */
+	public NioHttpListener(int port, String tempDir, boolean decompressContent)
+	{
+		_port = port;
+		_inbound = new ReliableInboundHttpConnection(tempDir, decompressContent);
+
+		_workers = DEFAULT_WORKERS;
+		_queueSize = DEFAULT_QUEUE_SIZE;
+		_maxConnections = DEFAULT_MAX_CONNECTIONS;
+		_readTimeout = DEFAULT_READ_TIMEOUT_MS;
+		_keepAliveTimeout = DEFAULT_KEEP_ALIVE_TIMEOUT_MS;
+
+		_returned = new ConcurrentLinkedQueue<SocketChannel>();
+		_openConnections = new AtomicInteger();
+		_activeRequests = new AtomicInteger();
+		_rejectedRequests = new AtomicInteger();
+	}
+
+	/**
+	 * Called by the worker once a request has been cached and its response sent, for requests that succeeded
+	 */
+	public interface RequestHandler
+	{
+		public void requestReceived(HttpRequestResponse request) throws IOException;
+	}
+
+	public void setRequestHandler(RequestHandler handler)
+	{
+		_handler = handler;
+	}
+
+	/**
+	 * Number of threads reading request bodies, i.e. the number of transfers in progress at any one time
+	 */
+	public void setWorkers(int workers)
+	{
+		_workers = workers;
+	}
+
+	/**
+	 * Number of requests that can wait for a worker before clients are told to back off, 0 for none
+	 */
+	public void setQueueSize(int queueSize)
+	{
+		_queueSize = queueSize;
+	}
+
+	/**
+	 * Maximum number of open connections, whether idle or not
+	 */
+	public void setMaxConnections(int maxConnections)
+	{
+		_maxConnections = maxConnections;
+	}
+
+	/**
+	 * Milli seconds to wait for data whilst reading a request before dropping the connection
+	 */
+	public void setReadTimeout(int readTimeout)
+	{
+		_readTimeout = readTimeout;
+	}
+
+	/**
+	 * Milli seconds to keep an idle persistent connection open waiting for its next request
+	 */
+	public void setKeepAliveTimeout(long keepAliveTimeout)
+	{
+		_keepAliveTimeout = keepAliveTimeout;
+	}
+
+	/**
+	 * Acknowledges content already received with {@link ReliableInboundHttpConnection#ALREADY_RECEIVED} rather than
+	 * passing it to the request handler again, see {@link ReliableInboundHttpConnection#enableDuplicateDetection(int, long, TimeUnit)}
+	 */
+	public void enableDuplicateDetection(int maxEntries, long timeToLive, TimeUnit unit)
+	{
+		_inbound.enableDuplicateDetection(maxEntries, timeToLive, unit);
+	}
+
+	/**
+	 * Binds to the port and starts accepting connections
+	 *
+	 * @throws IOException if the port can't be bound to
+	 */
+	public synchronized void start() throws IOException
+	{
+		if (_selectorThread != null)
+			throw new IllegalStateException("Listener already started");
+
+		_selector = Selector.open();
+		_serverChannel = ServerSocketChannel.open();
+
+		try
+		{
+			_serverChannel.socket().setReuseAddress(true);
+			_serverChannel.bind(new InetSocketAddress(_port));
+			_serverChannel.configureBlocking(false);
+			_acceptKey = _serverChannel.register(_selector, SelectionKey.OP_ACCEPT);
+		}
+		catch (IOException e)
+		{
+			_serverChannel.close();
+			_selector.close();
+			throw e;
+		}
+
+		_port = _serverChannel.socket().getLocalPort();
+
+		BlockingQueue<Runnable> queue = _queueSize > 0 ? new ArrayBlockingQueue<Runnable>(_queueSize) : new SynchronousQueue<Runnable>();
+
+		_executor = new ThreadPoolExecutor(_workers, _workers, 60, TimeUnit.SECONDS, queue, new ThreadFactory() {
+
+			private AtomicInteger _count = new AtomicInteger();
+
+			@Override
+			public Thread newThread(Runnable r)
+			{
+				Thread t = new Thread(r, "com.jc.net.NioHttpListener-worker-" + _count.incrementAndGet());
+				t.setDaemon(true);
+
+				return t;
+			}
+		});
+
+		_selectorThread = new Thread(new Runnable() {
+
+			@Override
+			public void run()
+			{
+				select();
+			}
+		}, "com.jc.net.NioHttpListener-" + _port);
+
+		_selectorThread.setDaemon(true);
+		_selectorThread.start();
+
+		Logger.getLogger(NioHttpListener.class).info("Listening on port " + _port + " with " + _workers + " workers");
+	}
+
+	public int getPort()
+	{
+		return _port;
+	}
+
+	public int getOpenConnections()
+	{
+		return _openConnections.get();
+	}
+
+	public int getActiveRequests()
+	{
+		return _activeRequests.get();
+	}
+
+	/**
+	 * Number of requests turned away with 503 because all workers were busy
+	 */
+	public int getRejectedRequests()
+	{
+		return _rejectedRequests.get();
+	}
+
+	/**
+	 * Stops accepting connections and closes all idle ones, requests in progress are allowed to finish
+	 */
+	@Override
+	public void close()
+	{
+		_closed = true;
+
+		if (_selector != null)
+			_selector.wakeup();
+
+		if (_executor != null)
+			_executor.shutdown();
+	}
+
+	private void select()
+	{
+		try
+		{
+			while (!_closed)
+			{
+				_selector.select(SWEEP_INTERVAL_MS);
+
+				if (_closed)
+					break;
+
+				registerReturned();
+
+				List<SocketChannel> ready = new ArrayList<SocketChannel>();
+				Iterator<SelectionKey> it = _selector.selectedKeys().iterator();
+
+				while (it.hasNext())
+				{
+					SelectionKey key = it.next();
+					it.remove();
+
+					if (!key.isValid())
+						continue;
+
+					if (key.isAcceptable())
+					{
+						accept();
+					}
+					else if (key.isReadable())
+					{
+						// the channel has to be deregistered before it can be switched back to blocking for the worker
+
+						key.cancel();
+						ready.add((SocketChannel) key.channel());
+					}
+				}
+
+				if (!ready.isEmpty())
+				{
+					_selector.selectNow();
+
+					for (SocketChannel channel : ready)
+						dispatch(channel);
+				}
+
+				closeIdle();
+
+				// stop accepting whilst at the limit, leaving new connections in the backlog
+
+				_acceptKey.interestOps(_openConnections.get() < _maxConnections ? SelectionKey.OP_ACCEPT : 0);
+			}
+		}
+		catch (IOException e)
+		{
+			Logger.getLogger(NioHttpListener.class).error("Listener on port " + _port + " failed: " + e.getMessage(), e);
+		}
+		finally
+		{
+			shutdown();
+		}
+	}
+
+	private void accept() throws IOException
+	{
+		SocketChannel channel = null;
+
+		while (_openConnections.get() < _maxConnections && (channel=_serverChannel.accept()) != null)
+		{
+			_openConnections.incrementAndGet();
+
+			try
+			{
+				channel.socket().setTcpNoDelay(true);
+				register(channel);
+			}
+			catch (IOException e)
+			{
+				close(channel);
+			}
+		}
+	}
+
+	private void register(SocketChannel channel) throws IOException
+	{
+		channel.configureBlocking(false);
+		channel.register(_selector, SelectionKey.OP_READ, new long[] {System.currentTimeMillis()});
+	}
+
+	/**
+	 * Connections given back by workers to wait for their next request
+	 */
+	private void registerReturned()
+	{
+		SocketChannel channel = null;
+
+		while ((channel=_returned.poll()) != null)
+		{
+			try
+			{
+				register(channel);
+			}
+			catch (IOException e)
+			{
+				close(channel);
+			}
+		}
+	}
+
+	private void dispatch(final SocketChannel channel)
+	{
+		try
+		{
+			_executor.execute(new Runnable() {
+
+				@Override
+				public void run()
+				{
+					serve(channel);
+				}
+			});
+		}
+		catch (RejectedExecutionException e)
+		{
+			reject(channel);
+		}
+	}
+
+	/**
+	 * Tells the client to come back later, without reading the request
+	 */
+	private void reject(SocketChannel channel)
+	{
+		_rejectedRequests.incrementAndGet();
+
+		Logger.getLogger(NioHttpListener.class).debug("All workers busy, rejecting request from " + channel.socket().getRemoteSocketAddress());
+
+		try
+		{
+			// small enough to go out in one go, any remainder is not worth waiting for
+
+			channel.write(ByteBuffer.wrap(BUSY_RESPONSE));
+		}
+		catch (IOException e)
+		{
+			// client gone anyway
+		}
+
+		close(channel);
+	}
+
+	private void serve(SocketChannel channel)
+	{
+		boolean keepAlive = false;
+
+		_activeRequests.incrementAndGet();
+
+		try
+		{
+			channel.configureBlocking(true);
+
+			Socket socket = channel.socket();
+			socket.setSoTimeout(_readTimeout);
+
+			HttpRequestResponse request = _inbound.read(socket);
+
+			if (request != null)
+			{
+				if (request.getResponseCode() == 200 && _handler != null)
+					_handler.requestReceived(request);
+
+				keepAlive = request.isKeepAlive();
+			}
+		}
+		catch (SocketTimeoutException e)
+		{
+			Logger.getLogger(NioHttpListener.class).debug("Dropping connection that timed out mid request");
+		}
+		catch (Exception e)
+		{
+			Logger.getLogger(NioHttpListener.class).error("Request failed: " + e.getMessage());
+		}
+		finally
+		{
+			_activeRequests.decrementAndGet();
+		}
+
+		if (keepAlive && !_closed)
+		{
+			_returned.add(channel);
+			_selector.wakeup();
+		}
+		else
+		{
+			close(channel);
+		}
+	}
+
+	/**
+	 * Closes persistent connections that have not sent a request within the keep alive timeout
+	 */
+	private void closeIdle()
+	{
+		if (_keepAliveTimeout <= 0)
+			return;
+
+		long now = System.currentTimeMillis();
+
+		for (SelectionKey key : _selector.keys())
+		{
+			if (key.isValid() && key.attachment() instanceof long[] && now - ((long[]) key.attachment())[0] > _keepAliveTimeout)
+			{
+				key.cancel();
+				close((SocketChannel) key.channel());
+			}
+		}
+	}
+
+	private void close(SocketChannel channel)
+	{
+		if (!channel.isOpen())
+			return;
+		
+		try
+		{
+			channel.close();
+		}
+		catch (IOException e)
+		{
+			// ignore
+		}
+
+		_openConnections.decrementAndGet();
+
+		// make room for any connections waiting in the backlog
+
+		if (_selector != null && Thread.currentThread() != _selectorThread)
+			_selector.wakeup();
+	}
+
+	private void shutdown()
+	{
+		for (SelectionKey key : _selector.keys())
+		{
+			if (key.channel() instanceof SocketChannel)
+				close((SocketChannel) key.channel());
+		}
+
+		SocketChannel channel = null;
+
+		while ((channel=_returned.poll()) != null)
+			close(channel);
+
+		try
+		{
+			_serverChannel.close();
+			_selector.close();
+		}
+		catch (IOException e)
+		{
+			// ignore
+		}
+
+		Logger.getLogger(NioHttpListener.class).info("Stopped listening on port " + _port);
+	}
+}
@@ -4,78 +4,211 @@ import java.io.BufferedInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 import java.util.zip.GZIPInputStream;
 
 import org.apache.log4j.Logger;
 
+import com.jc.util.ConcurrentTimeToLiveMap;
+
 public class ReliableInboundHttpConnection 
 {	
 	public final static int				REQUEST_OFFSET = 205;
+	public final static int				ALREADY_RECEIVED = 208;
 	public final static int				BUFFER_SIZE = 10240;
+	public final static int				CACHE_BUFFER_SIZE = 256 * 1024;
+	
+	// cache files currently being written to, so that a retry can't interleave with a transfer that is still running
+	
+	private static final Set<String>	_activeTransfers = ConcurrentHashMap.newKeySet();
 	
 	private File						_tempDir;
 	private boolean						_decompressContent;
+	private boolean						_keepAlive;
+	
+	// digests of content already received and verified, null unless duplicate detection is enabled
+	
+	private Map<String, String>			_receivedContent;
 	
 	public ReliableInboundHttpConnection(String tempDir, boolean decompressContent)
 	{
 		_decompressContent = decompressContent;
+		_keepAlive = true;
 		_tempDir = new File(tempDir);
 		
 		if (!_tempDir.exists() || !_tempDir.canWrite())
 			throw new RuntimeException("Temp directory does not exist or cannot be written to : " + _tempDir.getAbsolutePath());
 	}
 	
-	public HttpRequest read(Socket connection) throws IOException, InvalidConnectionException
+	/**
+	 * Replies {@link #ALREADY_RECEIVED} to requests whose content digest matches that of content received and
+	 * verified by this connection within the given time, without reading their body. Content is identified by
+	 * its digest alone, so a request with the same content as an earlier one is acknowledged but never delivered,
+	 * whatever its unique id. Only enable this where the same content is never legitimately sent twice.
+	 * 
+	 * @param maxEntries maximum number of digests to remember
+	 * @param timeToLive how long to remember each digest
+	 * @param unit unit of timeToLive
+	 */
+	public void enableDuplicateDetection(int maxEntries, long timeToLive, TimeUnit unit)
+	{
+		_receivedContent = new ConcurrentTimeToLiveMap<String, String>(maxEntries, timeToLive, unit);
+	}
+	
+	/**
+	 * Set to false to always close the connection after each request, e.g. for listeners that serve one
+	 * connection at a time and so can't afford to wait for a client's next request
+	 */
+	public void setKeepAlive(boolean keepAlive)
+	{
+		_keepAlive = keepAlive;
+	}
+	
+	public boolean isKeepAlive()
 	{
-		Map<String, String> requestHeaders = new HashMap<String, String>();
+		return _keepAlive;
+	}
+	
+	/**
+	 * Reads the next request from the connection, caches its body and sends the response. Can be called again
+	 * for the same connection as long as {@link HttpResponse#isKeepAlive()} is true for the previous request.
+	 * 
+	 * @param connection socket from client
+	 * @return the request, or null if the client closed the connection before sending another request
+	 */
+	public HttpRequestResponse read(Socket connection) throws IOException, InvalidConnectionException
+	{
+		Map<String, String> requestHeaders = new TreeMap<String, String>(String.CASE_INSENSITIVE_ORDER);
 		
         InputStream in = connection.getInputStream();
 
+        // Read request line, skipping any blank lines left over from a previous request
+        
+        String requestLine = null;
+        
+        while ((requestLine=readLineFromInputStream(in)) != null && requestLine.isEmpty())
+        	;
+        
+        if (requestLine == null)
+        	return null;
+        
+    	Logger.getLogger(ReliableInboundHttpConnection.class).debug("Reading request: " + requestLine);
+
         // Read http headers
 
         String header = null;
         
-        while(!(header=readLineFromInputStream(in)).isEmpty())
+        while((header=readLineFromInputStream(in)) != null && !header.isEmpty())
         {
         	Logger.getLogger(ReliableInboundHttpConnection.class).debug("Reading header: " + new String(header));
         	
         	int indexOfSeparator = header.indexOf(":");
         	
         	if (indexOfSeparator != -1)
-        		requestHeaders.put(header.substring(0, indexOfSeparator), header.substring(indexOfSeparator+2));
+        		requestHeaders.put(header.substring(0, indexOfSeparator).trim(), header.substring(indexOfSeparator+1).trim());
         }
         
-        // process http body
+        // a client sending a content digest waits to hear whether it needs to send the body at all
+        
+        String expect = requestHeaders.get("Expect");
+        
+        if (expect != null && expect.equalsIgnoreCase("100-continue"))
+        {
+        	HttpRequestReplyImpl duplicate = checkDuplicate(requestHeaders);
+        	OutputStream out = connection.getOutputStream();
+        	
+        	if (duplicate != null)
+        	{
+        		out.write(constructHttpResponseHeader(duplicate).getBytes());
+        		out.flush();
+        		
+        		return duplicate;
+        	}
+        	
+        	out.write("HTTP/1.1 100 Continue\r\n\r\n".getBytes());
+        	out.flush();
+        }
+        
+        // process http body, which has to be framed by chunks or a content length for the connection to be kept
                 
     	Logger.getLogger(ReliableInboundHttpConnection.class).debug("Reading request body");
 
     	HttpRequestResponse requestReply = null;
         String encoding = null;
+        String contentLength = null;
+        boolean framed = true;
         
         if ((encoding=requestHeaders.get("Transfer-Encoding")) != null && encoding.equalsIgnoreCase("chunked"))
+        {
         	requestReply = read(new ChunkedInputStream(in), requestHeaders);
+        }
+        else if ((contentLength=requestHeaders.get("Content-Length")) != null)
+        {
+        	long length = -1;
+        	
+        	try {
+        		length = Long.parseLong(contentLength);
+        	} catch (NumberFormatException e) {
+        		throw new InvalidConnectionException("Invalid content length: " + contentLength);
+        	}
+        	
+        	requestReply = read(new BufferedInputStream(new ContentLengthInputStream(in, length)), requestHeaders);
+        }
         else
+        {
         	requestReply = read(new BufferedInputStream(in), requestHeaders);
+        	framed = false;
+        }
         
         if (requestReply.getResponseCode() == 200)
         	Logger.getLogger(ReliableInboundHttpConnection.class).debug("Successfully cached request body in file: " + requestReply.getCachedFileName());
         
+        // only keep the connection if the body was read in full and the client wants it
+        
+        boolean bodyRead = requestReply.getResponseCode() == 200 || requestReply.getResponseCode() == 202;
+        
+        ((HttpRequestReplyImpl) requestReply).setKeepAlive(_keepAlive && framed && bodyRead && isKeepAliveRequested(requestLine, requestHeaders));
+        
     	// set http response
     	
     	OutputStream out = connection.getOutputStream();
     	
     	out.write(constructHttpResponseHeader(requestReply).getBytes());
+    	out.flush();
     	
     	return requestReply;
 	}
 	
+	private boolean isKeepAliveRequested(String requestLine, Map<String, String> requestHeaders)
+	{
+		String connection = requestHeaders.get("Connection");
+		
+		// persistent by default for HTTP/1.1, only if asked for by HTTP/1.0
+		
+		if (requestLine.endsWith("HTTP/1.1"))
+			return connection == null || !connection.equalsIgnoreCase("close");
+		else
+			return connection != null && connection.equalsIgnoreCase("keep-alive");
+	}
+	
 	public HttpRequestResponse read(InputStream in, Map<String, String> requestHeaders) throws InvalidConnectionException
 	{		
 		if (in == null)
@@ -96,12 +229,70 @@ public class ReliableInboundHttpConnection
 		if (uniqueId == null)
 			throw new InvalidConnectionException("Unique id header missing");
 
+		HttpRequestReplyImpl duplicate = checkDuplicate(requestHeaders);
+		
+		if (duplicate != null)
+			return duplicate;
+		
+		int checksumBlockSize = 0;
+		
+		try {
+			if (requestHeaders.get(ReliableOutboundHttpConnection.CHECKSUM_BLOCK_SIZE) != null)
+				checksumBlockSize = Integer.parseInt(requestHeaders.get(ReliableOutboundHttpConnection.CHECKSUM_BLOCK_SIZE));
+		} catch(NumberFormatException e) {
+			throw new InvalidConnectionException("Invalid checksum block size for id: " + uniqueId);
+		}
+		
+		if (checksumBlockSize < 0)
+			throw new InvalidConnectionException("Invalid checksum block size for id: " + uniqueId);
+		
+		if (requestHeaders.get(ReliableOutboundHttpConnection.RANGE_COUNT) != null)
+			return readRange(in, requestHeaders, uniqueId, offset, checksumBlockSize);
+		
+		// content compressed in blocks, see BlockCompressedOutputStream, is resumed from the last complete block
+		
+		long sourceOffset = -1;
+		
+		if (requestHeaders.get(ReliableOutboundHttpConnection.BLOCK_CODEC) != null)
+		{
+			try {
+				sourceOffset = Long.parseLong(requestHeaders.get(ReliableOutboundHttpConnection.SOURCE_OFFSET));
+			} catch(Exception e) {
+				throw new InvalidConnectionException("Invalid or missing source offset for block compressed id: " + uniqueId);
+			}
+		}
+		
+		String transferKey = new File(_tempDir, uniqueId).getAbsolutePath();
+		
+		if (!_activeTransfers.add(transferKey))
+		{
+			Logger.getLogger(ReliableInboundHttpConnection.class).debug("Transfer already in progress for id: " + uniqueId);
+			
+			HttpRequestReplyImpl results = new HttpRequestReplyImpl(null, 503);
+			results.setResponseHeader("Retry-After", "1");
+			return results;
+		}
+		
 		try 
 		{
-			ReliableInboundHttpConnectionReader reader = new ReliableInboundHttpConnectionReader(uniqueId, offset);
+			File cacheFile = new File(_tempDir, uniqueId);
+			BlockChecksums.Pending pending = BlockChecksums.loadPending(cacheFile);
+			
+			if (pending != null || requestHeaders.get(ReliableOutboundHttpConnection.CORRUPT_BLOCKS) != null)
+				return readBlocks(in, requestHeaders, cacheFile, pending, checksumBlockSize);
+			
+			ReliableInboundHttpConnectionReader reader = new ReliableInboundHttpConnectionReader(uniqueId, offset, sourceOffset);
+			
+			if (checksumBlockSize > 0)
+				reader.setChecksums(new BlockChecksums(checksumBlockSize, offset));
+			
 			File cachedFile = reader.cache(in);
+			int[] corrupt = reader.verify(getTrailer(in, ReliableOutboundHttpConnection.BLOCK_CHECKSUMS));
 			
-			return new HttpRequestReplyImpl(cachedFile, 200);
+			if (corrupt.length > 0)
+				return corrupted(reader, corrupt, checksumBlockSize, offset, sourceOffset != -1);
+			
+			return completed(cachedFile, requestHeaders, sourceOffset != -1);
 		} 
 		catch (ConnectionResetException e) // flags sender to redo request starting from given offset
 		{
@@ -109,6 +300,10 @@ public class ReliableInboundHttpConnection
 			
 			HttpRequestReplyImpl results = new HttpRequestReplyImpl(null, REQUEST_OFFSET);
 			results.setResponseHeader(ReliableOutboundHttpConnection.OFFSET, "" + e.getRequiredOffset());
+			
+			if (e.getRequiredSourceOffset() != -1)
+				results.setResponseHeader(ReliableOutboundHttpConnection.SOURCE_OFFSET, "" + e.getRequiredSourceOffset());
+			
 			return results;
 		} 
 		catch (ConnectionInterruptedException e) // return code is not really relevant as the connection has been lost
@@ -117,17 +312,444 @@ public class ReliableInboundHttpConnection
 			
 			return new HttpRequestReplyImpl(null, 503);
 		}
+		catch (IOException e)
+		{
+			Logger.getLogger(ReliableInboundHttpConnection.class).error("Cannot check cached blocks for id: " + uniqueId + ", " + e.getMessage());
+			
+			return new HttpRequestReplyImpl(null, 500);
+		}
+		finally
+		{
+			_activeTransfers.remove(transferKey);
+		}
+	}
+	
+	/**
+	 * Replies {@link #ALREADY_RECEIVED} if content with the same digest has already been received, null otherwise
+	 */
+	private HttpRequestReplyImpl checkDuplicate(Map<String, String> requestHeaders)
+	{
+		String digest = requestHeaders.get(ReliableOutboundHttpConnection.CONTENT_DIGEST);
+		String receivedAs = digest != null && _receivedContent != null ? _receivedContent.get(digest) : null;
+		
+		if (receivedAs == null)
+			return null;
+		
+		Logger.getLogger(ReliableInboundHttpConnection.class).debug("Content for id: " + requestHeaders.get(ReliableOutboundHttpConnection.UNIQUE_ID) + " has already been received as: " + receivedAs);
+
+		return new HttpRequestReplyImpl(null, ALREADY_RECEIVED);
+	}
+	
+	/**
+	 * Returns the value of the given trailer, if the body was chunked and read to the end
+	 */
+	private String getTrailer(InputStream in, String name)
+	{
+		if (in instanceof ChunkedInputStream && ((ChunkedInputStream) in).isEndOfStream())
+			return ((ChunkedInputStream) in).getTrailers().get(name);
+		else
+			return null;
+	}
+	
+	/**
+	 * Gives the cached file to the caller, once checked against the digest of the whole content if the sender
+	 * gave one. If it doesn't match, the file is discarded and the sender asked to start again.
+	 */
+	private HttpRequestReplyImpl completed(File cacheFile, Map<String, String> requestHeaders, boolean blockCompressed) throws IOException
+	{
+		String digest = requestHeaders.get(ReliableOutboundHttpConnection.CONTENT_DIGEST);
+		
+		if (digest != null && !isSupportedDigest(digest))
+		{
+			// can't be verified, so is delivered as is but never taken as proof of what has been received
+			
+			Logger.getLogger(ReliableInboundHttpConnection.class).warn("Cannot verify unsupported content digest: " + digest);
+		}
+		else if (digest != null)
+		{
+			if (!matchesDigest(cacheFile, digest, blockCompressed))
+			{
+				Logger.getLogger(ReliableInboundHttpConnection.class).error("Content of " + cacheFile + " does not match its digest, asking for it to be sent again");
+				
+				cacheFile.delete();
+				
+				HttpRequestReplyImpl results = new HttpRequestReplyImpl(null, REQUEST_OFFSET);
+				results.setResponseHeader(ReliableOutboundHttpConnection.OFFSET, "0");
+				
+				if (blockCompressed)
+					results.setResponseHeader(ReliableOutboundHttpConnection.SOURCE_OFFSET, "0");
+				
+				return results;
+			}
+			
+			if (_receivedContent != null)
+				_receivedContent.put(digest, cacheFile.getName());
+		}
+		
+		HttpRequestReplyImpl results = new HttpRequestReplyImpl(cacheFile, 200);
+		results.setBlockCompressed(blockCompressed);
+		return results;
+	}
+	
+	private boolean isSupportedDigest(String digest)
+	{
+		int indexOfSeparator = digest.indexOf('=');
+		
+		return indexOfSeparator != -1 && digest.substring(0, indexOfSeparator).trim().equalsIgnoreCase("sha-256");
+	}
+	
+	/**
+	 * Compares the content of the cache file, decompressed if need be, with the digest sent as 'sha-256=&lt;base64&gt;'
+	 */
+	private boolean matchesDigest(File cacheFile, String digest, boolean blockCompressed) throws IOException
+	{
+		int indexOfSeparator = digest.indexOf('=');
+		
+		MessageDigest sha256 = null;
+		
+		try {
+			sha256 = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			// every java runtime has to provide SHA-256
+			throw new RuntimeException(e);
+		}
+		
+		// blocks say how they are compressed, so can always be checked against the original content
+		
+		InputStream in = blockCompressed ? new BlockCompressedInputStream(new BufferedInputStream(new FileInputStream(cacheFile))) : openCachedContent(cacheFile, false);
+		byte[] buf = new byte[BUFFER_SIZE];
+		int bytesRead = -1;
+		
+		try
+		{
+			while ((bytesRead=in.read(buf)) > 0)
+				sha256.update(buf, 0, bytesRead);
+		}
+		finally
+		{
+			in.close();
+		}
+		
+		return Base64.getEncoder().encodeToString(sha256.digest()).equals(digest.substring(indexOfSeparator + 1).trim());
+	}
+	
+	/**
+	 * Deals with blocks that didn't match the checksums sent by the sender. Uncompressed content is kept and the
+	 * sender asked for just those blocks. Compressed content can't be resent a block at a time, so is cut back to
+	 * the first corrupt block for the sender to resume from there.
+	 */
+	private HttpRequestReplyImpl corrupted(ReliableInboundHttpConnectionReader reader, int[] corrupt, int blockSize, long offset, boolean blockCompressed) throws ConnectionResetException, IOException
+	{
+		File cacheFile = reader.getCacheFile();
+		
+		Logger.getLogger(ReliableInboundHttpConnection.class).warn("Blocks " + BlockChecksums.formatBlocks(corrupt) + " of " + cacheFile + " do not match their checksums");
+		
+		if (!blockCompressed && !_decompressContent)
+		{
+			BlockChecksums.savePending(cacheFile, blockSize, corrupt);
+			
+			return requestBlocks(cacheFile, corrupt);
+		}
+		
+		long position = Math.max((long) corrupt[0] * blockSize, offset);
+		
+		RandomAccessFile file = new RandomAccessFile(cacheFile, "rw");
+		
+		try {
+			file.setLength(position);
+		} finally {
+			file.close();
+		}
+		
+		// always throws, as the sender's offsets are now beyond the end of the cache file
+		
+		if (blockCompressed)
+			reader.checkBlocks(-1, -1);
+		
+		throw new ConnectionResetException(position);
+	}
+	
+	/**
+	 * Asks the sender to resend the given blocks
+	 */
+	private HttpRequestReplyImpl requestBlocks(File cacheFile, int[] blocks)
+	{
+		Logger.getLogger(ReliableInboundHttpConnection.class).debug("Sending response to ask for blocks " + BlockChecksums.formatBlocks(blocks) + " of " + cacheFile + " to be resent");
+		
+		HttpRequestReplyImpl results = new HttpRequestReplyImpl(null, REQUEST_OFFSET);
+		results.setResponseHeader(ReliableOutboundHttpConnection.OFFSET, "" + cacheFile.length());
+		results.setResponseHeader(ReliableOutboundHttpConnection.CORRUPT_BLOCKS, BlockChecksums.formatBlocks(blocks));
+		return results;
+	}
+	
+	/**
+	 * Reads blocks being resent as they didn't match their checksums, writing each to its place in the cache
+	 * file. The file is given to the caller once all of the corrupt blocks have been received intact, in the
+	 * meantime any other request for the same id is asked for the blocks still outstanding.
+	 */
+	private HttpRequestResponse readBlocks(InputStream in, Map<String, String> requestHeaders, File cacheFile, BlockChecksums.Pending pending, int blockSize) throws InvalidConnectionException, ConnectionInterruptedException, IOException
+	{
+		String resent = requestHeaders.get(ReliableOutboundHttpConnection.CORRUPT_BLOCKS);
+		
+		if (pending == null)
+		{
+			// nothing left to repair, so the sender can carry on from the end of the file
+			
+			HttpRequestReplyImpl results = new HttpRequestReplyImpl(null, REQUEST_OFFSET);
+			results.setResponseHeader(ReliableOutboundHttpConnection.OFFSET, "" + (cacheFile.exists() ? cacheFile.length() : 0));
+			return results;
+		}
+		else if (resent == null || blockSize != pending.blockSize)
+		{
+			return requestBlocks(cacheFile, pending.blocks);
+		}
+		
+		int[] blocks = null;
+		
+		try {
+			blocks = BlockChecksums.parseBlocks(resent);
+		} catch (NumberFormatException e) {
+			throw new InvalidConnectionException("Invalid list of resent blocks: " + resent);
+		}
+		
+		BlockChecksums checksums = new BlockChecksums(blockSize, blocks);
+		ReliableInboundHttpConnectionReader reader = new ReliableInboundHttpConnectionReader(cacheFile, 0);
+		reader.setChecksums(checksums);
+		reader.repair(in);
+		
+		// blocks resent without checksums have to be taken on trust
+		
+		String expected = getTrailer(in, ReliableOutboundHttpConnection.BLOCK_CHECKSUMS);
+		int[] stillCorrupt = reader.verify(expected);
+		int[] received = checksums.getBlocks();
+		
+		List<Integer> outstanding = new ArrayList<Integer>();
+		
+		for (int block : pending.blocks)
+		{
+			if (Arrays.binarySearch(received, block) < 0 || Arrays.binarySearch(stillCorrupt, block) >= 0)
+				outstanding.add(block);
+		}
+		
+		int[] remaining = new int[outstanding.size()];
+		
+		for (int i = 0; i < remaining.length; i++)
+			remaining[i] = outstanding.get(i);
+		
+		BlockChecksums.savePending(cacheFile, blockSize, remaining);
+		
+		if (remaining.length > 0)
+			return requestBlocks(cacheFile, remaining);
+		
+		Logger.getLogger(ReliableInboundHttpConnection.class).debug("All corrupt blocks of " + cacheFile + " have been resent");
+		
+		return completed(cacheFile, requestHeaders, false);
+	}
+	
+	/**
+	 * Reads one of several ranges of a file being sent in parallel, writing it to its place in the cache file.
+	 * Replies 202 once the range is complete, or 200 with the cache file for whichever range completes the file.
+	 * The offset of a range is the position in the whole file from which it is being sent, a range sent from
+	 * before what has already been written skips the bytes already received rather than being answered straight
+	 * away, which would leave the sender writing to a closed connection. Ranges of a file that has already been
+	 * delivered are answered with {@link #ALREADY_RECEIVED}.
+	 */
+	private HttpRequestResponse readRange(InputStream in, Map<String, String> requestHeaders, String uniqueId, long offset, int checksumBlockSize) throws InvalidConnectionException
+	{
+		int rangeIndex = -1;
+		int rangeCount = -1;
+		long totalLength = -1;
+		
+		try {
+			rangeIndex = Integer.parseInt(requestHeaders.get(ReliableOutboundHttpConnection.RANGE_INDEX));
+			rangeCount = Integer.parseInt(requestHeaders.get(ReliableOutboundHttpConnection.RANGE_COUNT));
+			totalLength = Long.parseLong(requestHeaders.get(ReliableOutboundHttpConnection.TOTAL_LENGTH));
+		} catch(Exception e) {
+			throw new InvalidConnectionException("Invalid or missing range headers for id: " + uniqueId);
+		}
+		
+		if (rangeCount < 1 || rangeIndex < 0 || rangeIndex >= rangeCount || totalLength < 0)
+			throw new InvalidConnectionException("Invalid range " + rangeIndex + " of " + rangeCount + " for id: " + uniqueId);
+		
+		File cacheFile = new File(_tempDir, uniqueId);
+		String transferKey = cacheFile.getAbsolutePath() + "#" + rangeIndex;
+		
+		if (!_activeTransfers.add(transferKey))
+		{
+			Logger.getLogger(ReliableInboundHttpConnection.class).debug("Transfer already in progress for range " + rangeIndex + " of id: " + uniqueId);
+			
+			HttpRequestReplyImpl results = new HttpRequestReplyImpl(null, 503);
+			results.setResponseHeader("Retry-After", "1");
+			return results;
+		}
+		
+		TransferManifest manifest = null;
+		ReliableInboundHttpConnectionReader reader = null;
+		
+		try
+		{
+			manifest = TransferManifest.open(cacheFile, rangeCount, totalLength);
+			
+			if (manifest.isDelivered())
+			{
+				Logger.getLogger(ReliableInboundHttpConnection.class).debug("Range " + rangeIndex + " of id: " + uniqueId + " resent after the file was delivered");
+				
+				return new HttpRequestReplyImpl(null, ALREADY_RECEIVED);
+			}
+			
+			long position = manifest.getPosition(rangeIndex);
+			long end = manifest.getRangeEnd(rangeIndex);
+			
+			BlockChecksums checksums = checksumBlockSize > 0 ? new BlockChecksums(checksumBlockSize, offset) : null;
+			
+			if (offset > position || (offset < position && !skip(in, position - offset, checksums)))
+			{
+				Logger.getLogger(ReliableInboundHttpConnection.class).debug("Sending response to ask for range " + rangeIndex + " to start at offset: " + position);
+				
+				HttpRequestReplyImpl results = new HttpRequestReplyImpl(null, REQUEST_OFFSET);
+				results.setResponseHeader(ReliableOutboundHttpConnection.OFFSET, "" + position);
+				return results;
+			}
+			
+			// never write beyond the end of the range, whatever the sender does
+			
+			reader = new ReliableInboundHttpConnectionReader(cacheFile, position);
+			
+			if (checksums != null)
+				reader.setChecksums(checksums);
+			
+			reader.cache(new ContentLengthInputStream(in, end - position));
+			
+			// anything beyond the range is discarded, but has to be read to get to the trailers
+			
+			drain(in);
+			
+			int[] corrupt = reader.verify(getTrailer(in, ReliableOutboundHttpConnection.BLOCK_CHECKSUMS));
+			
+			if (corrupt.length > 0)
+			{
+				// resend the range from the first block that doesn't match
+				
+				long resendFrom = Math.max((long) corrupt[0] * checksumBlockSize, offset);
+				manifest.setPosition(rangeIndex, resendFrom);
+				
+				Logger.getLogger(ReliableInboundHttpConnection.class).warn("Blocks " + BlockChecksums.formatBlocks(corrupt) + " of range " + rangeIndex + " for id: " + uniqueId + " do not match their checksums");
+				
+				HttpRequestReplyImpl results = new HttpRequestReplyImpl(null, REQUEST_OFFSET);
+				results.setResponseHeader(ReliableOutboundHttpConnection.OFFSET, "" + resendFrom);
+				return results;
+			}
+			
+			if (reader.getPosition() < end)
+			{
+				// body ended early, ask for the remainder
+				
+				manifest.setPosition(rangeIndex, reader.getPosition());
+				
+				HttpRequestReplyImpl results = new HttpRequestReplyImpl(null, REQUEST_OFFSET);
+				results.setResponseHeader(ReliableOutboundHttpConnection.OFFSET, "" + reader.getPosition());
+				return results;
+			}
+			
+			if (manifest.complete(rangeIndex))
+			{
+				Logger.getLogger(ReliableInboundHttpConnection.class).debug("Received last of " + rangeCount + " ranges for id: " + uniqueId);
+				
+				HttpRequestReplyImpl results = completed(cacheFile, requestHeaders, false);
+				
+				if (results.getResponseCode() == 200)
+				{
+					manifest.delivered();
+					return results;
+				}
+				
+				// the other ranges are already complete, so the whole file has to be sent again
+				
+				manifest.discard();
+				
+				return new HttpRequestReplyImpl(null, 500);
+			}
+			else
+			{
+				return new HttpRequestReplyImpl(null, 202);
+			}
+		}
+		catch (ConnectionInterruptedException e)
+		{
+			Logger.getLogger(ReliableInboundHttpConnection.class).error("Request failed for range " + rangeIndex + ": " + e.getMessage());
+			
+			try {
+				if (reader != null)
+					manifest.setPosition(rangeIndex, reader.getPosition());
+			} catch (IOException e1) {
+				// the range will resume from an earlier position
+			}
+			
+			return new HttpRequestReplyImpl(null, 503);
+		}
+		catch (IOException e)
+		{
+			Logger.getLogger(ReliableInboundHttpConnection.class).error("Cannot record progress of range " + rangeIndex + " for id: " + uniqueId + ", " + e.getMessage());
+			
+			return new HttpRequestReplyImpl(null, 500);
+		}
+		finally
+		{
+			if (manifest != null)
+				manifest.release();
+			
+			_activeTransfers.remove(transferKey);
+		}
+	}
+	
+	/**
+	 * Reads and discards the given number of bytes of the body, which have already been received, adding them
+	 * to the checksums if any. Returns false if the body ends first.
+	 */
+	private boolean skip(InputStream in, long length, BlockChecksums checksums) throws ConnectionInterruptedException
+	{
+		byte[] buf = new byte[BUFFER_SIZE];
+		int bytesRead = 0;
+		
+		try {
+			while (length > 0 && (bytesRead=in.read(buf, 0, (int) Math.min(buf.length, length))) > 0)
+			{
+				if (checksums != null)
+					checksums.update(buf, 0, bytesRead);
+				
+				length -= bytesRead;
+			}
+		} catch (IOException e) {
+			throw new ConnectionInterruptedException(e);
+		}
+		
+		return length == 0;
+	}
+	
+	/**
+	 * Reads and discards whatever is left of the body
+	 */
+	private void drain(InputStream in) throws ConnectionInterruptedException
+	{
+		byte[] buf = new byte[BUFFER_SIZE];
+		
+		try {
+			while (in.read(buf) > 0)
+				;
+		} catch (IOException e) {
+			throw new ConnectionInterruptedException(e);
+		}
 	}
 	
 	private String readLineFromInputStream(InputStream in) throws IOException
 	{
 		StringBuffer linebuffer = new StringBuffer();
-		byte[] buf = new byte[1];
+		int c = -1;
 		char nextChar = 0;
 		
-		while(in.read(buf) != -1)
+		while((c=in.read()) != -1)
 		{
-			nextChar = new String(buf).charAt(0);
+			nextChar = (char) c;
 			
 			if (nextChar != '\n' && nextChar != '\r')
 			{
@@ -143,18 +765,24 @@ public class ReliableInboundHttpConnection
 			}
 		}
 		
+		if (c == -1 && linebuffer.length() == 0)
+			return null;
+		
 		return linebuffer.toString();
 	}
 	
 	 private String constructHttpResponseHeader(HttpResponse reply) 
 	  {
-		  String s = "HTTP/1.0 ";
+		  String s = "HTTP/1.1 ";
 		
 		switch (reply.getResponseCode()) 
 		{
 			case 200:
 			    s = s + "200 OK";
 			    break;
+			case 202:
+			    s = s + "202 Accepted";
+			    break;
 			case 205:
 				s = s + "205 Reset";
 				break;
@@ -181,14 +809,15 @@ public class ReliableInboundHttpConnection
 		}
 			
 		s = s + "\r\n"; //other header fields,
-		s = s + "Connection: close\r\n"; //we can't handle persistent connections
+		s = s + (reply.isKeepAlive() ? "Connection: keep-alive\r\n" : "Connection: close\r\n");
+		s = s + "Content-Length: 0\r\n"; // no body, tells the client where the response ends
 		s = s + "Server: SimpleHTTPtutorial v0\r\n"; //server name
 			
 		Map<String, Object> headers = reply.getResponseHeaders();
 		
 		for (String key : headers.keySet())
 		{
-			s = s + key + ": " + headers.get(key) + "\n";
+			s = s + key + ": " + headers.get(key) + "\r\n";
 		}
 		
 		s = s + "\r\n"; //this marks the end of the httpheader
@@ -208,6 +837,11 @@ public class ReliableInboundHttpConnection
 	{
 		public int getResponseCode();
 		public Map<String, Object> getResponseHeaders();
+		
+		/**
+		 * True if the connection is kept open for further requests once the response has been sent
+		 */
+		public boolean isKeepAlive();
 	}
 	
 	public interface HttpRequestResponse extends HttpRequest, HttpResponse
@@ -220,6 +854,8 @@ public class ReliableInboundHttpConnection
 		private File 				_cachedFile;
 		private int 				_responseCode;
 		private Map<String, Object> _responseHeaders;
+		private boolean				_keepAlive;
+		private boolean				_blockCompressed;
 		
 		public HttpRequestReplyImpl(File cachedFile, int responseCode)
 		{
@@ -233,7 +869,7 @@ public class ReliableInboundHttpConnection
 		{
 			try 
 			{
-				return new WrappedInputStream(_cachedFile);
+				return new WrappedInputStream(_cachedFile, _blockCompressed);
 			} 
 			catch (FileNotFoundException e) 
 			{
@@ -266,32 +902,189 @@ public class ReliableInboundHttpConnection
 		{
 			return _responseHeaders;
 		}
+		
+		/**
+		 * True if the cached file holds blocks written by a {@link BlockCompressedOutputStream}
+		 */
+		public void setBlockCompressed(boolean blockCompressed)
+		{
+			_blockCompressed = blockCompressed;
+		}
+		
+		public void setKeepAlive(boolean keepAlive)
+		{
+			_keepAlive = keepAlive;
+		}
+		
+		@Override
+		public boolean isKeepAlive()
+		{
+			return _keepAlive;
+		}
 	}
 	
 	private class ReliableInboundHttpConnectionReader
 	{
 		private String			_uniqueId;
 		private File			_cacheFile;
+		private long			_offset;
+		private long			_position;
+		private BlockChecksums	_checksums;
+		
+		/**
+		 * Reader for a range of the given cache file, the offset having been checked against the range's manifest
+		 */
+		public ReliableInboundHttpConnectionReader(File cacheFile, long offset)
+		{
+			_uniqueId = cacheFile.getName();
+			_cacheFile = cacheFile;
+			_offset = offset;
+			_position = offset;
+		}
 		
-		public ReliableInboundHttpConnectionReader(String uniqueId, long offset) throws ConnectionResetException
+		/**
+		 * @param sourceOffset offset in the original content for block compressed content, otherwise -1
+		 */
+		public ReliableInboundHttpConnectionReader(String uniqueId, long offset, long sourceOffset) throws ConnectionResetException, IOException
 		{
 			_uniqueId = uniqueId;
 			_cacheFile = new File(_tempDir, _uniqueId);
+			_offset = offset;
+			_position = offset;
 			
 			if (_cacheFile.exists())
 			{				
 				if (!_cacheFile.canWrite())
 				throw new RuntimeException("Cache file cannot be generated or written to : " + _cacheFile.getAbsolutePath());
+				else if (sourceOffset != -1)
+					checkBlocks(offset, sourceOffset);
 				else if (_cacheFile.length() != offset)
 					throw new ConnectionResetException(_cacheFile.length());
 			}
+			else if (sourceOffset > 0 || (sourceOffset != -1 && offset != 0))
+			{
+				throw new ConnectionResetException(0, 0);
+			}
+			else if (offset != 0)
+			{
+				// nothing of this transfer was kept, writing from the offset would deliver a file starting with zeros
+
+				throw new ConnectionResetException(0);
+			}
+		}
+		
+		/**
+		 * Calculates checksums of the blocks of content as they are written, see {@link #verify(String)}
+		 */
+		public void setChecksums(BlockChecksums checksums)
+		{
+			_checksums = checksums;
+		}
+		
+		public File getCacheFile()
+		{
+			return _cacheFile;
+		}
+		
+		/**
+		 * Returns the blocks written that don't match the checksums sent by the sender, none if either side
+		 * didn't have checksums
+		 */
+		public int[] verify(String expected)
+		{
+			if (_checksums == null || expected == null)
+				return new int[0];
+			
+			_checksums.finish();
+			
+			return _checksums.verify(expected);
+		}
+		
+		/**
+		 * Writes blocks being resent to their place in the cache file, the checksums giving the position of each
+		 * block. Nothing is written beyond the current end of the file.
+		 */
+		public void repair(InputStream in) throws ConnectionInterruptedException
+		{
+			FileChannel cacheOut = null;
+			
+			try
+			{
+				cacheOut = new RandomAccessFile(_cacheFile, "rw").getChannel();
+				
+				long length = cacheOut.size();
+				byte[] buf = new byte[CACHE_BUFFER_SIZE];
+				int bytesRead = -1;
+				
+				while ((bytesRead=in.read(buf)) > 0)
+				{
+					int off = 0;
+					
+					while (off < bytesRead)
+					{
+						long position = _checksums.getPosition();
+						int count = (int) Math.min(bytesRead - off, Math.min(_checksums.getBlockEnd(), length) - position);
+						
+						if (count <= 0)
+							throw new IOException("Resent block goes beyond the end of " + _cacheFile + " at: " + position);
+						
+						ByteBuffer block = ByteBuffer.wrap(buf, off, count);
+						
+						while (block.hasRemaining())
+							cacheOut.write(block, position + block.position() - off);
+						
+						_checksums.update(buf, off, count);
+						off += count;
+					}
+				}
+			}
+			catch (IOException e)
+			{
+				Logger.getLogger(ReliableInboundHttpConnection.class).debug("Lost connection whilst repairing " + _cacheFile + ": " + e.getMessage());
+				
+				throw new ConnectionInterruptedException(e);
+			}
+			finally
+			{
+				try {
+					if (cacheOut != null)
+						cacheOut.close();
+				} catch (IOException e) {
+					// shouldn't happen
+				}
+			}
+		}
+		
+		/**
+		 * Drops any block left incomplete by an earlier interrupted transfer, and asks the sender to resume from
+		 * the end of the last complete block if it isn't already
+		 */
+		void checkBlocks(long offset, long sourceOffset) throws ConnectionResetException, IOException
+		{
+			BlockCompressedInputStream.Frames frames = BlockCompressedInputStream.scan(_cacheFile);
+			
+			if (frames.end < _cacheFile.length())
+			{
+				Logger.getLogger(ReliableInboundHttpConnection.class).debug("Dropping incomplete block from " + _cacheFile + " at: " + frames.end);
+				
+				RandomAccessFile file = new RandomAccessFile(_cacheFile, "rw");
+				
+				try {
+					file.setLength(frames.end);
+				} finally {
+					file.close();
+				}
+			}
+			
+			if (frames.end != offset || frames.sourceLength != sourceOffset)
+				throw new ConnectionResetException(frames.end, frames.sourceLength);
 		}
 		
 		public File cache(InputStream in) throws ConnectionInterruptedException
 		{			
-			// read content and write to cache file in blocks
+			// read content and write to cache file in blocks, at the offset the sender is starting from
 						
-			OutputStream cacheOut = null;
+			FileChannel cacheOut = null;
 			
 			// DEBUG CODE START
 			
@@ -306,7 +1099,7 @@ public class ReliableInboundHttpConnection
 			// DEBUG END
 			
 			try {
-				cacheOut = new FileOutputStream(_cacheFile, _cacheFile.exists());
+				cacheOut = new RandomAccessFile(_cacheFile, "rw").getChannel();
 			} 
 			catch (FileNotFoundException e) 
 			{
@@ -314,15 +1107,26 @@ public class ReliableInboundHttpConnection
 				throw new RuntimeException(e);
 			}
 			
-			byte[] buf = new byte[BUFFER_SIZE];
+			ByteBuffer buf = ByteBuffer.allocate(CACHE_BUFFER_SIZE);
 			int bytesRead = -1;
+			boolean filling = false;
 			
-			Logger.getLogger(ReliableInboundHttpConnection.class).debug("Caching input in file: " + _cacheFile);
+			Logger.getLogger(ReliableInboundHttpConnection.class).debug("Caching input in file: " + _cacheFile + " from offset: " + _offset);
 						
 			try 
 			{
-				while((bytesRead=in.read(buf)) > 0)
+				do
 				{
+					// fill the buffer before writing, as network reads tend to be much smaller
+					
+					buf.clear();
+					filling = true;
+					
+					while (buf.hasRemaining() && (bytesRead=in.read(buf.array(), buf.position(), buf.remaining())) > 0)
+						buf.position(buf.position() + bytesRead);
+					
+					filling = false;
+					
 					// DEBUG START
 					
 					if (crashAfterCount > 0 && loops++ >= crashAfterCount)
@@ -330,12 +1134,34 @@ public class ReliableInboundHttpConnection
 					
 					// DEBUG END
 					
-					cacheOut.write(buf, 0, bytesRead);
+					buf.flip();
+					
+					if (_checksums != null)
+						_checksums.update(buf.array(), 0, buf.limit());
+					
+					while (buf.hasRemaining())
+						_position += cacheOut.write(buf, _position);
 				}
+				while (bytesRead > 0);
 			}
 			catch (IOException e)
 			{
-				e.printStackTrace();
+				Logger.getLogger(ReliableInboundHttpConnection.class).debug("Lost connection whilst caching " + _cacheFile + " at: " + (_position + (filling ? buf.position() : 0)));
+				
+				// keep whatever arrived before the connection was lost, so that the sender can resume after it
+				
+				if (filling)
+				{
+					buf.flip();
+					
+					try {
+						while (buf.hasRemaining())
+							_position += cacheOut.write(buf, _position);
+					} catch (IOException e1) {
+						// sender will resume from whatever made it to the file
+					}
+				}
+				
 				throw new ConnectionInterruptedException(e);
 			}
 			finally
@@ -353,6 +1179,14 @@ public class ReliableInboundHttpConnection
 			
 			return _cacheFile;
 		}
+		
+		/**
+		 * Position in the cache file up to which data has been written
+		 */
+		public long getPosition()
+		{
+			return _position;
+		}
 	}
 	
 	public class InvalidConnectionException extends Exception
@@ -379,16 +1213,44 @@ public class ReliableInboundHttpConnection
 	{
 		private static final long serialVersionUID = 1L;
 		private long _offset = -1;
+		private long _sourceOffset = -1;
 		
 		public ConnectionResetException(long offset)
 		{
 			_offset = offset;
 		}
 		
+		public ConnectionResetException(long offset, long sourceOffset)
+		{
+			_offset = offset;
+			_sourceOffset = sourceOffset;
+		}
+		
 		public long getRequiredOffset()
 		{
 			return _offset;
 		}
+		
+		/**
+		 * Offset in the original content to resume from for block compressed content, otherwise -1
+		 */
+		public long getRequiredSourceOffset()
+		{
+			return _sourceOffset;
+		}
+	}
+	
+	/**
+	 * Opens the content of the cache file, decompressed if the content is compressed
+	 */
+	private InputStream openCachedContent(File cacheFile, boolean blockCompressed) throws IOException
+	{
+		if (_decompressContent && blockCompressed)
+			return new BlockCompressedInputStream(new BufferedInputStream(new FileInputStream(cacheFile)));
+		else if (_decompressContent)
+			return new GZIPInputStream(new BufferedInputStream(new FileInputStream(cacheFile)));
+		else
+			return new BufferedInputStream(new FileInputStream(cacheFile));
 	}
 	
 	private class WrappedInputStream extends InputStream
@@ -396,14 +1258,11 @@ public class ReliableInboundHttpConnection
 		private File			_fileToRead;
 		private InputStream		_wrappedInputStream;
 		
-		public WrappedInputStream(File fileToRead) throws IOException
+		public WrappedInputStream(File fileToRead, boolean blockCompressed) throws IOException
 		{
 			_fileToRead = fileToRead;
 			
-			if (_decompressContent)
-				_wrappedInputStream = new GZIPInputStream(new BufferedInputStream(new FileInputStream(_fileToRead)));
-			else
-				_wrappedInputStream = new BufferedInputStream(new FileInputStream(_fileToRead));
+			_wrappedInputStream = openCachedContent(fileToRead, blockCompressed);
 		}
 		
 		@Override
@@ -2,6 +2,9 @@ package com.jc.net;
 
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
@@ -10,16 +13,35 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.HttpURLConnection;
+import java.net.ProtocolException;
+import java.net.SocketTimeoutException;
 import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
 import java.util.Base64;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 import java.util.zip.GZIPInputStream;
 import java.util.zip.GZIPOutputStream;
 
 import org.apache.log4j.Logger;
 
+import com.jc.net.HttpConnectionPool.PooledConnection;
+
 public class ReliableOutboundHttpConnection 
 {
 	public static final String		MY_ID = "wm-applicqtion-custom-ReliableOutboundHttpConnection";
@@ -29,6 +51,23 @@ public class ReliableOutboundHttpConnection
 	public static final String		UNIQUE_ID = "uniqueId";
 	public static final String		OFFSET = "currentOffset";
 	
+	public static final String		RANGE_INDEX = "rangeIndex";
+	public static final String		RANGE_COUNT = "rangeCount";
+	public static final String		TOTAL_LENGTH = "totalLength";
+	
+	public static final String		BLOCK_CODEC = "blockCodec";
+	public static final String		SOURCE_OFFSET = "sourceOffset";
+	
+	public static final String		BLOCK_CHECKSUMS = "blockChecksums";
+	public static final String		CHECKSUM_BLOCK_SIZE = "checksumBlockSize";
+	public static final String		CORRUPT_BLOCKS = "corruptBlocks";
+	public static final String		CONTENT_DIGEST = "contentDigest";
+	
+	public static final int			TRANSFER_BUFFER_SIZE = 256 * 1024;
+	public static final long		MIN_RANGE_SIZE = 1024 * 1024;
+	public static final int			RECOMMENDED_CHECKSUM_BLOCK_SIZE = 1024 * 1024;
+	public static final int			EXPECT_CONTINUE_TIMEOUT = 3000;
+	
 	private URL						_endPoint;
 	private String					_login;
 	private String 					_password;
@@ -43,6 +82,21 @@ public class ReliableOutboundHttpConnection
 	private long	_currentOffset;
 	private String	_uniqueId;
 	
+	private HttpConnectionPool	_connectionPool;
+	
+	private int		_rangeIndex = -1;	// only set for connections sending one range of a file in parallel
+	private int		_rangeCount;
+	private long	_totalLength;
+	
+	private BlockCodec	_blockCodec = BlockCodecs.GZIP;
+	private int			_blockSize = BlockCompressedOutputStream.DEFAULT_BLOCK_SIZE;
+	private long		_sourceOffset;	// bytes of the original content that the receiver holds, when compressing in blocks
+	
+	private int			_checksumBlockSize;
+	private boolean		_sendContentDigest;
+	private String		_contentDigest;
+	private int[]		_corruptBlocks;		// blocks the receiver has asked to be resent
+	
 	public ReliableOutboundHttpConnection(String uniqueId, URL endPoint, String login, String password, Map<String, String> headerProperties, int chunkSize, boolean compressContent)
 	{
 		_currentOffset = 0;
@@ -60,28 +114,171 @@ public class ReliableOutboundHttpConnection
 		return _uniqueId;
 	}
 	
+	/**
+	 * Sends via persistent connections taken from the given pool rather than opening a new connection for
+	 * each request, null to revert to a new connection per request
+	 */
+	public void setConnectionPool(HttpConnectionPool connectionPool)
+	{
+		_connectionPool = connectionPool;
+	}
+	
+	public HttpConnectionPool getConnectionPool()
+	{
+		return _connectionPool;
+	}
+	
+	/**
+	 * Codec used to compress content in independent blocks, see {@link BlockCompressedOutputStream}, so that an
+	 * interrupted transfer resumes from the last block received rather than compressing and sending everything
+	 * again. Defaults to gzip, null reverts to compressing the whole content as a single gzip stream, as
+	 * understood by receivers that don't support blocks. Only used if content is compressed.
+	 */
+	public void setBlockCodec(BlockCodec blockCodec)
+	{
+		_blockCodec = blockCodec;
+	}
+	
+	public BlockCodec getBlockCodec()
+	{
+		return _blockCodec;
+	}
+	
+	/**
+	 * Number of bytes of content compressed into each block, defaults to {@link BlockCompressedOutputStream#DEFAULT_BLOCK_SIZE}
+	 */
+	public void setBlockSize(int blockSize)
+	{
+		if (blockSize <= 0 || blockSize > BlockCompressedOutputStream.MAX_BLOCK_SIZE)
+			throw new IllegalArgumentException("Block size must be between 1 and " + BlockCompressedOutputStream.MAX_BLOCK_SIZE + ": " + blockSize);
+		
+		_blockSize = blockSize;
+	}
+	
+	public int getBlockSize()
+	{
+		return _blockSize;
+	}
+	
+	/**
+	 * Size of the blocks for which CRC-32C checksums are sent as a trailer of each request, so that the receiver
+	 * can ask for just the blocks that arrived corrupted to be sent again, 0 to not send checksums. Defaults to
+	 * 0, {@link #RECOMMENDED_CHECKSUM_BLOCK_SIZE} suits most links.
+	 * 
+	 * {@link HttpURLConnection} can't send trailers, so checksums are only sent via a connection pool, see
+	 * {@link #setConnectionPool(HttpConnectionPool)}. Bodies are then always sent in chunks and copied through
+	 * the checksum, so files are no longer transferred straight from the file to the socket. Only worth it for
+	 * large files over links that corrupt data despite TCP's own checksums.
+	 */
+	public void setChecksumBlockSize(int checksumBlockSize)
+	{
+		if (checksumBlockSize < 0)
+			throw new IllegalArgumentException("Invalid checksum block size: " + checksumBlockSize);
+		
+		_checksumBlockSize = checksumBlockSize;
+	}
+	
+	public int getChecksumBlockSize()
+	{
+		return _checksumBlockSize;
+	}
+	
+	/**
+	 * If true, files are read once before being sent to calculate their SHA-256 digest, which is sent with each
+	 * request. The receiver verifies the whole file against it, and replies {@link ReliableInboundHttpConnection#ALREADY_RECEIVED}
+	 * without the body being sent if it has already received the same content.
+	 */
+	public void setContentDigest(boolean sendContentDigest)
+	{
+		_sendContentDigest = sendContentDigest;
+	}
+	
+	public boolean isContentDigest()
+	{
+		return _sendContentDigest;
+	}
+	
+	private boolean isBlockCompressed()
+	{
+		return _compressContent && _blockCodec != null;
+	}
+	
 	public HttpResponse sendFile(File dataFile, int retries, long retryInterval, float retryFactor, boolean requiresResponse) throws InvalidConnectionException, ConnectionInterruptedException, InvalidDataInputException, FileNotFoundException
 	{
 		ConnectionInterruptedException lastError = null;
-		InputStream data = null;
+		Closeable data = null;
 		HttpResponse response = null;
 		int attempts = 0;
 		
-		while ((response == null || response.getResponseCode() != 200) && attempts <= retries)
+		if (_sendContentDigest && _contentDigest == null)
+			_contentDigest = digest(dataFile);
+		
+		while ((response == null || !isDelivered(response)) && attempts <= retries)
 		{
 			try 
 			{
-				data = new BufferedInputStream(new FileInputStream(dataFile));
-				response = send(data, DEFAULT_CONTENT_TYPE, Charset.defaultCharset().name(), requiresResponse);
+				// uncompressed files are sent straight from the file channel, starting from the current offset, whilst
+				// compressed files are read from the start of the first block that the server doesn't have
+				
+				if (_compressContent)
+				{
+					InputStream in = new BufferedInputStream(new FileInputStream(dataFile), TRANSFER_BUFFER_SIZE);
+					data = in;
+					response = send(in, DEFAULT_CONTENT_TYPE, Charset.defaultCharset().name(), requiresResponse);
+				}
+				else
+				{
+					FileChannel channel = new FileInputStream(dataFile).getChannel();
+					data = channel;
+					
+					if (_corruptBlocks != null)
+						response = sendBlocks(channel, DEFAULT_CONTENT_TYPE, Charset.defaultCharset().name(), requiresResponse);
+					else
+						response = send(channel, DEFAULT_CONTENT_TYPE, Charset.defaultCharset().name(), requiresResponse);
+				}
 	
+				// server has requested that we resend blocks that didn't match their checksums
+				
+				if (response.getResponseCode() == ReliableInboundHttpConnection.REQUEST_OFFSET && response.getResponseHeaders().get(CORRUPT_BLOCKS) != null)
+				{
+					_corruptBlocks = BlockChecksums.parseBlocks(response.getResponseHeaders().get(CORRUPT_BLOCKS));
+					_currentOffset = Long.parseLong(response.getResponseHeaders().get(ReliableOutboundHttpConnection.OFFSET));
+					
+					Logger.getLogger(ReliableOutboundHttpConnection.class).debug("Server requested corrupt blocks be resent : " + response.getResponseHeaders().get(CORRUPT_BLOCKS));
+					
+					// counts as a failed attempt, so that a link that keeps corrupting data doesn't retry forever
+					
+					attempts += 1;
+				}
+				
 				// server has requested that we restart from the specified value
 				
-				if (response.getResponseCode() == ReliableInboundHttpConnection.REQUEST_OFFSET)
+				else if (response.getResponseCode() == ReliableInboundHttpConnection.REQUEST_OFFSET)
 				{
+					long previousOffset = _currentOffset;
+					
+					_corruptBlocks = null;
 					_currentOffset = Long.parseLong(response.getResponseHeaders().get(ReliableOutboundHttpConnection.OFFSET));				
-					Logger.getLogger(ReliableOutboundHttpConnection.class).debug("Server requested restart from offset : " + _currentOffset);
+					
+					// going back means the server discarded data, e.g. as it didn't match its checksums or digest
+					
+					if (_currentOffset < previousOffset)
+						attempts += 1;
+					
+					
+					if (isBlockCompressed() && response.getResponseHeaders().get(SOURCE_OFFSET) != null)
+						_sourceOffset = Long.parseLong(response.getResponseHeaders().get(SOURCE_OFFSET));
+					
+					Logger.getLogger(ReliableOutboundHttpConnection.class).debug("Server requested restart from offset : " + _currentOffset + (isBlockCompressed() ? ", content offset: " + _sourceOffset : ""));
 				}
-				else if (response.getResponseCode() != 200)
+				else if (response.getResponseCode() == 503)
+				{
+					// server is busy, back off as for a lost connection
+					
+					attempts += 1;
+					retryInterval = backOff(retryInterval, retryFactor);
+				}
+				else if (!isDelivered(response))
 				{
 					attempts += 1;
 				}
@@ -91,14 +288,7 @@ public class ReliableOutboundHttpConnection
 				lastError = e;
 				attempts += 1;
 				
-				try {
-					Thread.sleep(retryInterval);
-				} catch (InterruptedException e1) {
-					throw new RuntimeException(e1);
-				}
-			
-				if (retryFactor > 0)
-					retryInterval = (long) (retryFactor * retryInterval);
+				retryInterval = backOff(retryInterval, retryFactor);
 			}
 			finally
 			{
@@ -118,6 +308,182 @@ public class ReliableOutboundHttpConnection
 			throw lastError;
 	}
 	
+	/**
+	 * Sends the file as the given number of ranges in parallel, each over its own connection and each resuming
+	 * from its own offset, so as to make better use of links that a single connection can't fill. The receiver
+	 * writes each range to its place in the cache file and replies 202 to each range, apart from whichever one
+	 * completes the file, which gets the usual 200.
+	 * 
+	 * If a connection pool is set it should allow at least as many connections per end point as there are
+	 * ranges, otherwise some ranges will wait for others. Compressed content can't be split, so is sent in one go
+	 * as by {@link #sendFile(File, int, long, float, boolean)}, as are files too small to be worth splitting.
+	 * 
+	 * @param dataFile file to send
+	 * @param ranges number of ranges to send in parallel
+	 * @param retries number of times to retry each range
+	 * @return response to the range that completed the file, or the last response if none did
+	 */
+	public HttpResponse sendFileInParallel(final File dataFile, int ranges, final int retries, final long retryInterval, final float retryFactor, final boolean requiresResponse) throws InvalidConnectionException, ConnectionInterruptedException, InvalidDataInputException, FileNotFoundException
+	{
+		if (!dataFile.exists())
+			throw new FileNotFoundException(dataFile.getAbsolutePath());
+		
+		final long totalLength = dataFile.length();
+		
+		ranges = (int) Math.min(ranges, totalLength / MIN_RANGE_SIZE);
+		
+		if (_compressContent || ranges <= 1)
+			return sendFile(dataFile, retries, retryInterval, retryFactor, requiresResponse);
+		
+		if (_sendContentDigest && _contentDigest == null)
+			_contentDigest = digest(dataFile);
+		
+		Logger.getLogger(ReliableOutboundHttpConnection.class).debug("Sending " + dataFile + " as " + ranges + " ranges in parallel");
+
+		ExecutorService executor = Executors.newFixedThreadPool(ranges, new ThreadFactory() {
+			
+			@Override
+			public Thread newThread(Runnable r)
+			{
+				Thread t = new Thread(r, "com.jc.net.ReliableOutboundHttpConnection-" + _uniqueId);
+				t.setDaemon(true);
+				
+				return t;
+			}
+		});
+		
+		try
+		{
+			List<Future<HttpResponse>> results = new ArrayList<Future<HttpResponse>>();
+			
+			for (int i = 0; i < ranges; i++)
+			{
+				final ReliableOutboundHttpConnection range = new ReliableOutboundHttpConnection(_uniqueId, _endPoint, _login, _password, _headerProperties, _chunkSize, false);
+				range._connectionPool = _connectionPool;
+				range._rangeIndex = i;
+				range._rangeCount = ranges;
+				range._totalLength = totalLength;
+				range._currentOffset = TransferManifest.rangeStart(i, ranges, totalLength);
+				range._checksumBlockSize = _checksumBlockSize;
+				range._contentDigest = _contentDigest;
+				
+				results.add(executor.submit(new Callable<HttpResponse>() {
+					
+					@Override
+					public HttpResponse call() throws Exception
+					{
+						return range.sendFile(dataFile, retries, retryInterval, retryFactor, requiresResponse);
+					}
+				}));
+			}
+			
+			HttpResponse completed = null;
+			HttpResponse last = null;
+			
+			for (Future<HttpResponse> result : results)
+			{
+				try
+				{
+					last = result.get();
+					
+					if (last.getResponseCode() == 200)
+						completed = last;
+				}
+				catch (ExecutionException e)
+				{
+					if (e.getCause() instanceof ConnectionInterruptedException)
+						throw (ConnectionInterruptedException) e.getCause();
+					else if (e.getCause() instanceof InvalidDataInputException)
+						throw (InvalidDataInputException) e.getCause();
+					else if (e.getCause() instanceof InvalidConnectionException)
+						throw (InvalidConnectionException) e.getCause();
+					else if (e.getCause() instanceof FileNotFoundException)
+						throw (FileNotFoundException) e.getCause();
+					else
+						throw new RuntimeException(e.getCause());
+				}
+				catch (InterruptedException e)
+				{
+					throw new RuntimeException(e);
+				}
+			}
+			
+			return completed != null ? completed : last;
+		}
+		finally
+		{
+			executor.shutdownNow();
+		}
+	}
+	
+	/**
+	 * True once the server has all of the data sent, 202 being its reply to a range that didn't complete the file
+	 */
+	private boolean isDelivered(HttpResponse response)
+	{
+		return response.getResponseCode() == 200 || response.getResponseCode() == ReliableInboundHttpConnection.ALREADY_RECEIVED || (_rangeIndex != -1 && response.getResponseCode() == 202);
+	}
+	
+	/**
+	 * SHA-256 digest of the file, base64 encoded
+	 */
+	private String digest(File dataFile) throws InvalidDataInputException, FileNotFoundException
+	{
+		FileChannel channel = new FileInputStream(dataFile).getChannel();
+		
+		try
+		{
+			MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			ByteBuffer buf = ByteBuffer.allocate(TRANSFER_BUFFER_SIZE);
+			long position = 0;
+			int bytesRead = -1;
+			
+			while ((bytesRead=channel.read(buf, position)) > 0)
+			{
+				digest.update(buf.array(), 0, bytesRead);
+				position += bytesRead;
+				buf.clear();
+			}
+			
+			return Base64.getEncoder().encodeToString(digest.digest());
+		}
+		catch (NoSuchAlgorithmException e)
+		{
+			// every java runtime has to provide SHA-256
+			
+			throw new RuntimeException(e);
+		}
+		catch (IOException e)
+		{
+			throw new InvalidDataInputException(e);
+		}
+		finally
+		{
+			try {
+				channel.close();
+			} catch (IOException e) {
+				// ignore
+			}
+		}
+	}
+	
+	/**
+	 * Waits for the given interval and returns the interval for the next retry
+	 */
+	private long backOff(long retryInterval, float retryFactor)
+	{
+		try {
+			Thread.sleep(retryInterval);
+		} catch (InterruptedException e1) {
+			throw new RuntimeException(e1);
+		}
+	
+		if (retryFactor > 0)
+			retryInterval = (long) (retryFactor * retryInterval);
+		
+		return retryInterval;
+	}
+	
 	public HttpResponse send(InputStream data, boolean requiresResponse) throws InvalidConnectionException, ConnectionInterruptedException, InvalidDataInputException
 	{
 		return send(data, null, null, requiresResponse);
@@ -128,11 +494,39 @@ public class ReliableOutboundHttpConnection
 		_contentType = contentType;
 		_charset = charset;
 		
-		return sendImpl(data, requireResponse);
+		return sendImpl(new StreamBody(data), requireResponse);
 	}
 	
-	private HttpResponse sendImpl(InputStream data, boolean requireResponse) throws InvalidConnectionException, ConnectionInterruptedException, InvalidDataInputException
+	/**
+	 * Sends the content of the file from the current offset onwards, the file is read via positional reads
+	 * and where possible transferred straight to the socket without being copied into the heap.
+	 * 
+	 * @param data channel of file to send, its position is not used or changed
+	 */
+	public HttpResponse send(FileChannel data, String contentType, String charset, boolean requireResponse) throws InvalidConnectionException, ConnectionInterruptedException, InvalidDataInputException
 	{
+		_contentType = contentType;
+		_charset = charset;
+		
+		return sendImpl(new FileBody(data), requireResponse);
+	}
+	
+	/**
+	 * Resends the blocks of the file that the server reported as corrupt
+	 */
+	private HttpResponse sendBlocks(FileChannel data, String contentType, String charset, boolean requireResponse) throws InvalidConnectionException, ConnectionInterruptedException, InvalidDataInputException
+	{
+		_contentType = contentType;
+		_charset = charset;
+		
+		return sendImpl(new BlocksBody(data, _corruptBlocks), requireResponse);
+	}
+	
+	private HttpResponse sendImpl(RequestBody data, boolean requireResponse) throws InvalidConnectionException, ConnectionInterruptedException, InvalidDataInputException
+	{
+		if (_connectionPool != null)
+			return sendPooled(data, requireResponse);
+		
 		HttpURLConnection conn = null;
 
 		// request
@@ -155,15 +549,25 @@ public class ReliableOutboundHttpConnection
 		try 
 		{			
 			conn.setRequestMethod("POST");
-			conn.setChunkedStreamingMode(ReliableInboundHttpConnection.BUFFER_SIZE);	// bug in java 6 means we can't go higher than 10kb
+			
+			if (data.getLength() >= 0)
+				conn.setFixedLengthStreamingMode(data.getLength());
+			else
+				conn.setChunkedStreamingMode(ReliableInboundHttpConnection.BUFFER_SIZE);	// bug in java 6 means we can't go higher than 10kb
 			
 			setHttpHeader(conn);
 
-			out = new BufferedOutputStream(conn.getOutputStream());
+			try {
+				out = new BufferedOutputStream(conn.getOutputStream());
+			} catch (ProtocolException e) {
+				// server answered the digest without waiting for the body, e.g. as it already has the content
+				
+				return new HttpResponseImpl(conn, requireResponse);
+			}
 
 			Logger.getLogger(ReliableOutboundHttpConnection.class).debug("Sending data");
 			
-			sendData(out, data);
+			data.writeTo(out, null);
 			
 			Logger.getLogger(ReliableOutboundHttpConnection.class).debug("Finished sending");
 			
@@ -211,19 +615,251 @@ public class ReliableOutboundHttpConnection
 		}
 	}
 	
+	/**
+	 * Sends the request over a persistent connection from the pool, using the same chunked encoding as
+	 * {@link HttpURLConnection}. The connection is only given back for reuse if the whole response was read
+	 * and the server agreed to keep it open.
+	 */
+	private HttpResponse sendPooled(RequestBody data, boolean requireResponse) throws InvalidConnectionException, ConnectionInterruptedException, InvalidDataInputException
+	{
+		Logger.getLogger(ReliableOutboundHttpConnection.class).debug("Connecting to : " + _endPoint.toExternalForm() + " via connection pool");
+
+		PooledConnection conn = null;
+		
+		try {
+			conn = _connectionPool.acquire(_endPoint);
+		} catch (IOException e) {
+			throw new ConnectionInterruptedException(e);
+		}
+		
+		boolean reusable = false;
+		
+		// checksums go in a trailer, which has to follow a chunked body
+		
+		BlockChecksums checksums = _checksumBlockSize > 0 ? data.newChecksums(_checksumBlockSize) : null;
+		
+		try
+		{
+			ConnectionInterruptedException interrupted = null;
+			
+			try
+			{
+				OutputStream out = conn.getOutputStream();
+				out.write(constructHttpRequestHeader(checksums == null ? data.getLength() : -1, checksums != null).getBytes("ISO-8859-1"));
+				
+				if (_contentDigest != null)
+				{
+					HttpResponseImpl response = awaitContinue(conn, requireResponse);
+					
+					if (response != null)
+					{
+						reusable = response.isKeepAlive();
+						return response;
+					}
+				}
+				
+				Logger.getLogger(ReliableOutboundHttpConnection.class).debug("Sending data");
+
+				if (data.getLength() >= 0 && checksums == null)
+				{
+					data.writeTo(out, conn);
+				}
+				else
+				{
+					ChunkedOutputStream body = new ChunkedOutputStream(out, ReliableInboundHttpConnection.BUFFER_SIZE);
+					
+					if (checksums != null)
+					{
+						data.writeTo(new ChecksummedOutputStream(body, checksums), conn);
+						checksums.finish();
+						
+						Map<String, String> trailers = new HashMap<String, String>();
+						trailers.put(BLOCK_CHECKSUMS, checksums.format());
+						body.finish(trailers);
+					}
+					else
+					{
+						data.writeTo(body, conn);
+						body.finish();
+					}
+				}
+				
+				Logger.getLogger(ReliableOutboundHttpConnection.class).debug("Finished sending");
+			}
+			catch (ConnectionInterruptedException e)
+			{
+				interrupted = e;
+			}
+			catch (IOException e)
+			{
+				interrupted = new ConnectionInterruptedException(e);
+			}
+			
+		// the server may have replied before reading the whole body, e.g. to request a different offset
+			
+			try
+			{
+				Logger.getLogger(ReliableOutboundHttpConnection.class).debug("Getting response code");
+
+				HttpResponseImpl response = readFinalResponse(conn.getInputStream(), requireResponse);
+				reusable = interrupted == null && response.isKeepAlive();
+				
+				return response;
+			}
+			catch (IOException e)
+			{
+				if (interrupted != null) // couldn't read any response either, so throw original exception
+					throw interrupted;
+				else
+					throw new ConnectionInterruptedException(e);
+			}
+		}
+		finally
+		{
+			_connectionPool.release(conn, reusable);
+		}
+	}
+	
+	/**
+	 * Waits for the server to agree to the body being sent, returning its response if it doesn't. Servers that
+	 * don't support 'Expect: 100-continue' are given a few seconds, after which the body is sent anyway.
+	 */
+	private HttpResponseImpl awaitContinue(PooledConnection conn, boolean requireResponse) throws IOException
+	{
+		conn.getOutputStream().flush();
+		
+		int soTimeout = conn.getSocket().getSoTimeout();
+		conn.getSocket().setSoTimeout(EXPECT_CONTINUE_TIMEOUT);
+		
+		try
+		{
+			HttpResponseImpl response = null;
+			
+			// other interim responses, e.g. '102 Processing', can come before the '100 Continue'
+			
+			while ((response=new HttpResponseImpl(conn.getInputStream(), requireResponse)).getResponseCode() < 200)
+			{
+				if (response.getResponseCode() == 100)
+					return null;
+			}
+			
+			return response;
+		}
+		catch (SocketTimeoutException e)
+		{
+			return null;
+		}
+		finally
+		{
+			conn.getSocket().setSoTimeout(soTimeout);
+		}
+	}
+	
+	/**
+	 * Reads the response to a request, skipping any interim (1xx) responses before it, e.g. a '100 Continue'
+	 * that arrived after we stopped waiting for it in {@link #awaitContinue(PooledConnection, boolean)}
+	 */
+	private HttpResponseImpl readFinalResponse(InputStream in, boolean requireResponse) throws IOException
+	{
+		HttpResponseImpl response = null;
+		
+		while ((response=new HttpResponseImpl(in, requireResponse)).getResponseCode() < 200)
+			Logger.getLogger(ReliableOutboundHttpConnection.class).debug("Skipping interim response " + response.getResponseCode());
+		
+		return response;
+	}
+	
+	/**
+	 * @param contentLength length of body, or -1 to send it in chunks
+	 * @param checksummed true if block checksums will follow the body as a trailer
+	 */
+	private String constructHttpRequestHeader(long contentLength, boolean checksummed) throws InvalidConnectionException
+	{
+		String path = _endPoint.getFile();
+		
+		if (path == null || path.length() == 0)
+			path = "/";
+		
+		String host = _endPoint.getHost();
+		
+		if (_endPoint.getPort() != -1 && _endPoint.getPort() != _endPoint.getDefaultPort())
+			host += ":" + _endPoint.getPort();
+		
+		StringBuffer s = new StringBuffer();
+		
+		s.append("POST ").append(path).append(" HTTP/1.1\r\n");
+		s.append("Host: ").append(host).append("\r\n");
+		
+		Map<String, String> headers = getHttpHeader();
+		
+		if (checksummed)
+		{
+			headers.put(CHECKSUM_BLOCK_SIZE, "" + _checksumBlockSize);
+			headers.put("Trailer", BLOCK_CHECKSUMS);
+		}
+		
+		for (Map.Entry<String, String> header : headers.entrySet())
+			s.append(header.getKey()).append(": ").append(header.getValue()).append("\r\n");
+		
+		if (contentLength >= 0)
+			s.append("Content-Length: ").append(contentLength).append("\r\n");
+		else
+			s.append("Transfer-Encoding: chunked\r\n");
+
+		s.append("Connection: keep-alive\r\n");
+		s.append("\r\n");
+		
+		return s.toString();
+	}
+	
 	private void setHttpHeader(HttpURLConnection conn) throws InvalidConnectionException
 	{					
-		conn.setRequestProperty("User-Agent", MY_ID);
-		conn.setRequestProperty("Accept", "application/bin");
-		conn.setRequestProperty(UNIQUE_ID, _uniqueId);
-		conn.setRequestProperty(OFFSET, "" + _currentOffset);
+		for (Map.Entry<String, String> header : getHttpHeader().entrySet())
+			conn.setRequestProperty(header.getKey(), header.getValue());
+	}
+	
+	private Map<String, String> getHttpHeader() throws InvalidConnectionException
+	{
+		Map<String, String> headers = new LinkedHashMap<String, String>();
+		
+		headers.put("User-Agent", MY_ID);
+		headers.put("Accept", "application/bin");
+		headers.put(UNIQUE_ID, _uniqueId);
+		headers.put(OFFSET, "" + _currentOffset);
+		
+		if (_rangeIndex != -1)
+		{
+			headers.put(RANGE_INDEX, "" + _rangeIndex);
+			headers.put(RANGE_COUNT, "" + _rangeCount);
+			headers.put(TOTAL_LENGTH, "" + _totalLength);
+		}
+		
+		if (isBlockCompressed())
+		{
+			headers.put(BLOCK_CODEC, _blockCodec.getName());
+			headers.put(SOURCE_OFFSET, "" + _sourceOffset);
+		}
+		
+		if (_corruptBlocks != null)
+		{
+			headers.put(CORRUPT_BLOCKS, BlockChecksums.formatBlocks(_corruptBlocks));
+			headers.put(CHECKSUM_BLOCK_SIZE, "" + _checksumBlockSize);
+		}
+		
+		// lets the server turn down content it already has before the body is sent
+		
+		if (_contentDigest != null)
+		{
+			headers.put(CONTENT_DIGEST, "sha-256=" + _contentDigest);
+			headers.put("Expect", "100-continue");
+		}
 		
 		if (_headerProperties != null)
 		{
 			for (String key : _headerProperties.keySet())
 			{
 				if (!key.equalsIgnoreCase("contentType") && _headerProperties.get(key) != null)
-					conn.setRequestProperty(key, _headerProperties.get(key));
+					headers.put(key, _headerProperties.get(key));
 			}
 		}
 		
@@ -232,36 +868,42 @@ public class ReliableOutboundHttpConnection
 			String authStr = _login + ":" + _password;
 			String encodedLogin = Base64.getEncoder().encodeToString(authStr.getBytes());	//TODO: replace with Apache commons
 			encodedLogin = encodedLogin.replaceAll("\n", ""); // Base64Encoder adds a new line if we go over 76 characters, which is not allowed in properties
-			conn.setRequestProperty("Authorization", "Basic " + encodedLogin);
+			headers.put("Authorization", "Basic " + encodedLogin);
 		}
 		
 		if (_charset != null)
-			conn.setRequestProperty("Accept-Charset", _charset);
+			headers.put("Accept-Charset", _charset);
 		
 		if (_contentType == null)
 			_contentType = "text/plain";
 		
 		if (_charset != null)
-			conn.setRequestProperty(CONTENT_TYPE_TAG, _contentType + "; charset=" + _charset);
+			headers.put(CONTENT_TYPE_TAG, _contentType + "; charset=" + _charset);
 		else
-			conn.setRequestProperty(CONTENT_TYPE_TAG, _contentType);			
+			headers.put(CONTENT_TYPE_TAG, _contentType);
+		
+		return headers;
 	}
 	
 	private boolean sendData(OutputStream httpOut, InputStream data) throws ConnectionInterruptedException, InvalidDataInputException
 	{
 		OutputStream out = null;
-		byte[] buf = new byte[1024];
+		byte[] buf = new byte[TRANSFER_BUFFER_SIZE];
 		int bytesRead = -1;
 		
 		try {
-			if (_currentOffset > 0 && !_compressContent)
+			if (isBlockCompressed())
+				skipFully(data, _sourceOffset);
+			else if (_currentOffset > 0 && !_compressContent)
 				data.skip(_currentOffset);
 		} catch (IOException e) {
 			throw new InvalidDataInputException(e);
 		}
 		
 		try {
-			if (_compressContent)
+			if (isBlockCompressed())
+				out = new BlockCompressedOutputStream(httpOut, _blockCodec, _blockSize);
+			else if (_compressContent)
 				out = new GZIPOutputStream(_currentOffset == 0 ? httpOut : new OffsetOutputStream(httpOut, _currentOffset));
 			else
 				out = httpOut;
@@ -293,7 +935,9 @@ public class ReliableOutboundHttpConnection
 		
 		try
 		{
-			if (_compressContent)
+			if (isBlockCompressed())
+				((BlockCompressedOutputStream) out).finish();
+			else if (_compressContent)
 				((GZIPOutputStream) out).finish();
 		
 			out.flush();
@@ -309,6 +953,293 @@ public class ReliableOutboundHttpConnection
 		return true;
 	}
 	
+	/**
+	 * Skips to the given offset in the content, which the server already holds
+	 */
+	private void skipFully(InputStream data, long offset) throws IOException
+	{
+		while (offset > 0)
+		{
+			long skipped = data.skip(offset);
+			
+			if (skipped <= 0)
+			{
+				if (data.read() == -1)
+					throw new IOException("Content ends before offset requested by server: " + _sourceOffset);
+				
+				skipped = 1;
+			}
+			
+			offset -= skipped;
+		}
+	}
+	
+	/**
+	 * Content of a request, either a stream of unknown length sent in chunks or a file of known length
+	 */
+	private interface RequestBody
+	{
+		/**
+		 * Number of bytes that will be sent, or -1 if not known
+		 */
+		public long getLength() throws InvalidDataInputException;
+		
+		/**
+		 * @param conn pooled connection being written to, null if not pooled
+		 */
+		public void writeTo(OutputStream out, PooledConnection conn) throws ConnectionInterruptedException, InvalidDataInputException;
+		
+		/**
+		 * Checksums of the blocks of content making up the body
+		 */
+		public BlockChecksums newChecksums(int blockSize);
+	}
+	
+	private class StreamBody implements RequestBody
+	{
+		private InputStream _data;
+		
+		StreamBody(InputStream data)
+		{
+			_data = data;
+		}
+		
+		@Override
+		public long getLength()
+		{
+			return -1;
+		}
+		
+		@Override
+		public void writeTo(OutputStream out, PooledConnection conn) throws ConnectionInterruptedException, InvalidDataInputException
+		{
+			sendData(out, _data);
+		}
+		
+		@Override
+		public BlockChecksums newChecksums(int blockSize)
+		{
+			return new BlockChecksums(blockSize, _currentOffset);
+		}
+	}
+	
+	private class FileBody implements RequestBody
+	{
+		private FileChannel _data;
+		
+		FileBody(FileChannel data)
+		{
+			_data = data;
+		}
+		
+		@Override
+		public long getLength() throws InvalidDataInputException
+		{
+			try
+			{
+				// a range ends where the next one starts
+				
+				long size = _rangeIndex != -1 ? TransferManifest.rangeEnd(_rangeIndex, _rangeCount, _totalLength) : _data.size();
+				
+				if (_currentOffset > size)
+					throw new InvalidDataInputException(new IOException("Offset " + _currentOffset + " is beyond the end of the data, size: " + size));
+				
+				return size - _currentOffset;
+			}
+			catch (IOException e)
+			{
+				throw new InvalidDataInputException(e);
+			}
+		}
+		
+		@Override
+		public void writeTo(OutputStream out, PooledConnection conn) throws ConnectionInterruptedException, InvalidDataInputException
+		{
+			long position = _currentOffset;
+			long end = position + getLength();
+			
+			// plain sockets opened by the pool have a channel that the file can be transferred to directly
+			
+			WritableByteChannel target = conn != null && out == conn.getOutputStream() ? conn.getSocket().getChannel() : null;
+			
+			try
+			{
+				if (target != null)
+				{
+					out.flush();
+					
+					while (position < end)
+					{
+						long sent = _data.transferTo(position, end - position, target);
+						
+						if (sent <= 0)
+							throw new InvalidDataInputException(new IOException("File truncated whilst being sent at: " + position));
+						
+						position += sent;
+					}
+				}
+				else
+				{
+					ByteBuffer buf = ByteBuffer.allocate(TRANSFER_BUFFER_SIZE);
+					
+					while (position < end)
+						position += writeFromFile(_data, buf, position, end, out);
+					
+					out.flush();
+				}
+			}
+			catch (IOException e)
+			{
+				Logger.getLogger(ReliableOutboundHttpConnection.class).error(e.getMessage());
+
+				// transmission was interrupted
+				throw new ConnectionInterruptedException(e, position);
+			}
+		}
+		
+		@Override
+		public BlockChecksums newChecksums(int blockSize)
+		{
+			return new BlockChecksums(blockSize, _currentOffset);
+		}
+	}
+	
+	/**
+	 * The blocks of a file that the server has asked to be resent, one after another
+	 */
+	private class BlocksBody implements RequestBody
+	{
+		private FileChannel _data;
+		private int[]		_blocks;
+		
+		BlocksBody(FileChannel data, int[] blocks)
+		{
+			_data = data;
+			_blocks = blocks;
+		}
+		
+		@Override
+		public long getLength() throws InvalidDataInputException
+		{
+			long length = 0;
+			
+			for (int block : _blocks)
+				length += blockEnd(block) - blockStart(block);
+			
+			return length;
+		}
+		
+		@Override
+		public void writeTo(OutputStream out, PooledConnection conn) throws ConnectionInterruptedException, InvalidDataInputException
+		{
+			ByteBuffer buf = ByteBuffer.allocate(TRANSFER_BUFFER_SIZE);
+			long position = -1;
+			
+			try
+			{
+				for (int block : _blocks)
+				{
+					position = blockStart(block);
+					long end = blockEnd(block);
+					
+					while (position < end)
+						position += writeFromFile(_data, buf, position, end, out);
+				}
+				
+				out.flush();
+			}
+			catch (IOException e)
+			{
+				Logger.getLogger(ReliableOutboundHttpConnection.class).error(e.getMessage());
+
+				// transmission was interrupted
+				throw new ConnectionInterruptedException(e, position);
+			}
+		}
+		
+		@Override
+		public BlockChecksums newChecksums(int blockSize)
+		{
+			return new BlockChecksums(blockSize, _blocks);
+		}
+		
+		private long blockStart(int block)
+		{
+			return (long) block * _checksumBlockSize;
+		}
+		
+		private long blockEnd(int block) throws InvalidDataInputException
+		{
+			try
+			{
+				long size = _data.size();
+				
+				if (blockStart(block) >= size)
+					throw new InvalidDataInputException(new IOException("Block " + block + " is beyond the end of the data, size: " + size));
+				
+				return Math.min(blockStart(block) + _checksumBlockSize, size);
+			}
+			catch (IOException e)
+			{
+				throw new InvalidDataInputException(e);
+			}
+		}
+	}
+	
+	/**
+	 * Reads the file from the given position up to at most the given end and writes it to the stream
+	 * 
+	 * @return number of bytes written
+	 */
+	private int writeFromFile(FileChannel data, ByteBuffer buf, long position, long end, OutputStream out) throws InvalidDataInputException, IOException
+	{
+		buf.clear();
+		buf.limit((int) Math.min(buf.capacity(), end - position));
+		
+		int bytesRead = -1;
+		
+		try {
+			bytesRead = data.read(buf, position);
+		} catch (IOException e) {
+			throw new InvalidDataInputException(e);
+		}
+		
+		if (bytesRead <= 0)
+			throw new InvalidDataInputException(new IOException("File truncated whilst being sent at: " + position));
+		
+		out.write(buf.array(), 0, bytesRead);
+		
+		return bytesRead;
+	}
+	
+	/**
+	 * Calculates the checksums of the blocks of content as they are written
+	 */
+	private static class ChecksummedOutputStream extends FilterOutputStream
+	{
+		private BlockChecksums _checksums;
+		
+		ChecksummedOutputStream(OutputStream out, BlockChecksums checksums)
+		{
+			super(out);
+			
+			_checksums = checksums;
+		}
+		
+		@Override
+		public void write(int b) throws IOException
+		{
+			write(new byte[] {(byte) b}, 0, 1);
+		}
+		
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException
+		{
+			out.write(b, off, len);
+			_checksums.update(b, off, len);
+		}
+	}
+	
 	public class HttpResponseImpl implements HttpResponse
 	{
 		private String					_httpType;
@@ -316,6 +1247,7 @@ public class ReliableOutboundHttpConnection
 		private Map<String, String> 	_responseHeaders;
 		private String 					_responseMessage;
 		private byte[]					_body;
+		private boolean					_keepAlive;
 		
 		public HttpResponseImpl(int responseCode, HttpURLConnection conn) throws IOException
 		{
@@ -361,6 +1293,120 @@ public class ReliableOutboundHttpConnection
 			}
 		}
 		
+		/**
+		 * Reads the status line, headers and the whole body of a response from a persistent connection,
+		 * leaving the stream positioned at the start of the next response
+		 */
+		public HttpResponseImpl(InputStream in, boolean requiresResponse) throws IOException
+		{
+			_responseHeaders = new TreeMap<String, String>(String.CASE_INSENSITIVE_ORDER);
+			
+			String statusLine = ChunkedInputStream.readLineFromInputStream(in);
+			
+			// skip any blank lines left before the status line
+			
+			while (statusLine != null && statusLine.isEmpty())
+				statusLine = ChunkedInputStream.readLineFromInputStream(in);
+			
+			if (statusLine == null)
+				throw new IOException("Connection closed by server before response was received");
+			
+			String[] status = statusLine.split(" ", 3);
+			
+			if (status.length < 2 || !status[0].startsWith("HTTP/"))
+				throw new IOException("Invalid response status line: " + statusLine);
+			
+			try {
+				_responseCode = Integer.parseInt(status[1]);
+			} catch (NumberFormatException e) {
+				throw new IOException("Invalid response status line: " + statusLine);
+			}
+			
+			_httpType = statusLine;
+			_responseMessage = status.length > 2 ? status[2] : null;
+			
+			String header = null;
+			
+			while ((header=ChunkedInputStream.readLineFromInputStream(in)) != null && !header.isEmpty())
+			{
+				int indexOfSeparator = header.indexOf(":");
+				
+				if (indexOfSeparator != -1)
+					_responseHeaders.put(header.substring(0, indexOfSeparator).trim(), header.substring(indexOfSeparator+1).trim());
+			}
+			
+			// persistent by default for HTTP/1.1, only if asked for by HTTP/1.0
+			
+			String connection = _responseHeaders.get("Connection");
+			
+			if (status[0].equals("HTTP/1.0"))
+				_keepAlive = connection != null && connection.equalsIgnoreCase("keep-alive");
+			else
+				_keepAlive = connection == null || !connection.equalsIgnoreCase("close");
+			
+			// the body always has to be read to reuse the connection, even if we don't want it
+			
+			InputStream body = null;
+			String encoding = _responseHeaders.get("Transfer-Encoding");
+			String contentLength = _responseHeaders.get("Content-Length");
+			
+			if (encoding != null && encoding.equalsIgnoreCase("chunked"))
+			{
+				body = new ChunkedInputStream(in);
+			}
+			else if (contentLength != null)
+			{
+				try {
+					body = new ContentLengthInputStream(in, Long.parseLong(contentLength));
+				} catch (NumberFormatException e) {
+					throw new IOException("Invalid content length: " + contentLength);
+				}
+			}
+			else if (_responseCode == 204 || _responseCode == 304 || _responseCode < 200)
+			{
+				body = null;
+			}
+			else
+			{
+				// body runs until the server closes the connection
+				
+				body = in;
+				_keepAlive = false;
+			}
+			
+			if (body != null)
+			{
+				ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+				byte[] buf = new byte[1024];
+				int bytesRead = -1;
+				
+				while ((bytesRead=body.read(buf)) > 0)
+					bytes.write(buf, 0, bytesRead);
+				
+				if (requiresResponse && _responseCode >= 200 && _responseCode < 300 && bytes.size() > 0)
+				{
+					if (_compressContent)
+					{
+						GZIPInputStream unzipped = new GZIPInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+						bytes.reset();
+						
+						while ((bytesRead=unzipped.read(buf)) > 0)
+							bytes.write(buf, 0, bytesRead);
+					}
+					
+					_body = bytes.toByteArray();
+				}
+			}
+		}
+		
+		/**
+		 * True if the connection can be used for another request after this response
+		 */
+		public boolean isKeepAlive()
+		{
+			return _keepAlive;
+		}
+		
 		@Override
 		public String getHttpVersion()
 		{
@@ -2,6 +2,7 @@ package com.jc.net;
 
 import java.io.InputStream;
 import java.net.URL;
+import java.nio.channels.FileChannel;
 import java.util.Map;
 
 import com.jc.util.HashMapWithTimeToLive;
@@ -11,6 +12,7 @@ public class ReliableOutboundHttpConnectionFactory
 	private static ReliableOutboundHttpConnectionFactory 	_default;
 	
 	private Map<String, ReliableOutboundHttpConnection> 	_partialTransfers;
+	private HttpConnectionPool								_connectionPool;
 	
 	static
 	{
@@ -27,6 +29,42 @@ public class ReliableOutboundHttpConnectionFactory
 		return _default.getReliableOutboundHttpConnection(uniqueId, endPoint, login, password, headerProperties, chunkSize, compressContent);
 	}	
 	
+	/**
+	 * Connections returned by the default factory from now on send via persistent connections, see {@link HttpConnectionPool}
+	 * 
+	 * @param maxConnectionsPerEndpoint maximum number of open connections to any one end point
+	 * @param idleTimeout milli seconds after which an unused connection is closed
+	 */
+	public static void enableKeepAlive(int maxConnectionsPerEndpoint, long idleTimeout)
+	{
+		_default.setConnectionPool(new HttpConnectionPool(maxConnectionsPerEndpoint, idleTimeout));
+	}
+	
+	/**
+	 * Connections returned by the default factory from now on open a new connection per request
+	 */
+	public static void disableKeepAlive()
+	{
+		_default.setConnectionPool(null);
+	}
+	
+	/**
+	 * Sets the pool used by connections returned from now on, null for a new connection per request. Any
+	 * previous pool is closed.
+	 */
+	public synchronized void setConnectionPool(HttpConnectionPool connectionPool)
+	{
+		if (_connectionPool != null && _connectionPool != connectionPool)
+			_connectionPool.close();
+		
+		_connectionPool = connectionPool;
+	}
+	
+	public synchronized HttpConnectionPool getConnectionPool()
+	{
+		return _connectionPool;
+	}
+	
 	public ReliableOutboundHttpConnection getReliableOutboundHttpConnection(String uniqueId, URL endPoint, String login, String password, Map<String, String> headerProperties, int chunkSize, boolean compressContent)
 	{
 		ReliableOutboundHttpConnection conn = null;
@@ -35,7 +73,9 @@ public class ReliableOutboundHttpConnectionFactory
 		
 		if ((conn=_partialTransfers.get(uniqueId)) == null)
 			conn = new PersistenceReliableOutboundHttpConnection(uniqueId, endPoint, login, password, headerProperties, chunkSize, compressContent);
-			
+		
+		conn.setConnectionPool(getConnectionPool());
+		
 		return conn;
 	}
 	
@@ -62,5 +102,19 @@ public class ReliableOutboundHttpConnectionFactory
 				throw e;
 			}
 		}
+		
+		@Override
+		public HttpResponse send(FileChannel data, String contentType, String charset, boolean requireResponse) throws InvalidConnectionException, ConnectionInterruptedException, InvalidDataInputException
+		{
+			try {
+				return super.send(data, contentType, charset, requireResponse);
+			}
+			catch(ConnectionInterruptedException e)
+			{
+				_partialTransfers.put(getUniqueId(), this);
+				
+				throw e;
+			}
+		}
 	}
 }
@@ -0,0 +1,349 @@
+package com.jc.net;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Progress of a file that is being received as several ranges in parallel, see
+ * {@link ReliableOutboundHttpConnection#sendFileInParallel(File, int, int, long, float, boolean)}. Each range
+ * is written straight to its place in the cache file, and the position reached by each range is recorded here.
+ *
+ * The manifest is saved next to the cache file as '&lt;uniqueId&gt;.ranges' so that ranges can be resumed after
+ * a restart. A recorded position is never ahead of what was actually written, so resuming from it at worst
+ * rewrites some of the same bytes.
+ *
+ * Once the file has been delivered the manifest is replaced by an empty '&lt;uniqueId&gt;.done' marker, so that
+ * a sender that retries a range because it never got the final reply is told the file was already received,
+ * rather than the transfer starting again over the delivered file. Markers are removed after
+ * {@link #COMPLETED_RETENTION}.
+ *
+ * @author John Carter
+ * @version 1.0
+ */
+class TransferManifest
+{
+	static final String								SUFFIX = ".ranges";
+	static final String								COMPLETED_SUFFIX = ".done";
+	static final long								COMPLETED_RETENTION = TimeUnit.DAYS.toMillis(1);
+
+	private static final Map<String, TransferManifest>	_open = new HashMap<String, TransferManifest>();
+
+	private File									_cacheFile;
+	private File									_manifestFile;
+	private int										_rangeCount;
+	private long									_totalLength;
+	private long[]									_position;
+	private boolean									_closed;
+	private boolean									_delivered;
+	private int										_users;
+
+	private TransferManifest(File cacheFile, int rangeCount, long totalLength)
+	{
+		_cacheFile = cacheFile;
+		_manifestFile = new File(cacheFile.getPath() + SUFFIX);
+		_rangeCount = rangeCount;
+		_totalLength = totalLength;
+		_position = new long[rangeCount];
+
+		for (int i = 0; i < rangeCount; i++)
+			_position[i] = rangeStart(i, rangeCount, totalLength);
+	}
+
+	/**
+	 * Offset of the first byte of the given range, ranges are as equal in size as possible
+	 */
+	static long rangeStart(int index, int rangeCount, long totalLength)
+	{
+		return (totalLength / rangeCount) * index + Math.min(index, totalLength % rangeCount);
+	}
+
+	/**
+	 * Offset after the last byte of the given range
+	 */
+	static long rangeEnd(int index, int rangeCount, long totalLength)
+	{
+		return rangeStart(index + 1, rangeCount, totalLength);
+	}
+
+	/**
+	 * Returns the manifest for the given cache file, loading it if saved by an earlier run. If the sender has
+	 * split the file differently to before, the transfer starts again from scratch. Each call must be matched
+	 * by a call to {@link #release()}.
+	 */
+	static synchronized TransferManifest open(File cacheFile, int rangeCount, long totalLength) throws IOException
+	{
+		String key = cacheFile.getAbsolutePath();
+		TransferManifest manifest = _open.get(key);
+
+		if (manifest == null && new File(cacheFile.getPath() + COMPLETED_SUFFIX).exists())
+		{
+			// already delivered, nothing is written from here on
+
+			manifest = new TransferManifest(cacheFile, rangeCount, totalLength);
+			manifest._closed = true;
+			manifest._delivered = true;
+
+			for (int i = 0; i < rangeCount; i++)
+				manifest._position[i] = manifest.getRangeEnd(i);
+
+			return manifest;
+		}
+
+		if (manifest == null)
+			manifest = load(cacheFile);
+
+		if (manifest == null || manifest._rangeCount != rangeCount || manifest._totalLength != totalLength)
+		{
+			manifest = new TransferManifest(cacheFile, rangeCount, totalLength);
+
+			// allocate the whole file up front, the ranges then only ever write within it
+
+			RandomAccessFile file = new RandomAccessFile(cacheFile, "rw");
+
+			try
+			{
+				file.setLength(0);
+				file.setLength(totalLength);
+			}
+			finally
+			{
+				file.close();
+			}
+
+			manifest.save();
+		}
+
+		manifest._users++;
+		_open.put(key, manifest);
+
+		return manifest;
+	}
+
+	/**
+	 * Gives up the manifest obtained from {@link #open(File, int, long)}, it is dropped from memory once no range
+	 * is using it, as everything needed to resume is already saved
+	 */
+	void release()
+	{
+		synchronized (TransferManifest.class)
+		{
+			String key = _cacheFile.getAbsolutePath();
+
+			if (--_users <= 0 && _open.get(key) == this)
+				_open.remove(key);
+		}
+	}
+
+	private static TransferManifest load(File cacheFile) throws IOException
+	{
+		File manifestFile = new File(cacheFile.getPath() + SUFFIX);
+
+		if (!manifestFile.exists() || !cacheFile.exists())
+			return null;
+
+		Properties props = new Properties();
+		InputStream in = new FileInputStream(manifestFile);
+
+		try
+		{
+			props.load(in);
+
+			TransferManifest manifest = new TransferManifest(cacheFile, Integer.parseInt(props.getProperty("rangeCount")), Long.parseLong(props.getProperty("totalLength")));
+
+			for (int i = 0; i < manifest._rangeCount; i++)
+				manifest._position[i] = Long.parseLong(props.getProperty("range." + i));
+
+			return manifest;
+		}
+		catch (RuntimeException e)
+		{
+			// unreadable, so start again
+
+			return null;
+		}
+		finally
+		{
+			in.close();
+		}
+	}
+
+	public int getRangeCount()
+	{
+		return _rangeCount;
+	}
+
+	public long getTotalLength()
+	{
+		return _totalLength;
+	}
+
+	public long getRangeStart(int index)
+	{
+		return rangeStart(index, _rangeCount, _totalLength);
+	}
+
+	public long getRangeEnd(int index)
+	{
+		return rangeEnd(index, _rangeCount, _totalLength);
+	}
+
+	/**
+	 * Position up to which the given range has been written
+	 */
+	public synchronized long getPosition(int index)
+	{
+		return _position[index];
+	}
+
+	/**
+	 * Records the position up to which the given range has been written
+	 */
+	public synchronized void setPosition(int index, long position) throws IOException
+	{
+		_position[index] = position;
+
+		if (!_closed)
+			save();
+	}
+
+	public synchronized boolean isComplete(int index)
+	{
+		return _position[index] >= getRangeEnd(index);
+	}
+
+	public synchronized boolean isComplete()
+	{
+		for (int i = 0; i < _rangeCount; i++)
+		{
+			if (!isComplete(i))
+				return false;
+		}
+
+		return true;
+	}
+
+	/**
+	 * True if the file has already been delivered, see {@link #delivered()}
+	 */
+	public synchronized boolean isDelivered()
+	{
+		return _delivered;
+	}
+
+	/**
+	 * Marks the given range as complete and returns true if it was the last one, so only one caller ever sees
+	 * true. That caller must then either call {@link #delivered()} or {@link #discard()}.
+	 */
+	public synchronized boolean complete(int index) throws IOException
+	{
+		_position[index] = getRangeEnd(index);
+
+		if (_closed || !isComplete())
+		{
+			if (!_closed)
+				save();
+
+			return false;
+		}
+
+		_closed = true;
+
+		return true;
+	}
+
+	/**
+	 * Records that the complete file has been verified and is being delivered, replacing the manifest with a
+	 * completion marker
+	 */
+	public void delivered() throws IOException
+	{
+		synchronized (TransferManifest.class)
+		{
+			synchronized (this)
+			{
+				File marker = new File(_cacheFile.getPath() + COMPLETED_SUFFIX);
+
+				if (!marker.createNewFile())
+					marker.setLastModified(System.currentTimeMillis());
+
+				_delivered = true;
+				_open.remove(_cacheFile.getAbsolutePath());
+				_manifestFile.delete();
+			}
+
+			purgeCompleted(_cacheFile.getAbsoluteFile().getParentFile());
+		}
+	}
+
+	/**
+	 * Forgets the transfer, for when the complete file turned out to be unusable, so that it starts again from
+	 * scratch
+	 */
+	public void discard()
+	{
+		synchronized (TransferManifest.class)
+		{
+			synchronized (this)
+			{
+				_open.remove(_cacheFile.getAbsolutePath());
+				_manifestFile.delete();
+			}
+		}
+	}
+
+	/**
+	 * Removes completion markers older than {@link #COMPLETED_RETENTION}
+	 */
+	private static void purgeCompleted(File dir)
+	{
+		File[] markers = dir != null ? dir.listFiles() : null;
+
+		if (markers == null)
+			return;
+
+		long expired = System.currentTimeMillis() - COMPLETED_RETENTION;
+
+		for (File marker : markers)
+		{
+			if (marker.getName().endsWith(COMPLETED_SUFFIX) && marker.lastModified() < expired)
+				marker.delete();
+		}
+	}
+
+	private void save() throws IOException
+	{
+		Properties props = new Properties();
+		props.setProperty("rangeCount", "" + _rangeCount);
+		props.setProperty("totalLength", "" + _totalLength);
+
+		for (int i = 0; i < _rangeCount; i++)
+			props.setProperty("range." + i, "" + _position[i]);
+
+		// replace in one go, so that a crash never leaves a half written manifest
+
+		File tmp = new File(_manifestFile.getPath() + ".tmp");
+		OutputStream out = new FileOutputStream(tmp);
+
+		try
+		{
+			props.store(out, null);
+		}
+		finally
+		{
+			out.close();
+		}
+
+		Files.move(tmp.toPath(), _manifestFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+	}
+}
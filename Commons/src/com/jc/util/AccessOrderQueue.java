@@ -0,0 +1,135 @@
+package com.jc.util;
+
+/**
+ * Doubly linked list of cache entries kept in access order, the least recently used entry
+ * is at the head and the most recently used at the tail. Entries are linked intrusively so
+ * that touching, adding and evicting are all constant time operations and no sorting is
+ * ever required to find the next candidate for eviction.
+ *
+ * Not thread safe, callers are expected to guard access with the lock of the owning map,
+ * only the value and expiry of an entry may be read without holding that lock.
+ *
+ * @author John Carter
+ * @version 1.0
+ */
+class AccessOrderQueue<K, V>
+{
+	private Node<K, V>		_head;
+	private Node<K, V>		_tail;
+	private int				_size;
+
+	/**
+	 * Returns the least recently used entry, i.e. the first candidate for eviction
+	 *
+	 * @return eldest entry or null if empty
+	 */
+	public Node<K, V> first()
+	{
+		return _head;
+	}
+
+	/**
+	 * Returns the most recently used entry
+	 *
+	 * @return youngest entry or null if empty
+	 */
+	public Node<K, V> last()
+	{
+		return _tail;
+	}
+
+	public int size()
+	{
+		return _size;
+	}
+
+	public void addLast(Node<K, V> node)
+	{
+		node._prev = _tail;
+		node._next = null;
+
+		if (_tail != null)
+			_tail._next = node;
+		else
+			_head = node;
+
+		_tail = node;
+		_size += 1;
+	}
+
+	public void moveToLast(Node<K, V> node)
+	{
+		if (node == _tail)
+			return;
+
+		unlink(node);
+		addLast(node);
+	}
+
+	public void remove(Node<K, V> node)
+	{
+		unlink(node);
+		node._prev = null;
+		node._next = null;
+	}
+
+	public void clear()
+	{
+		_head = null;
+		_tail = null;
+		_size = 0;
+	}
+
+	private void unlink(Node<K, V> node)
+	{
+		if (node._prev != null)
+			node._prev._next = node._next;
+		else
+			_head = node._next;
+
+		if (node._next != null)
+			node._next._prev = node._prev;
+		else
+			_tail = node._prev;
+
+		_size -= 1;
+	}
+
+	/**
+	 * Entry in the queue, all time stamps are taken from System.nanoTime() so that no
+	 * objects need to be allocated when an entry is accessed.
+	 */
+	static class Node<K, V>
+	{
+		final K			_key;
+		volatile V		_value;
+
+		long			_createdAt;
+		long			_touchedAt;
+		volatile long	_expiresAt;		// 0 if the entry never expires
+		long			_weight;
+
+		ExpiryScheduler.Timeout	_timeout;
+
+		Node<K, V>		_prev;
+		Node<K, V>		_next;
+
+		Node(K key, V value, long now)
+		{
+			_key = key;
+			_value = value;
+			_createdAt = now;
+			_touchedAt = now;
+		}
+
+		boolean isExpired(long now)
+		{
+			return _expiresAt != 0 && now - _expiresAt >= 0;
+		}
+
+		Node<K, V> next()
+		{
+			return _next;
+		}
+	}
+}
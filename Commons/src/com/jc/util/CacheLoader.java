@@ -0,0 +1,34 @@
+package com.jc.util;
+
+/**
+ * Computes the value of a cache element that is missing or due to be refreshed, used with
+ * the get(key, loader) methods of the time to live maps.
+ *
+ * @author John Carter
+ * @version 1.0
+ */
+public interface CacheLoader<K, V>
+{
+	/**
+	 * Loads the value for the given key, may be called from a background thread when
+	 * refreshing an element ahead of its expiry.
+	 *
+	 * @param key key of missing element
+	 * @return value to cache or null if none, null values are not cached
+	 * @throws Exception if the value could not be loaded
+	 */
+	public V load(K key) throws Exception;
+
+	/**
+	 * Thrown to the callers waiting on a load that failed
+	 */
+	public class LoadException extends Exception
+	{
+		private static final long serialVersionUID = 1L;
+
+		public LoadException(Throwable e)
+		{
+			super(e);
+		}
+	}
+}
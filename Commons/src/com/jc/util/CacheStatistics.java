@@ -0,0 +1,427 @@
+package com.jc.util;
+
+import java.lang.ref.WeakReference;
+import java.util.Map;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Records how a time to live cache is used, so that its maximum size and clean threshold can be
+ * tuned from real data. All counters are LongAdders so recording from many threads does not
+ * introduce any contention of its own.
+ *
+ * Get latencies are kept in a histogram with four sub-buckets per power of two, percentiles are
+ * therefore accurate to within about 20%. The size of the cache is sampled periodically and the
+ * most recent samples retained as a size history.
+ *
+ * Statistics are disabled by default, use enableStatistics() on the cache to start recording.
+ *
+ * @author John Carter
+ * @version 1.0
+ */
+public class CacheStatistics
+{
+	public static final int 		DEFAULT_SIZE_HISTORY = 60;
+	public static final long 		DEFAULT_SAMPLE_INTERVAL_MS = 60000;
+
+	private static final int		SUB_BUCKET_BITS = 2;
+	private static final int		LATENCY_BUCKETS = 64 << SUB_BUCKET_BITS;
+
+	private LongAdder				_hits = new LongAdder();
+	private LongAdder				_misses = new LongAdder();
+	private LongAdder				_puts = new LongAdder();
+
+	private LongAdder				_loadSuccesses = new LongAdder();
+	private LongAdder				_loadFailures = new LongAdder();
+	private LongAdder				_totalLoadTime = new LongAdder();
+
+	private LongAdder[]				_removals;
+	private LongAdder				_evictedAgeTotal = new LongAdder();
+	private LongAdder				_evictedCount = new LongAdder();
+
+	private LongAdder[]				_latencies;
+
+	private long[]					_sampleTimes;
+	private int[]					_sampleSizes;
+	private int						_sampleCount;
+	private ScheduledFuture<?>		_sampler;
+
+	public CacheStatistics()
+	{
+		this(DEFAULT_SIZE_HISTORY);
+	}
+
+	/**
+	 * @param sizeHistory number of size samples to retain
+	 */
+	public CacheStatistics(int sizeHistory)
+	{
+		_removals = new LongAdder[RemovalCause.values().length];
+
+		for (int i = 0; i < _removals.length; i++)
+			_removals[i] = new LongAdder();
+
+		_latencies = new LongAdder[LATENCY_BUCKETS];
+
+		for (int i = 0; i < _latencies.length; i++)
+			_latencies[i] = new LongAdder();
+
+		_sampleTimes = new long[sizeHistory];
+		_sampleSizes = new int[sizeHistory];
+	}
+
+	public void recordHit(long latency)
+	{
+		_hits.increment();
+		_latencies[bucketFor(latency)].increment();
+	}
+
+	public void recordMiss(long latency)
+	{
+		_misses.increment();
+		_latencies[bucketFor(latency)].increment();
+	}
+
+	public void recordPut()
+	{
+		_puts.increment();
+	}
+
+	public void recordLoad(boolean success, long loadTime)
+	{
+		if (success)
+			_loadSuccesses.increment();
+		else
+			_loadFailures.increment();
+
+		_totalLoadTime.add(loadTime);
+	}
+
+	/**
+	 * @param cause why the element was removed
+	 * @param age time in nano seconds since the element was added
+	 */
+	public void recordRemoval(RemovalCause cause, long age)
+	{
+		_removals[cause.ordinal()].increment();
+
+		if (cause != RemovalCause.EXPLICIT)
+		{
+			_evictedAgeTotal.add(age);
+			_evictedCount.increment();
+		}
+	}
+
+	public synchronized void recordSize(int size)
+	{
+		int index = _sampleCount % _sampleTimes.length;
+
+		_sampleTimes[index] = System.currentTimeMillis();
+		_sampleSizes[index] = size;
+		_sampleCount += 1;
+	}
+
+	/**
+	 * Periodically records the size of the given map via the scheduler, only a weak
+	 * reference to the map is kept.
+	 *
+	 * @param map map to sample
+	 * @param scheduler scheduler to run sampling
+	 * @param interval time between samples
+	 * @param unit unit of interval
+	 */
+	public synchronized void startSampling(Map<?, ?> map, ExpiryScheduler scheduler, long interval, TimeUnit unit)
+	{
+		stopSampling();
+
+		final WeakReference<Map<?, ?>> ref = new WeakReference<Map<?, ?>>(map);
+
+		_sampler = scheduler.scheduleAtFixedRate(new Runnable() {
+
+			@Override
+			public void run()
+			{
+				Map<?, ?> map = ref.get();
+
+				if (map != null)
+					recordSize(map.size());
+				else
+					stopSampling();
+			}
+		}, interval, unit);
+	}
+
+	public synchronized void stopSampling()
+	{
+		if (_sampler != null)
+		{
+			_sampler.cancel(false);
+			_sampler = null;
+		}
+	}
+
+	/**
+	 * Returns a consistent copy of the statistics recorded so far
+	 *
+	 * @param size current size of cache
+	 * @param maxSize maximum size of cache, -1 if unbounded
+	 * @return snapshot of statistics
+	 */
+	public Snapshot snapshot(int size, int maxSize)
+	{
+		Snapshot s = new Snapshot();
+
+		s._size = size;
+		s._maxSize = maxSize;
+		s._hitCount = _hits.sum();
+		s._missCount = _misses.sum();
+		s._putCount = _puts.sum();
+		s._loadSuccessCount = _loadSuccesses.sum();
+		s._loadFailureCount = _loadFailures.sum();
+		s._totalLoadTime = _totalLoadTime.sum();
+		s._removals = new long[_removals.length];
+
+		for (int i = 0; i < _removals.length; i++)
+			s._removals[i] = _removals[i].sum();
+
+		long evicted = _evictedCount.sum();
+		s._averageEvictedAge = evicted > 0 ? _evictedAgeTotal.sum() / evicted : 0;
+
+		s._latencies = new long[_latencies.length];
+
+		for (int i = 0; i < _latencies.length; i++)
+			s._latencies[i] = _latencies[i].sum();
+
+		synchronized (this)
+		{
+			int count = Math.min(_sampleCount, _sampleTimes.length);
+			int first = _sampleCount - count;
+
+			s._sampleTimes = new long[count];
+			s._sampleSizes = new int[count];
+
+			for (int i = 0; i < count; i++)
+			{
+				s._sampleTimes[i] = _sampleTimes[(first + i) % _sampleTimes.length];
+				s._sampleSizes[i] = _sampleSizes[(first + i) % _sampleTimes.length];
+			}
+		}
+
+		return s;
+	}
+
+	/**
+	 * Resets all counters and the size history
+	 */
+	public synchronized void reset()
+	{
+		_hits.reset();
+		_misses.reset();
+		_puts.reset();
+		_loadSuccesses.reset();
+		_loadFailures.reset();
+		_totalLoadTime.reset();
+		_evictedAgeTotal.reset();
+		_evictedCount.reset();
+
+		for (LongAdder a : _removals)
+			a.reset();
+
+		for (LongAdder a : _latencies)
+			a.reset();
+
+		_sampleCount = 0;
+	}
+
+	private static int bucketFor(long value)
+	{
+		if (value < (1 << SUB_BUCKET_BITS))
+			return (int) Math.max(value, 0);
+
+		int magnitude = 63 - Long.numberOfLeadingZeros(value);
+		int sub = (int) (value >>> (magnitude - SUB_BUCKET_BITS)) & ((1 << SUB_BUCKET_BITS) - 1);
+
+		return (magnitude << SUB_BUCKET_BITS) + sub;
+	}
+
+	private static long upperBoundOf(int bucket)
+	{
+		int magnitude = bucket >>> SUB_BUCKET_BITS;
+		int sub = bucket & ((1 << SUB_BUCKET_BITS) - 1);
+
+		if (magnitude < SUB_BUCKET_BITS)
+			return bucket;
+
+		return ((long) ((1 << SUB_BUCKET_BITS) + sub + 1) << (magnitude - SUB_BUCKET_BITS)) - 1;
+	}
+
+	/**
+	 * Reason an element was removed from the cache
+	 */
+	public enum RemovalCause
+	{
+		/** removed by the application */
+		EXPLICIT,
+		/** evicted to make room for a new element */
+		SIZE,
+		/** evicted as the total weight of the cache exceeded its maximum */
+		WEIGHT,
+		/** evicted by the periodic cleanup as the cache exceeded its load factor */
+		CLEANUP,
+		/** reached its time to live */
+		EXPIRED
+	}
+
+	/**
+	 * Immutable copy of the statistics at a point in time
+	 */
+	public static class Snapshot
+	{
+		private int			_size;
+		private int			_maxSize;
+		private long		_hitCount;
+		private long		_missCount;
+		private long		_putCount;
+		private long		_loadSuccessCount;
+		private long		_loadFailureCount;
+		private long		_totalLoadTime;
+		private long[]		_removals;
+		private long		_averageEvictedAge;
+		private long[]		_latencies;
+		private long[]		_sampleTimes;
+		private int[]		_sampleSizes;
+
+		public int getSize()
+		{
+			return _size;
+		}
+
+		public int getMaxSize()
+		{
+			return _maxSize;
+		}
+
+		public long getHitCount()
+		{
+			return _hitCount;
+		}
+
+		public long getMissCount()
+		{
+			return _missCount;
+		}
+
+		public long getRequestCount()
+		{
+			return _hitCount + _missCount;
+		}
+
+		public double getHitRate()
+		{
+			long requests = getRequestCount();
+
+			return requests > 0 ? (double) _hitCount / requests : 1.0;
+		}
+
+		public long getPutCount()
+		{
+			return _putCount;
+		}
+
+		public long getLoadSuccessCount()
+		{
+			return _loadSuccessCount;
+		}
+
+		public long getLoadFailureCount()
+		{
+			return _loadFailureCount;
+		}
+
+		/**
+		 * @return average time taken to load a missing element in milli seconds
+		 */
+		public double getAverageLoadTime()
+		{
+			long loads = _loadSuccessCount + _loadFailureCount;
+
+			return loads > 0 ? (double) _totalLoadTime / loads / 1000000.0 : 0;
+		}
+
+		public long getRemovalCount(RemovalCause cause)
+		{
+			return _removals[cause.ordinal()];
+		}
+
+		/**
+		 * @return number of elements removed for any reason other than explicit removal
+		 */
+		public long getEvictionCount()
+		{
+			long count = 0;
+
+			for (RemovalCause cause : RemovalCause.values())
+			{
+				if (cause != RemovalCause.EXPLICIT)
+					count += _removals[cause.ordinal()];
+			}
+
+			return count;
+		}
+
+		/**
+		 * @return average age in milli seconds of elements when they were evicted or expired
+		 */
+		public long getAverageEvictedAge()
+		{
+			return TimeUnit.NANOSECONDS.toMillis(_averageEvictedAge);
+		}
+
+		/**
+		 * Returns the given percentile of get latencies
+		 *
+		 * @param percentile value between 0 and 100 e.g. 99
+		 * @return latency in nano seconds
+		 */
+		public long getLatencyPercentile(double percentile)
+		{
+			long total = 0;
+
+			for (long count : _latencies)
+				total += count;
+
+			if (total == 0)
+				return 0;
+
+			long threshold = (long) Math.ceil(total * percentile / 100.0);
+			long seen = 0;
+
+			for (int i = 0; i < _latencies.length; i++)
+			{
+				seen += _latencies[i];
+
+				if (seen >= threshold)
+					return upperBoundOf(i);
+			}
+
+			return upperBoundOf(_latencies.length - 1);
+		}
+
+		/**
+		 * @return times of size samples, in milli seconds since epoch, oldest first
+		 */
+		public long[] getSizeHistoryTimes()
+		{
+			return _sampleTimes.clone();
+		}
+
+		/**
+		 * @return size samples, oldest first
+		 */
+		public int[] getSizeHistory()
+		{
+			return _sampleSizes.clone();
+		}
+	}
+}
@@ -0,0 +1,1114 @@
+package com.jc.util;
+
+import java.lang.ref.WeakReference;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+
+import com.jc.util.AccessOrderQueue.Node;
+import com.jc.util.CacheLoader.LoadException;
+import com.jc.util.CacheStatistics.RemovalCause;
+import com.jc.util.HashMapWithTimeToLive.ObjectRemovedListener;
+
+/**
+ * Thread safe equivalent of {@link HashMapWithTimeToLive} that can be shared between many
+ * service threads.
+ *
+ * Lookups go straight to a ConcurrentHashMap and never block. Updates are striped across a
+ * number of segments, each with its own lock and access ordered queue, so that writers only
+ * contend when their keys hash to the same segment. Reordering an element after a read is
+ * done opportunistically, if the segment is busy the read does not wait and the element
+ * simply keeps its position for now.
+ *
+ * The maximum size is divided evenly between the segments, meaning that the least recently
+ * accessed element of the segment is evicted rather than that of the whole map. The maximum
+ * weight set via {@link #setMaximumWeight(long, Weigher)} applies to the map as a whole
+ * instead, so that a single element may take up to all of it, and the least recently accessed
+ * elements of the map are evicted to make room. Null keys and values are not permitted.
+ *
+ * Use {@link #get(Object, CacheLoader)} to load missing elements on demand, concurrent
+ * requests for the same missing element share a single call to the loader.
+ *
+ * Elements are expired via the shared {@link ExpiryScheduler}, which only holds weak references
+ * to the map, but pending timeouts keep their elements reachable until they expire, call
+ * {@link #close()} when the map is no longer required to release them immediately.
+ *
+ * @author John Carter
+ * @version 1.0
+ */
+public class ConcurrentTimeToLiveMap<K, V> extends AbstractMap<K, V> implements ConcurrentMap<K, V>, AutoCloseable
+{
+	private static final int DEFAULT_CONCURRENCY_LEVEL = 16;
+
+	private ConcurrentHashMap<K, Node<K, V>>	_map;
+	private Segment<K, V>[]						_segments;
+	private int									_segmentMask;
+
+	private int									_maxEntries;
+	private volatile long						_maxWeight = -1;
+	private AtomicLong							_totalWeight;
+	private volatile Weigher<? super K, ? super V>	_weigher;
+	private long								_timeToLive;
+	private long								_refreshAfter;
+	private long								_staleWindow;
+
+	private ObjectRemovedListener<V>			_removeListener;
+
+	private volatile ExpiryScheduler			_scheduler;
+	private Expirer<K, V>						_expirer;
+	private volatile boolean					_closed;
+
+	private volatile CacheStatistics			_statistics;
+	private LoadCoordinator<K, V>				_loadCoordinator;
+
+	private EntrySet							_entrySet;
+
+	public ConcurrentTimeToLiveMap(int maxEntries)
+	{
+		this(maxEntries, DEFAULT_CONCURRENCY_LEVEL, 0, TimeUnit.MILLISECONDS);
+	}
+
+	public ConcurrentTimeToLiveMap(int maxEntries, long timeToLive, TimeUnit unit)
+	{
+		this(maxEntries, DEFAULT_CONCURRENCY_LEVEL, timeToLive, unit);
+	}
+
+	/**
+	 * Creates a concurrent cache bound by both size and age
+	 *
+	 * @param maxEntries maximum number of elements to hold, -1 for no limit
+	 * @param concurrencyLevel expected number of concurrently updating threads, rounded up to a power of two
+	 * but no more than the maximum number of elements
+	 * @param timeToLive default time to live of an element after it was added, 0 to never expire
+	 * @param unit unit of the time to live
+	 */
+	public ConcurrentTimeToLiveMap(int maxEntries, int concurrencyLevel, long timeToLive, TimeUnit unit)
+	{
+		int segments = 1;
+
+		while (segments < concurrencyLevel && (maxEntries <= 0 || segments * 2 <= maxEntries))
+			segments <<= 1;
+
+		_maxEntries = maxEntries;
+		_map = new ConcurrentHashMap<K, Node<K, V>>(maxEntries > 0 ? maxEntries : 16, 0.75f, segments);
+		_segmentMask = segments - 1;
+		_totalWeight = new AtomicLong();
+
+		@SuppressWarnings("unchecked")
+		Segment<K, V>[] segs = (Segment<K, V>[]) new Segment<?, ?>[segments];
+
+		// the shares have to add up to exactly the maximum, the remainder goes one each to the first segments
+
+		for (int i = 0; i < segments; i++)
+			segs[i] = new Segment<K, V>(maxEntries > 0 ? maxEntries / segments + (i < maxEntries % segments ? 1 : 0) : -1);
+
+		_segments = segs;
+
+		_scheduler = ExpiryScheduler.getDefault();
+		_expirer = new Expirer<K, V>(this);
+		_loadCoordinator = new LoadCoordinator<K, V>(new Loadable());
+
+		setTimeToLive(timeToLive, unit);
+	}
+
+	/**
+	 * Registers the given listener which is called when objects are evicted or expire from the cache.
+	 * The listener is called whilst the segment of the object is locked and so should return quickly.
+	 *
+	 * @param removalListener listener to be called when objects are automatically removed
+	 */
+	public void setRemovalListener(ObjectRemovedListener<V> removalListener)
+	{
+		_removeListener = removalListener;
+	}
+
+	public int getMaxCacheSize()
+	{
+		return _maxEntries;
+	}
+
+	/**
+	 * Bounds the cache by the total weight of its elements as calculated by the given weigher.
+	 * Existing elements are weighed immediately. An element that alone exceeds the maximum is
+	 * never cached, adding one removes any existing element with the same key and passes the
+	 * new element straight to the removal listener, without evicting anything else. Can be
+	 * combined with a maximum number of entries.
+	 *
+	 * @param maxWeight maximum total weight, -1 for no limit
+	 * @param weigher calculates the weight of each element
+	 */
+	public synchronized void setMaximumWeight(long maxWeight, Weigher<? super K, ? super V> weigher)
+	{
+		_maxWeight = maxWeight;
+		_weigher = maxWeight > 0 ? weigher : null;
+
+		for (Segment<K, V> segment : _segments)
+		{
+			segment.lock();
+			try
+			{
+				Node<K, V> node = segment._accessOrder.first();
+
+				while (node != null)
+				{
+					Node<K, V> next = node.next();
+					long weight = weigh(node._key, node._value);
+
+					_totalWeight.addAndGet(weight - node._weight);
+					node._weight = weight;
+
+					if (isTooHeavy(weight))
+						removeLocked(segment, node, RemovalCause.WEIGHT);
+
+					node = next;
+				}
+			}
+			finally
+			{
+				segment.unlock();
+			}
+		}
+
+		evictOverweight();
+	}
+
+	public long getMaximumWeight()
+	{
+		return _maxWeight;
+	}
+
+	/**
+	 * Returns the total weight of all elements, always 0 unless a maximum weight has been set
+	 *
+	 * @return total weight of elements
+	 */
+	public long getWeightedSize()
+	{
+		return _totalWeight.get();
+	}
+
+	/**
+	 * Starts recording hits, misses, evictions and latencies for this cache, also samples
+	 * the size of the cache every minute. Has no effect if already enabled.
+	 *
+	 * @return the statistics recorder
+	 */
+	public synchronized CacheStatistics enableStatistics()
+	{
+		if (_statistics == null)
+		{
+			CacheStatistics statistics = new CacheStatistics();
+			statistics.startSampling(this, scheduler(), CacheStatistics.DEFAULT_SAMPLE_INTERVAL_MS, TimeUnit.MILLISECONDS);
+
+			_statistics = statistics;
+		}
+
+		return _statistics;
+	}
+
+	/**
+	 * Returns the statistics recorded since {@link #enableStatistics()} was called
+	 *
+	 * @return statistics or null if not enabled
+	 */
+	public CacheStatistics.Snapshot getStatistics()
+	{
+		CacheStatistics statistics = _statistics;
+
+		return statistics != null ? statistics.snapshot(size(), _maxEntries) : null;
+	}
+
+	/**
+	 * Sets the default time to live for elements added after this call
+	 *
+	 * @param timeToLive time to live after element was added, 0 to never expire
+	 * @param unit unit of the time to live
+	 */
+	public void setTimeToLive(long timeToLive, TimeUnit unit)
+	{
+		_timeToLive = timeToLive > 0 ? unit.toNanos(timeToLive) : 0;
+	}
+
+	public long getTimeToLive(TimeUnit unit)
+	{
+		return unit.convert(_timeToLive, TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * Elements older than this are reloaded in the background when next requested via
+	 * {@link #get(Object, CacheLoader)}, the current value is returned in the meantime.
+	 *
+	 * @param refreshAfter age after which an element is refreshed, 0 to never refresh
+	 * @param unit unit of refreshAfter
+	 */
+	public void setRefreshAfter(long refreshAfter, TimeUnit unit)
+	{
+		_refreshAfter = refreshAfter > 0 ? unit.toNanos(refreshAfter) : 0;
+	}
+
+	/**
+	 * Expired elements are retained for the given window, during which {@link #get(Object, CacheLoader)}
+	 * returns the expired value and reloads it in the background. Plain get() never returns
+	 * expired elements. Only affects elements added after this call.
+	 *
+	 * @param staleWindow time after expiry that a value may still be served, 0 to disable
+	 * @param unit unit of staleWindow
+	 */
+	public void setStaleWindow(long staleWindow, TimeUnit unit)
+	{
+		_staleWindow = staleWindow > 0 ? unit.toNanos(staleWindow) : 0;
+	}
+
+	/**
+	 * Sets the executor used to refresh elements in the background, by default a shared pool
+	 * of daemon threads is used.
+	 *
+	 * @param executor executor to run background loads
+	 */
+	public void setRefreshExecutor(Executor executor)
+	{
+		_loadCoordinator.setExecutor(executor);
+	}
+
+	/**
+	 * Returns the value for the given key, calling the loader if it is missing or expired.
+	 * Unlike {@link #computeIfAbsent(Object, Function)} the loader is called without holding
+	 * any lock, so it may be slow, and other threads requesting the same key wait for its
+	 * result rather than calling the loader themselves.
+	 *
+	 * @param key key of element
+	 * @param loader loader to call if the element is missing
+	 * @return cached or loaded value, null if the loader returned null
+	 * @throws LoadException if the loader failed
+	 */
+	public V get(K key, CacheLoader<? super K, V> loader) throws LoadException
+	{
+		return _loadCoordinator.get(key, loader, _refreshAfter);
+	}
+
+	@Override
+	public V get(Object key)
+	{
+		long now = System.nanoTime();
+		Node<K, V> node = _map.get(key);
+		CacheStatistics statistics = _statistics;
+
+		if (node != null && node.isExpired(now))
+		{
+			if (isStale(node, now))
+				expire(node);
+
+			node = null;
+		}
+
+		if (node == null)
+		{
+			if (statistics != null)
+				statistics.recordMiss(System.nanoTime() - now);
+
+			return null;
+		}
+
+		touch(node, now);
+
+		V value = node._value;
+
+		if (statistics != null)
+			statistics.recordHit(System.nanoTime() - now);
+
+		return value;
+	}
+
+	@Override
+	public boolean containsKey(Object key)
+	{
+		Node<K, V> node = _map.get(key);
+
+		return node != null && !node.isExpired(System.nanoTime());
+	}
+
+	@Override
+	public V put(K key, V value)
+	{
+		return put(key, value, _timeToLive, TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * Adds the element to the cache with its own time to live, overriding the default of the map
+	 *
+	 * @param key key of element
+	 * @param value element to cache
+	 * @param timeToLive time to live after element was added, 0 to never expire
+	 * @param unit unit of the time to live
+	 * @return previous element with the same key or null
+	 */
+	public V put(K key, V value, long timeToLive, TimeUnit unit)
+	{
+		return putImpl(key, value, timeToLive > 0 ? unit.toNanos(timeToLive) : 0, false);
+	}
+
+	@Override
+	public V putIfAbsent(K key, V value)
+	{
+		return putImpl(key, value, _timeToLive, true);
+	}
+
+	/**
+	 * Returns the value for the given key, or uses the given function to calculate it if the
+	 * key is not present or has expired. The function is called at most once per missing key,
+	 * whilst holding the lock of the key's segment, and must therefore be short and must not
+	 * update this map.
+	 */
+	@Override
+	public V computeIfAbsent(K key, Function<? super K, ? extends V> mappingFunction)
+	{
+		V value = get(key);
+
+		if (value != null)
+			return value;
+
+		Segment<K, V> segment = segmentFor(key);
+
+		segment.lock();
+		try
+		{
+			long now = System.nanoTime();
+			Node<K, V> node = _map.get(key);
+
+			if (node != null && !node.isExpired(now))
+				return node._value;
+			else if (node != null)
+				removeLocked(segment, node, RemovalCause.EXPIRED);
+
+			if ((value = mappingFunction.apply(key)) != null)
+			{
+				long weight = weigh(key, value);
+
+				if (isTooHeavy(weight))
+					rejectLocked(value);
+				else
+					addLocked(segment, key, value, weight, _timeToLive, now);
+			}
+		}
+		finally
+		{
+			segment.unlock();
+		}
+
+		evictOverweight();
+
+		return value;
+	}
+
+	@Override
+	public V remove(Object key)
+	{
+		Node<K, V> node = _map.get(key);
+
+		if (node == null)
+			return null;
+
+		Segment<K, V> segment = segmentFor(node._key);
+
+		segment.lock();
+		try
+		{
+			if ((node=_map.get(key)) == null)
+				return null;
+
+			removeLocked(segment, node, RemovalCause.EXPLICIT);
+
+			return node.isExpired(System.nanoTime()) ? null : node._value;
+		}
+		finally
+		{
+			segment.unlock();
+		}
+	}
+
+	@Override
+	public boolean remove(Object key, Object value)
+	{
+		Node<K, V> node = _map.get(key);
+
+		if (node == null || value == null)
+			return false;
+
+		Segment<K, V> segment = segmentFor(node._key);
+
+		segment.lock();
+		try
+		{
+			if ((node=_map.get(key)) == null || node.isExpired(System.nanoTime()) || !value.equals(node._value))
+				return false;
+
+			removeLocked(segment, node, RemovalCause.EXPLICIT);
+
+			return true;
+		}
+		finally
+		{
+			segment.unlock();
+		}
+	}
+
+	@Override
+	public boolean replace(K key, V oldValue, V newValue)
+	{
+		if (oldValue == null || newValue == null)
+			throw new NullPointerException();
+
+		long weight = weigh(key, newValue);
+		Segment<K, V> segment = segmentFor(key);
+
+		segment.lock();
+		try
+		{
+			Node<K, V> node = _map.get(key);
+			long now = System.nanoTime();
+
+			if (node == null || node.isExpired(now) || !oldValue.equals(node._value))
+				return false;
+
+			if (isTooHeavy(weight))
+			{
+				removeLocked(segment, node, RemovalCause.EXPLICIT);
+				rejectLocked(newValue);
+
+				return true;
+			}
+
+			node._value = newValue;
+			node._touchedAt = now;
+			segment._accessOrder.moveToLast(node);
+			reweighLocked(node, weight);
+		}
+		finally
+		{
+			segment.unlock();
+		}
+
+		evictOverweight();
+
+		return true;
+	}
+
+	@Override
+	public V replace(K key, V value)
+	{
+		if (value == null)
+			throw new NullPointerException();
+
+		long weight = weigh(key, value);
+		Segment<K, V> segment = segmentFor(key);
+		V oldValue = null;
+
+		segment.lock();
+		try
+		{
+			Node<K, V> node = _map.get(key);
+			long now = System.nanoTime();
+
+			if (node == null || node.isExpired(now))
+				return null;
+
+			oldValue = node._value;
+
+			if (isTooHeavy(weight))
+			{
+				removeLocked(segment, node, RemovalCause.EXPLICIT);
+				rejectLocked(value);
+
+				return oldValue;
+			}
+
+			node._value = value;
+			node._touchedAt = now;
+			segment._accessOrder.moveToLast(node);
+			reweighLocked(node, weight);
+		}
+		finally
+		{
+			segment.unlock();
+		}
+
+		evictOverweight();
+
+		return oldValue;
+	}
+
+	@Override
+	public int size()
+	{
+		return _map.size();
+	}
+
+	@Override
+	public boolean isEmpty()
+	{
+		return _map.isEmpty();
+	}
+
+	@Override
+	public void clear()
+	{
+		for (Segment<K, V> segment : _segments)
+		{
+			segment.lock();
+			try
+			{
+				for (Node<K, V> node = segment._accessOrder.first(); node != null; node = node.next())
+				{
+					_map.remove(node._key, node);
+					_totalWeight.addAndGet(-node._weight);
+					cancelExpiry(node);
+				}
+
+				segment._accessOrder.clear();
+			}
+			finally
+			{
+				segment.unlock();
+			}
+		}
+	}
+
+	/**
+	 * Releases any timeouts registered with the shared scheduler. The map remains usable but
+	 * elements will from now on only be expired when accessed or via {@link #cleanUp()}.
+	 */
+	@Override
+	public void close()
+	{
+		_closed = true;
+
+		for (Segment<K, V> segment : _segments)
+		{
+			segment.lock();
+			try
+			{
+				for (Node<K, V> node = segment._accessOrder.first(); node != null; node = node.next())
+					cancelExpiry(node);
+			}
+			finally
+			{
+				segment.unlock();
+			}
+		}
+
+		if (_statistics != null)
+			_statistics.stopSampling();
+	}
+
+	/**
+	 * Removes all expired elements from the map, notifying the removal listener of each one.
+	 */
+	public void cleanUp()
+	{
+		for (Segment<K, V> segment : _segments)
+		{
+			segment.lock();
+			try
+			{
+				long now = System.nanoTime();
+				Node<K, V> node = segment._accessOrder.first();
+
+				while (node != null)
+				{
+					Node<K, V> next = node.next();
+
+					if (isStale(node, now))
+						removeLocked(segment, node, RemovalCause.EXPIRED);
+
+					node = next;
+				}
+			}
+			finally
+			{
+				segment.unlock();
+			}
+		}
+	}
+
+	@Override
+	public Set<Map.Entry<K, V>> entrySet()
+	{
+		if (_entrySet == null)
+			_entrySet = new EntrySet();
+
+		return _entrySet;
+	}
+
+	private V putImpl(K key, V value, long timeToLive, boolean onlyIfAbsent)
+	{
+		if (key == null || value == null)
+			throw new NullPointerException();
+
+		long weight = weigh(key, value);
+		Segment<K, V> segment = segmentFor(key);
+		V oldValue = null;
+
+		segment.lock();
+		try
+		{
+			long now = System.nanoTime();
+			Node<K, V> node = _map.get(key);
+
+			if (node != null && node.isExpired(now))
+			{
+				removeLocked(segment, node, RemovalCause.EXPIRED);
+				node = null;
+			}
+
+			if (isTooHeavy(weight) && (node == null || !onlyIfAbsent))
+			{
+				if (node != null)
+					removeLocked(segment, node, RemovalCause.EXPLICIT);
+
+				rejectLocked(value);
+
+				return node != null ? node._value : null;
+			}
+
+			if (node == null)
+			{
+				addLocked(segment, key, value, weight, timeToLive, now);
+			}
+			else
+			{
+				oldValue = node._value;
+
+				if (!onlyIfAbsent)
+				{
+					node._value = value;
+					node._createdAt = now;
+					node._expiresAt = timeToLive > 0 ? now + timeToLive : 0;
+					scheduleExpiry(node);
+
+					if (_statistics != null)
+						_statistics.recordPut();
+				}
+
+				node._touchedAt = now;
+				segment._accessOrder.moveToLast(node);
+
+				if (!onlyIfAbsent)
+					reweighLocked(node, weight);
+			}
+		}
+		finally
+		{
+			segment.unlock();
+		}
+
+		// other segments are only locked once this one has been released, so that writers never wait for each other
+
+		evictOverweight();
+
+		return oldValue;
+	}
+
+	private void addLocked(Segment<K, V> segment, K key, V value, long weight, long timeToLive, long now)
+	{
+		Node<K, V> node = new Node<K, V>(key, value, now);
+		node._expiresAt = timeToLive > 0 ? now + timeToLive : 0;
+		node._weight = weight;
+		_totalWeight.addAndGet(weight);
+
+		if (_statistics != null)
+			_statistics.recordPut();
+
+		_map.put(key, node);
+		segment._accessOrder.addLast(node);
+		scheduleExpiry(node);
+
+		while (segment._maxEntries > 0 && segment._accessOrder.size() > segment._maxEntries)
+			removeLocked(segment, segment._accessOrder.first(), RemovalCause.SIZE);
+	}
+
+	private void reweighLocked(Node<K, V> node, long weight)
+	{
+		_totalWeight.addAndGet(weight - node._weight);
+		node._weight = weight;
+	}
+
+	private boolean isTooHeavy(long weight)
+	{
+		long maxWeight = _maxWeight;
+
+		return _weigher != null && maxWeight > 0 && weight > maxWeight;
+	}
+
+	/**
+	 * Drops an element too heavy to ever fit, rather than evicting everything else only to then evict it as well
+	 */
+	private void rejectLocked(V value)
+	{
+		CacheStatistics statistics = _statistics;
+
+		if (statistics != null)
+		{
+			statistics.recordPut();
+			statistics.recordRemoval(RemovalCause.WEIGHT, 0);
+		}
+
+		if (_removeListener != null)
+			_removeListener.onObjectRemoval(value);
+	}
+
+	/**
+	 * Evicts the least recently accessed elements of the whole map until its total weight is within the maximum.
+	 * Must not be called whilst holding the lock of a segment, as it locks each segment in turn.
+	 */
+	private void evictOverweight()
+	{
+		while (_maxWeight > 0 && _totalWeight.get() > _maxWeight)
+		{
+			// each segment is in access order, so the eldest of the map is at the front of one of them
+
+			Segment<K, V> eldest = null;
+			long eldestTouchedAt = 0;
+
+			for (Segment<K, V> segment : _segments)
+			{
+				segment.lock();
+				try
+				{
+					Node<K, V> first = segment._accessOrder.first();
+
+					if (first != null && (eldest == null || first._touchedAt - eldestTouchedAt < 0))
+					{
+						eldest = segment;
+						eldestTouchedAt = first._touchedAt;
+					}
+				}
+				finally
+				{
+					segment.unlock();
+				}
+			}
+
+			if (eldest == null)
+				return;
+
+			eldest.lock();
+			try
+			{
+				// may have been changed by another thread in the meantime, in which case we'll just evict its new eldest
+
+				if (eldest._accessOrder.first() != null && _totalWeight.get() > _maxWeight)
+					removeLocked(eldest, eldest._accessOrder.first(), RemovalCause.WEIGHT);
+			}
+			finally
+			{
+				eldest.unlock();
+			}
+		}
+	}
+
+	private long weigh(K key, V value)
+	{
+		Weigher<? super K, ? super V> weigher = _weigher;
+
+		return weigher != null ? weigher.weigh(key, value) : 0;
+	}
+
+	private void removeLocked(Segment<K, V> segment, Node<K, V> node, RemovalCause cause)
+	{
+		CacheStatistics statistics = _statistics;
+
+		_map.remove(node._key, node);
+		segment._accessOrder.remove(node);
+		_totalWeight.addAndGet(-node._weight);
+		cancelExpiry(node);
+
+		if (statistics != null)
+			statistics.recordRemoval(cause, System.nanoTime() - node._createdAt);
+
+		if (cause != RemovalCause.EXPLICIT && _removeListener != null)
+			_removeListener.onObjectRemoval(node._value);
+	}
+
+	private void touch(Node<K, V> node, long now)
+	{
+		Segment<K, V> segment = segmentFor(node._key);
+
+		// don't hold up readers, if someone else is updating the segment the element keeps its position
+
+		if (segment.tryLock())
+		{
+			try
+			{
+				if (_map.get(node._key) == node)
+				{
+					node._touchedAt = now;
+					segment._accessOrder.moveToLast(node);
+				}
+			}
+			finally
+			{
+				segment.unlock();
+			}
+		}
+	}
+
+	private void expire(Node<K, V> node)
+	{
+		Segment<K, V> segment = segmentFor(node._key);
+
+		segment.lock();
+		try
+		{
+			if (_map.get(node._key) == node && isStale(node, System.nanoTime()))
+				removeLocked(segment, node, RemovalCause.EXPIRED);
+		}
+		finally
+		{
+			segment.unlock();
+		}
+	}
+
+	/**
+	 * Returns true if the element has expired and can no longer be served even as a stale value
+	 */
+	private boolean isStale(Node<K, V> node, long now)
+	{
+		return node._expiresAt != 0 && now - (node._expiresAt + _staleWindow) >= 0;
+	}
+
+	private void scheduleExpiry(Node<K, V> node)
+	{
+		cancelExpiry(node);
+
+		if (node._expiresAt != 0 && !_closed)
+			node._timeout = scheduler().schedule(_expirer, node, node._expiresAt + _staleWindow);
+	}
+
+	/**
+	 * Returns the scheduler to register with, replacing one that has been shut down by the new
+	 * default. Timeouts pending with the old one are lost, those elements are only expired when
+	 * accessed or via {@link #cleanUp()}.
+	 */
+	private ExpiryScheduler scheduler()
+	{
+		ExpiryScheduler scheduler = _scheduler;
+
+		if (!scheduler.isClosed())
+			return scheduler;
+
+		synchronized (this)
+		{
+			if (_scheduler.isClosed())
+			{
+				_scheduler = ExpiryScheduler.getDefault();
+
+				if (_statistics != null && !_closed)
+					_statistics.startSampling(this, _scheduler, CacheStatistics.DEFAULT_SAMPLE_INTERVAL_MS, TimeUnit.MILLISECONDS);
+			}
+
+			return _scheduler;
+		}
+	}
+
+	private void cancelExpiry(Node<K, V> node)
+	{
+		if (node._timeout != null)
+		{
+			node._timeout.cancel();
+			node._timeout = null;
+		}
+	}
+
+	private Segment<K, V> segmentFor(Object key)
+	{
+		int h = key.hashCode();
+		h ^= (h >>> 16);
+
+		return _segments[h & _segmentMask];
+	}
+
+	/**
+	 * Receives expiry notifications from the scheduler, only holds a weak reference to the map
+	 * so that pending timeouts do not keep a map alive that has not been closed explicitly.
+	 * The size sampling of the statistics stops itself in the same way.
+	 */
+	private static class Expirer<K, V> implements ExpiryScheduler.Expirable
+	{
+		private WeakReference<ConcurrentTimeToLiveMap<K, V>> _map;
+
+		public Expirer(ConcurrentTimeToLiveMap<K, V> map)
+		{
+			_map = new WeakReference<ConcurrentTimeToLiveMap<K, V>>(map);
+		}
+
+		@SuppressWarnings("unchecked")
+		@Override
+		public void expire(Object handle)
+		{
+			ConcurrentTimeToLiveMap<K, V> map = _map.get();
+
+			if (map != null)
+				map.expire((Node<K, V>) handle);
+		}
+	}
+
+	/**
+	 * Gives the load coordinator access to the elements of the map
+	 */
+	private class Loadable implements LoadCoordinator.Loadable<K, V>
+	{
+		@Override
+		public Node<K, V> lookup(K key, long now)
+		{
+			Node<K, V> node = _map.get(key);
+
+			if (node == null)
+				return null;
+
+			if (!node.isExpired(now))
+			{
+				touch(node, now);
+			}
+			else if (isStale(node, now))
+			{
+				expire(node);
+				node = null;
+			}
+
+			return node;
+		}
+
+		@Override
+		public void store(K key, V value)
+		{
+			put(key, value);
+		}
+
+		@Override
+		public CacheStatistics statistics()
+		{
+			return _statistics;
+		}
+	}
+
+	@SuppressWarnings("serial")
+	private static class Segment<K, V> extends ReentrantLock
+	{
+		private AccessOrderQueue<K, V>	_accessOrder;
+		private int						_maxEntries;
+
+		Segment(int maxEntries)
+		{
+			_accessOrder = new AccessOrderQueue<K, V>();
+			_maxEntries = maxEntries;
+		}
+	}
+
+	private class EntrySet extends AbstractSet<Map.Entry<K, V>>
+	{
+		@Override
+		public Iterator<Map.Entry<K, V>> iterator()
+		{
+			return new EntryIterator();
+		}
+
+		@Override
+		public int size()
+		{
+			return ConcurrentTimeToLiveMap.this.size();
+		}
+
+		@Override
+		public void clear()
+		{
+			ConcurrentTimeToLiveMap.this.clear();
+		}
+	}
+
+	/**
+	 * Weakly consistent iterator over the live elements of the map, expired elements are skipped.
+	 */
+	private class EntryIterator implements Iterator<Map.Entry<K, V>>
+	{
+		private Iterator<Node<K, V>>	_nodes;
+		private Node<K, V>				_next;
+		private Node<K, V>				_last;
+
+		EntryIterator()
+		{
+			_nodes = _map.values().iterator();
+			advance();
+		}
+
+		@Override
+		public boolean hasNext()
+		{
+			return _next != null;
+		}
+
+		@Override
+		public Map.Entry<K, V> next()
+		{
+			if (_next == null)
+				throw new NoSuchElementException();
+
+			_last = _next;
+			advance();
+
+			return new Entry(_last._key, _last._value);
+		}
+
+		@Override
+		public void remove()
+		{
+			if (_last == null)
+				throw new IllegalStateException();
+
+			ConcurrentTimeToLiveMap.this.remove(_last._key, _last._value);
+			_last = null;
+		}
+
+		private void advance()
+		{
+			long now = System.nanoTime();
+
+			_next = null;
+
+			while (_next == null && _nodes.hasNext())
+			{
+				Node<K, V> node = _nodes.next();
+
+				if (!node.isExpired(now))
+					_next = node;
+			}
+		}
+	}
+
+	@SuppressWarnings("serial")
+	private class Entry extends AbstractMap.SimpleEntry<K, V>
+	{
+		Entry(K key, V value)
+		{
+			super(key, value);
+		}
+
+		@Override
+		public V setValue(V value)
+		{
+			V oldValue = super.setValue(value);
+			ConcurrentTimeToLiveMap.this.put(getKey(), value);
+
+			return oldValue;
+		}
+	}
+}
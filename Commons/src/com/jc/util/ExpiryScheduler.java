@@ -0,0 +1,363 @@
+package com.jc.util;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Single scheduler shared by all time to live caches, replacing the thread that each cache
+ * used to start for itself.
+ *
+ * Per element expiry is managed via a hashed timer wheel, scheduling or cancelling a timeout
+ * is a constant time operation irrespective of how many are pending and expiry is accurate to
+ * within one tick. Timeouts further away than one revolution of the wheel simply wait the
+ * required number of rounds in their bucket.
+ *
+ * Periodic house keeping tasks can also be registered, both the wheel and those tasks run
+ * on one daemon thread, regardless of the number of caches in the JVM.
+ *
+ * @author John Carter
+ * @version 1.0
+ */
+public class ExpiryScheduler implements AutoCloseable
+{
+	public static final long 					DEFAULT_TICK_MS = 100;
+	public static final int 					DEFAULT_WHEEL_SIZE = 512;
+
+	private static ExpiryScheduler 				_default;
+
+	private ScheduledThreadPoolExecutor			_executor;
+
+	private Bucket[]							_wheel;
+	private int									_mask;
+	private long								_tickDuration;
+	private long								_startTime;
+	private long								_currentTick;
+
+	private Queue<Timeout>						_pending;
+	private Queue<Timeout>						_cancelled;
+
+	/**
+	 * Returns the scheduler shared by all caches, created on first use
+	 *
+	 * @return shared scheduler
+	 */
+	public static synchronized ExpiryScheduler getDefault()
+	{
+		if (_default == null)
+			_default = new ExpiryScheduler(DEFAULT_TICK_MS, TimeUnit.MILLISECONDS, DEFAULT_WHEEL_SIZE);
+
+		return _default;
+	}
+
+	/**
+	 * Stops the shared scheduler, for instance when the package that loaded this class is being
+	 * unloaded. Pending timeouts are discarded, a new scheduler will be created if required.
+	 */
+	public static synchronized void shutdownDefault()
+	{
+		if (_default != null)
+		{
+			_default.close();
+			_default = null;
+		}
+	}
+
+	/**
+	 * Creates a new private scheduler, normally you should use {@link #getDefault()}
+	 *
+	 * @param tickDuration accuracy of expiry
+	 * @param unit unit of tick duration
+	 * @param wheelSize number of buckets in the wheel, rounded up to a power of two
+	 */
+	public ExpiryScheduler(long tickDuration, TimeUnit unit, int wheelSize)
+	{
+		int size = 1;
+
+		while (size < wheelSize)
+			size <<= 1;
+
+		_wheel = new Bucket[size];
+		_mask = size - 1;
+
+		for (int i = 0; i < size; i++)
+			_wheel[i] = new Bucket();
+
+		_tickDuration = unit.toNanos(tickDuration);
+		_startTime = System.nanoTime();
+		_currentTick = 0;
+
+		_pending = new ConcurrentLinkedQueue<Timeout>();
+		_cancelled = new ConcurrentLinkedQueue<Timeout>();
+
+		_executor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+
+			@Override
+			public Thread newThread(Runnable r)
+			{
+				Thread t = new Thread(r, "com.jc.util.ExpiryScheduler");
+				t.setDaemon(true);
+
+				return t;
+			}
+		});
+
+		_executor.setRemoveOnCancelPolicy(true);
+		_executor.scheduleAtFixedRate(new Runnable() {
+
+			@Override
+			public void run()
+			{
+				tick();
+			}
+		}, tickDuration, tickDuration, unit);
+	}
+
+	/**
+	 * Schedules the given target to be told when the deadline has been reached
+	 *
+	 * @param target object to notify
+	 * @param handle passed back to target on expiry, identifies what has expired
+	 * @param deadline in System.nanoTime() terms
+	 * @return timeout that can be used to cancel the notification
+	 */
+	public Timeout schedule(Expirable target, Object handle, long deadline)
+	{
+		Timeout timeout = new Timeout(target, handle, deadline);
+		_pending.add(timeout);
+
+		return timeout;
+	}
+
+	/**
+	 * Runs the given task periodically on the scheduler thread, the task should be brief as it
+	 * will delay the expiry of other timeouts. Cancel the returned future to stop it.
+	 *
+	 * @param task task to run
+	 * @param interval time between runs
+	 * @param unit unit of interval
+	 * @return future to cancel task
+	 */
+	public ScheduledFuture<?> scheduleAtFixedRate(final Runnable task, long interval, TimeUnit unit)
+	{
+		return _executor.scheduleAtFixedRate(new Runnable() {
+
+			@Override
+			public void run()
+			{
+				// an exception would silently stop all future runs
+
+				try
+				{
+					task.run();
+				}
+				catch (Throwable e)
+				{
+					Logger.getLogger(ExpiryScheduler.class).error("Scheduled task failed: " + e.getMessage(), e);
+				}
+			}
+		}, interval, interval, unit);
+	}
+
+	/**
+	 * Stops the scheduler thread, pending timeouts will never fire
+	 */
+	@Override
+	public void close()
+	{
+		_executor.shutdownNow();
+	}
+
+	/**
+	 * Returns true once the scheduler has been stopped, nothing scheduled with it will run
+	 */
+	public boolean isClosed()
+	{
+		return _executor.isShutdown();
+	}
+
+	private void tick()
+	{
+		long now = System.nanoTime();
+		long lastTick = (now - _startTime) / _tickDuration;
+
+		removeCancelled();
+
+		while (_currentTick <= lastTick)
+		{
+			addPending();
+			_wheel[(int) (_currentTick & _mask)].expire(now);
+			_currentTick += 1;
+		}
+	}
+
+	private void addPending()
+	{
+		Timeout timeout = null;
+
+		while ((timeout=_pending.poll()) != null)
+		{
+			if (!timeout._state.compareAndSet(Timeout.PENDING, Timeout.SCHEDULED))
+				continue;	// cancelled before it was added to the wheel
+
+			long ticks = Math.max((timeout._deadline - _startTime + _tickDuration - 1) / _tickDuration, _currentTick);
+
+			timeout._rounds = (ticks - _currentTick) / _wheel.length;
+
+			_wheel[(int) (ticks & _mask)].add(timeout);
+		}
+	}
+
+	private void removeCancelled()
+	{
+		Timeout timeout = null;
+
+		while ((timeout=_cancelled.poll()) != null)
+		{
+			if (timeout._bucket != null)
+				timeout._bucket.remove(timeout);
+		}
+	}
+
+	/**
+	 * Implemented by anything that wants to be told when one of its timeouts has been reached
+	 */
+	public interface Expirable
+	{
+		/**
+		 * Called from the scheduler thread when a timeout has been reached
+		 *
+		 * @param handle the handle given when the timeout was scheduled
+		 */
+		public void expire(Object handle);
+	}
+
+	/**
+	 * Pending notification, state and links are only updated from the scheduler thread with
+	 * the exception of cancellation.
+	 */
+	public class Timeout
+	{
+		private static final int 	PENDING = 0;
+		private static final int 	SCHEDULED = 1;
+		private static final int 	CANCELLED = 2;
+
+		private Expirable			_target;
+		private Object				_handle;
+		private long				_deadline;
+		private long				_rounds;
+
+		private AtomicInteger		_state;
+
+		private Bucket				_bucket;
+		private Timeout				_prev;
+		private Timeout				_next;
+
+		private Timeout(Expirable target, Object handle, long deadline)
+		{
+			_target = target;
+			_handle = handle;
+			_deadline = deadline;
+			_state = new AtomicInteger(PENDING);
+		}
+
+		/**
+		 * Cancels the notification, has no effect if it has already fired
+		 */
+		public void cancel()
+		{
+			int state = _state.get();
+
+			while (state != CANCELLED && !_state.compareAndSet(state, CANCELLED))
+				state = _state.get();
+
+			// once in the wheel only the scheduler thread can unlink it
+
+			if (state == SCHEDULED)
+				_cancelled.add(this);
+		}
+
+		public boolean isCancelled()
+		{
+			return _state.get() == CANCELLED;
+		}
+	}
+
+	private class Bucket
+	{
+		private Timeout _head;
+		private Timeout _tail;
+
+		void add(Timeout timeout)
+		{
+			timeout._bucket = this;
+			timeout._prev = _tail;
+			timeout._next = null;
+
+			if (_tail != null)
+				_tail._next = timeout;
+			else
+				_head = timeout;
+
+			_tail = timeout;
+		}
+
+		void remove(Timeout timeout)
+		{
+			if (timeout._prev != null)
+				timeout._prev._next = timeout._next;
+			else
+				_head = timeout._next;
+
+			if (timeout._next != null)
+				timeout._next._prev = timeout._prev;
+			else
+				_tail = timeout._prev;
+
+			timeout._bucket = null;
+			timeout._prev = null;
+			timeout._next = null;
+		}
+
+		void expire(long now)
+		{
+			Timeout timeout = _head;
+
+			while (timeout != null)
+			{
+				Timeout next = timeout._next;
+
+				if (timeout._state.get() == Timeout.CANCELLED)
+				{
+					remove(timeout);
+				}
+				else if (timeout._rounds > 0)
+				{
+					timeout._rounds -= 1;
+				}
+				else if (timeout._deadline - now <= 0)
+				{
+					remove(timeout);
+
+					try
+					{
+						if (timeout._state.compareAndSet(Timeout.SCHEDULED, Timeout.CANCELLED))
+							timeout._target.expire(timeout._handle);
+					}
+					catch (Throwable e)
+					{
+						Logger.getLogger(ExpiryScheduler.class).error("Expiry notification failed: " + e.getMessage(), e);
+					}
+				}
+
+				timeout = next;
+			}
+		}
+	}
+}
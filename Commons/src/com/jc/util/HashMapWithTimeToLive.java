@@ -1,371 +1,1447 @@
 package com.jc.util;
 
+import java.lang.ref.WeakReference;
 import java.util.*;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+
+import com.jc.util.AccessOrderQueue.Node;
+import com.jc.util.CacheLoader.LoadException;
+import com.jc.util.CacheStatistics.RemovalCause;
 
 /**
- * Subclass of the HashMap interface to limit the size of the map and implement 
+ * Subclass of the HashMap interface to limit the size of the map and implement
  * a cache to determine how the size should be constrained. The clean up algorithm is
  * based on LAFO (Last Accessed, First Out).
- * 
- * Associated a time-stamp with each element that is then used by a cleanup
- * thread to determine what elements to remove. The cleanup thread is triggered
- * when the size of map reaches a certain threshold (LOAD_FACTOR).
- * 
- * The thread them removes those elements that have oldest time-stamp 
- * (i.e. those that have not been accessed for the longest time). The number of
- * elements to remove is determined by the clean thresh-hold.
+ *
+ * Each element is linked into an access ordered queue together with a nano time-stamp,
+ * accessing an element simply moves it to the back of the queue, so that the
+ * element that has not been accessed for the longest time is always at the front.
+ * Adding an element to a full map evicts the element at the front, making get, put
+ * and evict constant time operations regardless of the size of the map.
+ *
+ * Alternatively the map can be bound by the total weight of its elements via
+ * {@link #setMaximumWeight(long, Weigher)}, e.g. an estimate of their size in bytes,
+ * for when elements vary too much in size for a simple count to be meaningful.
+ *
+ * Evicted elements can be moved to a second tier outside of the java heap instead of
+ * being dropped, see {@link #setOverflowStore(OffHeapOverflowStore)}, from where they are
+ * promoted back into the map when next requested. They are serialized into the store once
+ * the map is no longer locked, by the thread that caused the eviction.
+ *
+ * Elements can also be given a time to live, either per element or via a default
+ * for the map. Expired elements are never returned and are removed by the shared
+ * {@link ExpiryScheduler} as soon as they expire.
+ *
+ * Missing elements can be loaded on demand via {@link #get(Object, CacheLoader)}, in
+ * which case concurrent requests for the same element share a single load. Elements can
+ * also be refreshed in the background before they expire and expired elements can be
+ * served for a limited time whilst their replacement is being loaded.
+ *
+ * A periodic cleanup task is also registered with the scheduler, which is triggered
+ * when the size of map reaches a certain threshold (LOAD_FACTOR) and removes those
+ * elements that have not been accessed for the longest time. The number of elements
+ * to remove is determined by the clean thresh-hold.
+ *
+ * The scheduler only holds weak references to the map, but pending timeouts keep their
+ * elements reachable until they expire, call {@link #close()} once the map is no longer
+ * required so that they are released immediately. If the shared scheduler is shut down
+ * via {@link ExpiryScheduler#shutdownDefault()} the map moves to its replacement when next
+ * updated.
  *
  * @author John Carter
- * @version 2.0
+ * @version 4.0
  */
-public class HashMapWithTimeToLive<S, T> extends HashMap<S, T>
+public class HashMapWithTimeToLive<S, T> extends HashMap<S, T> implements AutoCloseable
 {
 	private static final long serialVersionUID = -8089432729776223799L;
 
 	private static final int DEFAULT_MAX_ENTRIES = 1000;
-    
+
     private static final float CLEAN_THRESHHOLD = .8f;
-    
+
     private static final float LOAD_FACTOR = .75f;
-    
+
     private static int CLEAN_THREAD_INTERVAL = 1800000;
-    
-    private CleanupThread _cleanupThread = null;
-    
+
     private static int _cleanupThreadInterval = 0;
-    
+
     private int _maxEntries = -1;
-    
-    private Map<Object, Date> _touchDates = null;
-    
+
+    private float _cleanThreshhold = CLEAN_THRESHHOLD;
+
+    private long _maxWeight = -1;
+
+    private long _totalWeight = 0;
+
+    private volatile Weigher<? super S, ? super T> _weigher = null;
+
+    private long _timeToLive = 0;
+
+    private long _refreshAfter = 0;
+
+    private long _staleWindow = 0;
+
+    private Map<Object, Node<S, T>> _nodes = null;
+
+    private AccessOrderQueue<S, T> _accessOrder = null;
+
     private ObjectRemovedListener<T>	_removeListener;
-    
+
+    private ExpiryScheduler _scheduler = null;
+
+    private CleanupTask _cleanupTask = null;
+
+    private Expirer<S, T> _expirer = null;
+
+    private boolean _closed = false;
+
+    private CacheStatistics _statistics = null;
+
+    private LoadCoordinator<S, T> _loadCoordinator = null;
+
+    private volatile OffHeapOverflowStore<S, T> _overflow = null;
+
+    private Map<Object, Node<S, T>> _spilling = new LinkedHashMap<Object, Node<S, T>>();
+
+    private final Object _spillLock = new Object();
+
     public HashMapWithTimeToLive()
     {
         this(DEFAULT_MAX_ENTRIES, CLEAN_THRESHHOLD);
     }
-    
+
     public HashMapWithTimeToLive(int maxEntries, float cleanFactorThreshHold)
     {
-        super(maxEntries, LOAD_FACTOR);
-        
+        this(maxEntries, cleanFactorThreshHold, 0, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Creates a cache that is bound both by size and age
+     *
+     * @param maxEntries maximum number of elements to hold, -1 for no limit
+     * @param cleanFactorThreshHold percentage of max entries to retain when cleaning
+     * @param timeToLive default time to live of an element after it was added, 0 to never expire
+     * @param unit unit of the time to live
+     */
+    public HashMapWithTimeToLive(int maxEntries, float cleanFactorThreshHold, long timeToLive, TimeUnit unit)
+    {
+        super(maxEntries > 0 ? maxEntries : DEFAULT_MAX_ENTRIES, LOAD_FACTOR);
+
+        _nodes = new HashMap<Object, Node<S, T>>(maxEntries > 0 ? maxEntries : DEFAULT_MAX_ENTRIES, LOAD_FACTOR);
+        _accessOrder = new AccessOrderQueue<S, T>();
+        _scheduler = ExpiryScheduler.getDefault();
+        _expirer = new Expirer<S, T>(this);
+
+        setTimeToLive(timeToLive, unit);
         resize(maxEntries, cleanFactorThreshHold);
     }
-    
+
     /**
      * Registers the given listener which is called when objects are flushed
      * from the cache.
-     * 
+     *
      * @param removalListener listener to be called when objects are autumatically removed
      */
     public void setRemovalListener(ObjectRemovedListener<T>	removalListener)
     {
         _removeListener = removalListener;
     }
-    
+
     /**
      * Resizes the cache to determine how many elements to hold in memory
-     * 
+     *
      * @param maxEntries
      * @param cleanFactorThreshHold
      */
     protected void resize(int maxEntries, float cleanFactorThreshHold)
     {
-        _maxEntries = maxEntries;
-        _touchDates = new HashMap<Object, Date>(maxEntries, LOAD_FACTOR);
-        
-        if (_cleanupThread != null)
-            _cleanupThread.requestStop();
-        
-        startCleanupThread();
-        _cleanupThread.setCleanThreshold(cleanFactorThreshHold);
+        synchronized (this)
+        {
+            _maxEntries = maxEntries;
+            _cleanThreshhold = cleanFactorThreshHold;
+
+            while (_maxEntries > 0 && _nodes.size() > _maxEntries)
+                evictEldest(RemovalCause.SIZE);
+
+            if (_cleanupTask == null && !_closed)
+                startCleanupTask();
+        }
+
+        spill();
     }
-    
+
     public int getMaxCacheSize()
     {
         return _maxEntries;
     }
-    
-    @Override
-    public T put(S key, T object)
-    {
-        if (_maxEntries > 0 && _touchDates.size() >= _maxEntries)
-            removeOldestRecords();
-        
-        touchTimerForKey(key);
-        
-        return super.put(key, object);
-    }
-    
-    @Override
-    public synchronized void putAll(Map<? extends S,? extends T> t)
-    {
-        for (Iterator<? extends S> it = t.keySet().iterator(); it.hasNext();)
-            put(it.next(), t.get(it.next()));
-    }
-    
-    @Override
-    public T get(Object key)
-    {
-        touchTimerForKey(key);
-        return super.get(key);
-    }
-    
-    @Override
-    public T remove(Object obj)
-    {
-        synchronized (_touchDates)
-        {
-            _touchDates.remove(obj);
-            return super.remove(obj);
-        }
-    }
-    
-    @Override
-    public void clear()
+
+    /**
+     * Bounds the cache by the total weight of its elements as calculated by the given weigher,
+     * the least recently accessed elements are evicted whenever the total exceeds the maximum.
+     * Existing elements are weighed immediately. An element that alone exceeds the maximum is
+     * never cached, adding one removes any existing element with the same key and passes the
+     * new element straight to the removal listener, without evicting anything else. Can be
+     * combined with a maximum number of entries.
+     *
+     * @param maxWeight maximum total weight, -1 for no limit
+     * @param weigher calculates the weight of each element
+     */
+    public void setMaximumWeight(long maxWeight, Weigher<? super S, ? super T> weigher)
     {
-        synchronized (_touchDates)
+        synchronized (this)
         {
-            _touchDates.clear();
-            super.clear();
+            _maxWeight = maxWeight;
+            _weigher = maxWeight > 0 ? weigher : null;
+            _totalWeight = 0;
+
+            Node<S, T> node = _accessOrder.first();
+
+            while (node != null)
+            {
+                Node<S, T> next = node.next();
+
+                node._weight = _weigher != null ? _weigher.weigh(node._key, super.get(node._key)) : 0;
+                _totalWeight += node._weight;
+
+                if (_maxWeight > 0 && node._weight > _maxWeight)
+                    removeNode(node, RemovalCause.WEIGHT);
+
+                node = next;
+            }
+
+            evictOverweight(_maxWeight, RemovalCause.WEIGHT);
         }
+
+        spill();
     }
-    
-    protected void finalize()
+
+    public long getMaximumWeight()
     {
-        if (_cleanupThread != null)
-            stopCleanupThread();
+        return _maxWeight;
     }
-    
-    @Override
-    public String toString()
+
+    /**
+     * Returns the total weight of all elements, always 0 unless a maximum weight has been set
+     *
+     * @return total weight of elements
+     */
+    public synchronized long getWeightedSize()
     {
-        String outString = null;
-        
-        synchronized (_touchDates)
-        {
-            for (Iterator<Object> it = _touchDates.keySet().iterator(); it.hasNext();)
-            {
-                String key = (String) it.next();
-                if (outString != null)
-                    outString = outString + ";" + key + "=" + _touchDates.get(key);
-                else
-                    outString = key + "=" + _touchDates.get(key);
-            }
-        }
-        
-        return outString;
+        return _totalWeight;
     }
-    
-    @SuppressWarnings("unchecked")
-	@Override
-    public Collection<T> values()
+
+    /**
+     * Starts recording hits, misses, evictions and latencies for this cache, also samples
+     * the size of the cache every minute. Has no effect if already enabled.
+     *
+     * @return the statistics recorder
+     */
+    public synchronized CacheStatistics enableStatistics()
     {
-        if (_touchDates != null && _touchDates.size() > 0)
-        {
-            List<T> outArray = new ArrayList<T>(_touchDates.size());
-            List sortedKeyList = getTouchDateKeysSortedByTouchDate();
-            T obj = null;
-            
-            for (Iterator<String> it = sortedKeyList.iterator(); it.hasNext();)
-            {
-                if ((obj = get(it.next())) != null)
-                    outArray.add(obj);
-            }
-            
-            return outArray;
-        }
-        else
+        if (_statistics == null)
         {
-            return new ArrayList<T>();
+            _statistics = new CacheStatistics();
+            _statistics.startSampling(this, scheduler(), CacheStatistics.DEFAULT_SAMPLE_INTERVAL_MS, TimeUnit.MILLISECONDS);
         }
+
+        return _statistics;
     }
-    
+
     /**
-     * Returns the key of the last object added to the map
-     * 
-     * @return
+     * Returns the statistics recorded since {@link #enableStatistics()} was called
+     *
+     * @return statistics or null if not enabled
      */
-    public Object getLastInKey()
+    public synchronized CacheStatistics.Snapshot getStatistics()
     {
-        List<Object> sortedKeys = getTouchDateKeysSortedByTouchDate();
-        
-        if (sortedKeys != null && sortedKeys.size() > 0)
-            return sortedKeys.get(0);
-        else
-            return null;
+        return _statistics != null ? _statistics.snapshot(_nodes.size(), _maxEntries) : null;
     }
-    
+
     /**
-     * Returns the key of the oldest object added to the map
-     * and the first candidate to be removed in the case of cleanpu.
-     * 
-     * @return
+     * Elements evicted due to size or weight are serialized into the given store rather than
+     * being dropped and are promoted back into the map when next requested, with their original
+     * time to live. The removal listener is only called for elements that could not be stored.
+     * Expired and explicitly removed elements are never moved to the store. The store is closed
+     * together with this map and no longer referenced by it from then on.
+     *
+     * @param store overflow store or null to disable
      */
-    public Object getFirstInKey()
+    public synchronized void setOverflowStore(OffHeapOverflowStore<S, T> store)
     {
-        List<Object> sortedKeys = getTouchDateKeysSortedByTouchDate();
-        
-        if (sortedKeys != null && sortedKeys.size() > 0)
-            return sortedKeys.get(sortedKeys.size()-1);
-        else
-            return null;
+        _overflow = store;
     }
-    
-    private void touchTimerForKey(Object key)
+
+    public OffHeapOverflowStore<S, T> getOverflowStore()
     {
-        synchronized (_touchDates)
-        {
-            _touchDates.put(key, new Date());
-        }
+        return _overflow;
     }
-    
-    private synchronized void removeOldestRecords()
+
+    /**
+     * Sets the default time to live for elements added after this call
+     *
+     * @param timeToLive time to live after element was added, 0 to never expire
+     * @param unit unit of the time to live
+     */
+    public void setTimeToLive(long timeToLive, TimeUnit unit)
     {
-        _cleanupThread.cleanoutOldestRecords();
+        _timeToLive = timeToLive > 0 ? unit.toNanos(timeToLive) : 0;
     }
-    
-    public static void setCleanupThreadInterval(int interval)
+
+    public long getTimeToLive(TimeUnit unit)
     {
-        if (interval > 0)
-            _cleanupThreadInterval = interval;
+        return unit.convert(_timeToLive, TimeUnit.NANOSECONDS);
     }
-    
-    public static int getCleanupThreadInterval()
+
+    /**
+     * Elements older than this are reloaded in the background when next requested via
+     * {@link #get(Object, CacheLoader)}, whilst the current value continues to be returned.
+     * Should be less than the time to live to avoid callers ever having to wait for a load.
+     *
+     * @param refreshAfter age after which an element is refreshed, 0 to never refresh
+     * @param unit unit of refreshAfter
+     */
+    public void setRefreshAfter(long refreshAfter, TimeUnit unit)
     {
-        return _cleanupThreadInterval;
+        _refreshAfter = refreshAfter > 0 ? unit.toNanos(refreshAfter) : 0;
     }
-    
-    public void setCleanThreshold(float cleanThreshold)
+
+    /**
+     * Expired elements are retained for the given window, during which {@link #get(Object, CacheLoader)}
+     * returns the expired value and reloads it in the background. Plain get() never returns
+     * expired elements. Only affects elements added after this call.
+     *
+     * @param staleWindow time after expiry that a value may still be served, 0 to disable
+     * @param unit unit of staleWindow
+     */
+    public void setStaleWindow(long staleWindow, TimeUnit unit)
     {
-        _cleanupThread.setCleanThreshold(cleanThreshold);
+        _staleWindow = staleWindow > 0 ? unit.toNanos(staleWindow) : 0;
     }
-    
-    protected void removeFromCacheOnly(Object obj)
+
+    /**
+     * Sets the executor used to refresh elements in the background, by default a shared pool
+     * of daemon threads is used. Provide your own if the loader requires a specific context,
+     * for instance to invoke services.
+     *
+     * @param executor executor to run background loads
+     */
+    public synchronized void setRefreshExecutor(Executor executor)
     {
-        T oldObj = super.remove(obj);
-        _touchDates.remove(obj);
-        
-        if (_removeListener != null && oldObj != null)
-        	_removeListener.onObjectRemoval(oldObj);
+        getLoadCoordinator().setExecutor(executor);
     }
-    
-    private void startCleanupThread()
+
+    /**
+     * Returns the element for the given key, calling the loader if it is missing or expired.
+     * If several threads request the same missing element at the same time only one calls
+     * the loader and the others wait for its result.
+     *
+     * @param key key of element
+     * @param loader loader to call if the element is missing
+     * @return cached or loaded element, null if the loader returned null
+     * @throws LoadException if the loader failed
+     */
+    public T get(S key, CacheLoader<? super S, T> loader) throws LoadException
     {
-        _cleanupThread = new CleanupThread(CLEAN_THRESHHOLD);
-        _cleanupThread.start();
+        LoadCoordinator<S, T> coordinator = null;
+
+        synchronized (this)
+        {
+            coordinator = getLoadCoordinator();
+        }
+
+        return coordinator.get(key, loader, _refreshAfter);
     }
-    
-    private void stopCleanupThread()
+
+    @Override
+    public T put(S key, T object)
     {
-        _cleanupThread.requestStop();
+        return put(key, object, _timeToLive, TimeUnit.NANOSECONDS);
     }
-    
-    private List<Object> getTouchDateKeysSortedByTouchDate()
+
+    /**
+     * Adds the element to the cache with its own time to live, overriding the default of the map
+     *
+     * @param key key of element
+     * @param object element to cache
+     * @param timeToLive time to live after element was added, 0 to never expire
+     * @param unit unit of the time to live
+     * @return previous element with the same key or null
+     */
+    public T put(S key, T object, long timeToLive, TimeUnit unit)
     {
-        List<Map.Entry<Object,Date>> sortedList = null;
-        List<Object> sortedKeys = new ArrayList<Object>(_touchDates.size());
-        
-        synchronized (_touchDates)
+        // weigh outside of the lock, large documents can take a while
+
+        Weigher<? super S, ? super T> weigher = _weigher;
+        long weight = weigher != null ? weigher.weigh(key, object) : 0;
+        T oldObj = null;
+
+        synchronized (this)
         {
-            sortedList = new ArrayList<Map.Entry<Object,Date>>(_touchDates.entrySet());
-            Collections.sort(sortedList, new ComparatorBasedOnDateValue());
+            if (_weigher != null && _maxWeight > 0 && weight > _maxWeight)
+                return reject(key, object);
+
+            long now = System.nanoTime();
+            Node<S, T> node = _nodes.get(key);
+
+            if (node == null)
+            {
+                while (_maxEntries > 0 && _nodes.size() >= _maxEntries)
+                    evictEldest(RemovalCause.SIZE);
+
+                node = new Node<S, T>(key, null, now);
+                _nodes.put(key, node);
+                _accessOrder.addLast(node);
+
+                _spilling.remove(key);
+
+                if (_overflow != null)
+                    _overflow.discard(key);
+            }
+            else
+            {
+                node._createdAt = now;
+                node._touchedAt = now;
+                _accessOrder.moveToLast(node);
+            }
+
+            node._value = object;
+
+            node._expiresAt = timeToLive > 0 ? now + unit.toNanos(timeToLive) : 0;
+
+            _totalWeight += (_weigher != null ? weight : 0) - node._weight;
+            node._weight = _weigher != null ? weight : 0;
+
+            scheduleExpiry(node);
+
+            if (_statistics != null)
+                _statistics.recordPut();
+
+            oldObj = super.put(key, object);
+
+            evictOverweight(_maxWeight, RemovalCause.WEIGHT);
         }
-        
-        for (Map.Entry<Object, Date> e : sortedList)
-            sortedKeys.add(e.getKey());
-        
-        return sortedKeys;
+
+        spill();
+
+        return oldObj;
     }
-    
-    private class CleanupThread extends Thread
+
+    @Override
+    public void putAll(Map<? extends S,? extends T> t)
     {
-        private float _cleanThreshhold = 0.8f;
-        
-        private boolean _requestStop = false;
-        
-        public CleanupThread(float cleanThreshold)
-        {
-            super("com.jc.recordpersistance.HashMapWithTimeToLive$CleanupThread");
-            _cleanThreshhold = cleanThreshold;
-        }
-        
-        public void setCleanThreshold(float cleanThreshhold)
+        for (Map.Entry<? extends S, ? extends T> e : t.entrySet())
+            put(e.getKey(), e.getValue());
+    }
+
+    @Override
+    public T get(Object key)
+    {
+        T value = getFromMemory(key);
+
+        if (value == null && _overflow != null)
+            value = promote(key);
+
+        return value;
+    }
+
+    private synchronized T getFromMemory(Object key)
+    {
+        long now = System.nanoTime();
+        Node<S, T> node = _nodes.get(key);
+
+        if (node != null && node.isExpired(now))
         {
-            _cleanThreshhold = cleanThreshhold;
+            if (isStale(node, now))
+                removeNode(node, RemovalCause.EXPIRED);
+
+            node = null;
         }
-        
-        @Override
-        public void run()
+
+        if (node == null)
         {
-            if (_cleanupThreadInterval == 0)
-                _cleanupThreadInterval = CLEAN_THREAD_INTERVAL;
-            
-            while (!_requestStop)
-            {
-                if (_touchDates != null && _touchDates.size() >= (_maxEntries * LOAD_FACTOR))
-                {
-                    cleanoutOldestRecords();
-                }
-                
-                try
-                {
-                    sleep(_cleanupThreadInterval);
-                }
-                catch (InterruptedException e)
-                {
-                    _requestStop = true;
-                }
-            }
+            if (_statistics != null)
+                _statistics.recordMiss(System.nanoTime() - now);
+
+            return null;
         }
-        
-        public void requestStop()
+
+        node._touchedAt = now;
+        _accessOrder.moveToLast(node);
+
+        T value = super.get(key);
+
+        if (_statistics != null)
+            _statistics.recordHit(System.nanoTime() - now);
+
+        return value;
+    }
+
+    @Override
+    public synchronized boolean containsKey(Object key)
+    {
+        Node<S, T> node = _nodes.get(key);
+
+        if (node != null && !node.isExpired(System.nanoTime()))
+            return true;
+        else if (_spilling.containsKey(key))
+            return true;
+        else
+            return _overflow != null && _overflow.containsKey(key);
+    }
+
+    @Override
+    public synchronized T remove(Object obj)
+    {
+        Node<S, T> node = _nodes.remove(obj);
+
+        if (node != null)
         {
-            _requestStop = true;
+            _accessOrder.remove(node);
+            _totalWeight -= node._weight;
+            cancelExpiry(node);
+
+            if (_statistics != null)
+                _statistics.recordRemoval(RemovalCause.EXPLICIT, System.nanoTime() - node._createdAt);
         }
-        
-        private void cleanoutOldestRecords()
+        else
         {
-            synchronized (_touchDates)
-            {
-                int size = _touchDates.size();
-                List<?> sortedKeyList = getTouchDateKeysSortedByTouchDate();
-                
-                Iterator<?> it = sortedKeyList.iterator();
-                int minimumToRemove = new Float(_maxEntries * (1.0 - _cleanThreshhold)).intValue();
-                int numRemoved = 0;
-                
-                if (size > _maxEntries)
-                    minimumToRemove += (_maxEntries - size);
-                
-                while (it.hasNext() && numRemoved <= minimumToRemove)
-                {
-                    String key = (String) it.next();
-                    _touchDates.remove(key);
-                    HashMapWithTimeToLive.this.removeFromCacheOnly(key);  // ensure we only remove cache item and not child stuff
-                            
-                    numRemoved += 1;
-                } // End FOR
-            }
+            _spilling.remove(obj);
+
+            if (_overflow != null)
+                _overflow.discard(obj);
         }
-    } // End inner class : CleanupThread
-    
-    private class ComparatorBasedOnDateValue implements Comparator<Map.Entry<Object,Date>>
+
+        return super.remove(obj);
+    }
+
+    @Override
+    public synchronized void clear()
     {
-        public int compare(Map.Entry<Object,Date> d1, Map.Entry<Object,Date> d2)
-        {
-            return (d1.getValue().compareTo(d2.getValue()));           // Ascending
-        }
+        for (Node<S, T> node = _accessOrder.first(); node != null; node = node.next())
+            cancelExpiry(node);
+
+        _nodes.clear();
+        _accessOrder.clear();
+        _totalWeight = 0;
+        super.clear();
+        _spilling.clear();
+
+        if (_overflow != null)
+            _overflow.clear();
     }
-    
-    /**
-     * listener is called when objects are removed from the cache.
-     *
-     * @param <T>
-     */
-    public interface ObjectRemovedListener<T>
+
+    @Override
+    public T getOrDefault(Object key, T defaultValue)
     {
-    	public void onObjectRemoval(T object);
+        T value = get(key);
+
+        return value != null ? value : defaultValue;
     }
-}
 
+    /*
+     * The default implementations of HashMap would update the elements without going through
+     * put() and remove(), so that they would be neither ordered, weighed nor expired. Elements
+     * in the overflow store are promoted first so that they are seen as present.
+     */
+
+    @Override
+    public T putIfAbsent(S key, T value)
+    {
+        promoteIfOverflowed(key);
+
+        T current = null;
+
+        synchronized (this)
+        {
+            current = peek(key);
+
+            if (current == null)
+                put(key, value);
+        }
+
+        spill();
+
+        return current;
+    }
+
+    @Override
+    public boolean remove(Object key, Object value)
+    {
+        promoteIfOverflowed(key);
+
+        synchronized (this)
+        {
+            T current = peek(key);
+
+            if (current == null || !current.equals(value))
+                return false;
+
+            remove(key);
+
+            return true;
+        }
+    }
+
+    @Override
+    public T replace(S key, T value)
+    {
+        promoteIfOverflowed(key);
+
+        T current = null;
+
+        synchronized (this)
+        {
+            current = peek(key);
+
+            if (current != null)
+                put(key, value);
+        }
+
+        spill();
+
+        return current;
+    }
+
+    @Override
+    public boolean replace(S key, T oldValue, T newValue)
+    {
+        promoteIfOverflowed(key);
+
+        synchronized (this)
+        {
+            T current = peek(key);
+
+            if (current == null || !current.equals(oldValue))
+                return false;
+
+            put(key, newValue);
+        }
+
+        spill();
+
+        return true;
+    }
+
+    @Override
+    public void replaceAll(BiFunction<? super S, ? super T, ? extends T> function)
+    {
+        synchronized (this)
+        {
+            for (Node<S, T> node : new ArrayList<Node<S, T>>(_nodes.values()))
+            {
+                T current = peek(node._key);
+
+                if (current != null)
+                    put(node._key, function.apply(node._key, current));
+            }
+        }
+
+        spill();
+    }
+
+    @Override
+    public T computeIfAbsent(S key, Function<? super S, ? extends T> mappingFunction)
+    {
+        promoteIfOverflowed(key);
+
+        T value = null;
+
+        synchronized (this)
+        {
+            value = peek(key);
+
+            if (value == null && (value = mappingFunction.apply(key)) != null)
+                put(key, value);
+        }
+
+        spill();
+
+        return value;
+    }
+
+    @Override
+    public T computeIfPresent(S key, BiFunction<? super S, ? super T, ? extends T> remappingFunction)
+    {
+        promoteIfOverflowed(key);
+
+        T value = null;
+
+        synchronized (this)
+        {
+            T current = peek(key);
+
+            if (current == null)
+                return null;
+
+            value = remappingFunction.apply(key, current);
+            store(key, value);
+        }
+
+        spill();
+
+        return value;
+    }
+
+    @Override
+    public T compute(S key, BiFunction<? super S, ? super T, ? extends T> remappingFunction)
+    {
+        promoteIfOverflowed(key);
+
+        T value = null;
+
+        synchronized (this)
+        {
+            value = remappingFunction.apply(key, peek(key));
+            store(key, value);
+        }
+
+        spill();
+
+        return value;
+    }
+
+    @Override
+    public T merge(S key, T value, BiFunction<? super T, ? super T, ? extends T> remappingFunction)
+    {
+        promoteIfOverflowed(key);
+
+        T merged = null;
+
+        synchronized (this)
+        {
+            T current = peek(key);
+
+            merged = current != null ? remappingFunction.apply(current, value) : value;
+            store(key, merged);
+        }
+
+        spill();
+
+        return merged;
+    }
+
+    /**
+     * Returns a view of the keys, removing a key from it removes the element from the map.
+     * Iterators work on a copy of the keys, so are not affected by changes to the map.
+     */
+    @Override
+    public Set<S> keySet()
+    {
+        return new KeySet();
+    }
+
+    /**
+     * Returns a view of the elements, removing an entry from it or changing its value updates
+     * the map. Iterators work on a copy of the entries, so are not affected by changes to the map.
+     */
+    @Override
+    public Set<Map.Entry<S, T>> entrySet()
+    {
+        return new EntrySet();
+    }
+
+    /**
+     * Releases the tasks registered with the shared scheduler and closes the overflow store if
+     * any. The map remains usable but elements will from now on only be expired when accessed,
+     * no periodic cleanup will be done and evicted elements are dropped.
+     */
+    @Override
+    public void close()
+    {
+        synchronized (this)
+        {
+            _closed = true;
+
+            if (_cleanupTask != null)
+            {
+                _cleanupTask.cancel();
+                _cleanupTask = null;
+            }
+
+            for (Node<S, T> node = _accessOrder.first(); node != null; node = node.next())
+                cancelExpiry(node);
+
+            if (_statistics != null)
+                _statistics.stopSampling();
+        }
+
+        // let an eviction that is being stored finish first
+
+        synchronized (_spillLock)
+        {
+            OffHeapOverflowStore<S, T> overflow = null;
+
+            synchronized (this)
+            {
+                overflow = _overflow;
+                _overflow = null;
+            }
+
+            if (overflow != null)
+                overflow.close();
+        }
+
+        spill();
+    }
+
+    @Override
+    public synchronized String toString()
+    {
+        String outString = null;
+        long now = System.nanoTime();
+
+        for (Node<S, T> node = _accessOrder.first(); node != null; node = node.next())
+        {
+            String entry = node._key + "=" + TimeUnit.NANOSECONDS.toMillis(now - node._touchedAt) + "ms";
+
+            if (outString != null)
+                outString = outString + ";" + entry;
+            else
+                outString = entry;
+        }
+
+        return outString;
+    }
+
+    /**
+     * Returns the elements of the cache ordered from least to most recently accessed,
+     * expired elements are not included.
+     */
+	@Override
+    public synchronized Collection<T> values()
+    {
+        List<T> outArray = new ArrayList<T>(_nodes.size());
+        long now = System.nanoTime();
+        T obj = null;
+
+        for (Node<S, T> node = _accessOrder.first(); node != null; node = node.next())
+        {
+            if (!node.isExpired(now) && (obj = super.get(node._key)) != null)
+                outArray.add(obj);
+        }
+
+        return outArray;
+    }
+
+    /**
+     * Returns the key of the object that was most recently added or accessed
+     *
+     * @return
+     */
+    public synchronized Object getLastInKey()
+    {
+        Node<S, T> node = _accessOrder.last();
+
+        return node != null ? node._key : null;
+    }
+
+    /**
+     * Returns the key of the object that has not been accessed for the longest time
+     * and the first candidate to be removed in the case of cleanup.
+     *
+     * @return
+     */
+    public synchronized Object getFirstInKey()
+    {
+        Node<S, T> node = _accessOrder.first();
+
+        return node != null ? node._key : null;
+    }
+
+    public static void setCleanupThreadInterval(int interval)
+    {
+        if (interval > 0)
+            _cleanupThreadInterval = interval;
+    }
+
+    public static int getCleanupThreadInterval()
+    {
+        return _cleanupThreadInterval;
+    }
+
+    public void setCleanThreshold(float cleanThreshold)
+    {
+        _cleanThreshhold = cleanThreshold;
+    }
+
+    protected synchronized void removeFromCacheOnly(Object obj)
+    {
+        Node<S, T> node = _nodes.get(obj);
+
+        if (node != null)
+            removeNode(node, RemovalCause.EXPLICIT);
+    }
+
+    private void evictEldest(RemovalCause cause)
+    {
+        removeNode(_accessOrder.first(), cause);
+    }
+
+    /**
+     * Drops an element too heavy to ever fit, rather than evicting everything else only to then
+     * evict it as well. Any existing element with the same key is removed as it has been replaced.
+     */
+    private T reject(S key, T object)
+    {
+        T oldObj = remove(key);
+
+        if (_statistics != null)
+        {
+            _statistics.recordPut();
+            _statistics.recordRemoval(RemovalCause.WEIGHT, 0);
+        }
+
+        if (_removeListener != null)
+            _removeListener.onObjectRemoval(object);
+
+        return oldObj;
+    }
+
+    /**
+     * Evicts the least recently accessed elements until the total weight is within the given limit
+     */
+    private void evictOverweight(long limit, RemovalCause cause)
+    {
+        while (_maxWeight > 0 && _totalWeight > limit && _accessOrder.first() != null)
+            evictEldest(cause);
+    }
+
+    private void removeNode(Node<S, T> node, RemovalCause cause)
+    {
+        _nodes.remove(node._key);
+        _accessOrder.remove(node);
+        _totalWeight -= node._weight;
+        cancelExpiry(node);
+
+        if (_statistics != null)
+            _statistics.recordRemoval(cause, System.nanoTime() - node._createdAt);
+
+        T oldObj = super.remove(node._key);
+
+        if (oldObj != null && _overflow != null && (cause == RemovalCause.SIZE || cause == RemovalCause.WEIGHT || cause == RemovalCause.CLEANUP))
+        {
+            // stored by spill() once the lock has been released
+
+            node._value = oldObj;
+            _spilling.put(node._key, node);
+            return;
+        }
+
+        if (_removeListener != null && oldObj != null)
+        	_removeListener.onObjectRemoval(oldObj);
+    }
+
+    /**
+     * Moves elements evicted whilst the map was locked into the overflow store, a no-op if the
+     * calling thread still holds the lock, so serializing them never blocks other callers of the
+     * map. Only one thread stores at a time, so that a copy made stale by the element being
+     * replaced or promoted in the mean time can be safely discarded again.
+     */
+    private void spill()
+    {
+        if (Thread.holdsLock(this))
+            return;
+
+        synchronized (_spillLock)
+        {
+            while (true)
+            {
+                Node<S, T> node = null;
+                OffHeapOverflowStore<S, T> overflow = null;
+
+                synchronized (this)
+                {
+                    if (_spilling.isEmpty())
+                        return;
+
+                    node = _spilling.values().iterator().next();
+                    overflow = _overflow;
+                }
+
+                boolean stored = overflow != null && overflow.put(node._key, node._value, node._expiresAt);
+
+                synchronized (this)
+                {
+                    if (_spilling.get(node._key) != node)
+                    {
+                        if (stored)
+                            overflow.discard(node._key);
+
+                        continue;
+                    }
+
+                    _spilling.remove(node._key);
+                }
+
+                if (!stored && _removeListener != null)
+                    _removeListener.onObjectRemoval(node._value);
+            }
+        }
+    }
+
+    /**
+     * Moves the element from the overflow store back into the map, unless it has been
+     * replaced in the mean time
+     */
+    @SuppressWarnings("unchecked")
+    private T promote(Object key)
+    {
+        OffHeapOverflowStore<S, T> overflow = null;
+        Node<S, T> pending = null;
+
+        synchronized (this)
+        {
+            overflow = _overflow;
+            pending = _spilling.remove(key);
+        }
+
+        T value = null;
+        long expiresAt = 0;
+
+        if (pending != null)
+        {
+            value = pending._value;
+            expiresAt = pending._expiresAt;
+        }
+        else
+        {
+            OffHeapOverflowStore.Entry<T> entry = overflow != null ? overflow.remove(key) : null;
+
+            if (entry == null)
+                return null;
+
+            value = entry.getValue();
+            expiresAt = entry.getExpiresAt();
+        }
+
+        long timeToLive = expiresAt != 0 ? expiresAt - System.nanoTime() : 0;
+
+        if (expiresAt != 0 && timeToLive <= 0)
+            return null;
+
+        synchronized (this)
+        {
+            Node<S, T> node = _nodes.get(key);
+
+            if (node == null || node.isExpired(System.nanoTime()))
+            {
+                put((S) key, value, timeToLive, TimeUnit.NANOSECONDS);
+                node = null;
+            }
+
+            if (node != null)
+                value = super.get(key);
+        }
+
+        spill();
+
+        return value;
+    }
+
+    private synchronized void expire(Node<S, T> node)
+    {
+        // ignore if removed or updated since the timeout was scheduled
+
+        if (_nodes.get(node._key) == node && isStale(node, System.nanoTime()))
+            removeNode(node, RemovalCause.EXPIRED);
+    }
+
+    /**
+     * Returns true if the element has expired and can no longer be served even as a stale value
+     */
+    private boolean isStale(Node<S, T> node, long now)
+    {
+        return node._expiresAt != 0 && now - (node._expiresAt + _staleWindow) >= 0;
+    }
+
+    private void scheduleExpiry(Node<S, T> node)
+    {
+        cancelExpiry(node);
+
+        if (node._expiresAt != 0 && !_closed)
+            node._timeout = scheduler().schedule(_expirer, node, node._expiresAt + _staleWindow);
+    }
+
+    /**
+     * Returns the scheduler to register with, replacing one that has been shut down by the new
+     * default and moving the cleanup, sampling and pending expiries over to it
+     */
+    private synchronized ExpiryScheduler scheduler()
+    {
+        if (_scheduler.isClosed())
+        {
+            _scheduler = ExpiryScheduler.getDefault();
+
+            if (_cleanupTask != null)
+            {
+                _cleanupTask.cancel();
+                startCleanupTask();
+            }
+
+            if (_statistics != null && !_closed)
+                _statistics.startSampling(this, _scheduler, CacheStatistics.DEFAULT_SAMPLE_INTERVAL_MS, TimeUnit.MILLISECONDS);
+
+            for (Node<S, T> node = _accessOrder.first(); node != null; node = node.next())
+            {
+                if (node._timeout != null)
+                    node._timeout = _scheduler.schedule(_expirer, node, node._expiresAt + _staleWindow);
+            }
+        }
+
+        return _scheduler;
+    }
+
+    /**
+     * Returns the element if present and not expired, without counting it as an access. The
+     * caller must hold the lock.
+     */
+    private T peek(Object key)
+    {
+        Node<S, T> node = _nodes.get(key);
+
+        return node != null && !node.isExpired(System.nanoTime()) ? super.get(key) : null;
+    }
+
+    /**
+     * Puts the element or removes the existing one if null, the caller must hold the lock
+     */
+    private void store(S key, T value)
+    {
+        if (value != null)
+            put(key, value);
+        else if (_nodes.containsKey(key))
+            remove(key);
+    }
+
+    private void promoteIfOverflowed(Object key)
+    {
+        if (_overflow != null)
+            promote(key);
+    }
+
+    private LoadCoordinator<S, T> getLoadCoordinator()
+    {
+        if (_loadCoordinator == null)
+            _loadCoordinator = new LoadCoordinator<S, T>(new Loadable());
+
+        return _loadCoordinator;
+    }
+
+    private void cancelExpiry(Node<S, T> node)
+    {
+        if (node._timeout != null)
+        {
+            node._timeout.cancel();
+            node._timeout = null;
+        }
+    }
+
+    private void removeOldestRecordsIfRequired()
+    {
+        synchronized (this)
+        {
+            if (_maxEntries > 0 && _nodes.size() >= (_maxEntries * LOAD_FACTOR))
+                removeOldestRecords(_cleanThreshhold);
+
+            if (_maxWeight > 0 && _totalWeight >= (_maxWeight * LOAD_FACTOR))
+                evictOverweight((long) (_maxWeight * _cleanThreshhold), RemovalCause.CLEANUP);
+        }
+
+        spill();
+    }
+
+    private synchronized void removeOldestRecords(float cleanThreshhold)
+    {
+        int size = _nodes.size();
+        int numToRemove = (int) (_maxEntries * (1.0 - cleanThreshhold));
+
+        if (size > _maxEntries)
+            numToRemove += (size - _maxEntries);
+
+        while (numToRemove-- > 0 && _accessOrder.first() != null)
+            evictEldest(RemovalCause.CLEANUP);
+    }
+
+    private void startCleanupTask()
+    {
+        if (_cleanupThreadInterval == 0)
+            _cleanupThreadInterval = CLEAN_THREAD_INTERVAL;
+
+        _cleanupTask = new CleanupTask(this);
+        _cleanupTask.start(scheduler(), _cleanupThreadInterval);
+    }
+
+    /**
+     * Keys of the map, removals go through {@link HashMapWithTimeToLive#remove(Object)}
+     */
+    private class KeySet extends AbstractSet<S>
+    {
+        @Override
+        public Iterator<S> iterator()
+        {
+            List<S> keys = null;
+
+            synchronized (HashMapWithTimeToLive.this)
+            {
+                keys = new ArrayList<S>(HashMapWithTimeToLive.super.keySet());
+            }
+
+            final Iterator<S> it = keys.iterator();
+
+            return new Iterator<S>() {
+
+                private S _current;
+
+                @Override
+                public boolean hasNext()
+                {
+                    return it.hasNext();
+                }
+
+                @Override
+                public S next()
+                {
+                    return _current = it.next();
+                }
+
+                @Override
+                public void remove()
+                {
+                    it.remove();
+                    HashMapWithTimeToLive.this.remove(_current);
+                }
+            };
+        }
+
+        @Override
+        public int size()
+        {
+            return HashMapWithTimeToLive.this.size();
+        }
+
+        @Override
+        public boolean contains(Object key)
+        {
+            return containsKey(key);
+        }
+
+        @Override
+        public boolean remove(Object key)
+        {
+            synchronized (HashMapWithTimeToLive.this)
+            {
+                if (!HashMapWithTimeToLive.super.containsKey(key))
+                    return false;
+
+                HashMapWithTimeToLive.this.remove(key);
+            }
+
+            return true;
+        }
+    }
+
+    /**
+     * Entries of the map, removals go through {@link HashMapWithTimeToLive#remove(Object)} and
+     * changed values through {@link HashMapWithTimeToLive#put(Object, Object)}
+     */
+    private class EntrySet extends AbstractSet<Map.Entry<S, T>>
+    {
+        @Override
+        public Iterator<Map.Entry<S, T>> iterator()
+        {
+            List<Map.Entry<S, T>> entries = new ArrayList<Map.Entry<S, T>>();
+
+            synchronized (HashMapWithTimeToLive.this)
+            {
+                for (Map.Entry<S, T> e : HashMapWithTimeToLive.super.entrySet())
+                    entries.add(new WriteThroughEntry(e.getKey(), e.getValue()));
+            }
+
+            final Iterator<Map.Entry<S, T>> it = entries.iterator();
+
+            return new Iterator<Map.Entry<S, T>>() {
+
+                private Map.Entry<S, T> _current;
+
+                @Override
+                public boolean hasNext()
+                {
+                    return it.hasNext();
+                }
+
+                @Override
+                public Map.Entry<S, T> next()
+                {
+                    return _current = it.next();
+                }
+
+                @Override
+                public void remove()
+                {
+                    it.remove();
+                    HashMapWithTimeToLive.this.remove(_current.getKey());
+                }
+            };
+        }
+
+        @Override
+        public int size()
+        {
+            return HashMapWithTimeToLive.this.size();
+        }
+
+        @Override
+        public boolean remove(Object o)
+        {
+            if (!(o instanceof Map.Entry))
+                return false;
+
+            Map.Entry<?, ?> e = (Map.Entry<?, ?>) o;
+
+            return HashMapWithTimeToLive.this.remove(e.getKey(), e.getValue());
+        }
+    }
+
+    /**
+     * Copy of an entry that puts a new value into the map
+     */
+    private class WriteThroughEntry extends AbstractMap.SimpleEntry<S, T>
+    {
+        private static final long serialVersionUID = 1L;
+
+        public WriteThroughEntry(S key, T value)
+        {
+            super(key, value);
+        }
+
+        @Override
+        public T setValue(T value)
+        {
+            put(getKey(), value);
+
+            return super.setValue(value);
+        }
+    }
+
+    /**
+     * Gives the load coordinator access to the elements of the map
+     */
+    private class Loadable implements LoadCoordinator.Loadable<S, T>
+    {
+        @Override
+        public Node<S, T> lookup(S key, long now)
+        {
+            if (_overflow != null)
+                promote(key);
+
+            synchronized (HashMapWithTimeToLive.this)
+            {
+                Node<S, T> node = _nodes.get(key);
+
+                if (node == null)
+                    return null;
+
+                if (!node.isExpired(now))
+                {
+                    node._touchedAt = now;
+                    _accessOrder.moveToLast(node);
+                }
+                else if (isStale(node, now))
+                {
+                    removeNode(node, RemovalCause.EXPIRED);
+                    node = null;
+                }
+
+                return node;
+            }
+        }
+
+        @Override
+        public void store(S key, T value)
+        {
+            put(key, value);
+        }
+
+        @Override
+        public CacheStatistics statistics()
+        {
+            return _statistics;
+        }
+    }
+
+    /**
+     * Receives expiry notifications from the scheduler, only holds a weak reference to the map
+     * so that pending timeouts do not keep a map alive that has not been closed explicitly.
+     */
+    private static class Expirer<S, T> implements ExpiryScheduler.Expirable
+    {
+        private WeakReference<HashMapWithTimeToLive<S, T>> _map;
+
+        public Expirer(HashMapWithTimeToLive<S, T> map)
+        {
+            _map = new WeakReference<HashMapWithTimeToLive<S, T>>(map);
+        }
+
+        @SuppressWarnings("unchecked")
+        @Override
+        public void expire(Object handle)
+        {
+            HashMapWithTimeToLive<S, T> map = _map.get();
+
+            if (map != null)
+                map.expire((Node<S, T>) handle);
+        }
+    }
+
+    /**
+     * Periodic size cleanup, only holds a weak reference to the map so that the scheduler
+     * does not keep a map alive that has not been closed explicitly.
+     */
+    private static class CleanupTask implements Runnable
+    {
+        private WeakReference<HashMapWithTimeToLive<?, ?>> _map;
+
+        private volatile ScheduledFuture<?> _future;
+
+        public CleanupTask(HashMapWithTimeToLive<?, ?> map)
+        {
+            _map = new WeakReference<HashMapWithTimeToLive<?, ?>>(map);
+        }
+
+        public void start(ExpiryScheduler scheduler, long interval)
+        {
+            _future = scheduler.scheduleAtFixedRate(this, interval, TimeUnit.MILLISECONDS);
+        }
+
+        public void cancel()
+        {
+            if (_future != null)
+                _future.cancel(false);
+        }
+
+        @Override
+        public void run()
+        {
+            HashMapWithTimeToLive<?, ?> map = _map.get();
+
+            if (map != null)
+                map.removeOldestRecordsIfRequired();
+            else
+                cancel();
+        }
+    } // End inner class : CleanupTask
+
+    /**
+     * listener is called when objects are removed from the cache.
+     *
+     * @param <T>
+     */
+    public interface ObjectRemovedListener<T>
+    {
+    	public void onObjectRemoval(T object);
+    }
+}
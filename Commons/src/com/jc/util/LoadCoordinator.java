@@ -0,0 +1,208 @@
+package com.jc.util;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+
+import com.jc.util.AccessOrderQueue.Node;
+import com.jc.util.CacheLoader.LoadException;
+
+/**
+ * Implements get(key, loader) for the time to live maps. Concurrent misses for the same key are
+ * coalesced so that only one caller runs the loader while the others wait for its result.
+ *
+ * Elements older than the refresh interval are reloaded in the background whilst the current value
+ * continues to be returned. Equally if the map has a stale window, expired elements are returned
+ * whilst their replacement is loaded in the background, rather than blocking the caller.
+ *
+ * @author John Carter
+ * @version 1.0
+ */
+class LoadCoordinator<K, V>
+{
+	private static Executor								_defaultExecutor;
+
+	private Loadable<K, V>								_owner;
+	private ConcurrentHashMap<K, LoadTask>				_inFlight;
+	private volatile Executor							_executor;
+
+	LoadCoordinator(Loadable<K, V> owner)
+	{
+		_owner = owner;
+		_inFlight = new ConcurrentHashMap<K, LoadTask>();
+	}
+
+	void setExecutor(Executor executor)
+	{
+		_executor = executor;
+	}
+
+	V get(K key, CacheLoader<? super K, V> loader, long refreshAfter) throws LoadException
+	{
+		long now = System.nanoTime();
+		Node<K, V> node = _owner.lookup(key, now);
+		CacheStatistics statistics = _owner.statistics();
+
+		if (node != null)
+		{
+			V value = node._value;
+
+			if (node.isExpired(now) || (refreshAfter > 0 && now - node._createdAt >= refreshAfter))
+				refresh(key, loader);
+
+			if (statistics != null)
+				statistics.recordHit(System.nanoTime() - now);
+
+			return value;
+		}
+
+		if (statistics != null)
+			statistics.recordMiss(System.nanoTime() - now);
+
+		return load(key, loader);
+	}
+
+	private V load(K key, CacheLoader<? super K, V> loader) throws LoadException
+	{
+		LoadTask task = new LoadTask(key, loader);
+		LoadTask existing = _inFlight.putIfAbsent(key, task);
+
+		if (existing == null)
+		{
+			task.run();		// we won, so load in this thread
+			existing = task;
+		}
+
+		try
+		{
+			return existing.get();
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new LoadException(e);
+		}
+		catch (ExecutionException e)
+		{
+			throw new LoadException(e.getCause());
+		}
+	}
+
+	private void refresh(K key, CacheLoader<? super K, V> loader)
+	{
+		LoadTask task = new LoadTask(key, loader);
+
+		if (_inFlight.putIfAbsent(key, task) == null)
+		{
+			try
+			{
+				(_executor != null ? _executor : getDefaultExecutor()).execute(task);
+			}
+			catch (RejectedExecutionException e)
+			{
+				_inFlight.remove(key, task);
+			}
+		}
+	}
+
+	private static synchronized Executor getDefaultExecutor()
+	{
+		if (_defaultExecutor == null)
+		{
+			int threads = Math.max(2, Runtime.getRuntime().availableProcessors());
+			final AtomicInteger count = new AtomicInteger();
+
+			ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+
+				@Override
+				public Thread newThread(Runnable r)
+				{
+					Thread t = new Thread(r, "com.jc.util.CacheLoader-" + count.incrementAndGet());
+					t.setDaemon(true);
+
+					return t;
+				}
+			});
+
+			executor.allowCoreThreadTimeOut(true);
+			_defaultExecutor = executor;
+		}
+
+		return _defaultExecutor;
+	}
+
+	/**
+	 * Implemented by the maps so that the coordinator can check for existing elements
+	 * and store loaded ones
+	 */
+	interface Loadable<K, V>
+	{
+		/**
+		 * Returns the element for the given key, including an expired element that is still
+		 * within the map's stale window. Only non expired elements should be touched.
+		 */
+		Node<K, V> lookup(K key, long now);
+
+		void store(K key, V value);
+
+		CacheStatistics statistics();
+	}
+
+	private class LoadTask extends FutureTask<V>
+	{
+		private K _key;
+
+		LoadTask(final K key, final CacheLoader<? super K, V> loader)
+		{
+			super(new Callable<V>() {
+
+				@Override
+				public V call() throws Exception
+				{
+					long start = System.nanoTime();
+					boolean success = false;
+
+					try
+					{
+						V value = loader.load(key);
+
+						if (value != null)
+							_owner.store(key, value);
+
+						success = true;
+
+						return value;
+					}
+					finally
+					{
+						CacheStatistics statistics = _owner.statistics();
+
+						if (statistics != null)
+							statistics.recordLoad(success, System.nanoTime() - start);
+
+						if (!success)
+							Logger.getLogger(LoadCoordinator.class).debug("Failed to load cache element: " + key);
+					}
+				}
+			});
+
+			_key = key;
+		}
+
+		@Override
+		protected void done()
+		{
+			_inFlight.remove(_key, this);
+		}
+	}
+}
@@ -0,0 +1,342 @@
+package com.jc.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Second tier for a {@link HashMapWithTimeToLive}, elements evicted from the map are serialized
+ * into large buffers outside of the java heap and promoted back into the map when next requested,
+ * allowing a far larger working set to be cached without adding to garbage collection pressure.
+ *
+ * Space is divided into fixed size slabs which are filled one after another. When all slabs are
+ * full the oldest slab is recycled and the elements it contains are dropped, so the store as a
+ * whole behaves as a FIFO queue. Space of elements that are promoted or removed is only reclaimed
+ * when their slab is recycled. Slabs are either direct byte buffers, allocated as required, or
+ * regions of a memory mapped file.
+ *
+ * Only the index of keys is held on the heap, roughly 80 bytes per element. All methods are
+ * thread safe.
+ *
+ * @author John Carter
+ * @version 1.0
+ */
+public class OffHeapOverflowStore<K, V> implements AutoCloseable
+{
+	public static final int 				DEFAULT_SLAB_SIZE = 16 * 1024 * 1024;
+
+	private ValueSerializer<V>				_serializer;
+
+	private ByteBuffer[]					_slabs;
+	private List<List<K>>					_slabKeys;
+	private int								_slabSize;
+	private int								_current;
+	private int								_writeOffset;
+
+	private Map<K, Location>				_index;
+
+	private File							_file;
+	private RandomAccessFile				_raf;
+
+	/**
+	 * Creates a store using direct byte buffers
+	 *
+	 * @param capacity maximum number of bytes to hold off heap
+	 * @param slabSize size of each slab, also the maximum size of a serialized element
+	 * @param serializer converts values to and from bytes
+	 */
+	public OffHeapOverflowStore(long capacity, int slabSize, ValueSerializer<V> serializer)
+	{
+		init(capacity, slabSize, serializer);
+	}
+
+	/**
+	 * Creates a store backed by a memory mapped file, the file is created or truncated and
+	 * then deleted when the store is closed. Its contents do not survive a restart.
+	 *
+	 * @param file file to map
+	 * @param capacity maximum size of the file
+	 * @param slabSize size of each slab, also the maximum size of a serialized element
+	 * @param serializer converts values to and from bytes
+	 * @throws IOException if the file cannot be created
+	 */
+	public OffHeapOverflowStore(File file, long capacity, int slabSize, ValueSerializer<V> serializer) throws IOException
+	{
+		init(capacity, slabSize, serializer);
+
+		_file = file;
+		_raf = new RandomAccessFile(file, "rw");
+		_raf.setLength(0);
+		file.deleteOnExit();
+	}
+
+	private void init(long capacity, int slabSize, ValueSerializer<V> serializer)
+	{
+		int slabs = (int) Math.max(1, capacity / slabSize);
+
+		_serializer = serializer;
+		_slabSize = slabSize;
+		_slabs = new ByteBuffer[slabs];
+		_slabKeys = new ArrayList<List<K>>(slabs);
+
+		for (int i = 0; i < slabs; i++)
+			_slabKeys.add(new ArrayList<K>());
+
+		_index = new HashMap<K, Location>();
+		_current = 0;
+		_writeOffset = 0;
+	}
+
+	/**
+	 * Serializes and stores the given value, replacing any existing value for the key
+	 *
+	 * @param key key of element
+	 * @param value value to store
+	 * @param expiresAt System.nanoTime() after which the value is no longer valid, 0 for never
+	 * @return false if the value could not be serialized or is larger than a slab
+	 */
+	public boolean put(K key, V value, long expiresAt)
+	{
+		byte[] data = null;
+
+		try
+		{
+			data = _serializer.serialize(value);
+		}
+		catch (IOException e)
+		{
+			Logger.getLogger(OffHeapOverflowStore.class).warn("Cannot serialize overflow element " + key + ": " + e.getMessage());
+			return false;
+		}
+
+		if (data.length > _slabSize)
+			return false;
+
+		synchronized (this)
+		{
+			try
+			{
+				if (_writeOffset + data.length > _slabSize)
+					nextSlab();
+
+				ByteBuffer slab = slab(_current);
+				slab.position(_writeOffset);
+				slab.put(data);
+
+				_index.put(key, new Location(_current, _writeOffset, data.length, expiresAt));
+				_slabKeys.get(_current).add(key);
+				_writeOffset += data.length;
+
+				return true;
+			}
+			catch (IOException e)
+			{
+				Logger.getLogger(OffHeapOverflowStore.class).warn("Cannot map overflow file " + _file + ": " + e.getMessage());
+				return false;
+			}
+		}
+	}
+
+	/**
+	 * Removes the value for the given key and returns it, expired values are discarded
+	 *
+	 * @param key key of element
+	 * @return value and its expiry or null if not found
+	 */
+	public Entry<V> remove(Object key)
+	{
+		byte[] data = null;
+		Location location = null;
+
+		synchronized (this)
+		{
+			if ((location=_index.remove(key)) == null)
+				return null;
+
+			if (location.isExpired(System.nanoTime()))
+				return null;
+
+			data = new byte[location._length];
+
+			ByteBuffer slab = _slabs[location._slab].duplicate();
+			slab.position(location._offset);
+			slab.get(data);
+		}
+
+		// deserialize without holding the lock
+
+		try
+		{
+			return new Entry<V>(_serializer.deserialize(data), location._expiresAt);
+		}
+		catch (IOException e)
+		{
+			Logger.getLogger(OffHeapOverflowStore.class).warn("Cannot deserialize overflow element " + key + ": " + e.getMessage());
+			return null;
+		}
+	}
+
+	/**
+	 * Removes the value for the given key without deserializing it
+	 *
+	 * @param key key of element
+	 * @return true if the key was found
+	 */
+	public synchronized boolean discard(Object key)
+	{
+		return _index.remove(key) != null;
+	}
+
+	public synchronized boolean containsKey(Object key)
+	{
+		Location location = _index.get(key);
+
+		return location != null && !location.isExpired(System.nanoTime());
+	}
+
+	/**
+	 * Returns the number of elements in the store, may include expired elements
+	 */
+	public synchronized int size()
+	{
+		return _index.size();
+	}
+
+	public long getCapacity()
+	{
+		return (long) _slabs.length * _slabSize;
+	}
+
+	/**
+	 * Removes all elements, slabs remain allocated
+	 */
+	public synchronized void clear()
+	{
+		_index.clear();
+
+		for (List<K> keys : _slabKeys)
+			keys.clear();
+
+		_current = 0;
+		_writeOffset = 0;
+	}
+
+	/**
+	 * Releases the slabs and deletes the mapped file if any. Direct and mapped buffers are only
+	 * freed once garbage collected.
+	 */
+	@Override
+	public synchronized void close()
+	{
+		clear();
+
+		for (int i = 0; i < _slabs.length; i++)
+			_slabs[i] = null;
+
+		if (_raf != null)
+		{
+			try
+			{
+				_raf.close();
+			}
+			catch (IOException e)
+			{
+				Logger.getLogger(OffHeapOverflowStore.class).debug("Failed to close overflow file: " + e.getMessage());
+			}
+
+			_file.delete();
+			_raf = null;
+		}
+	}
+
+	/**
+	 * Moves to the next slab in the ring, dropping any elements that are still held in it
+	 */
+	private void nextSlab()
+	{
+		_current = (_current + 1) % _slabs.length;
+		_writeOffset = 0;
+
+		List<K> keys = _slabKeys.get(_current);
+
+		for (K key : keys)
+		{
+			Location location = _index.get(key);
+
+			if (location != null && location._slab == _current)
+				_index.remove(key);
+		}
+
+		keys.clear();
+	}
+
+	private ByteBuffer slab(int index) throws IOException
+	{
+		if (_slabs[index] == null)
+		{
+			if (_raf != null)
+				_slabs[index] = _raf.getChannel().map(FileChannel.MapMode.READ_WRITE, (long) index * _slabSize, _slabSize);
+			else
+				_slabs[index] = ByteBuffer.allocateDirect(_slabSize);
+		}
+
+		return _slabs[index];
+	}
+
+	/**
+	 * Value promoted from the store together with its original expiry
+	 */
+	public static class Entry<V>
+	{
+		private V 		_value;
+		private long 	_expiresAt;
+
+		Entry(V value, long expiresAt)
+		{
+			_value = value;
+			_expiresAt = expiresAt;
+		}
+
+		public V getValue()
+		{
+			return _value;
+		}
+
+		/**
+		 * @return System.nanoTime() when the value expires, 0 if never
+		 */
+		public long getExpiresAt()
+		{
+			return _expiresAt;
+		}
+	}
+
+	private static class Location
+	{
+		private int 	_slab;
+		private int 	_offset;
+		private int 	_length;
+		private long 	_expiresAt;
+
+		Location(int slab, int offset, int length, long expiresAt)
+		{
+			_slab = slab;
+			_offset = offset;
+			_length = length;
+			_expiresAt = expiresAt;
+		}
+
+		boolean isExpired(long now)
+		{
+			return _expiresAt != 0 && now - _expiresAt >= 0;
+		}
+	}
+}
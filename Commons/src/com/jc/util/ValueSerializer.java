@@ -0,0 +1,17 @@
+package com.jc.util;
+
+import java.io.IOException;
+
+/**
+ * Converts cache values to and from bytes so that they can be held outside of the java heap,
+ * see {@link OffHeapOverflowStore}.
+ *
+ * @author John Carter
+ * @version 1.0
+ */
+public interface ValueSerializer<V>
+{
+	public byte[] serialize(V value) throws IOException;
+
+	public V deserialize(byte[] data) throws IOException;
+}
@@ -0,0 +1,24 @@
+package com.jc.util;
+
+/**
+ * Calculates the weight of a cache element, allowing a cache to be bound by the total
+ * weight of its elements, e.g. an estimate of their size in bytes, rather than by their
+ * number.
+ *
+ * The weight of an element is calculated once when it is added to the cache and is not
+ * recalculated, so values should not be modified once cached.
+ *
+ * @author John Carter
+ * @version 1.0
+ */
+public interface Weigher<K, V>
+{
+	/**
+	 * Returns the weight of the given element, must not be negative
+	 *
+	 * @param key key of element
+	 * @param value value of element
+	 * @return weight of element
+	 */
+	public long weigh(K key, V value);
+}
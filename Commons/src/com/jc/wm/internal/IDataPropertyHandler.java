@@ -1,55 +1,243 @@
-package com.jc.wm.internal;
-
-import com.wm.data.*;
-import java.util.HashSet;
-import org.apache.commons.jxpath.DynamicPropertyHandler;
-
-public class IDataPropertyHandler implements DynamicPropertyHandler
-{
-
-    public static boolean DEBUG = false;
-    
-	public IDataPropertyHandler()
-    {
-    }
-
-    public Object getProperty(Object tgt, String key)
-    {
-        Object val = null;
-        if(DEBUG)
-        {
-            System.err.println("\t\t*** IDPH ***");
-            System.err.println((new StringBuilder()).append("\t\ttgt = ").append(tgt).toString());
-            System.err.println((new StringBuilder()).append("\t\tkey = ").append(key).toString());
-        }
-        if(tgt instanceof IData)
-            val = ValuesEmulator.get((IData)tgt, key);
-        if(DEBUG)
-        {
-            System.err.println((new StringBuilder()).append("\t\tval = ").append(val).toString());
-            System.err.println("\t\t************");
-        }
-        return val;
-    }
-
-    public String[] getPropertyNames(Object tgt)
-    {
-        String keys[] = null;
-        if(tgt instanceof IData)
-        {
-            HashSet<String> set = new HashSet<String>();
-            IDataCursor c;
-            for(c = ((IData)tgt).getCursor(); c.next(); set.add(c.getKey()));
-            keys = (String[])(String[])set.toArray(new String[set.size()]);
-            c.destroy();
-        }
-        return keys;
-    }
-
-    public void setProperty(Object tgt, String key, Object val)
-    {
-        if(tgt instanceof IData)
-            ValuesEmulator.put((IData)tgt, key, val);
-    }
-
-}
+package com.jc.wm.internal;
+
+import com.wm.data.*;
+import java.util.HashSet;
+import org.apache.commons.jxpath.DynamicPropertyHandler;
+
+/**
+ * Exposes webMethods documents to JXPath.
+ *
+ * JXPath asks for the property names of the same documents over and over whilst evaluating wildcards
+ * and descendant steps, so the names of recently visited documents are kept in a small per thread
+ * snapshot. The snapshot only lives for the duration of an evaluation, as marked by
+ * {@link #beginEvaluation()} and {@link #endEvaluation()}, and the entry for a document is dropped
+ * whenever a property of it is set, so that it never outlives a change made by the evaluation itself.
+ * Anything else that changes documents during an evaluation, such as {@link IDataXPathFactory}, has
+ * to call {@link #invalidate(Object)} likewise.
+ */
+public class IDataPropertyHandler implements DynamicPropertyHandler
+{
+
+    public static boolean DEBUG = false;
+
+    private static final int SNAPSHOT_SIZE = 32;
+    private static final String[] NO_KEYS = new String[0];
+
+    private static final ThreadLocal<Snapshot> snapshot = new ThreadLocal<Snapshot>() {
+        @Override
+        protected Snapshot initialValue()
+        {
+            return new Snapshot();
+        }
+    };
+
+	public IDataPropertyHandler()
+    {
+    }
+
+    /**
+     * Starts keeping the property names of documents seen by the calling thread, names are only kept
+     * between this call and {@link #endEvaluation()}, calls can be nested
+     */
+    public static void beginEvaluation()
+    {
+        snapshot.get().depth += 1;
+    }
+
+    /**
+     * Releases the documents seen by the calling thread once the outermost evaluation has ended
+     */
+    public static void endEvaluation()
+    {
+        Snapshot s = snapshot.get();
+
+        if(--s.depth <= 0)
+        {
+            s.depth = 0;
+            s.clear();
+        }
+    }
+
+    /**
+     * Drops the property names kept for the given document by the calling thread, to be called after
+     * changing the document's keys during an evaluation
+     */
+    static void invalidate(Object doc)
+    {
+        snapshot.get().remove(doc);
+    }
+
+    public Object getProperty(Object tgt, String key)
+    {
+        if(DEBUG)
+            return getPropertyWithTrace(tgt, key);
+
+        return tgt instanceof IData ? ValuesEmulator.get((IData)tgt, key) : null;
+    }
+
+    /**
+     * Returns the keys of the document in document order, each key once
+     */
+    public String[] getPropertyNames(Object tgt)
+    {
+        if(!(tgt instanceof IData))
+            return null;
+
+        Snapshot s = snapshot.get();
+
+        if(s.depth == 0)
+            return readKeys((IData)tgt);
+
+        String[] keys = s.get(tgt);
+
+        if(keys == null)
+        {
+            keys = readKeys((IData)tgt);
+            s.put(tgt, keys);
+        }
+
+        return keys;
+    }
+
+    public void setProperty(Object tgt, String key, Object val)
+    {
+        if(tgt instanceof IData)
+        {
+            ValuesEmulator.put((IData)tgt, key, val);
+            invalidate(tgt);
+        }
+    }
+
+    private Object getPropertyWithTrace(Object tgt, String key)
+    {
+        System.err.println("\t\t*** IDPH ***");
+        System.err.println("\t\ttgt = " + tgt);
+        System.err.println("\t\tkey = " + key);
+
+        Object val = tgt instanceof IData ? ValuesEmulator.get((IData)tgt, key) : null;
+
+        System.err.println("\t\tval = " + val);
+        System.err.println("\t\t************");
+
+        return val;
+    }
+
+    private static String[] readKeys(IData doc)
+    {
+        String[] keys = NO_KEYS;
+        int size = 0;
+        boolean duplicates = false;
+
+        IDataCursor c = doc.getCursor();
+
+        while(c.next())
+        {
+            if(size == keys.length)
+            {
+                String[] grown = new String[Math.max(8, size * 2)];
+                System.arraycopy(keys, 0, grown, 0, size);
+                keys = grown;
+            }
+
+            String key = c.getKey();
+
+            // duplicate keys are rare, check cheaply for short documents and leave long ones to a set below
+
+            if(!duplicates && size <= 16)
+            {
+                for(int i = 0; i < size; i++)
+                {
+                    if(keys[i].equals(key))
+                    {
+                        duplicates = true;
+                        break;
+                    }
+                }
+            }
+            else if(size > 16)
+            {
+                duplicates = true;
+            }
+
+            keys[size++] = key;
+        }
+
+        c.destroy();
+
+        return duplicates ? unique(keys, size) : trim(keys, size);
+    }
+
+    private static String[] unique(String[] keys, int size)
+    {
+        HashSet<String> seen = new HashSet<String>();
+        int n = 0;
+
+        for(int i = 0; i < size; i++)
+        {
+            if(seen.add(keys[i]))
+                keys[n++] = keys[i];
+        }
+
+        return trim(keys, n);
+    }
+
+    private static String[] trim(String[] keys, int size)
+    {
+        if(size == keys.length)
+            return keys;
+
+        String[] trimmed = new String[size];
+        System.arraycopy(keys, 0, trimmed, 0, size);
+        return trimmed;
+    }
+
+    /**
+     * Fixed size identity cache of property names, replaced round robin
+     */
+    private static class Snapshot
+    {
+        private Object[] docs = new Object[SNAPSHOT_SIZE];
+        private String[][] keys = new String[SNAPSHOT_SIZE][];
+        private int next;
+        private int depth;
+
+        String[] get(Object doc)
+        {
+            for(int i = 0; i < docs.length; i++)
+            {
+                if(docs[i] == doc)
+                    return keys[i];
+            }
+
+            return null;
+        }
+
+        void put(Object doc, String[] k)
+        {
+            docs[next] = doc;
+            keys[next] = k;
+            next = (next + 1) % docs.length;
+        }
+
+        void remove(Object doc)
+        {
+            for(int i = 0; i < docs.length; i++)
+            {
+                if(docs[i] == doc)
+                {
+                    docs[i] = null;
+                    keys[i] = null;
+                }
+            }
+        }
+
+        void clear()
+        {
+            for(int i = 0; i < docs.length; i++)
+            {
+                docs[i] = null;
+                keys[i] = null;
+            }
+        }
+    }
+}
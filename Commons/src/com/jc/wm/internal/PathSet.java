@@ -0,0 +1,279 @@
+package com.jc.wm.internal;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.wm.data.IData;
+import com.wm.data.IDataCursor;
+
+/**
+ * Extracts the values of many xpaths from a document in a single traversal, e.g.
+ *
+ * <pre>
+ * PathSet paths = new PathSet("order/id", "order/header/city", "order/lines[1]/price", ...);
+ *
+ * Object[] values = paths.extract(pipeline);
+ * </pre>
+ *
+ * Plain paths are merged into a trie of their common prefixes, so that each document along the way is
+ * visited once, regardless of the number of paths that pass through it. Documents with many wanted keys
+ * are read in a single pass of their cursor rather than one lookup per key. Any other xpath, or any
+ * plain path whose value depends on how JXPath treats collections, is evaluated via its own
+ * {@link XPathExpression}.
+ *
+ * Paths are evaluated leniently, missing values are returned as null. Instances are thread safe.
+ *
+ * @author John Carter
+ * @version 1.0
+ */
+public class PathSet
+{
+	private static final int		SINGLE_PASS_THRESHOLD = 4;
+
+	private String[]				_paths;
+	private XPathExpression[]		_expressions;
+	private Node					_root;
+	private int[]					_fallbacks;
+
+	/**
+	 * Compiles the given paths
+	 *
+	 * @param paths xpaths to extract, results are returned in the same order
+	 * @throws XPathException if any path is invalid
+	 */
+	public PathSet(String... paths) throws XPathException
+	{
+		_paths = paths.clone();
+		_expressions = new XPathExpression[paths.length];
+		_root = new Node(0);
+
+		List<Integer> fallbacks = new ArrayList<Integer>();
+
+		for (int i = 0; i < paths.length; i++)
+		{
+			_expressions[i] = XPathExpression.compile(paths[i]);
+
+			SimplePath simple = _expressions[i].getParsed().simple;
+
+			if (simple != null)
+				_root.add(simple, 0, i);
+			else
+				fallbacks.add(i);
+		}
+
+		_root.seal();
+
+		_fallbacks = new int[fallbacks.size()];
+
+		for (int i = 0; i < _fallbacks.length; i++)
+			_fallbacks[i] = fallbacks.get(i);
+	}
+
+	public String[] getPaths()
+	{
+		return _paths.clone();
+	}
+
+	public int size()
+	{
+		return _paths.length;
+	}
+
+	/**
+	 * Returns the values of all paths in the order they were given
+	 *
+	 * @param doc document to extract from
+	 * @return array of values, null for paths not found
+	 */
+	public Object[] extract(IData doc)
+	{
+		Object[] results = new Object[_paths.length];
+
+		extract(doc, results);
+
+		return results;
+	}
+
+	/**
+	 * Extracts all values into the given array, which must be at least as long as the number of paths
+	 */
+	public void extract(IData doc, Object[] results)
+	{
+		for (int i = 0; i < _paths.length; i++)
+			results[i] = null;
+
+		visit(_root, doc, doc, results);
+
+		for (int i : _fallbacks)
+			results[i] = _expressions[i].getObject(doc);
+	}
+
+	/**
+	 * Extracts all values into a map keyed by path, in the order the paths were given
+	 */
+	public Map<String, Object> extractToMap(IData doc)
+	{
+		Object[] results = extract(doc);
+		Map<String, Object> map = new LinkedHashMap<String, Object>();
+
+		for (int i = 0; i < results.length; i++)
+			map.put(_paths[i], results[i]);
+
+		return map;
+	}
+
+	private void visit(Node node, Object value, IData root, Object[] results)
+	{
+		for (int slot : node._slots)
+			results[slot] = value;
+
+		if (node._keys.length == 0 || !(value instanceof IData))
+			return;
+
+		Object[] values = lookup(node, (IData) value);
+
+		for (int k = 0; k < node._keys.length; k++)
+		{
+			for (Node child : node._children[k])
+			{
+				Object selected = SimplePath.select(values[k], child._index);
+
+				if (selected == SimplePath.UNRESOLVED)
+					fallback(child, root, results);
+				else if (selected != null)
+					visit(child, selected, root, results);
+			}
+		}
+	}
+
+	/**
+	 * Returns the values of the node's keys in the given document, via one lookup per key or a single pass
+	 */
+	private Object[] lookup(Node node, IData doc)
+	{
+		Object[] values = new Object[node._keys.length];
+		IDataCursor c = doc.getCursor();
+
+		try
+		{
+			if (node._keys.length <= SINGLE_PASS_THRESHOLD)
+			{
+				for (int k = 0; k < node._keys.length; k++)
+					values[k] = c.first(node._keys[k]) ? c.getValue() : null;
+			}
+			else
+			{
+				boolean[] found = new boolean[values.length];
+				int remaining = values.length;
+
+				while (remaining > 0 && c.next())
+				{
+					Integer k = node._keyIndex.get(c.getKey());
+
+					// only the first occurrence of a key counts, as per IDataCursor.first(key)
+
+					if (k != null && !found[k])
+					{
+						found[k] = true;
+						values[k] = c.getValue();
+						remaining -= 1;
+					}
+				}
+			}
+		}
+		finally
+		{
+			c.destroy();
+		}
+
+		return values;
+	}
+
+	private void fallback(Node node, IData root, Object[] results)
+	{
+		for (int slot : node._slots)
+			results[slot] = _expressions[slot].getObject(root);
+
+		for (Node[] children : node._children)
+		{
+			for (Node child : children)
+				fallback(child, root, results);
+		}
+	}
+
+	private static class Node
+	{
+		private int							_index;
+		private int[]						_slots = new int[0];
+
+		private Map<String, List<Node>>		_building = new LinkedHashMap<String, List<Node>>();
+
+		private String[]					_keys;
+		private Node[][]					_children;
+		private Map<String, Integer>		_keyIndex;
+
+		Node(int index)
+		{
+			_index = index;
+		}
+
+		void add(SimplePath path, int step, int slot)
+		{
+			if (step == path.getLength())
+			{
+				int[] slots = new int[_slots.length + 1];
+				System.arraycopy(_slots, 0, slots, 0, _slots.length);
+				slots[_slots.length] = slot;
+				_slots = slots;
+
+				return;
+			}
+
+			String key = path.getKey(step);
+			int index = path.getIndex(step);
+			List<Node> variants = _building.get(key);
+
+			if (variants == null)
+				_building.put(key, variants = new ArrayList<Node>());
+
+			Node child = null;
+
+			for (Node n : variants)
+			{
+				if (n._index == index)
+					child = n;
+			}
+
+			if (child == null)
+				variants.add(child = new Node(index));
+
+			child.add(path, step + 1, slot);
+		}
+
+		/**
+		 * Converts the children into arrays for traversal
+		 */
+		void seal()
+		{
+			_keys = _building.keySet().toArray(new String[_building.size()]);
+			_children = new Node[_keys.length][];
+			_keyIndex = new HashMap<String, Integer>();
+
+			for (int k = 0; k < _keys.length; k++)
+			{
+				List<Node> variants = _building.get(_keys[k]);
+
+				_children[k] = variants.toArray(new Node[variants.size()]);
+				_keyIndex.put(_keys[k], k);
+
+				for (Node child : _children[k])
+					child.seal();
+			}
+
+			_building = null;
+		}
+	}
+}
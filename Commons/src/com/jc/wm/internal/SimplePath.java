@@ -0,0 +1,368 @@
+package com.jc.wm.internal;
+
+import java.lang.reflect.Array;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import com.wm.data.IData;
+import com.wm.data.IDataCursor;
+import com.wm.data.IDataFactory;
+
+/**
+ * Evaluates the subset of xpath consisting of plain key names with optional positional indexes, e.g.
+ * 'order/lines[2]/price', by walking the document with a cursor rather than via JXPath.
+ *
+ * Anything whose result could depend on how JXPath treats collections, such as a step without an
+ * index that arrives at an array, is reported as {@link #UNRESOLVED} so that the caller can fall back
+ * to JXPath for that evaluation.
+ *
+ * @author John Carter
+ * @version 1.0
+ */
+final class SimplePath
+{
+	static final Object			UNRESOLVED = new Object();
+
+	private String[]			_keys;
+	private int[]				_indexes;		// 1 based, 0 if no index
+
+	private SimplePath(String[] keys, int[] indexes)
+	{
+		_keys = keys;
+		_indexes = indexes;
+	}
+
+	/**
+	 * Returns the simple path for the given xpath, or null if it uses anything other than names and indexes
+	 */
+	static SimplePath parse(String xpath)
+	{
+		if (xpath == null)
+			return null;
+
+		String path = xpath.trim();
+
+		if (path.startsWith("/"))
+			path = path.substring(1);
+
+		if (path.length() == 0)
+			return null;
+
+		List<String> keys = new ArrayList<String>();
+		List<Integer> indexes = new ArrayList<Integer>();
+
+		int start = 0;
+
+		while (start <= path.length())
+		{
+			int end = path.indexOf('/', start);
+
+			if (end == -1)
+				end = path.length();
+
+			String step = path.substring(start, end);
+			int index = 0;
+			int bracket = step.indexOf('[');
+
+			if (bracket != -1)
+			{
+				if (!step.endsWith("]"))
+					return null;
+
+				index = parseIndex(step.substring(bracket + 1, step.length() - 1));
+
+				if (index < 1)
+					return null;
+
+				step = step.substring(0, bracket);
+			}
+
+			if (!isName(step))
+				return null;
+
+			keys.add(step);
+			indexes.add(index);
+
+			start = end + 1;
+		}
+
+		int[] idx = new int[indexes.size()];
+
+		for (int i = 0; i < idx.length; i++)
+			idx[i] = indexes.get(i);
+
+		return new SimplePath(keys.toArray(new String[keys.size()]), idx);
+	}
+
+	String getLastKey()
+	{
+		return _keys[_keys.length - 1];
+	}
+
+	/**
+	 * Returns the value at the path, null if not found or {@link #UNRESOLVED} if JXPath is needed
+	 *
+	 * @param doc document to search
+	 * @param lenient if false, missing values are also reported as unresolved so that JXPath can raise the error
+	 */
+	Object getValue(IData doc, boolean lenient)
+	{
+		Object current = doc;
+
+		for (int i = 0; i < _keys.length; i++)
+		{
+			if (!(current instanceof IData))
+				return current == null && lenient ? null : UNRESOLVED;
+
+			current = step((IData) current, i);
+
+			if (current == UNRESOLVED || (current == null && !lenient))
+				return UNRESOLVED;
+		}
+
+		return current;
+	}
+
+	/**
+	 * Sets the value at the path, creating any missing documents and lists along the way as per the hints
+	 *
+	 * @param doc document to update
+	 * @param value value to set
+	 * @param hints types of missing keys, may be null
+	 * @return false if the path runs into something other than a document or list, in which case JXPath is needed
+	 */
+	boolean setValue(IData doc, Object value, TypeHints hints)
+	{
+		IData parent = doc;
+		int last = _keys.length - 1;
+
+		for (int i = 0; i < last; i++)
+		{
+			Object child = child(parent, i, null, hints);
+
+			if (!(child instanceof IData))
+				return false;
+
+			parent = (IData) child;
+		}
+
+		return child(parent, last, value, hints) != UNRESOLVED;
+	}
+
+	/**
+	 * Returns the value of the given step within the parent, creating it if necessary. For the last step the
+	 * given value is set instead.
+	 */
+	private Object child(IData parent, int i, Object value, TypeHints hints)
+	{
+		boolean set = i == _keys.length - 1;
+		String key = _keys[i];
+		int index = _indexes[i];
+		TypeHints.Hint hint = hints != null ? hints.get(key) : null;
+
+		IDataCursor c = parent.getCursor();
+
+		try
+		{
+			Object existing = c.first(key) ? c.getValue() : null;
+
+			if (index == 0)
+			{
+				if (isCollection(existing) || (existing == null && !set && hint != null && hint.getType().isList()))
+					return UNRESOLVED;
+
+				if (set)
+					existing = value;
+				else if (existing == null)
+					existing = IDataFactory.create();
+				else
+					return existing;
+
+				put(c, key, existing);
+
+				return existing;
+			}
+
+			if (existing != null && !(existing instanceof Object[]))
+				return UNRESOLVED;
+
+			Object[] list = (Object[]) existing;
+
+			if (list == null || list.length < index)
+			{
+				if (list != null)
+				{
+					// keep the type of the existing list
+
+					Object[] grown = (Object[]) Array.newInstance(list.getClass().getComponentType(), Math.max(index, hint != null ? hint.getCapacity() : 0));
+					System.arraycopy(list, 0, grown, 0, list.length);
+					list = grown;
+				}
+				else
+				{
+					list = newList(hint, set ? value : null, index);
+				}
+
+				put(c, key, list);
+			}
+
+			Class<?> componentType = list.getClass().getComponentType();
+
+			if (set)
+			{
+				if (value != null && !componentType.isInstance(value))
+					return UNRESOLVED;
+
+				list[index - 1] = value;
+
+				return value;
+			}
+			else if (list[index - 1] == null)
+			{
+				if (!componentType.isAssignableFrom(IData.class))
+					return UNRESOLVED;
+
+				list[index - 1] = IDataFactory.create();
+			}
+
+			return list[index - 1];
+		}
+		finally
+		{
+			c.destroy();
+		}
+	}
+
+	/**
+	 * List of the hinted type, otherwise of documents for intermediate steps or of the value's type for the last
+	 */
+	private static Object[] newList(TypeHints.Hint hint, Object value, int index)
+	{
+		if (hint != null && hint.getType().isList())
+			return hint.newList(index);
+		else if (value == null || value instanceof IData)
+			return new IData[index];
+		else if (value instanceof String)
+			return new String[index];
+		else
+			return new Object[index];
+	}
+
+	private static void put(IDataCursor c, String key, Object value)
+	{
+		if (c.first(key))
+		{
+			c.setValue(value);
+		}
+		else
+		{
+			c.last();
+			c.insertAfter(key, value);
+		}
+	}
+
+	private Object step(IData doc, int i)
+	{
+		IDataCursor c = doc.getCursor();
+		Object value = c.first(_keys[i]) ? c.getValue() : null;
+		c.destroy();
+
+		return select(value, _indexes[i]);
+	}
+
+	/**
+	 * Applies the index of a step to the value found for its key
+	 *
+	 * @param value value of the key, may be null
+	 * @param index 1 based index, 0 if none
+	 * @return the selected value, null if none or {@link #UNRESOLVED}
+	 */
+	static Object select(Object value, int index)
+	{
+		if (value == null)
+			return null;
+
+		if (index == 0)
+		{
+			// JXPath treats collections as a set of nodes, leave it to decide
+
+			return isCollection(value) ? UNRESOLVED : value;
+		}
+		else if (value instanceof Object[])
+		{
+			Object[] array = (Object[]) value;
+
+			return index <= array.length ? array[index - 1] : null;
+		}
+		else if (value instanceof Collection)
+		{
+			return UNRESOLVED;
+		}
+		else
+		{
+			// a single value is the first and only node
+
+			return index == 1 ? value : null;
+		}
+	}
+
+	int getLength()
+	{
+		return _keys.length;
+	}
+
+	String getKey(int step)
+	{
+		return _keys[step];
+	}
+
+	int getIndex(int step)
+	{
+		return _indexes[step];
+	}
+
+	private static boolean isCollection(Object value)
+	{
+		return value instanceof Object[] || value instanceof Collection;
+	}
+
+	private static int parseIndex(String index)
+	{
+		if (index.length() == 0 || index.length() > 9)
+			return -1;
+
+		for (int i = 0; i < index.length(); i++)
+		{
+			if (index.charAt(i) < '0' || index.charAt(i) > '9')
+				return -1;
+		}
+
+		return Integer.parseInt(index);
+	}
+
+	/**
+	 * Letters, digits, '_', '-' and '.', not starting with a digit, '-' or '.', so as to exclude
+	 * axes, functions, wildcards, attributes, namespaces and abbreviations such as '..'
+	 */
+	private static boolean isName(String step)
+	{
+		if (step.length() == 0)
+			return false;
+
+		char first = step.charAt(0);
+
+		if (!Character.isLetter(first) && first != '_')
+			return false;
+
+		for (int i = 1; i < step.length(); i++)
+		{
+			char ch = step.charAt(i);
+
+			if (!Character.isLetterOrDigit(ch) && ch != '_' && ch != '-' && ch != '.')
+				return false;
+		}
+
+		return true;
+	}
+}
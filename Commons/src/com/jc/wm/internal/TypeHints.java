@@ -0,0 +1,197 @@
+package com.jc.wm.internal;
+
+import java.lang.reflect.Array;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.wm.data.IData;
+
+/**
+ * Tells {@link XPathExpression#setValue(IData, Object, TypeHints)} what to create for a missing key, so
+ * that lists are created with the right element type and, if known, their final size in one go rather
+ * than being grown one index at a time, e.g.
+ *
+ * <pre>
+ * TypeHints hints = new TypeHints().hint("lines", Type.DOCUMENT_LIST, lines.length).hint("tags", Type.STRING_LIST);
+ *
+ * for (int i = 0; i &lt; lines.length; i++)
+ *     XPathExpression.compile("order/lines[" + (i + 1) + "]/price").setValue(pipeline, lines[i].price, hints);
+ * </pre>
+ *
+ * Hints apply to every key with the given name, at any depth. Keys without a hint are created as
+ * documents. Hints can also be derived from a document type via
+ * {@link com.jc.wm.util.DocumentTypeGenerator#toTypeHints()}.
+ *
+ * @author John Carter
+ * @version 1.0
+ */
+public class TypeHints
+{
+	/**
+	 * Type of value to create, the codes are those previously passed via the array map of
+	 * {@link XPathExpression#setValue(IData, Object, Map)}
+	 */
+	public enum Type
+	{
+		DOCUMENT(null, -1),
+		DOCUMENT_LIST(IData.class, 104),
+		STRING_LIST(String.class, 101),
+		OBJECT_LIST(Object.class, 103),
+		BOOLEAN_LIST(Boolean.class, 1),
+		BYTE_LIST(Byte.class, 2),
+		CHARACTER_LIST(Character.class, 3),
+		DOUBLE_LIST(Double.class, 4),
+		FLOAT_LIST(Float.class, 5),
+		INTEGER_LIST(Integer.class, 6),
+		LONG_LIST(Long.class, 7),
+		SHORT_LIST(Short.class, 8),
+		DATE_LIST(Date.class, 9);
+
+		private Class<?>	_componentType;
+		private int			_code;
+
+		Type(Class<?> componentType, int code)
+		{
+			_componentType = componentType;
+			_code = code;
+		}
+
+		public boolean isList()
+		{
+			return _componentType != null;
+		}
+
+		public Class<?> getComponentType()
+		{
+			return _componentType;
+		}
+
+		public int getCode()
+		{
+			return _code;
+		}
+
+		/**
+		 * Returns the type for the given array map code, null if unknown
+		 */
+		public static Type fromCode(int code)
+		{
+			// 102 and 10 are older aliases
+
+			if (code == 102)
+				return DOCUMENT_LIST;
+			else if (code == 10)
+				return OBJECT_LIST;
+
+			for (Type t : values())
+			{
+				if (t._code == code)
+					return t;
+			}
+
+			return null;
+		}
+	}
+
+	/**
+	 * Type and expected size of a key
+	 */
+	public static class Hint
+	{
+		private Type		_type;
+		private int			_capacity;
+
+		Hint(Type type, int capacity)
+		{
+			_type = type;
+			_capacity = capacity;
+		}
+
+		public Type getType()
+		{
+			return _type;
+		}
+
+		public int getCapacity()
+		{
+			return _capacity;
+		}
+
+		/**
+		 * Returns a new list able to hold the given (1 based) index, at least as long as the expected size
+		 */
+		Object[] newList(int index)
+		{
+			return (Object[]) Array.newInstance(_type._componentType, Math.max(index, _capacity));
+		}
+	}
+
+	private Map<String, Hint> _hints = new HashMap<String, Hint>();
+
+	public TypeHints hint(String key, Type type)
+	{
+		return hint(key, type, 0);
+	}
+
+	/**
+	 * Adds a hint for the given key
+	 *
+	 * @param key name of key at any depth
+	 * @param type type to create
+	 * @param capacity expected length of a list, which is created at this length straight away with unused
+	 * elements left as null, 0 if not known
+	 * @return this
+	 */
+	public TypeHints hint(String key, Type type, int capacity)
+	{
+		_hints.put(key, new Hint(type, capacity));
+
+		return this;
+	}
+
+	public Hint get(String key)
+	{
+		return _hints.get(key);
+	}
+
+	public boolean isEmpty()
+	{
+		return _hints.isEmpty();
+	}
+
+	/**
+	 * Converts an array map of key to type code, as Integer or String, unknown codes are ignored
+	 */
+	public static TypeHints fromCodes(Map<String, ?> codes)
+	{
+		TypeHints hints = new TypeHints();
+
+		if (codes == null)
+			return hints;
+
+		for (Map.Entry<String, ?> e : codes.entrySet())
+		{
+			Type type = null;
+
+			if (e.getValue() instanceof Number)
+				type = Type.fromCode(((Number) e.getValue()).intValue());
+			else if (e.getValue() instanceof String)
+			{
+				try
+				{
+					type = Type.fromCode(Integer.parseInt(((String) e.getValue()).trim()));
+				}
+				catch (NumberFormatException x)
+				{
+					// ignore
+				}
+			}
+
+			if (type != null)
+				hints.hint(e.getKey(), type);
+		}
+
+		return hints;
+	}
+}
@@ -1,15 +1,35 @@
 package com.jc.wm.internal;
 
+import com.jc.util.ConcurrentTimeToLiveMap;
 import com.wm.data.IData;
 import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 import org.apache.commons.jxpath.*;
 
+/**
+ * Evaluates xpath expressions against webMethods documents. Plain paths of key names and indexes such
+ * as 'order/lines[2]/price' are evaluated by walking the document directly, anything else, or any plain
+ * path whose result depends on how JXPath treats collections, is evaluated via JXPath.
+ *
+ * Parsed expressions are shared via a bounded cache keyed by the expression text, so that creating a
+ * new instance for the same xpath does not parse it again. Use {@link #compile(String)} to validate the
+ * xpath up front and obtain an instance that can be shared between threads, as long as it is not
+ * reconfigured afterwards.
+ */
 public class XPathExpression
 {
+    public static final int COMPILED_CACHE_SIZE = 2000;
+    public static final long COMPILED_CACHE_TTL_MINUTES = 60;
+
     static HashMap<Class<?>, Boolean> registeredImpl = new HashMap<Class<?>, Boolean>();
-    String xpath;
-    boolean lenient;
-    FunctionSet functions;
+    static ConcurrentTimeToLiveMap<String, ParsedExpression> compiledExpressions = new ConcurrentTimeToLiveMap<String, ParsedExpression>(COMPILED_CACHE_SIZE, COMPILED_CACHE_TTL_MINUTES, TimeUnit.MINUTES);
+
+    final String xpath;
+    volatile boolean lenient;
+    final FunctionSet functions;
+    volatile ParsedExpression parsed;
 
 	
     public static JXPathContext getContext(IData d)
@@ -29,13 +49,62 @@ public class XPathExpression
     public static boolean canParse(String xpath)
     {
     	try{
-    		JXPathContext.compile(xpath);
+    		parsedExpression(xpath);
     		return true;
     	} catch (JXPathException x) {
     		return false;
     	}
     }
 
+    /**
+     * Parses the given xpath, or fetches it from the cache, and returns an expression ready to be evaluated
+     *
+     * @param xpath expression to compile
+     * @return reusable, thread safe expression
+     * @throws XPathException if the xpath is invalid
+     */
+    public static XPathExpression compile(String xpath) throws XPathException
+    {
+        XPathExpression expression = new XPathExpression(xpath);
+
+        try
+        {
+            expression.parsed = parsedExpression(xpath);
+        }
+        catch (JXPathException e)
+        {
+            throw new XPathException("Invalid xpath '" + xpath + "': " + e.getMessage());
+        }
+
+        return expression;
+    }
+
+    /**
+     * Empties the cache of parsed expressions
+     */
+    public static void clearCompiledCache()
+    {
+        compiledExpressions.clear();
+    }
+
+    static ParsedExpression parsedExpression(String xpath)
+    {
+        ParsedExpression parsed = compiledExpressions.get(xpath);
+
+        if (parsed == null)
+        {
+            // parsed outside of any lock, at worst two threads parse the same expression
+
+            parsed = new ParsedExpression(xpath);
+            ParsedExpression existing = compiledExpressions.putIfAbsent(xpath, parsed);
+
+            if (existing != null)
+                parsed = existing;
+        }
+
+        return parsed;
+    }
+
     public XPathExpression(String xpath)
     {
         this.xpath = xpath;
@@ -43,6 +112,19 @@ public class XPathExpression
         functions = new FunctionSet();
     }
 
+    public String getXPath()
+    {
+        return xpath;
+    }
+
+    /**
+     * Returns true if the xpath is a plain path that is evaluated without JXPath where possible
+     */
+    public boolean isSimplePath()
+    {
+        return getParsed().simple != null;
+    }
+
     public boolean isLenient()
     {
         return lenient;
@@ -60,34 +142,261 @@ public class XPathExpression
 
     public Object getObject(IData pipe)
     {
-        JXPathContext ctx = getContext(pipe);
-        ctx.setLenient(lenient);
-        ctx.setFunctions(functions);
-        return ctx.getValue(xpath);
+        ParsedExpression p = getParsed();
+
+        if (p.simple != null)
+        {
+            Object value = p.simple.getValue(pipe, lenient);
+
+            if (value != SimplePath.UNRESOLVED)
+                return value;
+        }
+
+        IDataPropertyHandler.beginEvaluation();
+
+        try
+        {
+            return p.compiled().getValue(newContext(pipe));
+        }
+        finally
+        {
+            IDataPropertyHandler.endEvaluation();
+        }
     }
 
+    /**
+     * Sets the value, creating the path if necessary
+     *
+     * @param arrayMap type codes of lists to create keyed by name, see {@link TypeHints.Type}
+     */
     public void setValue(IData pipe, Object value, Map<String, String> arrayMap)
     {
-        JXPathContext ctx = getContext(pipe);
-        ctx.setLenient(lenient);
-        ctx.setFunctions(functions);
-        ctx.setFactory(new IDataXPathFactory());
-        String key;
-        for(Iterator<String> iter = arrayMap.keySet().iterator(); iter.hasNext(); ctx.getVariables().declareVariable(key, arrayMap.get(key)))
-            key = (String)iter.next();
+        setValue(pipe, value, TypeHints.fromCodes(arrayMap), arrayMap);
+    }
 
-        ctx.createPathAndSetValue(xpath, value);
+    /**
+     * Sets the value, creating any missing documents and lists as per the given hints. For simple paths
+     * the whole path is created directly, without JXPath.
+     *
+     * @param hints types and sizes of missing keys, may be null
+     */
+    public void setValue(IData pipe, Object value, TypeHints hints)
+    {
+        setValue(pipe, value, hints, null);
+    }
+
+    private void setValue(IData pipe, Object value, TypeHints hints, Map<String, String> variables)
+    {
+        ParsedExpression p = getParsed();
+
+        if (p.simple != null && p.simple.setValue(pipe, value, hints))
+            return;
+
+        JXPathContext ctx = newContext(pipe);
+        ctx.setFactory(new IDataXPathFactory(hints));
+
+        if (variables != null)
+        {
+            for (Map.Entry<String, String> e : variables.entrySet())
+                ctx.getVariables().declareVariable(e.getKey(), e.getValue());
+        }
+
+        IDataPropertyHandler.beginEvaluation();
+
+        try
+        {
+            p.compiled().createPathAndSetValue(ctx, value);
+        }
+        finally
+        {
+            IDataPropertyHandler.endEvaluation();
+        }
     }
 
-    @SuppressWarnings({ "rawtypes", "unchecked" })
 	public Object[] getObjectArray(IData pipe)
+    {
+        return getObjectArray(pipe, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Returns at most the first max matches, evaluation stops as soon as they have been found
+     *
+     * @return matches or null if none
+     */
+    public Object[] getObjectArray(IData pipe, int max)
+    {
+        ArrayList<Object> results = new ArrayList<Object>();
+
+        for(Iterator<Object> it = iterate(pipe); results.size() < max && it.hasNext(); results.add(it.next()));
+
+        return results.size() != 0 ? results.toArray() : null;
+    }
+
+    /**
+     * Returns true if the xpath matches anything, without evaluating beyond the first match
+     */
+    public boolean exists(IData pipe)
+    {
+        return iterate(pipe).hasNext();
+    }
+
+    /**
+     * Returns the matches one at a time, each is only found when asked for
+     */
+    public Iterator<Object> iterate(IData pipe)
+    {
+        ParsedExpression p = getParsed();
+
+        if (p.simple != null)
+        {
+            // a resolved simple path identifies at most one node
+
+            Object value = p.simple.getValue(pipe, true);
+
+            if (value != SimplePath.UNRESOLVED)
+                return value != null ? Collections.singletonList(value).iterator() : Collections.emptyIterator();
+        }
+
+        JXPathContext ctx = newContext(pipe);
+        IDataPropertyHandler.beginEvaluation();
+
+        try
+        {
+            return new EvaluationIterator(p.compiled().iterate(ctx));
+        }
+        finally
+        {
+            IDataPropertyHandler.endEvaluation();
+        }
+    }
+
+    /**
+     * Returns the matches as a lazy stream
+     */
+    public Stream<Object> stream(IData pipe)
+    {
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(iterate(pipe), Spliterator.ORDERED), false);
+    }
+
+    /**
+     * Returns the matches within each of the given records in turn, e.g. to process the lines of a large
+     * batch without collecting every match first. In parallel the records are split into ranges that are
+     * evaluated by the common fork join pool, the order of matches is kept unless the stream is made unordered.
+     *
+     * @param records records to evaluate against, null elements are skipped
+     * @param parallel true to evaluate ranges of records in parallel
+     */
+    public Stream<Object> stream(IData[] records, boolean parallel)
+    {
+        return records(records, parallel).flatMap(r -> stream(r));
+    }
+
+    /**
+     * Returns the records for which the xpath matches anything, typically a predicate such as
+     * 'line[qty &gt; 10]'
+     *
+     * @param records records to filter, null elements are skipped
+     * @param parallel true to evaluate ranges of records in parallel
+     */
+    public Stream<IData> filter(IData[] records, boolean parallel)
+    {
+        return records(records, parallel).filter(r -> exists(r));
+    }
+
+    private static Stream<IData> records(IData[] records, boolean parallel)
+    {
+        Stream<IData> stream = Arrays.stream(records).filter(r -> r != null);
+
+        return parallel ? stream.parallel() : stream;
+    }
+
+    private JXPathContext newContext(IData pipe)
     {
         JXPathContext ctx = getContext(pipe);
         ctx.setLenient(lenient);
         ctx.setFunctions(functions);
-        ArrayList results = new ArrayList();
-        for(Iterator it = ctx.iterate(xpath); it.hasNext(); results.add(it.next()));
-        return results.size() != 0 ? results.toArray() : null;
+        return ctx;
+    }
+
+    ParsedExpression getParsed()
+    {
+        ParsedExpression p = parsed;
+
+        if (p == null)
+            parsed = p = parsedExpression(xpath);
+
+        return p;
+    }
+
+    /**
+     * Cached form of an xpath, simple paths are only compiled by JXPath if it is ever needed
+     */
+    static class ParsedExpression
+    {
+        final String xpath;
+        final SimplePath simple;
+        volatile CompiledExpression compiled;
+
+        ParsedExpression(String xpath)
+        {
+            this.xpath = xpath;
+            this.simple = SimplePath.parse(xpath);
+
+            if (simple == null)
+                compiled = JXPathContext.compile(xpath);
+        }
+
+        CompiledExpression compiled()
+        {
+            CompiledExpression c = compiled;
+
+            if (c == null)
+                compiled = c = JXPathContext.compile(xpath);
+
+            return c;
+        }
+    }
+
+    /**
+     * Keeps the property name snapshot for the duration of each step of a JXPath iteration
+     */
+    @SuppressWarnings("rawtypes")
+    private static class EvaluationIterator implements Iterator<Object>
+    {
+        private Iterator it;
+
+        EvaluationIterator(Iterator it)
+        {
+            this.it = it;
+        }
+
+        public boolean hasNext()
+        {
+            IDataPropertyHandler.beginEvaluation();
+
+            try
+            {
+                return it.hasNext();
+            }
+            finally
+            {
+                IDataPropertyHandler.endEvaluation();
+            }
+        }
+
+        public Object next()
+        {
+            IDataPropertyHandler.beginEvaluation();
+
+            try
+            {
+                return it.next();
+            }
+            finally
+            {
+                IDataPropertyHandler.endEvaluation();
+            }
+        }
     }
 
     @SuppressWarnings("rawtypes")
@@ -9,6 +9,7 @@ import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
 
+import com.jc.wm.internal.TypeHints;
 import com.wm.app.b2b.server.ServerAPI;
 import com.wm.util.Values;
 import com.wm.util.coder.XMLCoder;
@@ -99,6 +100,64 @@ public class DocumentTypeGenerator {
 		 return vWrapper;
 	 }
 	 
+	 /**
+	  * Returns the types of the lists and documents of this document type, for use when building
+	  * instances of it via {@link com.jc.wm.internal.XPathExpression#setValue(com.wm.data.IData, Object, TypeHints)}.
+	  * Hints are keyed by field name only, so fields sharing a name at different levels should share a type.
+	  */
+	 public TypeHints toTypeHints() {
+		 
+		 TypeHints hints = new TypeHints();
+		 
+		 for (Element e : _elements)
+			 _addTypeHints(e, hints);
+		 
+		 return hints;
+	 }
+	 
+	 private void _addTypeHints(Element e, TypeHints hints) {
+		 
+		 TypeHints.Type type = null;
+		 
+		 if (e._type == SourceElement.Type.record) {
+			 type = e._isArray ? TypeHints.Type.DOCUMENT_LIST : TypeHints.Type.DOCUMENT;
+		 } else if (e._isArray) {
+			 type = listType(e._type);
+		 }
+		 
+		 if (type != null)
+			 hints.hint(e._name, type);
+		 
+		 if (e._children != null) {
+			 
+			 for (Element child : e._children)
+				 _addTypeHints(child, hints);
+		 }
+	 }
+	 
+	 private static TypeHints.Type listType(SourceElement.Type type) {
+		 
+		 if (type == null)
+			 return TypeHints.Type.STRING_LIST;
+		 
+		 switch (type) {
+		 	case Boolean:
+		 		return TypeHints.Type.BOOLEAN_LIST;
+		 	case Integer:
+		 		return TypeHints.Type.INTEGER_LIST;
+		 	case Float:
+		 		return TypeHints.Type.FLOAT_LIST;
+		 	case Double:
+		 		return TypeHints.Type.DOUBLE_LIST;
+		 	case Date:
+		 		return TypeHints.Type.DATE_LIST;
+		 	case object:
+		 		return TypeHints.Type.OBJECT_LIST;
+		 	default:
+		 		return TypeHints.Type.STRING_LIST;
+		 }
+	 }
+	 
 	 private void _addChildrenToNode(Element parent, Iterator<SourceElement> children) {
 		 
 		 if (children != null && children.hasNext()) {
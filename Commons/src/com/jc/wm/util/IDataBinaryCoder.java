@@ -0,0 +1,781 @@
+package com.jc.wm.util;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InvalidClassException;
+import java.io.NotSerializableException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.io.StreamCorruptedException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.wm.data.IData;
+import com.wm.data.IDataCursor;
+import com.wm.data.IDataFactory;
+
+/**
+ * Compact binary alternative to the IDataXMLCoder, typically a third of the size and several times
+ * faster to encode and decode. Offers the same methods as the IDataXMLCoder so that it can be used
+ * in its place.
+ *
+ * The format starts with a four byte magic number and a version byte, followed by the root document.
+ * Every value is prefixed with a one byte type tag, integers and lengths are written as variable
+ * length integers and each distinct string, including keys, is written only once and thereafter
+ * referenced by its index in a table of strings seen so far. Since version 3 the table only holds
+ * strings of up to 256 bytes and is emptied whenever it reaches 4096 strings, by writer and reader
+ * alike, so that memory use doesn't grow with the length of a stream. Documents are written as a sequence of tag, key and value
+ * terminated by an end tag, so that duplicate keys and key order are preserved. Arrays are prefixed
+ * by their length, with the exception of document lists written via an {@link IDataStreamWriter},
+ * which are terminated by an end tag as their length is not known in advance. Version 1 documents,
+ * which never contain such lists, and version 2 documents, whose string table is unbounded, can still
+ * be read.
+ *
+ * Strings, numbers, booleans, dates, byte arrays, documents and arrays of these are encoded natively,
+ * any other serializable object is encoded via java serialization. As encoded documents are read from
+ * disk and from other servers, only classes from a few core java packages are ever deserialized,
+ * others have to be allowed explicitly via {@link #allowSerializable(String)}.
+ *
+ * @author John Carter
+ * @version 1.0
+ */
+public class IDataBinaryCoder
+{
+	public static final byte[]		MAGIC = {'J', 'C', 'I', 'D'};
+	public static final int			VERSION = 3;
+
+	static final int				MAX_TABLE_STRINGS = 4096;				// since version 3
+	static final int				MAX_TABLE_STRING_LENGTH = 256;			// bytes, since version 3
+
+	static final int				END = 0;
+	static final int				NULL = 1;
+	static final int				STRING = 2;
+	static final int				IDATA = 3;
+	static final int				IDATA_ARRAY = 4;
+	static final int				STRING_ARRAY = 5;
+	static final int				STRING_TABLE = 6;
+	static final int				OBJECT_ARRAY = 7;
+	static final int				INTEGER = 8;
+	static final int				LONG = 9;
+	static final int				SHORT = 10;
+	static final int				BYTE = 11;
+	static final int				DOUBLE = 12;
+	static final int				FLOAT = 13;
+	static final int				TRUE = 14;
+	static final int				FALSE = 15;
+	static final int				CHARACTER = 16;
+	static final int				BYTES = 17;
+	static final int				DATE = 18;
+	static final int				BIG_DECIMAL = 19;
+	static final int				BIG_INTEGER = 20;
+	static final int				SERIALIZABLE = 21;
+	static final int				RECORD_LIST = 22;		// since version 2
+
+	private static final Set<String>	_allowedSerializable = ConcurrentHashMap.newKeySet();
+
+	static
+	{
+		allowSerializable("java.lang.*");
+		allowSerializable("java.math.*");
+		allowSerializable("java.time.*");
+		allowSerializable("java.util.*");
+		allowSerializable("java.sql.Date");
+		allowSerializable("java.sql.Time");
+		allowSerializable("java.sql.Timestamp");
+	}
+
+	/**
+	 * Allows values of the given class to be decoded via java serialization, otherwise they are rejected
+	 * with an InvalidClassException. Use a name ending in '.*' to allow every class of a package, but not
+	 * of its sub packages. Only allow classes that are safe to deserialize from untrusted input.
+	 *
+	 * @param className fully qualified class name or package name followed by '.*'
+	 */
+	public static void allowSerializable(String className)
+	{
+		_allowedSerializable.add(className);
+	}
+
+	/**
+	 * Returns true if the given class, or the component class of an array, may be deserialized
+	 */
+	static boolean isAllowedSerializable(String className)
+	{
+		int dimensions = 0;
+
+		while (dimensions < className.length() && className.charAt(dimensions) == '[')
+			dimensions++;
+
+		if (dimensions > 0)
+		{
+			// primitive arrays are always fine, otherwise of the form [Lcom.acme.Type;
+
+			if (className.length() == dimensions + 1)
+				return true;
+
+			className = className.substring(dimensions + 1, className.length() - 1);
+		}
+
+		if (_allowedSerializable.contains(className))
+			return true;
+
+		int dot = className.lastIndexOf('.');
+
+		return dot != -1 && _allowedSerializable.contains(className.substring(0, dot) + ".*");
+	}
+
+	/**
+	 * Returns true if the given data starts with the magic number of this format
+	 *
+	 * @param data encoded data
+	 * @return true if produced by this coder
+	 */
+	public static boolean isBinaryEncoded(byte[] data)
+	{
+		if (data == null || data.length < MAGIC.length)
+			return false;
+
+		for (int i = 0; i < MAGIC.length; i++)
+		{
+			if (data[i] != MAGIC[i])
+				return false;
+		}
+
+		return true;
+	}
+
+	public byte[] encodeToBytes(IData doc) throws IOException
+	{
+		ByteArrayOutputStream out = new ByteArrayOutputStream(1024);
+		encode(out, doc);
+
+		return out.toByteArray();
+	}
+
+	/**
+	 * Writes the document to the given stream, the stream is flushed but not closed
+	 *
+	 * @param out stream to write to
+	 * @param doc document to encode
+	 * @throws IOException if writing fails or the document contains a value that cannot be encoded
+	 */
+	public void encode(OutputStream out, IData doc) throws IOException
+	{
+		Writer writer = new Writer(new BufferedOutputStream(out, 8192));
+
+		writer.writeHeader();
+		writer.writeValue(doc);
+		writer.flush();
+	}
+
+	public IData decodeFromBytes(byte[] data) throws IOException
+	{
+		return decode(new ByteArrayInputStream(data));
+	}
+
+	/**
+	 * Reads a document from the given stream. Only the bytes of the document are consumed, so several
+	 * documents can be read one after the other. The stream is not closed and should be buffered.
+	 *
+	 * @param in stream to read from
+	 * @return decoded document
+	 * @throws IOException if the stream is not in this format or is truncated
+	 */
+	public IData decode(InputStream in) throws IOException
+	{
+		Reader reader = new Reader(in);
+
+		reader.readHeader();
+		Object value = reader.readValue();
+
+		if (value != null && !(value instanceof IData))
+			throw new StreamCorruptedException("Expected document but found " + value.getClass().getName());
+
+		return (IData) value;
+	}
+
+	/**
+	 * Writes values in the binary format, strings are deduplicated via a table that is bounded for
+	 * version 3 onwards
+	 */
+	static class Writer
+	{
+		private DataOutputStream		_out;
+		private Map<String, Integer>	_strings;
+		private boolean					_boundedStrings;
+
+		Writer(OutputStream out)
+		{
+			_out = new DataOutputStream(out);
+			_strings = new HashMap<String, Integer>();
+		}
+
+		void writeHeader() throws IOException
+		{
+			writeHeader(VERSION);
+		}
+
+		void writeHeader(int version) throws IOException
+		{
+			_boundedStrings = version >= 3;
+
+			_out.write(MAGIC);
+			_out.writeByte(version);
+		}
+
+		void flush() throws IOException
+		{
+			_out.flush();
+		}
+
+		void writeTag(int tag) throws IOException
+		{
+			_out.writeByte(tag);
+		}
+
+		void writeDocument(IData doc) throws IOException
+		{
+			IDataCursor c = doc.getCursor();
+
+			try
+			{
+				while (c.next())
+					writeEntry(c.getKey(), c.getValue());
+			}
+			finally
+			{
+				c.destroy();
+			}
+
+			_out.writeByte(END);
+		}
+
+		void writeEntry(String key, Object value) throws IOException
+		{
+			writeTagFor(value);
+			writeString(key);
+			writeValueBody(value);
+		}
+
+		void writeValue(Object value) throws IOException
+		{
+			writeTagFor(value);
+			writeValueBody(value);
+		}
+
+		private void writeTagFor(Object value) throws IOException
+		{
+			_out.writeByte(tagFor(value));
+		}
+
+		private void writeValueBody(Object value) throws IOException
+		{
+			if (value == null || value instanceof Boolean)
+				return;		// all in the tag
+			else if (value instanceof String)
+				writeString((String) value);
+			else if (value instanceof IData)
+				writeDocument((IData) value);
+			else if (value instanceof IData[])
+				writeArray((IData[]) value);
+			else if (value instanceof String[][])
+				writeStringTable((String[][]) value);
+			else if (value instanceof String[])
+				writeStringArray((String[]) value);
+			else if (value instanceof Object[])
+				writeArray((Object[]) value);
+			else if (value instanceof Integer || value instanceof Long || value instanceof Short)
+				writeVarLong(zigZag(((Number) value).longValue()));
+			else if (value instanceof Byte)
+				_out.writeByte((Byte) value);
+			else if (value instanceof Double)
+				_out.writeDouble((Double) value);
+			else if (value instanceof Float)
+				_out.writeFloat((Float) value);
+			else if (value instanceof Character)
+				_out.writeChar((Character) value);
+			else if (value instanceof byte[])
+				writeBytes((byte[]) value);
+			else if (value instanceof Date)
+				writeVarLong(zigZag(((Date) value).getTime()));
+			else if (value instanceof BigDecimal)
+				writeString(value.toString());
+			else if (value instanceof BigInteger)
+				writeBytes(((BigInteger) value).toByteArray());
+			else
+				writeSerializable(value);
+		}
+
+		private void writeArray(Object[] array) throws IOException
+		{
+			writeVarInt(array.length);
+
+			for (Object o : array)
+				writeValue(o);
+		}
+
+		private void writeStringArray(String[] array) throws IOException
+		{
+			writeVarInt(array.length);
+
+			for (String s : array)
+				writeString(s);
+		}
+
+		private void writeStringTable(String[][] table) throws IOException
+		{
+			writeVarInt(table.length);
+
+			for (String[] row : table)
+			{
+				if (row == null)
+				{
+					writeVarInt(0);
+				}
+				else
+				{
+					writeVarInt(row.length + 1);
+
+					for (String s : row)
+						writeString(s);
+				}
+			}
+		}
+
+		private void writeSerializable(Object value) throws IOException
+		{
+			if (!(value instanceof Serializable))
+				throw new NotSerializableException(value.getClass().getName());
+
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			ObjectOutputStream out = new ObjectOutputStream(bytes);
+			out.writeObject(value);
+			out.close();
+
+			writeBytes(bytes.toByteArray());
+		}
+
+		/**
+		 * Strings are written as 0 for null, 1 followed by the string if seen for the first time
+		 * or otherwise the index of the string in the table plus 2
+		 */
+		void writeString(String value) throws IOException
+		{
+			if (value == null)
+			{
+				writeVarInt(0);
+				return;
+			}
+
+			Integer index = _strings.get(value);
+
+			if (index != null)
+			{
+				writeVarInt(index + 2);
+			}
+			else
+			{
+				byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+
+				// the reader makes the same decision from the same information, so that indexes always match
+
+				if (!_boundedStrings || bytes.length <= MAX_TABLE_STRING_LENGTH)
+				{
+					if (_boundedStrings && _strings.size() >= MAX_TABLE_STRINGS)
+						_strings.clear();
+
+					_strings.put(value, _strings.size());
+				}
+
+				writeVarInt(1);
+				writeBytes(bytes);
+			}
+		}
+
+		private void writeBytes(byte[] bytes) throws IOException
+		{
+			writeVarInt(bytes.length);
+			_out.write(bytes);
+		}
+
+		void writeVarInt(int value) throws IOException
+		{
+			writeVarLong(value & 0xFFFFFFFFL);
+		}
+
+		private void writeVarLong(long value) throws IOException
+		{
+			while ((value & ~0x7FL) != 0)
+			{
+				_out.writeByte((int) ((value & 0x7F) | 0x80));
+				value >>>= 7;
+			}
+
+			_out.writeByte((int) value);
+		}
+
+		private static long zigZag(long value)
+		{
+			return (value << 1) ^ (value >> 63);
+		}
+
+		private static int tagFor(Object value)
+		{
+			if (value == null)
+				return NULL;
+			else if (value instanceof String)
+				return STRING;
+			else if (value instanceof IData)
+				return IDATA;
+			else if (value instanceof IData[])
+				return IDATA_ARRAY;
+			else if (value instanceof String[][])
+				return STRING_TABLE;
+			else if (value instanceof String[])
+				return STRING_ARRAY;
+			else if (value instanceof Object[])
+				return OBJECT_ARRAY;
+			else if (value instanceof Integer)
+				return INTEGER;
+			else if (value instanceof Long)
+				return LONG;
+			else if (value instanceof Short)
+				return SHORT;
+			else if (value instanceof Byte)
+				return BYTE;
+			else if (value instanceof Double)
+				return DOUBLE;
+			else if (value instanceof Float)
+				return FLOAT;
+			else if (value instanceof Boolean)
+				return ((Boolean) value) ? TRUE : FALSE;
+			else if (value instanceof Character)
+				return CHARACTER;
+			else if (value instanceof byte[])
+				return BYTES;
+			else if (value instanceof Date)
+				return DATE;
+			else if (value instanceof BigDecimal)
+				return BIG_DECIMAL;
+			else if (value instanceof BigInteger)
+				return BIG_INTEGER;
+			else
+				return SERIALIZABLE;
+		}
+	}
+
+	/**
+	 * Reads values in the binary format
+	 */
+	static class Reader
+	{
+		private DataInputStream		_in;
+		private List<String>		_strings;
+		private int					_version;
+
+		Reader(InputStream in)
+		{
+			_in = new DataInputStream(in);
+			_strings = new ArrayList<String>();
+		}
+
+		int readHeader() throws IOException
+		{
+			byte[] magic = new byte[MAGIC.length];
+			_in.readFully(magic);
+
+			if (!isBinaryEncoded(magic))
+				throw new StreamCorruptedException("Not a binary encoded document");
+
+			_version = _in.readUnsignedByte();
+
+			if (_version < 1 || _version > VERSION)
+				throw new StreamCorruptedException("Unsupported binary document version " + _version);
+
+			return _version;
+		}
+
+		int readTag() throws IOException
+		{
+			return _in.readUnsignedByte();
+		}
+
+		Object readValue() throws IOException
+		{
+			return readValueBody(readTag());
+		}
+
+		IData readDocument() throws IOException
+		{
+			IData doc = IDataFactory.create();
+			IDataCursor c = doc.getCursor();
+			int tag = 0;
+
+			try
+			{
+				while ((tag=readTag()) != END)
+				{
+					String key = readString();
+					c.insertAfter(key, readValueBody(tag));
+				}
+			}
+			finally
+			{
+				c.destroy();
+			}
+
+			return doc;
+		}
+
+		Object readValueBody(int tag) throws IOException
+		{
+			switch (tag)
+			{
+				case NULL:
+					return null;
+				case STRING:
+					return readString();
+				case IDATA:
+					return readDocument();
+				case IDATA_ARRAY:
+				{
+					IData[] array = new IData[readLength()];
+
+					for (int i = 0; i < array.length; i++)
+						array[i] = (IData) readValue();
+
+					return array;
+				}
+				case STRING_ARRAY:
+					return readStringArray();
+				case STRING_TABLE:
+				{
+					String[][] table = new String[readLength()][];
+
+					for (int i = 0; i < table.length; i++)
+					{
+						int len = readVarInt();
+
+						if (len > 0)
+						{
+							table[i] = new String[len - 1];
+
+							for (int z = 0; z < len - 1; z++)
+								table[i][z] = readString();
+						}
+					}
+
+					return table;
+				}
+				case OBJECT_ARRAY:
+				{
+					Object[] array = new Object[readLength()];
+
+					for (int i = 0; i < array.length; i++)
+						array[i] = readValue();
+
+					return array;
+				}
+				case INTEGER:
+					return (int) unZigZag(readVarLong());
+				case LONG:
+					return unZigZag(readVarLong());
+				case SHORT:
+					return (short) unZigZag(readVarLong());
+				case BYTE:
+					return _in.readByte();
+				case DOUBLE:
+					return _in.readDouble();
+				case FLOAT:
+					return _in.readFloat();
+				case TRUE:
+					return Boolean.TRUE;
+				case FALSE:
+					return Boolean.FALSE;
+				case CHARACTER:
+					return _in.readChar();
+				case BYTES:
+					return readBytes();
+				case DATE:
+					return new Date(unZigZag(readVarLong()));
+				case BIG_DECIMAL:
+					return new BigDecimal(readString());
+				case BIG_INTEGER:
+					return new BigInteger(readBytes());
+				case SERIALIZABLE:
+					return readSerializable();
+				case RECORD_LIST:
+				{
+					List<IData> list = new ArrayList<IData>();
+
+					while ((tag=readTag()) != END)
+						list.add((IData) readValueBody(tag));
+
+					return list.toArray(new IData[list.size()]);
+				}
+				default:
+					throw new StreamCorruptedException("Unknown type tag " + tag);
+			}
+		}
+
+		private String[] readStringArray() throws IOException
+		{
+			String[] array = new String[readLength()];
+
+			for (int i = 0; i < array.length; i++)
+				array[i] = readString();
+
+			return array;
+		}
+
+		private Object readSerializable() throws IOException
+		{
+			ObjectInputStream in = new FilteredObjectInputStream(new ByteArrayInputStream(readBytes()));
+
+			try
+			{
+				return in.readObject();
+			}
+			catch (ClassNotFoundException e)
+			{
+				throw new IOException("Cannot decode serialized value: " + e.getMessage(), e);
+			}
+			finally
+			{
+				in.close();
+			}
+		}
+
+		String readString() throws IOException
+		{
+			int ref = readVarInt();
+
+			if (ref == 0)
+			{
+				return null;
+			}
+			else if (ref == 1)
+			{
+				byte[] bytes = readBytes();
+				String value = new String(bytes, StandardCharsets.UTF_8);
+
+				if (_version < 3 || bytes.length <= MAX_TABLE_STRING_LENGTH)
+				{
+					if (_version >= 3 && _strings.size() >= MAX_TABLE_STRINGS)
+						_strings.clear();
+
+					_strings.add(value);
+				}
+
+				return value;
+			}
+			else if (ref - 2 < _strings.size())
+			{
+				return _strings.get(ref - 2);
+			}
+			else
+			{
+				throw new StreamCorruptedException("Invalid string reference " + ref);
+			}
+		}
+
+		private byte[] readBytes() throws IOException
+		{
+			byte[] bytes = new byte[readLength()];
+			_in.readFully(bytes);
+
+			return bytes;
+		}
+
+		int readLength() throws IOException
+		{
+			int len = readVarInt();
+
+			if (len < 0)
+				throw new StreamCorruptedException("Invalid length " + len);
+
+			return len;
+		}
+
+		int readVarInt() throws IOException
+		{
+			long value = readVarLong();
+
+			if (value > 0xFFFFFFFFL)
+				throw new StreamCorruptedException("Variable length integer too large");
+
+			return (int) value;
+		}
+
+		private long readVarLong() throws IOException
+		{
+			long value = 0;
+			int shift = 0;
+			int b = 0;
+
+			do
+			{
+				if (shift > 63)
+					throw new StreamCorruptedException("Variable length integer too long");
+
+				if ((b=_in.read()) == -1)
+					throw new EOFException();
+
+				value |= (long) (b & 0x7F) << shift;
+				shift += 7;
+			}
+			while ((b & 0x80) != 0);
+
+			return value;
+		}
+
+		private static long unZigZag(long value)
+		{
+			return (value >>> 1) ^ -(value & 1);
+		}
+	}
+
+	/**
+	 * Only resolves classes that have been allowed, see {@link IDataBinaryCoder#allowSerializable(String)},
+	 * so that nothing else is ever instantiated
+	 */
+	private static class FilteredObjectInputStream extends ObjectInputStream
+	{
+		FilteredObjectInputStream(InputStream in) throws IOException
+		{
+			super(in);
+		}
+
+		@Override
+		protected Class<?> resolveClass(ObjectStreamClass desc) throws IOException, ClassNotFoundException
+		{
+			if (!isAllowedSerializable(desc.getName()))
+				throw new InvalidClassException(desc.getName(), "class has not been allowed via IDataBinaryCoder.allowSerializable()");
+
+			return super.resolveClass(desc);
+		}
+
+		@Override
+		protected Class<?> resolveProxyClass(String[] interfaces) throws IOException, ClassNotFoundException
+		{
+			throw new InvalidClassException("Proxy classes cannot be decoded");
+		}
+	}
+}
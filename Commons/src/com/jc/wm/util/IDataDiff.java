@@ -0,0 +1,684 @@
+package com.jc.wm.util;
+
+import java.lang.reflect.Array;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import com.wm.data.IData;
+import com.wm.data.IDataCursor;
+import com.wm.data.IDataFactory;
+
+/**
+ * Structural comparison of two documents, producing a {@link Patch} of add, remove and replace operations
+ * that turns the first document into the second, e.g.
+ *
+ * <pre>
+ * IDataDiff.Patch patch = IDataDiff.diff(previous, current);
+ *
+ * if (!patch.isEmpty())
+ *     send(IDataUtils.convertToCompactBytes(patch.toIData()));
+ *
+ * ...
+ *
+ * IDataDiff.Patch.fromIData(received).apply(previous);
+ * </pre>
+ *
+ * Paths identify values in the style of JSON pointers, e.g. '/order/lines/2/qty', with '~' and '/' in keys
+ * escaped as '~0' and '~1'. Array indexes start at 0.
+ *
+ * Every document and array is hashed once, bottom up, and subtrees with the same hash are taken to be
+ * identical and skipped, so the cost of comparing large documents with few differences is dominated by
+ * the hashing rather than the comparison. Subtrees shared by both documents are skipped without hashing.
+ * Simple values are always compared via equals(). The order of keys within a document is ignored.
+ *
+ * @author John Carter
+ * @version 1.0
+ */
+public class IDataDiff
+{
+	public enum Type
+	{
+		ADD,
+		REMOVE,
+		REPLACE
+	}
+
+	private static final long				FNV_OFFSET = 0xcbf29ce484222325L;
+	private static final long				FNV_PRIME = 0x100000001b3L;
+
+	private Map<Object, Long>				_hashes = new IdentityHashMap<Object, Long>();
+	private List<Operation>					_operations = new ArrayList<Operation>();
+
+	/**
+	 * Returns the operations needed to turn from into to
+	 *
+	 * @param from original document
+	 * @param to updated document
+	 * @return patch, empty if the documents are the same
+	 */
+	public static Patch diff(IData from, IData to)
+	{
+		IDataDiff diff = new IDataDiff();
+
+		diff.compareDocuments("", from, to);
+
+		return new Patch(diff._operations);
+	}
+
+	/**
+	 * Returns true if both documents have the same content, regardless of key order
+	 */
+	public static boolean isEqual(IData left, IData right)
+	{
+		return diff(left, right).isEmpty();
+	}
+
+	/**
+	 * Returns a 64 bit hash of the document content, which ignores the order of keys
+	 */
+	public static long hash(IData doc)
+	{
+		return new IDataDiff().hashOf(doc);
+	}
+
+	private IDataDiff()
+	{
+	}
+
+	private void compareDocuments(String path, IData from, IData to)
+	{
+		if (from == to || hashOf(from) == hashOf(to))
+			return;
+
+		IDataCursor fc = from.getCursor();
+		IDataCursor tc = to.getCursor();
+
+		try
+		{
+			// removed or changed values
+
+			while (fc.next())
+			{
+				String key = fc.getKey();
+				String childPath = path + "/" + escape(key);
+
+				if (!seek(tc, key))
+					_operations.add(new Operation(Type.REMOVE, childPath, null));
+				else
+					compareValues(childPath, fc.getValue(), tc.getValue());
+			}
+
+			// added values
+
+			fc.home();
+			tc.home();
+
+			while (tc.next())
+			{
+				String key = tc.getKey();
+
+				if (!seek(fc, key))
+					_operations.add(new Operation(Type.ADD, path + "/" + escape(key), tc.getValue()));
+			}
+		}
+		finally
+		{
+			fc.destroy();
+			tc.destroy();
+		}
+	}
+
+	private void compareValues(String path, Object from, Object to)
+	{
+		if (from == to)
+			return;
+
+		if (from instanceof IData && to instanceof IData)
+		{
+			compareDocuments(path, (IData) from, (IData) to);
+		}
+		else if (from instanceof Object[] && to instanceof Object[] && from.getClass() == to.getClass())
+		{
+			compareArrays(path, (Object[]) from, (Object[]) to);
+		}
+		else if (from == null || to == null || from.getClass() != to.getClass() || !leafEquals(from, to))
+		{
+			_operations.add(new Operation(Type.REPLACE, path, to));
+		}
+	}
+
+	/**
+	 * Identical leading and trailing elements are skipped, remaining elements are compared by position and
+	 * any surplus removed or added
+	 */
+	private void compareArrays(String path, Object[] from, Object[] to)
+	{
+		if (hashOf(from) == hashOf(to))
+			return;
+
+		int start = 0;
+		int fromEnd = from.length;
+		int toEnd = to.length;
+
+		while (start < fromEnd && start < toEnd && sameElement(from[start], to[start]))
+			start += 1;
+
+		while (fromEnd > start && toEnd > start && sameElement(from[fromEnd - 1], to[toEnd - 1]))
+		{
+			fromEnd -= 1;
+			toEnd -= 1;
+		}
+
+		int common = Math.min(fromEnd, toEnd) - start;
+
+		for (int i = start; i < start + common; i++)
+			compareValues(path + "/" + i, from[i], to[i]);
+
+		// remove from the end first, so that indexes remain valid as each is applied
+
+		for (int i = fromEnd - 1; i >= start + common; i--)
+			_operations.add(new Operation(Type.REMOVE, path + "/" + i, null));
+
+		for (int i = start + common; i < toEnd; i++)
+			_operations.add(new Operation(Type.ADD, path + "/" + i, to[i]));
+	}
+
+	private boolean sameElement(Object from, Object to)
+	{
+		if (from == to)
+			return true;
+		else if (from == null || to == null || from.getClass() != to.getClass())
+			return false;
+		else if (from instanceof IData || from instanceof Object[])
+			return hashOf(from) == hashOf(to);
+		else
+			return leafEquals(from, to);
+	}
+
+	/**
+	 * Positions the cursor on the key, trying the next entry first as keys are usually in the same order
+	 */
+	private static boolean seek(IDataCursor cursor, String key)
+	{
+		if (cursor.next() && key.equals(cursor.getKey()))
+			return true;
+
+		return cursor.first(key);
+	}
+
+	private long hashOf(Object value)
+	{
+		if (value == null)
+			return 0;
+
+		if (!(value instanceof IData) && !(value instanceof Object[]))
+			return leafHash(value);
+
+		Long hash = _hashes.get(value);
+
+		if (hash != null)
+			return hash;
+
+		long h = 0;
+
+		if (value instanceof IData)
+		{
+			IDataCursor c = ((IData) value).getCursor();
+
+			// sum of entry hashes, so that key order is ignored
+
+			while (c.next())
+				h += mix(stringHash(c.getKey()) * 31 + hashOf(c.getValue()));
+
+			c.destroy();
+
+			h = mix(h ^ 0x1D);
+		}
+		else
+		{
+			h = stringHash(value.getClass().getName());
+
+			for (Object element : (Object[]) value)
+				h = mix(h * 31 + hashOf(element));
+		}
+
+		_hashes.put(value, h);
+
+		return h;
+	}
+
+	private static long leafHash(Object value)
+	{
+		long h;
+
+		if (value instanceof String)
+			h = stringHash((String) value);
+		else if (value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte)
+			h = ((Number) value).longValue();
+		else if (value instanceof Double)
+			h = Double.doubleToLongBits((Double) value);
+		else if (value instanceof byte[])
+			h = bytesHash((byte[]) value);
+		else
+			h = value.hashCode();
+
+		return mix(h ^ stringHash(value.getClass().getName()));
+	}
+
+	private static boolean leafEquals(Object from, Object to)
+	{
+		if (from instanceof byte[] && to instanceof byte[])
+			return Arrays.equals((byte[]) from, (byte[]) to);
+		else
+			return from.equals(to);
+	}
+
+	private static long stringHash(String value)
+	{
+		long h = FNV_OFFSET;
+
+		for (int i = 0; i < value.length(); i++)
+		{
+			h ^= value.charAt(i);
+			h *= FNV_PRIME;
+		}
+
+		return h;
+	}
+
+	private static long bytesHash(byte[] value)
+	{
+		long h = FNV_OFFSET;
+
+		for (byte b : value)
+		{
+			h ^= b & 0xFF;
+			h *= FNV_PRIME;
+		}
+
+		return h;
+	}
+
+	/**
+	 * Final mixing step of MurmurHash3
+	 */
+	private static long mix(long h)
+	{
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+
+		return h;
+	}
+
+	static String escape(String key)
+	{
+		if (key.indexOf('~') == -1 && key.indexOf('/') == -1)
+			return key;
+
+		return key.replace("~", "~0").replace("/", "~1");
+	}
+
+	static String unescape(String token)
+	{
+		if (token.indexOf('~') == -1)
+			return token;
+
+		return token.replace("~1", "/").replace("~0", "~");
+	}
+
+	/**
+	 * Single change, the value is null for removals
+	 */
+	public static class Operation
+	{
+		private Type		_type;
+		private String		_path;
+		private Object		_value;
+
+		public Operation(Type type, String path, Object value)
+		{
+			_type = type;
+			_path = path;
+			_value = value;
+		}
+
+		public Type getType()
+		{
+			return _type;
+		}
+
+		public String getPath()
+		{
+			return _path;
+		}
+
+		public Object getValue()
+		{
+			return _value;
+		}
+
+		@Override
+		public String toString()
+		{
+			return _type + " " + _path + (_type != Type.REMOVE ? " = " + _value : "");
+		}
+	}
+
+	/**
+	 * Ordered list of operations produced by {@link IDataDiff#diff(IData, IData)}, values are references to those
+	 * of the updated document and are not copied.
+	 */
+	public static class Patch implements Iterable<Operation>
+	{
+		private List<Operation>		_operations;
+
+		public Patch(List<Operation> operations)
+		{
+			_operations = operations;
+		}
+
+		public boolean isEmpty()
+		{
+			return _operations.isEmpty();
+		}
+
+		public int size()
+		{
+			return _operations.size();
+		}
+
+		public List<Operation> getOperations()
+		{
+			return Collections.unmodifiableList(_operations);
+		}
+
+		@Override
+		public Iterator<Operation> iterator()
+		{
+			return getOperations().iterator();
+		}
+
+		/**
+		 * Applies the operations in order to the given document, which is updated in place. Arrays are replaced
+		 * by new arrays when elements are added or removed.
+		 *
+		 * @param doc document to update, should have the same content as the original document
+		 * @throws PatchException if a path cannot be resolved
+		 */
+		public void apply(IData doc) throws PatchException
+		{
+			for (Operation op : _operations)
+				apply(doc, op);
+		}
+
+		/**
+		 * Converts the patch into a document with a document list 'operations', each with 'op', 'path' and
+		 * optionally 'value', suitable for encoding via {@link IDataUtils#convertToCompactBytes(IData)}
+		 */
+		public IData toIData()
+		{
+			IData[] list = new IData[_operations.size()];
+
+			for (int i = 0; i < list.length; i++)
+			{
+				Operation op = _operations.get(i);
+
+				list[i] = IDataFactory.create();
+				IDataCursor c = list[i].getCursor();
+				c.insertAfter("op", op._type.name().toLowerCase());
+				c.insertAfter("path", op._path);
+
+				if (op._type != Type.REMOVE)
+					c.insertAfter("value", op._value);
+
+				c.destroy();
+			}
+
+			IData doc = IDataFactory.create();
+			IDataCursor c = doc.getCursor();
+			c.insertAfter("operations", list);
+			c.destroy();
+
+			return doc;
+		}
+
+		/**
+		 * Recreates a patch from a document produced by {@link #toIData()}
+		 *
+		 * @throws PatchException if the document is not a valid patch
+		 */
+		public static Patch fromIData(IData doc) throws PatchException
+		{
+			IDataCursor c = doc.getCursor();
+			Object list = c.first("operations") ? c.getValue() : null;
+			c.destroy();
+
+			if (!(list instanceof IData[]))
+				throw new PatchException("Document does not contain a list of operations");
+
+			List<Operation> operations = new ArrayList<Operation>();
+
+			for (IData element : (IData[]) list)
+			{
+				IDataCursor ec = element.getCursor();
+
+				try
+				{
+					Object op = ec.first("op") ? ec.getValue() : null;
+					Object path = ec.first("path") ? ec.getValue() : null;
+					Object value = ec.first("value") ? ec.getValue() : null;
+
+					if (!(op instanceof String) || !(path instanceof String))
+						throw new PatchException("Operation must have an op and path");
+
+					operations.add(new Operation(Type.valueOf(((String) op).toUpperCase()), (String) path, value));
+				}
+				catch (IllegalArgumentException e)
+				{
+					throw new PatchException("Invalid operation: " + element);
+				}
+				finally
+				{
+					ec.destroy();
+				}
+			}
+
+			return new Patch(operations);
+		}
+
+		@Override
+		public String toString()
+		{
+			return _operations.toString();
+		}
+
+		private static void apply(IData doc, Operation op) throws PatchException
+		{
+			if (!op._path.startsWith("/"))
+				throw new PatchException("Invalid path: " + op._path);
+
+			String[] tokens = op._path.substring(1).split("/", -1);
+
+			// navigate to the parent, remembering the container of the parent in case it is an array to be resized
+
+			Object grandParent = null;
+			String parentToken = null;
+			Object parent = doc;
+
+			for (int i = 0; i < tokens.length - 1; i++)
+			{
+				grandParent = parent;
+				parentToken = tokens[i];
+				parent = get(parent, parentToken, op);
+			}
+
+			String token = tokens[tokens.length - 1];
+
+			if (parent instanceof IData)
+			{
+				IDataCursor c = ((IData) parent).getCursor();
+				String key = unescape(token);
+
+				try
+				{
+					boolean found = c.first(key);
+
+					if (op._type == Type.REMOVE)
+					{
+						if (!found)
+							throw new PatchException("Nothing to remove at " + op._path);
+
+						c.delete();
+					}
+					else if (found)
+					{
+						c.setValue(op._value);
+					}
+					else if (op._type == Type.ADD)
+					{
+						c.last();
+						c.insertAfter(key, op._value);
+					}
+					else
+					{
+						throw new PatchException("Nothing to replace at " + op._path);
+					}
+				}
+				finally
+				{
+					c.destroy();
+				}
+			}
+			else if (parent instanceof Object[])
+			{
+				Object[] array = (Object[]) parent;
+				int index = index(token, op._type == Type.ADD ? array.length + 1 : array.length, op);
+
+				try
+				{
+					if (op._type == Type.REPLACE)
+					{
+						array[index] = op._value;
+					}
+					else
+					{
+						Object[] resized = (Object[]) Array.newInstance(array.getClass().getComponentType(), op._type == Type.ADD ? array.length + 1 : array.length - 1);
+
+						System.arraycopy(array, 0, resized, 0, index);
+
+						if (op._type == Type.ADD)
+						{
+							resized[index] = op._value;
+							System.arraycopy(array, index, resized, index + 1, array.length - index);
+						}
+						else
+						{
+							System.arraycopy(array, index + 1, resized, index, array.length - index - 1);
+						}
+
+						set(grandParent, parentToken, resized, op);
+					}
+				}
+				catch (ArrayStoreException e)
+				{
+					throw new PatchException("Value of wrong type for array at " + op._path);
+				}
+			}
+			else
+			{
+				throw new PatchException("No document or array at " + op._path);
+			}
+		}
+
+		private static Object get(Object container, String token, Operation op) throws PatchException
+		{
+			if (container instanceof IData)
+			{
+				IDataCursor c = ((IData) container).getCursor();
+
+				try
+				{
+					if (!c.first(unescape(token)))
+						throw new PatchException("Path not found: " + op._path);
+
+					return c.getValue();
+				}
+				finally
+				{
+					c.destroy();
+				}
+			}
+			else if (container instanceof Object[])
+			{
+				Object[] array = (Object[]) container;
+
+				return array[index(token, array.length, op)];
+			}
+			else
+			{
+				throw new PatchException("Path not found: " + op._path);
+			}
+		}
+
+		private static void set(Object container, String token, Object value, Operation op) throws PatchException
+		{
+			if (container instanceof IData)
+			{
+				IDataCursor c = ((IData) container).getCursor();
+
+				try
+				{
+					c.first(unescape(token));
+					c.setValue(value);
+				}
+				finally
+				{
+					c.destroy();
+				}
+			}
+			else if (container instanceof Object[])
+			{
+				((Object[]) container)[index(token, ((Object[]) container).length, op)] = value;
+			}
+			else
+			{
+				throw new PatchException("Cannot resize the root of " + op._path);
+			}
+		}
+
+		private static int index(String token, int limit, Operation op) throws PatchException
+		{
+			try
+			{
+				int index = Integer.parseInt(token);
+
+				if (index < 0 || index >= limit)
+					throw new PatchException("Index out of range: " + op._path);
+
+				return index;
+			}
+			catch (NumberFormatException e)
+			{
+				throw new PatchException("Invalid array index in " + op._path);
+			}
+		}
+	}
+
+	public static class PatchException extends Exception
+	{
+		private static final long serialVersionUID = 1L;
+
+		public PatchException(String message)
+		{
+			super(message);
+		}
+	}
+}
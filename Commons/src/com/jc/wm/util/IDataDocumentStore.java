@@ -0,0 +1,617 @@
+package com.jc.wm.util;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import org.apache.log4j.Logger;
+
+import com.wm.data.IData;
+
+/**
+ * Persists any number of named documents in a small number of append only segment files, rather than
+ * one file per document. Documents are encoded via the {@link IDataBinaryCoder}.
+ *
+ * Each segment is preallocated and memory mapped, writes simply append a record to the mapping of the
+ * current segment and reads decode directly from the mapping without any copying. An in memory index
+ * maps each name to the segment and offset of its latest record, it is rebuilt by scanning the segments
+ * when the store is opened. Removing a document appends a tombstone record.
+ *
+ * Replaced and removed documents leave dead records behind, segments that are mostly dead are compacted
+ * periodically by copying their live records to the current segment and deleting the segment file. This is
+ * done by a single daemon thread shared by all stores, so that it never holds up anything else. Each
+ * record carries a checksum so that a record left incomplete by a crash is detected and discarded when
+ * the store is next opened.
+ *
+ * Use {@link IDataUtils#writeDocToStore(String, String, IData)} and friends to share one store per directory.
+ *
+ * @author John Carter
+ * @version 1.0
+ */
+public class IDataDocumentStore implements AutoCloseable
+{
+	public static final int 				DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+	public static final long 				DEFAULT_COMPACTION_INTERVAL_MS = 300000;
+
+	private static final String				SEGMENT_SUFFIX = ".seg";
+	private static final byte				PUT = 1;
+	private static final byte				DELETE = 2;
+	private static final int				HEADER_SIZE = 4 + 4 + 1 + 4;		// length, crc, type, name length
+	private static final float				COMPACTION_THRESHOLD = 0.5f;
+
+	private File							_directory;
+	private int								_segmentSize;
+
+	private TreeMap<Integer, Segment>		_segments;
+	private Segment							_active;
+	private Map<String, Location>			_index;
+
+	private CompactionTask					_compactionTask;
+	private boolean							_closed;
+
+	private static ScheduledThreadPoolExecutor	_compactionExecutor;
+
+	public IDataDocumentStore(File directory) throws IOException
+	{
+		this(directory, DEFAULT_SEGMENT_SIZE, DEFAULT_COMPACTION_INTERVAL_MS);
+	}
+
+	/**
+	 * Opens the store in the given directory, creating it if necessary
+	 *
+	 * @param directory directory for the segment files, should not be used for anything else
+	 * @param segmentSize size of each segment file
+	 * @param compactionInterval milli seconds between compaction runs, 0 to only compact via {@link #compact()}
+	 * @throws IOException if the directory or its segments cannot be opened
+	 */
+	public IDataDocumentStore(File directory, int segmentSize, long compactionInterval) throws IOException
+	{
+		if (!directory.exists() && !directory.mkdirs())
+			throw new IOException("Cannot create document store directory " + directory);
+
+		_directory = directory;
+		_segmentSize = segmentSize;
+		_segments = new TreeMap<Integer, Segment>();
+		_index = new HashMap<String, Location>();
+
+		open();
+
+		if (compactionInterval > 0)
+		{
+			_compactionTask = new CompactionTask(this);
+			_compactionTask.start(getCompactionExecutor(), compactionInterval);
+		}
+	}
+
+	public File getDirectory()
+	{
+		return _directory;
+	}
+
+	/**
+	 * Stores the document under the given name, replacing any existing document
+	 *
+	 * @param name name of document
+	 * @param doc document to store
+	 * @throws IOException
+	 */
+	public void put(String name, IData doc) throws IOException
+	{
+		byte[] data = new IDataBinaryCoder().encodeToBytes(doc);
+
+		synchronized (this)
+		{
+			checkOpen();
+			Location location = append(PUT, name, data, 0, data.length);
+			replace(name, location);
+		}
+	}
+
+	/**
+	 * Returns the document with the given name, decoded straight from the mapped segment
+	 *
+	 * @param name name of document
+	 * @return document or null if not found
+	 * @throws IOException if the record cannot be decoded
+	 */
+	public IData get(String name) throws IOException
+	{
+		ByteBuffer data = null;
+
+		synchronized (this)
+		{
+			checkOpen();
+			Location location = _index.get(name);
+
+			if (location == null)
+				return null;
+
+			data = location._segment.slice(location._dataOffset, location._dataLength);
+		}
+
+		return new IDataBinaryCoder().decode(new ByteBufferInputStream(data));
+	}
+
+	public synchronized boolean contains(String name)
+	{
+		return _index.containsKey(name);
+	}
+
+	/**
+	 * Removes the document with the given name
+	 *
+	 * @param name name of document
+	 * @return true if found
+	 * @throws IOException
+	 */
+	public synchronized boolean remove(String name) throws IOException
+	{
+		checkOpen();
+
+		if (!_index.containsKey(name))
+			return false;
+
+		append(DELETE, name, null, 0, 0);
+		replace(name, null);
+
+		return true;
+	}
+
+	/**
+	 * Returns the names of all documents, the set is a copy
+	 */
+	public synchronized Set<String> names()
+	{
+		return new HashSet<String>(_index.keySet());
+	}
+
+	public synchronized int size()
+	{
+		return _index.size();
+	}
+
+	/**
+	 * Forces all changes to disk
+	 */
+	public synchronized void sync()
+	{
+		for (Segment segment : _segments.values())
+			segment._map.force();
+	}
+
+	/**
+	 * Compacts every segment whose live records take up less than half of it
+	 *
+	 * @return number of segments compacted
+	 * @throws IOException
+	 */
+	public int compact() throws IOException
+	{
+		int compacted = 0;
+
+		while (compactNext())
+			compacted += 1;
+
+		return compacted;
+	}
+
+	/**
+	 * Flushes and closes all segments, the current segment is truncated to the space used
+	 */
+	@Override
+	public synchronized void close() throws IOException
+	{
+		if (_closed)
+			return;
+
+		_closed = true;
+
+		if (_compactionTask != null)
+			_compactionTask.cancel();
+
+		for (Segment segment : _segments.values())
+		{
+			segment._map.force();
+
+			if (segment == _active)
+				segment._channel.truncate(segment._writeOffset);
+
+			segment._raf.close();
+		}
+
+		_segments.clear();
+		_index.clear();
+	}
+
+	private static synchronized ScheduledExecutorService getCompactionExecutor()
+	{
+		if (_compactionExecutor == null)
+		{
+			_compactionExecutor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+
+				@Override
+				public Thread newThread(Runnable r)
+				{
+					Thread t = new Thread(r, "com.jc.wm.util.IDataDocumentStore-compaction");
+					t.setDaemon(true);
+
+					return t;
+				}
+			});
+
+			_compactionExecutor.setRemoveOnCancelPolicy(true);
+		}
+
+		return _compactionExecutor;
+	}
+
+	/**
+	 * Compacts the emptiest segment if it is below the threshold
+	 */
+	private synchronized boolean compactNext() throws IOException
+	{
+		if (_closed)
+			return false;
+
+		Segment candidate = null;
+
+		for (Segment segment : _segments.values())
+		{
+			if (segment != _active && segment._liveBytes < segment._writeOffset * COMPACTION_THRESHOLD && (candidate == null || segment._liveBytes < candidate._liveBytes))
+				candidate = segment;
+		}
+
+		if (candidate == null)
+			return false;
+
+		// copy live records as they are, no need to decode them
+
+		for (Map.Entry<String, Location> e : new ArrayList<Map.Entry<String, Location>>(_index.entrySet()))
+		{
+			Location location = e.getValue();
+
+			if (location._segment == candidate)
+			{
+				ByteBuffer data = candidate.slice(location._dataOffset, location._dataLength);
+				byte[] bytes = new byte[location._dataLength];
+				data.get(bytes);
+
+				replace(e.getKey(), append(PUT, e.getKey(), bytes, 0, bytes.length));
+			}
+		}
+
+		// keep tombstones whilst an older segment may still hold a record they hide
+
+		if (_segments.firstKey() < candidate._id)
+		{
+			ByteBuffer map = candidate._map.duplicate();
+
+			for (int offset = 0; offset < candidate._writeOffset; offset += 4 + map.getInt(offset))
+			{
+				if (map.get(offset + 8) == DELETE)
+				{
+					byte[] nameBytes = new byte[map.getInt(offset + 9)];
+					map.position(offset + HEADER_SIZE);
+					map.get(nameBytes);
+					String name = new String(nameBytes, StandardCharsets.UTF_8);
+
+					if (!_index.containsKey(name))
+						append(DELETE, name, null, 0, 0);
+				}
+			}
+		}
+
+		_segments.remove(candidate._id);
+		candidate._raf.close();
+
+		if (!candidate._file.delete())
+			Logger.getLogger(IDataDocumentStore.class).warn("Cannot delete compacted segment " + candidate._file);
+
+		return true;
+	}
+
+	private void open() throws IOException
+	{
+		File[] files = _directory.listFiles(new FilenameFilter() {
+
+			@Override
+			public boolean accept(File dir, String name)
+			{
+				return name.endsWith(SEGMENT_SUFFIX);
+			}
+		});
+
+		Arrays.sort(files);
+
+		for (File file : files)
+		{
+			int id = Integer.parseInt(file.getName().substring(0, file.getName().length() - SEGMENT_SUFFIX.length()));
+			Segment segment = new Segment(id, file, Math.max(_segmentSize, file.length()));
+
+			_segments.put(id, segment);
+			scan(segment);
+		}
+
+		if (_segments.isEmpty())
+			_active = newSegment(_segmentSize);
+		else
+			_active = _segments.lastEntry().getValue();
+	}
+
+	/**
+	 * Rebuilds the index from the records of the segment, stops at the first incomplete or corrupt record
+	 */
+	private void scan(Segment segment)
+	{
+		ByteBuffer map = segment._map.duplicate();
+		int offset = 0;
+
+		while (offset + HEADER_SIZE <= map.capacity())
+		{
+			map.position(offset);
+
+			int length = map.getInt();
+
+			if (length <= 0 || offset + 4 + length > map.capacity())
+				break;
+
+			int crc = map.getInt();
+			byte type = map.get();
+			int nameLength = map.getInt();
+
+			if (nameLength < 0 || nameLength > length - 9 || crc != checksum(segment._map, offset + 8, length - 4))
+			{
+				Logger.getLogger(IDataDocumentStore.class).warn("Discarding corrupt record at " + offset + " in " + segment._file);
+				break;
+			}
+
+			byte[] nameBytes = new byte[nameLength];
+			map.get(nameBytes);
+			String name = new String(nameBytes, StandardCharsets.UTF_8);
+
+			int dataOffset = offset + HEADER_SIZE + nameLength;
+			int dataLength = length - 9 - nameLength;
+
+			replace(name, type == PUT ? new Location(segment, offset, 4 + length, dataOffset, dataLength) : null);
+
+			offset += 4 + length;
+		}
+
+		segment._writeOffset = offset;
+
+		// clear anything after the last good record, so that it is not mistaken for a record later on
+
+		for (int i = offset; i < Math.min(offset + HEADER_SIZE, segment._map.capacity()); i++)
+			segment._map.put(i, (byte) 0);
+	}
+
+	private Location append(byte type, String name, byte[] data, int off, int len) throws IOException
+	{
+		byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+		int length = 4 + 1 + 4 + nameBytes.length + len;		// everything after the length field
+
+		if (_active._writeOffset + 4 + length + 4 > _active._map.capacity())
+			_active = newSegment(Math.max(_segmentSize, 4 + length + 4));
+
+		Segment segment = _active;
+		int offset = segment._writeOffset;
+		ByteBuffer map = segment._map;
+
+		map.position(offset + 8);
+		map.put(type);
+		map.putInt(nameBytes.length);
+		map.put(nameBytes);
+
+		if (data != null)
+			map.put(data, off, len);
+
+		map.putInt(offset + 4 + length, 0);			// end marker
+		map.putInt(offset + 4, checksum(map, offset + 8, length - 4));
+		map.putInt(offset, length);					// written last, so that a partial record is never seen as complete
+
+		segment._writeOffset = offset + 4 + length;
+
+		return new Location(segment, offset, 4 + length, offset + HEADER_SIZE + nameBytes.length, len);
+	}
+
+	/**
+	 * Points the index at the new location and maintains the live byte counts of the segments
+	 */
+	private void replace(String name, Location location)
+	{
+		Location old = location != null ? _index.put(name, location) : _index.remove(name);
+
+		if (old != null)
+			old._segment._liveBytes -= old._recordLength;
+
+		if (location != null)
+			location._segment._liveBytes += location._recordLength;
+	}
+
+	private Segment newSegment(long size) throws IOException
+	{
+		int id = _segments.isEmpty() ? 1 : _segments.lastKey() + 1;
+		Segment segment = new Segment(id, new File(_directory, String.format("%08d", id) + SEGMENT_SUFFIX), size);
+
+		_segments.put(id, segment);
+
+		return segment;
+	}
+
+	private void checkOpen() throws IOException
+	{
+		if (_closed)
+			throw new IOException("Document store has been closed: " + _directory);
+	}
+
+	private static int checksum(ByteBuffer buffer, int offset, int length)
+	{
+		CRC32 crc = new CRC32();
+		byte[] chunk = new byte[Math.min(length, 8192)];
+		ByteBuffer b = buffer.duplicate();
+		b.position(offset);
+
+		while (length > 0)
+		{
+			int n = Math.min(length, chunk.length);
+			b.get(chunk, 0, n);
+			crc.update(chunk, 0, n);
+			length -= n;
+		}
+
+		return (int) crc.getValue();
+	}
+
+	private static class Segment
+	{
+		private int						_id;
+		private File					_file;
+		private RandomAccessFile		_raf;
+		private FileChannel				_channel;
+		private MappedByteBuffer		_map;
+		private int						_writeOffset;
+		private long					_liveBytes;
+
+		Segment(int id, File file, long size) throws IOException
+		{
+			_id = id;
+			_file = file;
+			_raf = new RandomAccessFile(file, "rw");
+			_channel = _raf.getChannel();
+			_map = _channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+		}
+
+		ByteBuffer slice(int offset, int length)
+		{
+			ByteBuffer b = _map.duplicate();
+			b.position(offset);
+			b.limit(offset + length);
+
+			return b.slice();
+		}
+	}
+
+	private static class Location
+	{
+		private Segment		_segment;
+		private int			_recordLength;
+		private int			_dataOffset;
+		private int			_dataLength;
+
+		Location(Segment segment, int offset, int recordLength, int dataOffset, int dataLength)
+		{
+			_segment = segment;
+			_recordLength = recordLength;
+			_dataOffset = dataOffset;
+			_dataLength = dataLength;
+		}
+	}
+
+	/**
+	 * Reads directly from a mapped buffer
+	 */
+	private static class ByteBufferInputStream extends InputStream
+	{
+		private ByteBuffer _buffer;
+
+		ByteBufferInputStream(ByteBuffer buffer)
+		{
+			_buffer = buffer;
+		}
+
+		@Override
+		public int read()
+		{
+			return _buffer.hasRemaining() ? _buffer.get() & 0xFF : -1;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len)
+		{
+			if (!_buffer.hasRemaining())
+				return -1;
+
+			len = Math.min(len, _buffer.remaining());
+			_buffer.get(b, off, len);
+
+			return len;
+		}
+
+		@Override
+		public int available()
+		{
+			return _buffer.remaining();
+		}
+	}
+
+	/**
+	 * Periodic compaction, only holds a weak reference to the store
+	 */
+	private static class CompactionTask implements Runnable
+	{
+		private WeakReference<IDataDocumentStore> _store;
+
+		private volatile ScheduledFuture<?> _future;
+
+		CompactionTask(IDataDocumentStore store)
+		{
+			_store = new WeakReference<IDataDocumentStore>(store);
+		}
+
+		void start(ScheduledExecutorService executor, long interval)
+		{
+			_future = executor.scheduleWithFixedDelay(this, interval, interval, TimeUnit.MILLISECONDS);
+		}
+
+		void cancel()
+		{
+			if (_future != null)
+				_future.cancel(false);
+		}
+
+		@Override
+		public void run()
+		{
+			IDataDocumentStore store = _store.get();
+
+			if (store == null)
+			{
+				cancel();
+				return;
+			}
+
+			// one segment per run, so as not to hold up writers for long
+
+			try
+			{
+				store.compactNext();
+			}
+			catch (Exception e)
+			{
+				// an exception would silently stop all future runs
+
+				Logger.getLogger(IDataDocumentStore.class).error("Compaction failed for " + store._directory + ": " + e.getMessage(), e);
+			}
+		}
+	}
+}
@@ -0,0 +1,422 @@
+package com.jc.wm.util;
+
+import java.lang.reflect.Array;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.wm.data.IData;
+import com.wm.data.IDataCursor;
+
+/**
+ * Deep merges any number of documents into a destination document in a single call. Keys missing from
+ * the destination are added and nested documents are always merged recursively, how any other conflict
+ * is resolved depends on the {@link Strategy}, which can also be overridden for individual keys e.g.
+ *
+ * <pre>
+ * IDataMerger merger = new IDataMerger(Strategy.OVERWRITE);
+ * merger.setStrategy("lines", Strategy.MERGE_LISTS_BY_KEY);
+ * merger.setListKey("lineId");
+ *
+ * merger.merge(order, update1, update2);
+ * </pre>
+ *
+ * A single cursor is used for each destination document regardless of the number of sources and keys
+ * are located by checking the next entry of the cursor first, as sources usually share the key order of
+ * the destination. Values are added by reference, not copied, in the same way as {@link IDataUtils#merge(IData, IData)}.
+ *
+ * Instances can be reused but are not thread safe.
+ *
+ * @author John Carter
+ * @version 1.0
+ */
+public class IDataMerger
+{
+	/**
+	 * How to resolve a key found in both the destination and a source, when the values are not both documents
+	 */
+	public enum Strategy
+	{
+		/**
+		 * Source value replaces the destination value
+		 */
+		OVERWRITE,
+		/**
+		 * Destination value is left as is, unless it is null
+		 */
+		KEEP,
+		/**
+		 * Arrays are concatenated, anything else is overwritten
+		 */
+		APPEND_ARRAY,
+		/**
+		 * Document lists are merged element by element, any extra source elements are appended.
+		 * Anything else is overwritten. This is the behaviour of {@link IDataUtils#merge(IData, IData)}
+		 */
+		MERGE_LISTS_BY_POSITION,
+		/**
+		 * Document list elements with the same value for the list key are merged, others are appended.
+		 * Anything else is overwritten.
+		 */
+		MERGE_LISTS_BY_KEY
+	}
+
+	public static final String				DEFAULT_LIST_KEY = "id";
+
+	private static final int				LINEAR_SEARCH_LIMIT = 8;
+
+	private Strategy						_strategy;
+	private Map<String, Strategy>			_overrides;
+	private String							_listKey = DEFAULT_LIST_KEY;
+
+	private List<Map<Object, Integer>>		_listIndexes = new ArrayList<Map<Object, Integer>>();
+	private int								_depth;
+
+	public IDataMerger()
+	{
+		this(Strategy.MERGE_LISTS_BY_POSITION);
+	}
+
+	public IDataMerger(Strategy strategy)
+	{
+		_strategy = strategy;
+	}
+
+	public Strategy getStrategy()
+	{
+		return _strategy;
+	}
+
+	public void setStrategy(Strategy strategy)
+	{
+		_strategy = strategy;
+	}
+
+	/**
+	 * Uses the given strategy for any value with the given key, at any depth
+	 */
+	public void setStrategy(String key, Strategy strategy)
+	{
+		if (_overrides == null)
+			_overrides = new HashMap<String, Strategy>();
+
+		_overrides.put(key, strategy);
+	}
+
+	public String getListKey()
+	{
+		return _listKey;
+	}
+
+	/**
+	 * Key used to match document list elements for {@link Strategy#MERGE_LISTS_BY_KEY}, defaults to 'id'
+	 */
+	public void setListKey(String listKey)
+	{
+		_listKey = listKey;
+	}
+
+	/**
+	 * Merges the sources into the destination in the given order
+	 *
+	 * @param dest document to update
+	 * @param sources documents to merge into it, null entries are ignored
+	 */
+	public void merge(IData dest, IData... sources)
+	{
+		if (dest == null || sources == null)
+			return;
+
+		IDataCursor destCursor = dest.getCursor();
+
+		try
+		{
+			for (IData src : sources)
+			{
+				if (src != null && src != dest)
+					mergeInto(destCursor, src);
+			}
+		}
+		finally
+		{
+			destCursor.destroy();
+		}
+	}
+
+	private void mergeInto(IDataCursor destCursor, IData src)
+	{
+		IDataCursor srcCursor = src.getCursor();
+
+		try
+		{
+			destCursor.home();
+
+			while (srcCursor.next())
+			{
+				String key = srcCursor.getKey();
+				Object value = srcCursor.getValue();
+
+				if (!seek(destCursor, key))
+				{
+					destCursor.last();
+					destCursor.insertAfter(key, value);
+					continue;
+				}
+
+				Object existing = destCursor.getValue();
+
+				if (existing instanceof IData && value instanceof IData)
+				{
+					if (existing != value)
+						mergeChild((IData) existing, (IData) value);
+				}
+				else
+				{
+					Object merged = resolve(key, existing, value);
+
+					if (merged != existing)
+						destCursor.setValue(merged);
+				}
+			}
+		}
+		finally
+		{
+			srcCursor.destroy();
+		}
+	}
+
+	private void mergeChild(IData dest, IData src)
+	{
+		IDataCursor destCursor = dest.getCursor();
+
+		_depth += 1;
+
+		try
+		{
+			mergeInto(destCursor, src);
+		}
+		finally
+		{
+			_depth -= 1;
+			destCursor.destroy();
+		}
+	}
+
+	/**
+	 * Positions the cursor on the key, trying the next entry first
+	 */
+	private boolean seek(IDataCursor cursor, String key)
+	{
+		if (cursor.next() && key.equals(cursor.getKey()))
+			return true;
+
+		return cursor.first(key);
+	}
+
+	private Object resolve(String key, Object existing, Object value)
+	{
+		Strategy strategy = _strategy;
+
+		if (_overrides != null)
+		{
+			Strategy s = _overrides.get(key);
+
+			if (s != null)
+				strategy = s;
+		}
+
+		switch (strategy)
+		{
+			case KEEP:
+
+				return existing != null ? existing : value;
+
+			case APPEND_ARRAY:
+
+				if (existing instanceof Object[] && value instanceof Object[])
+					return concat((Object[]) existing, (Object[]) value);
+				else
+					return value;
+
+			case MERGE_LISTS_BY_POSITION:
+
+				if (existing instanceof IData[] && value instanceof IData[])
+					return mergeByPosition((IData[]) existing, (IData[]) value);
+				else
+					return value;
+
+			case MERGE_LISTS_BY_KEY:
+
+				if (existing instanceof IData[] && value instanceof IData[])
+					return mergeByKey((IData[]) existing, (IData[]) value);
+				else
+					return value;
+
+			default:
+
+				return value;
+		}
+	}
+
+	/**
+	 * Lists of equal size are merged element by element. A longer source list is merged for the length of the
+	 * destination and the remainder appended, whilst a shorter source list is simply appended.
+	 */
+	private IData[] mergeByPosition(IData[] dest, IData[] src)
+	{
+		IData[] result = dest;
+		int offset = 0;
+
+		if (dest.length < src.length)
+		{
+			result = new IData[src.length];
+			System.arraycopy(dest, 0, result, 0, dest.length);
+		}
+		else if (dest.length > src.length)
+		{
+			result = new IData[dest.length + src.length];
+			System.arraycopy(dest, 0, result, 0, dest.length);
+			offset = dest.length;
+		}
+
+		for (int i = 0; i < src.length; i++)
+		{
+			IData element = result[offset + i];
+
+			if (element == null)
+				result[offset + i] = src[i];
+			else if (src[i] != null && element != src[i])
+				mergeChild(element, src[i]);
+		}
+
+		return result;
+	}
+
+	/**
+	 * Elements are matched via the list key, unmatched source elements are appended in order and can then be
+	 * matched by later source elements in turn
+	 */
+	private IData[] mergeByKey(IData[] dest, IData[] src)
+	{
+		Map<Object, Integer> index = null;
+
+		if (dest.length > LINEAR_SEARCH_LIMIT)
+		{
+			index = listIndex();
+
+			for (int i = 0; i < dest.length; i++)
+			{
+				Object id = keyOf(dest[i]);
+
+				if (id != null && !index.containsKey(id))
+					index.put(id, i);
+			}
+		}
+
+		IData[] result = dest;
+		int size = dest.length;
+
+		try
+		{
+			for (IData element : src)
+			{
+				Object id = keyOf(element);
+				int match = id == null ? -1 : find(result, size, index, id);
+
+				if (match != -1)
+				{
+					if (result[match] != element)
+						mergeChild(result[match], element);
+				}
+				else
+				{
+					if (result == dest)
+					{
+						result = new IData[dest.length + src.length];
+						System.arraycopy(dest, 0, result, 0, dest.length);
+					}
+
+					if (index != null && id != null)
+						index.put(id, size);
+
+					result[size++] = element;
+				}
+			}
+		}
+		finally
+		{
+			if (index != null)
+				index.clear();
+		}
+
+		if (result != dest && size < result.length)
+		{
+			IData[] trimmed = new IData[size];
+			System.arraycopy(result, 0, trimmed, 0, size);
+			result = trimmed;
+		}
+
+		return result;
+	}
+
+	private int find(IData[] list, int size, Map<Object, Integer> index, Object id)
+	{
+		if (index != null)
+		{
+			Integer i = index.get(id);
+			return i != null ? i : -1;
+		}
+
+		for (int i = 0; i < size; i++)
+		{
+			if (id.equals(keyOf(list[i])))
+				return i;
+		}
+
+		return -1;
+	}
+
+	private Object keyOf(IData element)
+	{
+		if (element == null)
+			return null;
+
+		IDataCursor c = element.getCursor();
+
+		try
+		{
+			return c.first(_listKey) ? c.getValue() : null;
+		}
+		finally
+		{
+			c.destroy();
+		}
+	}
+
+	/**
+	 * Index maps are kept per depth and reused, as nested lists are merged whilst the parent's map is in use
+	 */
+	private Map<Object, Integer> listIndex()
+	{
+		while (_listIndexes.size() <= _depth)
+			_listIndexes.add(new HashMap<Object, Integer>());
+
+		return _listIndexes.get(_depth);
+	}
+
+	private static Object[] concat(Object[] dest, Object[] src)
+	{
+		Class<?> type = dest.getClass().getComponentType();
+
+		if (!type.isAssignableFrom(src.getClass().getComponentType()))
+			type = Object.class;
+
+		Object[] result = (Object[]) Array.newInstance(type, dest.length + src.length);
+
+		System.arraycopy(dest, 0, result, 0, dest.length);
+		System.arraycopy(src, 0, result, dest.length, src.length);
+
+		return result;
+	}
+}
@@ -0,0 +1,32 @@
+package com.jc.wm.util;
+
+import java.io.IOException;
+
+import com.jc.util.ValueSerializer;
+import com.wm.data.IData;
+
+/**
+ * Serializes webMethods documents for an {@link com.jc.util.OffHeapOverflowStore} using the compact
+ * {@link IDataBinaryCoder} format, e.g.
+ *
+ * <pre>
+ * cache.setOverflowStore(new OffHeapOverflowStore&lt;String, IData&gt;(2L * 1024 * 1024 * 1024, OffHeapOverflowStore.DEFAULT_SLAB_SIZE, new IDataSerializer()));
+ * </pre>
+ *
+ * @author John Carter
+ * @version 1.0
+ */
+public class IDataSerializer implements ValueSerializer<IData>
+{
+	@Override
+	public byte[] serialize(IData value) throws IOException
+	{
+		return IDataUtils.convertToCompactBytes(value);
+	}
+
+	@Override
+	public IData deserialize(byte[] data) throws IOException
+	{
+		return IDataUtils.convertCompactBytesToIData(data);
+	}
+}
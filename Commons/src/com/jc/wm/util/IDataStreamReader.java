@@ -0,0 +1,252 @@
+package com.jc.wm.util;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StreamCorruptedException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+import com.wm.data.IData;
+
+/**
+ * Reads a document written in the {@link IDataBinaryCoder} format one event at a time, so that a
+ * document of any size can be processed in constant memory. Each call to {@link #next()} returns
+ * the next event, the key and value of which are then available via {@link #getKey()} and
+ * {@link #getValue()}. Any nested document can be read in full via {@link #readDocument()}, which
+ * is typically used to process a document list one element at a time, e.g.
+ *
+ * <pre>
+ * IDataStreamReader reader = new IDataStreamReader(in);
+ * Event event = null;
+ *
+ * while ((event=reader.next()) != Event.END_STREAM)
+ * {
+ *     if (event == Event.START_LIST &amp;&amp; reader.getKey().equals("lines"))
+ *     {
+ *         while ((event=reader.next()) != Event.END_LIST)
+ *         {
+ *             if (event == Event.START_DOCUMENT)
+ *                 process(reader.readDocument());
+ *         }
+ *     }
+ * }
+ * </pre>
+ *
+ * Both document lists written by an {@link IDataStreamWriter} and ordinary IData arrays are
+ * reported as lists. Values that are not documents or document lists, including string arrays,
+ * are reported as a single VALUE event, as are null elements of a document list, whose value is
+ * then null.
+ *
+ * @author John Carter
+ * @version 1.0
+ */
+public class IDataStreamReader implements Closeable
+{
+	public enum Event
+	{
+		START_DOCUMENT,
+		END_DOCUMENT,
+		START_LIST,
+		END_LIST,
+		VALUE,
+		END_STREAM
+	}
+
+	private InputStream					_in;
+	private IDataBinaryCoder.Reader		_reader;
+	private Deque<Frame>				_open;
+	private boolean						_started;
+
+	private Event						_event;
+	private String						_key;
+	private Object						_value;
+
+	/**
+	 * @param in stream to read from, should be buffered
+	 */
+	public IDataStreamReader(InputStream in)
+	{
+		_in = in;
+		_reader = new IDataBinaryCoder.Reader(in);
+		_open = new ArrayDeque<Frame>();
+	}
+
+	/**
+	 * Advances to the next event
+	 *
+	 * @return the event
+	 * @throws IOException if the stream is not in the binary format or is truncated
+	 */
+	public Event next() throws IOException
+	{
+		_key = null;
+		_value = null;
+
+		if (!_started)
+		{
+			_started = true;
+			_reader.readHeader();
+
+			return startValue(_reader.readTag());
+		}
+
+		Frame frame = _open.peek();
+
+		if (frame == null)
+			return _event = Event.END_STREAM;
+
+		if (frame._document)
+		{
+			int tag = _reader.readTag();
+
+			if (tag == IDataBinaryCoder.END)
+			{
+				_open.pop();
+				return _event = Event.END_DOCUMENT;
+			}
+
+			_key = _reader.readString();
+
+			return startValue(tag);
+		}
+		else if (frame._remaining >= 0)
+		{
+			if (frame._remaining == 0)
+			{
+				_open.pop();
+				return _event = Event.END_LIST;
+			}
+
+			frame._remaining -= 1;
+
+			return startValue(_reader.readTag());
+		}
+		else
+		{
+			int tag = _reader.readTag();
+
+			if (tag == IDataBinaryCoder.END)
+			{
+				_open.pop();
+				return _event = Event.END_LIST;
+			}
+
+			return startValue(tag);
+		}
+	}
+
+	/**
+	 * Returns the current event, null if {@link #next()} has not yet been called
+	 */
+	public Event getEvent()
+	{
+		return _event;
+	}
+
+	/**
+	 * Returns the key of the current document, list or value, null for list elements and the root document
+	 */
+	public String getKey()
+	{
+		return _key;
+	}
+
+	/**
+	 * Returns the value of the current VALUE event
+	 */
+	public Object getValue()
+	{
+		return _value;
+	}
+
+	/**
+	 * Returns the number of currently open documents and lists
+	 */
+	public int getDepth()
+	{
+		return _open.size();
+	}
+
+	/**
+	 * Reads the remainder of the document just started in full, the next event will be that
+	 * following its end.
+	 *
+	 * @return the document
+	 * @throws IOException
+	 */
+	public IData readDocument() throws IOException
+	{
+		if (_event != Event.START_DOCUMENT)
+			throw new IllegalStateException("Not at the start of a document");
+
+		IData doc = _reader.readDocument();
+
+		_open.pop();
+		_event = Event.END_DOCUMENT;
+
+		return doc;
+	}
+
+	/**
+	 * Skips the remainder of the current document or list
+	 *
+	 * @throws IOException
+	 */
+	public void skip() throws IOException
+	{
+		if (_event != Event.START_DOCUMENT && _event != Event.START_LIST)
+			return;
+
+		int depth = _open.size();
+
+		while (_open.size() >= depth)
+			next();
+	}
+
+	@Override
+	public void close() throws IOException
+	{
+		_in.close();
+	}
+
+	private Event startValue(int tag) throws IOException
+	{
+		if (tag == IDataBinaryCoder.IDATA)
+		{
+			_open.push(new Frame(true, -1));
+			return _event = Event.START_DOCUMENT;
+		}
+		else if (tag == IDataBinaryCoder.IDATA_ARRAY)
+		{
+			_open.push(new Frame(false, _reader.readLength()));
+			return _event = Event.START_LIST;
+		}
+		else if (tag == IDataBinaryCoder.RECORD_LIST)
+		{
+			_open.push(new Frame(false, -1));
+			return _event = Event.START_LIST;
+		}
+		else if (_open.isEmpty())
+		{
+			throw new StreamCorruptedException("Stream does not start with a document");
+		}
+		else
+		{
+			_value = _reader.readValueBody(tag);
+			return _event = Event.VALUE;
+		}
+	}
+
+	private static class Frame
+	{
+		private boolean		_document;
+		private int			_remaining;		// -1 if terminated by an end tag
+
+		Frame(boolean document, int remaining)
+		{
+			_document = document;
+			_remaining = remaining;
+		}
+	}
+}
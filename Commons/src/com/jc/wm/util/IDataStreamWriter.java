@@ -0,0 +1,208 @@
+package com.jc.wm.util;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+import com.wm.data.IData;
+
+/**
+ * Writes a document to a stream piece by piece in the {@link IDataBinaryCoder} format, so that
+ * large documents never need to be held in memory in full. Lists of documents can be written one
+ * element at a time without knowing their size in advance, e.g.
+ *
+ * <pre>
+ * IDataStreamWriter writer = new IDataStreamWriter(out);
+ *
+ * writer.write("header", header);
+ * writer.startList("lines");
+ *
+ * while (...)
+ *     writer.write(nextLine);
+ *
+ * writer.endList();
+ * writer.close();
+ * </pre>
+ *
+ * The result can be read back whole via {@link IDataBinaryCoder#decode(java.io.InputStream)} or
+ * piece by piece via an {@link IDataStreamReader}. Strings are deduplicated via a table of
+ * bounded size, so memory use grows with neither the size of the document nor the number of
+ * distinct strings written.
+ *
+ * @author John Carter
+ * @version 1.0
+ */
+public class IDataStreamWriter implements Closeable
+{
+	private static final Object				DOCUMENT = "document";
+	private static final Object				LIST = "list";
+
+	private OutputStream					_out;
+	private IDataBinaryCoder.Writer			_writer;
+	private Deque<Object>					_open;
+	private boolean							_finished;
+
+	/**
+	 * Starts writing a new document to the given stream
+	 *
+	 * @param out stream to write to
+	 * @throws IOException
+	 */
+	public IDataStreamWriter(OutputStream out) throws IOException
+	{
+		_out = out;
+		_writer = new IDataBinaryCoder.Writer(new BufferedOutputStream(out, 8192));
+		_open = new ArrayDeque<Object>();
+
+		_writer.writeHeader();
+		_writer.writeTag(IDataBinaryCoder.IDATA);
+		_open.push(DOCUMENT);
+	}
+
+	/**
+	 * Adds the given key and value to the current document, the value can be anything supported
+	 * by the {@link IDataBinaryCoder} including complete documents and document lists.
+	 *
+	 * @param key key of value
+	 * @param value value to write
+	 * @throws IOException
+	 */
+	public void write(String key, Object value) throws IOException
+	{
+		checkIn(DOCUMENT);
+
+		_writer.writeEntry(key, value);
+	}
+
+	/**
+	 * Adds a complete document to the current list
+	 *
+	 * @param element list element
+	 * @throws IOException
+	 */
+	public void write(IData element) throws IOException
+	{
+		checkIn(LIST);
+
+		_writer.writeValue(element);
+	}
+
+	/**
+	 * Starts a nested document within the current document, its contents are added via subsequent
+	 * calls until {@link #endDocument()} is called.
+	 *
+	 * @param key key of the nested document
+	 * @throws IOException
+	 */
+	public void startDocument(String key) throws IOException
+	{
+		checkIn(DOCUMENT);
+
+		_writer.writeTag(IDataBinaryCoder.IDATA);
+		_writer.writeString(key);
+		_open.push(DOCUMENT);
+	}
+
+	/**
+	 * Starts a new element of the current list, its contents are added via subsequent calls until
+	 * {@link #endDocument()} is called.
+	 *
+	 * @throws IOException
+	 */
+	public void startDocument() throws IOException
+	{
+		checkIn(LIST);
+
+		_writer.writeTag(IDataBinaryCoder.IDATA);
+		_open.push(DOCUMENT);
+	}
+
+	public void endDocument() throws IOException
+	{
+		checkIn(DOCUMENT);
+
+		if (_open.size() == 1)
+			throw new IllegalStateException("Root document is ended via finish() or close()");
+
+		_writer.writeTag(IDataBinaryCoder.END);
+		_open.pop();
+	}
+
+	/**
+	 * Starts a document list within the current document, elements are added via {@link #write(IData)}
+	 * or {@link #startDocument()} until {@link #endList()} is called. The list is decoded as an IData[].
+	 *
+	 * @param key key of the list
+	 * @throws IOException
+	 */
+	public void startList(String key) throws IOException
+	{
+		checkIn(DOCUMENT);
+
+		_writer.writeTag(IDataBinaryCoder.RECORD_LIST);
+		_writer.writeString(key);
+		_open.push(LIST);
+	}
+
+	public void endList() throws IOException
+	{
+		checkIn(LIST);
+
+		_writer.writeTag(IDataBinaryCoder.END);
+		_open.pop();
+	}
+
+	public void flush() throws IOException
+	{
+		_writer.flush();
+	}
+
+	/**
+	 * Ends any open lists and documents including the root document and flushes the stream,
+	 * without closing it. Nothing more can be written afterwards.
+	 *
+	 * @throws IOException
+	 */
+	public void finish() throws IOException
+	{
+		if (_finished)
+			return;
+
+		while (!_open.isEmpty())
+		{
+			_writer.writeTag(IDataBinaryCoder.END);
+			_open.pop();
+		}
+
+		_writer.flush();
+		_finished = true;
+	}
+
+	/**
+	 * Finishes the document and closes the underlying stream
+	 */
+	@Override
+	public void close() throws IOException
+	{
+		try
+		{
+			finish();
+		}
+		finally
+		{
+			_out.close();
+		}
+	}
+
+	private void checkIn(Object expected)
+	{
+		if (_finished)
+			throw new IllegalStateException("Document has already been finished");
+
+		if (_open.peek() != expected)
+			throw new IllegalStateException("Not within a " + expected);
+	}
+}
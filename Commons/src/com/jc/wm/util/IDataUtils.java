@@ -1,5 +1,6 @@
 package com.jc.wm.util;
 
+import java.io.BufferedInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
@@ -10,8 +11,10 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 
+import com.jc.util.CacheStatistics;
 import com.jc.wm.internal.XPathExpression;
 import com.wm.data.IData;
 import com.wm.data.IDataCursor;
@@ -29,6 +32,8 @@ import com.wm.util.coder.InvalidDatatypeException;
  */
 public class IDataUtils
 {
+	private static final Map<String, IDataDocumentStore> _documentStores = new HashMap<String, IDataDocumentStore>();
+	
 	/**
 	 * Convenience method to convert a webMethods document into an byte array via an IDataXMLCoder instance
 	 * 
@@ -55,6 +60,56 @@ public class IDataUtils
 		return coder.decodeFromBytes(src);
 	}
 	
+	/**
+	 * Converts a webMethods document into a compact binary byte array via an {@link IDataBinaryCoder}, typically
+	 * a fraction of the size of the XML produced by {@link #convertToBytes(IData)} and much faster to produce
+	 * 
+	 * @param doc the webMethods document to convert
+	 * @return byte array produced by IDataBinaryCoder
+	 * @throws IOException if the document contains a value that cannot be encoded
+	 */
+	public static byte[] convertToCompactBytes(IData doc) throws IOException
+	{
+		return new IDataBinaryCoder().encodeToBytes(doc);
+	}
+	
+	/**
+	 * Converts a byte array produced by {@link #convertToCompactBytes(IData)} back into a webMethods document
+	 * 
+	 * @param src byte array formatted by an IDataBinaryCoder
+	 * @return converted webMethods document
+	 * @throws IOException if the bytes are not in the binary format
+	 */
+	public static IData convertCompactBytesToIData(byte[] src) throws IOException
+	{
+		return new IDataBinaryCoder().decodeFromBytes(src);
+	}
+	
+	/**
+	 * Writes the document to the given stream in the compact binary format, the stream is not closed
+	 * 
+	 * @param doc the webMethods document to write
+	 * @param out stream to write to
+	 * @throws IOException
+	 */
+	public static void writeCompactDoc(IData doc, OutputStream out) throws IOException
+	{
+		new IDataBinaryCoder().encode(out, doc);
+	}
+	
+	/**
+	 * Reads a document in the compact binary format from the given stream, the stream is not closed. Unless the
+	 * stream is already buffered, bytes following the document may also be consumed.
+	 * 
+	 * @param in stream to read from
+	 * @return the webMethods document
+	 * @throws IOException
+	 */
+	public static IData readCompactDoc(InputStream in) throws IOException
+	{
+		return new IDataBinaryCoder().decode(in instanceof BufferedInputStream ? in : new BufferedInputStream(in));
+	}
+	
 	 /**
      * Extracts all strings found in the IData record and returns them in a map. Sub records are also scanned.
      * Repeating key/value pairs overwrite previous pairs.
@@ -161,6 +216,63 @@ public class IDataUtils
         return newRecord;
     }
     
+    /**
+     * Converts the statistics of a time to live cache into an IData document suitable for returning from an
+     * admin service. All values are strings, times are given in milli seconds unless the key says otherwise.
+     *
+     * @param stats statistics snapshot obtained via getStatistics() on the cache
+     * @return IData document of statistics, including a size history list
+     */
+    public static IData convertCacheStatisticsToIData(CacheStatistics.Snapshot stats)
+    {
+        if (stats == null)
+            return null;
+        
+        IData doc = IDataFactory.create();
+        IDataCursor c = doc.getCursor();
+        
+        IDataUtil.put(c, "size", "" + stats.getSize());
+        IDataUtil.put(c, "maxSize", "" + stats.getMaxSize());
+        IDataUtil.put(c, "hitCount", "" + stats.getHitCount());
+        IDataUtil.put(c, "missCount", "" + stats.getMissCount());
+        IDataUtil.put(c, "hitRate", String.format(Locale.ROOT, "%.4f", stats.getHitRate()));
+        IDataUtil.put(c, "putCount", "" + stats.getPutCount());
+        IDataUtil.put(c, "loadSuccessCount", "" + stats.getLoadSuccessCount());
+        IDataUtil.put(c, "loadFailureCount", "" + stats.getLoadFailureCount());
+        IDataUtil.put(c, "averageLoadTime", String.format(Locale.ROOT, "%.3f", stats.getAverageLoadTime()));
+        IDataUtil.put(c, "evictionCount", "" + stats.getEvictionCount());
+        IDataUtil.put(c, "averageEvictedAge", "" + stats.getAverageEvictedAge());
+        IDataUtil.put(c, "getLatencyP50Nanos", "" + stats.getLatencyPercentile(50));
+        IDataUtil.put(c, "getLatencyP99Nanos", "" + stats.getLatencyPercentile(99));
+        
+        IData removals = IDataFactory.create();
+        IDataCursor rc = removals.getCursor();
+        
+        for (CacheStatistics.RemovalCause cause : CacheStatistics.RemovalCause.values())
+            IDataUtil.put(rc, cause.name().toLowerCase(Locale.ROOT), "" + stats.getRemovalCount(cause));
+        
+        rc.destroy();
+        IDataUtil.put(c, "removals", removals);
+        
+        long[] times = stats.getSizeHistoryTimes();
+        int[] sizes = stats.getSizeHistory();
+        IData[] history = new IData[times.length];
+        
+        for (int i = 0; i < times.length; i++)
+        {
+            history[i] = IDataFactory.create();
+            IDataCursor hc = history[i].getCursor();
+            IDataUtil.put(hc, "time", "" + times[i]);
+            IDataUtil.put(hc, "size", "" + sizes[i]);
+            hc.destroy();
+        }
+        
+        IDataUtil.put(c, "sizeHistory", history);
+        c.destroy();
+        
+        return doc;
+    }
+    
     /**
      * Extracts all strings found in the IData record and returns them in an array. Sub records are also scanned.
      * Each key/value pair is separated using '=', ie 'key=value'.
@@ -382,13 +494,26 @@ public class IDataUtils
     	return v;
     }
 
+    /**
+     * Restores a document written by {@link #writeDocToFile(String, String, IData)} or
+     * {@link #writeCompactDocToFile(String, String, IData)}, the format is detected automatically
+     */
     public static IData restoreDocFile(String directory, String fileName) throws InvalidDatatypeException, IOException
     {
-    	InputStream in = new FileInputStream(new File(directory, fileName));
+    	InputStream in = new BufferedInputStream(new FileInputStream(new File(directory, fileName)));
     	
     	try
     	{
-    		return new IDataXMLCoder().decode(in);
+    		byte[] magic = new byte[IDataBinaryCoder.MAGIC.length];
+    		
+    		in.mark(magic.length);
+    		int read = in.read(magic);
+    		in.reset();
+    		
+    		if (read == magic.length && IDataBinaryCoder.isBinaryEncoded(magic))
+    			return new IDataBinaryCoder().decode(in);
+    		else
+    			return new IDataXMLCoder().decode(in);
     	}
     	finally
     	{
@@ -396,6 +521,24 @@ public class IDataUtils
     	}
     }
     
+    /**
+     * Writes the document to the given file in the compact binary format, use {@link #restoreDocFile(String, String)}
+     * to read it back
+     */
+    public static void writeCompactDocToFile(String directory, String fileName, IData doc) throws IOException
+    {
+    	OutputStream out = new FileOutputStream(new File(directory, fileName));
+    	
+    	try
+    	{
+    		new IDataBinaryCoder().encode(out, doc);
+    	}
+    	finally
+    	{
+    		out.close();
+    	}
+    }
+    
     public static void writeDocToFile(String directory, String fileName, IData doc) throws InvalidDatatypeException, IOException
     {
     	OutputStream out = new FileOutputStream(new File(directory, fileName));
@@ -410,102 +553,73 @@ public class IDataUtils
     	}
     }
     
-    public static void merge(IData src, IData tgt)
+    /**
+     * Stores the document under the given name in the shared document store for the directory, far cheaper
+     * than {@link #writeDocToFile(String, String, IData)} when persisting many small documents
+     */
+    public static void writeDocToStore(String directory, String name, IData doc) throws IOException
     {
-        if (src == null || tgt == null)
-            return;
-        
-        IDataCursor srcCursor = src.getCursor();
-        IDataCursor tgtCursor = tgt.getCursor();
-        
-        while (tgtCursor.next())
-        {
-            String key = tgtCursor.getKey();
-            Object val = tgtCursor.getValue();
-            
-            if (!(val instanceof IData))
-            {
-                if (!(val instanceof IData[]))  // simple object are overwritten from right to left
-                {
-                    IDataUtil.put(srcCursor, key, val);
-                }
-                else    // arrays of IData are merged (equal size) or left is added to right (right is bigger or smaller)
-                {
-                    IData[] srcList = IDataUtil.getIDataArray(srcCursor, key);
-                    
-                    if (srcList == null)    
-                    {
-                        IDataUtil.put(srcCursor, key, val); // No source, so simple insert right hand side
-                    }
-                    else
-                    {
-                        IData[] newList = mergeIDataArrays(srcList, (IData[]) val);
-                        
-                        if (newList != null)
-                            IDataUtil.put(srcCursor, key, newList);
-                    }
-                }
-            }
-            else    // IData merge
-            {
-                IData srcDocToUpdate = IDataUtil.getIData(srcCursor, key);
-                
-                if (srcDocToUpdate == null)
-                    IDataUtil.put(srcCursor, key, tgt);     // No src, so simply insert right hand-size
-                else
-                    merge(srcDocToUpdate, (IData) val); // recursive merge
-            }
-        }
-        
-        srcCursor.destroy();
-        tgtCursor.destroy();
+    	documentStore(directory).put(name, doc);
     }
     
-    private static IData[] mergeIDataArrays(IData[] srcList, IData[] tgtList)
+    /**
+     * Returns the document stored via {@link #writeDocToStore(String, String, IData)} or null if not found
+     */
+    public static IData restoreDocFromStore(String directory, String name) throws IOException
     {
-        boolean resized = false;
-        int srcArrayOffset = 0;
-                   
-        if (srcList.length != tgtList.length) // src is not the right so resize it
-        {
-            IData[] newSrcList = null;
-                       
-            if (srcList.length <= tgtList.length)       // tgtlist is bigger, so assume  merge + add
-            {
-                newSrcList = new IData[tgtList.length];
-                srcArrayOffset = 0;
-            }
-            else    // tgt has smaller list, so assume it wants to add elements to existing list
-            {
-                newSrcList = new IData[srcList.length + tgtList.length];
-                srcArrayOffset = srcList.length;
-            }
-                  
-            for (int i=0;i<newSrcList.length;i++)
-                newSrcList[i] = srcList[i];
-                      
-            srcList = newSrcList;
-            resized = true;
-        }
-
-// Update list
-        
-        for (int i = 0; i<tgtList.length; i++)
-        {
-            IData srcListElement = srcList[srcArrayOffset+i];
-                       
-            if (srcListElement == null)
-                srcList[srcArrayOffset+i] = tgtList[i];
-            else
-                merge(srcListElement, tgtList[i]);
-        }   
-       
-// Had to replace original list, so return it so that can be used to replace original
-        
-        if (resized)
-            return srcList;
-        else
-            return null;
+    	return documentStore(directory).get(name);
+    }
+    
+    public static boolean removeDocFromStore(String directory, String name) throws IOException
+    {
+    	return documentStore(directory).remove(name);
+    }
+    
+    /**
+     * Closes all document stores opened via {@link #writeDocToStore(String, String, IData)} etc. e.g. on package shutdown
+     */
+    public static void closeDocStores() throws IOException
+    {
+    	synchronized (_documentStores)
+    	{
+    		try
+    		{
+    			for (IDataDocumentStore store : _documentStores.values())
+    				store.close();
+    		}
+    		finally
+    		{
+    			_documentStores.clear();
+    		}
+    	}
+    }
+    
+    private static IDataDocumentStore documentStore(String directory) throws IOException
+    {
+    	String path = new File(directory).getCanonicalPath();
+    	
+    	synchronized (_documentStores)
+    	{
+    		IDataDocumentStore store = _documentStores.get(path);
+    		
+    		if (store == null)
+    		{
+    			store = new IDataDocumentStore(new File(path));
+    			_documentStores.put(path, store);
+    		}
+    		
+    		return store;
+    	}
+    }
+    
+    /**
+     * Merges tgt into src, simple values are overwritten, documents merged recursively and document
+     * lists merged element by element. Use an {@link IDataMerger} directly for other strategies or to
+     * merge several documents in one go.
+     */
+    public static void merge(IData src, IData tgt)
+    {
+        new IDataMerger().merge(src, tgt);
     }
     
     public static void dumpIDataToOutput(IData doc, OutputStream out, String prefix)
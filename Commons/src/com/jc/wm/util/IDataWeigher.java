@@ -0,0 +1,129 @@
+package com.jc.wm.util;
+
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+import com.jc.util.Weigher;
+import com.wm.data.IData;
+import com.wm.data.IDataCursor;
+
+/**
+ * Estimates the heap used by cached webMethods documents so that a time to live cache can be
+ * bound by memory rather than by number of elements, e.g.
+ *
+ * <pre>
+ * cache.setMaximumWeight(64 * 1024 * 1024, new IDataWeigher());
+ * </pre>
+ *
+ * The document is walked via its cursor in the same way as {@link IDataUtils#convertIDataStringsToMap(IData)},
+ * summing an estimate for each key and value, including nested documents and arrays. Estimates
+ * assume a 64 bit JVM and are intended to be approximate rather than exact, objects referenced
+ * more than once are only counted once.
+ *
+ * @author John Carter
+ * @version 1.0
+ */
+public class IDataWeigher implements Weigher<Object, Object>
+{
+	private static final int 	OBJECT_HEADER = 16;
+	private static final int 	ARRAY_HEADER = 16;
+	private static final int 	REFERENCE = 8;
+	private static final int 	STRING_OVERHEAD = OBJECT_HEADER + 8 + ARRAY_HEADER;
+	private static final int 	IDATA_ENTRY = 2 * REFERENCE + OBJECT_HEADER;
+	private static final int 	BOXED_PRIMITIVE = OBJECT_HEADER + 8;
+
+	private int					_maxDepth;
+
+	public IDataWeigher()
+	{
+		this(32);
+	}
+
+	/**
+	 * @param maxDepth documents nested deeper than this are not walked further
+	 */
+	public IDataWeigher(int maxDepth)
+	{
+		_maxDepth = maxDepth;
+	}
+
+	@Override
+	public long weigh(Object key, Object value)
+	{
+		Map<Object, Boolean> seen = new IdentityHashMap<Object, Boolean>();
+
+		return estimate(key, seen, 0) + estimate(value, seen, 0);
+	}
+
+	/**
+	 * Returns an estimate of the heap used by the given object, typically a document
+	 *
+	 * @param value object to estimate
+	 * @return estimated size in bytes
+	 */
+	public long estimate(Object value)
+	{
+		return estimate(value, new IdentityHashMap<Object, Boolean>(), 0);
+	}
+
+	private long estimate(Object value, Map<Object, Boolean> seen, int depth)
+	{
+		if (value == null)
+			return 0;
+		else if (value instanceof String)
+			return STRING_OVERHEAD + align(((String) value).length() * 2);		// don't bother tracking strings, they are often interned
+		else if (value instanceof Number || value instanceof Boolean || value instanceof Character)
+			return BOXED_PRIMITIVE;
+		else if (seen.put(value, Boolean.TRUE) != null)
+			return 0;
+		else if (value instanceof IData)
+			return estimateIData((IData) value, seen, depth);
+		else if (value instanceof byte[])
+			return ARRAY_HEADER + align(((byte[]) value).length);
+		else if (value instanceof char[])
+			return ARRAY_HEADER + align(((char[]) value).length * 2);
+		else if (value instanceof Object[])
+			return estimateArray((Object[]) value, seen, depth);
+		else
+			return OBJECT_HEADER + 2 * REFERENCE;		// unknown, assume a small object
+	}
+
+	private long estimateIData(IData doc, Map<Object, Boolean> seen, int depth)
+	{
+		long size = OBJECT_HEADER + ARRAY_HEADER;
+
+		if (depth >= _maxDepth)
+			return size;
+
+		IDataCursor cursor = doc.getCursor();
+
+		while (cursor.next())
+		{
+			size += IDATA_ENTRY;
+			size += estimate(cursor.getKey(), seen, depth + 1);
+			size += estimate(cursor.getValue(), seen, depth + 1);
+		}
+
+		cursor.destroy();
+
+		return size;
+	}
+
+	private long estimateArray(Object[] array, Map<Object, Boolean> seen, int depth)
+	{
+		long size = ARRAY_HEADER + align(array.length * REFERENCE);
+
+		if (depth >= _maxDepth)
+			return size;
+
+		for (Object o : array)
+			size += estimate(o, seen, depth + 1);
+
+		return size;
+	}
+
+	private static long align(long size)
+	{
+		return (size + 7) & ~7L;
+	}
+}
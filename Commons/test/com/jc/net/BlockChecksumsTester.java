@@ -0,0 +1,79 @@
+package com.jc.net;
+
+import static com.jc.net.NetTestHelper.testData;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class BlockChecksumsTester
+{
+	@Test
+	public void testCrc32cCheckValue()
+	{
+		Crc32c crc = new Crc32c();
+		byte[] data = "123456789".getBytes();
+
+		crc.update(data, 0, data.length);
+
+		assertEquals(0xE3069283L, crc.getValue());
+
+		// a byte at a time gives the same result as the 8 byte at a time path
+
+		crc.reset();
+
+		for (byte b : data)
+			crc.update(b);
+
+		assertEquals(0xE3069283L, crc.getValue());
+	}
+
+	@Test
+	public void testBlocksAreAlignedToContent()
+	{
+		byte[] data = testData(1000);
+
+		BlockChecksums sent = new BlockChecksums(100, 250);
+		sent.update(data, 250, 750);
+		sent.finish();
+
+		// same bytes arriving in different sized pieces, with one corrupted in block 6
+
+		data[640] ^= 0x01;
+
+		BlockChecksums received = new BlockChecksums(100, 250);
+		received.update(data, 250, 7);
+		received.update(data, 257, 743);
+		received.finish();
+
+		assertArrayEquals(new int[] {2, 3, 4, 5, 6, 7, 8, 9}, received.getBlocks());
+		assertArrayEquals(new int[] {6}, received.verify(sent.format()));
+	}
+
+	@Test
+	public void testResentBlocks()
+	{
+		byte[] data = testData(1050);
+
+		BlockChecksums sent = new BlockChecksums(100, new int[] {3, 10});
+		sent.update(data, 300, 100);
+		sent.update(data, 1000, 50);
+		sent.finish();
+
+		BlockChecksums received = new BlockChecksums(100, new int[] {3, 10});
+		received.update(data, 300, 60);
+
+		assertEquals(360, received.getPosition());
+
+		received.update(data, 360, 40);
+
+		assertEquals(1000, received.getPosition());
+
+		received.update(data, 1000, 50);
+		received.finish();
+
+		assertArrayEquals(new int[] {3, 10}, received.getBlocks());
+		assertEquals(0, received.verify(sent.format()).length);
+		assertArrayEquals(new int[] {10}, received.verify(sent.format().split(",")[0]));
+	}
+}
@@ -0,0 +1,95 @@
+package com.jc.net;
+
+import static com.jc.net.NetTestHelper.readAll;
+import static com.jc.net.NetTestHelper.testData;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class BlockCompressedStreamTester
+{
+	@Test
+	public void testCodecsRoundTrip() throws Exception
+	{
+		byte[] data = testData(1000 * 1000);
+
+		for (BlockCodec codec : new BlockCodec[] {BlockCodecs.GZIP, BlockCodecs.DEFLATE, BlockCodecs.STORED})
+		{
+			byte[] compressed = compress(data, codec, 10000);
+
+			if (codec != BlockCodecs.STORED)
+				assertTrue(compressed.length < data.length / 2);
+
+			assertArrayEquals(data, readAll(new BlockCompressedInputStream(new ByteArrayInputStream(compressed), 4)));
+		}
+	}
+
+	@Test
+	public void testIncompressibleBlocksAreStored() throws Exception
+	{
+		byte[] data = new byte[50000];
+		new Random(1).nextBytes(data);
+
+		byte[] compressed = compress(data, BlockCodecs.GZIP, 20000);
+
+		assertEquals(data.length + 3 * BlockCompressedOutputStream.HEADER_LENGTH, compressed.length);
+		assertEquals(BlockCodecs.STORED.getId(), compressed[1]);
+		assertArrayEquals(data, readAll(new BlockCompressedInputStream(new ByteArrayInputStream(compressed))));
+	}
+
+	@Test
+	public void testScanFindsLastCompleteBlock() throws Exception
+	{
+		byte[] data = testData(35000);
+		byte[] compressed = compress(data, BlockCodecs.DEFLATE, 10000);
+
+		File file = File.createTempFile("blocks", ".dat");
+		FileOutputStream out = new FileOutputStream(file);
+		out.write(compressed, 0, compressed.length - 1);
+		out.close();
+
+		BlockCompressedInputStream.Frames frames = BlockCompressedInputStream.scan(file);
+
+		assertEquals(3, frames.count);
+		assertEquals(30000, frames.sourceLength);
+
+		// continuing after the last complete block gives the original content
+
+		ByteArrayOutputStream resumed = new ByteArrayOutputStream();
+		resumed.write(compressed, 0, (int) frames.end);
+		resumed.write(compress(Arrays.copyOfRange(data, 30000, data.length), BlockCodecs.GZIP, 3000));
+
+		assertArrayEquals(data, readAll(new BlockCompressedInputStream(new ByteArrayInputStream(resumed.toByteArray()))));
+
+		file.delete();
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public void testReservedCodecIdsCannotBeRegistered()
+	{
+		BlockCodecs.register(new BlockCodecs.Deflate(1));
+	}
+
+	private static byte[] compress(byte[] data, BlockCodec codec, int blockSize) throws IOException
+	{
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		BlockCompressedOutputStream out = new BlockCompressedOutputStream(bytes, codec, blockSize);
+
+		out.write(data, 0, 7);
+		out.write(data[7]);
+		out.write(data, 8, data.length - 8);
+		out.finish();
+
+		return bytes.toByteArray();
+	}
+}
@@ -0,0 +1,612 @@
+package com.jc.net;
+
+import static com.jc.net.NetTestHelper.readAll;
+import static com.jc.net.NetTestHelper.testData;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.nio.file.Files;
+import java.security.KeyStore;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.TrustManagerFactory;
+
+import org.junit.Test;
+
+import com.jc.net.HttpConnectionPool.PooledConnection;
+import com.jc.net.ReliableInboundHttpConnection.HttpRequestResponse;
+import com.jc.net.ReliableOutboundHttpConnection.HttpResponse;
+
+public class HttpConnectionPoolTester
+{
+	@Test
+	public void testRequestsReuseConnection() throws Exception
+	{
+		TestServer server = new TestServer();
+		HttpConnectionPool pool = new HttpConnectionPool(2, 0);
+
+		try
+		{
+			URL url = new URL("http", "localhost", server.getPort(), "/test");
+
+			for (int i = 0; i < 3; i++)
+			{
+				byte[] data = testData(50000 + i);
+
+				ReliableOutboundHttpConnection conn = new ReliableOutboundHttpConnection("pooled" + i, url, null, null, null, 1024, false);
+				conn.setConnectionPool(pool);
+
+				HttpResponse response = conn.send(new ByteArrayInputStream(data), false);
+
+				assertEquals(200, response.getResponseCode());
+				assertArrayEquals(data, server.waitFor("pooled" + i));
+			}
+
+			assertEquals(1, server.getAccepted());
+			assertEquals(1, pool.getIdleCount(url));
+			assertEquals(0, pool.getLeasedCount(url));
+		}
+		finally
+		{
+			pool.close();
+			server.close();
+		}
+	}
+
+	@Test
+	public void testSendWithoutPool() throws Exception
+	{
+		TestServer server = new TestServer();
+
+		try
+		{
+			URL url = new URL("http", "localhost", server.getPort(), "/test");
+			byte[] data = testData(40000);
+
+			ReliableOutboundHttpConnection conn = new ReliableOutboundHttpConnection("unpooled", url, null, null, null, 1024, false);
+			HttpResponse response = conn.send(new ByteArrayInputStream(data), false);
+
+			assertEquals(200, response.getResponseCode());
+			assertArrayEquals(data, server.waitFor("unpooled"));
+		}
+		finally
+		{
+			server.close();
+		}
+	}
+
+	@Test
+	public void testServerCanRefuseKeepAlive() throws Exception
+	{
+		TestServer server = new TestServer(false);
+		HttpConnectionPool pool = new HttpConnectionPool(2, 0);
+
+		try
+		{
+			URL url = new URL("http", "localhost", server.getPort(), "/test");
+
+			for (int i = 0; i < 2; i++)
+			{
+				ReliableOutboundHttpConnection conn = new ReliableOutboundHttpConnection("closed" + i, url, null, null, null, 1024, false);
+				conn.setConnectionPool(pool);
+
+				assertEquals(200, conn.send(new ByteArrayInputStream(testData(1000)), false).getResponseCode());
+				assertEquals(0, pool.getIdleCount(url));
+			}
+
+			assertEquals(2, server.getAccepted());
+		}
+		finally
+		{
+			pool.close();
+			server.close();
+		}
+	}
+
+	@Test
+	public void testMaxConnectionsPerEndpoint() throws Exception
+	{
+		TestServer server = new TestServer();
+		HttpConnectionPool pool = new HttpConnectionPool(1, 0);
+		pool.setAcquireTimeout(200);
+
+		try
+		{
+			URL url = new URL("http", "localhost", server.getPort(), "/test");
+
+			PooledConnection first = pool.acquire(url);
+
+			try
+			{
+				pool.acquire(url);
+				fail("should have timed out waiting for a connection");
+			}
+			catch (IOException e)
+			{
+				// expected
+			}
+
+			pool.release(first, true);
+
+			PooledConnection second = pool.acquire(url);
+
+			assertTrue(first == second);
+
+			pool.release(second, false);
+
+			assertEquals(0, pool.getIdleCount(url));
+			assertTrue(first.getSocket().isClosed());
+		}
+		finally
+		{
+			pool.close();
+			server.close();
+		}
+	}
+
+	@Test
+	public void testIdleConnectionsAreEvicted() throws Exception
+	{
+		TestServer server = new TestServer();
+		HttpConnectionPool pool = new HttpConnectionPool(2, 50);
+
+		try
+		{
+			URL url = new URL("http", "localhost", server.getPort(), "/test");
+
+			ReliableOutboundHttpConnection conn = new ReliableOutboundHttpConnection("evicted", url, null, null, null, 1024, false);
+			conn.setConnectionPool(pool);
+			conn.send(new ByteArrayInputStream(testData(100)), false);
+
+			assertEquals(1, pool.getIdleCount(url));
+
+			Thread.sleep(100);
+
+			assertEquals(1, pool.evictIdle());
+			assertEquals(0, pool.getIdleCount(url));
+		}
+		finally
+		{
+			pool.close();
+			server.close();
+		}
+	}
+
+	@Test
+	public void testInterimResponsesAreSkipped() throws Exception
+	{
+		InterimResponseServer server = new InterimResponseServer();
+		HttpConnectionPool pool = new HttpConnectionPool(1, 0);
+		File file = File.createTempFile("interim", ".dat");
+
+		try
+		{
+			URL url = new URL("http", "localhost", server.getPort(), "/test");
+			Files.write(file.toPath(), testData(20000));
+
+			// waits for the '100 Continue' as a digest is sent, and then gets '102 Processing' before the response
+
+			ReliableOutboundHttpConnection first = new ReliableOutboundHttpConnection("interim1", url, null, null, null, 1024, false);
+			first.setConnectionPool(pool);
+			first.setContentDigest(true);
+
+			HttpResponse response = first.sendFile(file, 0, 0, 1, false);
+
+			assertEquals(200, response.getResponseCode());
+			assertEquals("1", response.getResponseHeaders().get("X-Request"));
+
+			// the next request on the same connection gets its own response, not one left over from the first
+
+			ReliableOutboundHttpConnection second = new ReliableOutboundHttpConnection("interim2", url, null, null, null, 1024, false);
+			second.setConnectionPool(pool);
+
+			response = second.send(new ByteArrayInputStream(testData(100)), false);
+
+			assertEquals(200, response.getResponseCode());
+			assertEquals("2", response.getResponseHeaders().get("X-Request"));
+			assertEquals(1, server.getAccepted());
+		}
+		finally
+		{
+			pool.close();
+			server.close();
+			file.delete();
+		}
+	}
+
+	@Test
+	public void testHttpsCertificateMustMatchHost() throws Exception
+	{
+		File keyStore = createKeyStore("wrong.example.com");
+		TlsServer server = new TlsServer(keyStore);
+		HttpConnectionPool pool = new HttpConnectionPool(1, 0);
+		pool.setSSLSocketFactory(trusting(keyStore).getSocketFactory());
+
+		try
+		{
+			pool.acquire(new URL("https", "localhost", server.getPort(), "/test"));
+			fail("certificate for another host should have been rejected");
+		}
+		catch (SSLException e)
+		{
+			// expected
+		}
+		finally
+		{
+			pool.close();
+			server.close();
+			keyStore.delete();
+		}
+
+		// and accepted when it is for the host
+
+		keyStore = createKeyStore("localhost");
+		server = new TlsServer(keyStore);
+		pool = new HttpConnectionPool(1, 0);
+		pool.setSSLSocketFactory(trusting(keyStore).getSocketFactory());
+
+		try
+		{
+			URL url = new URL("https", "localhost", server.getPort(), "/test");
+			pool.release(pool.acquire(url), false);
+		}
+		finally
+		{
+			pool.close();
+			server.close();
+			keyStore.delete();
+		}
+	}
+
+	@Test
+	public void testChunkedStreamsLeaveFollowingData() throws Exception
+	{
+		byte[] data = testData(30000);
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ChunkedOutputStream out = new ChunkedOutputStream(bytes, 1000);
+		out.write(data, 0, 10);
+		out.write(data, 10, data.length - 10);
+		out.finish();
+		bytes.write("next".getBytes());
+
+		InputStream raw = new ByteArrayInputStream(bytes.toByteArray());
+		ChunkedInputStream in = new ChunkedInputStream(raw);
+
+		assertArrayEquals(data, readAll(in));
+		assertTrue(in.isEndOfStream());
+		assertEquals("next", new String(readAll(raw)));
+	}
+
+	/**
+	 * Creates a key store with a self signed certificate for the given host, via the JDK's keytool
+	 */
+	private static File createKeyStore(String host) throws Exception
+	{
+		File keyStore = File.createTempFile("httppool", ".jks");
+		keyStore.delete();
+
+		String keytool = new File(new File(System.getProperty("java.home"), "bin"), "keytool").getPath();
+
+		Process process = new ProcessBuilder(keytool, "-genkeypair", "-keystore", keyStore.getPath(), "-storetype", "JKS",
+				"-storepass", "password", "-keypass", "password", "-alias", "server", "-keyalg", "RSA", "-keysize", "2048",
+				"-validity", "1", "-dname", "CN=" + host, "-ext", "SAN=dns:" + host).redirectErrorStream(true).start();
+
+		readAll(process.getInputStream());
+		assertEquals(0, process.waitFor());
+
+		return keyStore;
+	}
+
+	private static KeyStore loadKeyStore(File file) throws Exception
+	{
+		KeyStore keyStore = KeyStore.getInstance("JKS");
+		InputStream in = new FileInputStream(file);
+
+		try
+		{
+			keyStore.load(in, "password".toCharArray());
+		}
+		finally
+		{
+			in.close();
+		}
+
+		return keyStore;
+	}
+
+	private static SSLContext trusting(File keyStore) throws Exception
+	{
+		TrustManagerFactory trust = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+		trust.init(loadKeyStore(keyStore));
+
+		SSLContext context = SSLContext.getInstance("TLS");
+		context.init(null, trust.getTrustManagers(), null);
+
+		return context;
+	}
+
+	/**
+	 * Answers each request on a connection with a '102 Processing' interim response before the final one, as
+	 * well as with a '100 Continue' if the client asks for one
+	 */
+	private static class InterimResponseServer extends Thread
+	{
+		private ServerSocket	_socket;
+		private AtomicInteger	_accepted = new AtomicInteger();
+
+		InterimResponseServer() throws IOException
+		{
+			_socket = new ServerSocket(0);
+
+			setDaemon(true);
+			start();
+		}
+
+		int getPort()
+		{
+			return _socket.getLocalPort();
+		}
+
+		int getAccepted()
+		{
+			return _accepted.get();
+		}
+
+		@Override
+		public void run()
+		{
+			while (!_socket.isClosed())
+			{
+				try
+				{
+					Socket client = _socket.accept();
+					_accepted.incrementAndGet();
+
+					try
+					{
+						serve(client);
+					}
+					finally
+					{
+						client.close();
+					}
+				}
+				catch (IOException e)
+				{
+					// closed
+				}
+			}
+		}
+
+		private void serve(Socket client) throws IOException
+		{
+			InputStream in = new BufferedInputStream(client.getInputStream());
+			OutputStream out = client.getOutputStream();
+			String line = null;
+
+			for (int request = 1; (line=ChunkedInputStream.readLineFromInputStream(in)) != null; request++)
+			{
+				Map<String, String> headers = new TreeMap<String, String>(String.CASE_INSENSITIVE_ORDER);
+
+				while ((line=ChunkedInputStream.readLineFromInputStream(in)) != null && !line.isEmpty())
+					headers.put(line.substring(0, line.indexOf(':')).trim(), line.substring(line.indexOf(':') + 1).trim());
+
+				if (headers.containsKey("Expect"))
+				{
+					out.write("HTTP/1.1 100 Continue\r\n\r\n".getBytes("ISO-8859-1"));
+					out.flush();
+				}
+
+				if (headers.containsKey("Content-Length"))
+					readAll(new ContentLengthInputStream(in, Long.parseLong(headers.get("Content-Length"))));
+				else
+					readAll(new ChunkedInputStream(in));
+
+				out.write(("HTTP/1.1 102 Processing\r\n\r\nHTTP/1.1 200 OK\r\nX-Request: " + request + "\r\nContent-Length: 0\r\n\r\n").getBytes("ISO-8859-1"));
+				out.flush();
+			}
+		}
+
+		void close() throws IOException
+		{
+			_socket.close();
+		}
+	}
+
+	/**
+	 * Completes the TLS handshake for each connection and then closes it
+	 */
+	private static class TlsServer extends Thread
+	{
+		private ServerSocket _socket;
+
+		TlsServer(File keyStore) throws Exception
+		{
+			KeyManagerFactory keys = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+			keys.init(loadKeyStore(keyStore), "password".toCharArray());
+
+			SSLContext context = SSLContext.getInstance("TLS");
+			context.init(keys.getKeyManagers(), null, null);
+
+			_socket = context.getServerSocketFactory().createServerSocket(0);
+
+			setDaemon(true);
+			start();
+		}
+
+		int getPort()
+		{
+			return _socket.getLocalPort();
+		}
+
+		@Override
+		public void run()
+		{
+			while (!_socket.isClosed())
+			{
+				try
+				{
+					SSLSocket client = (SSLSocket) _socket.accept();
+
+					try
+					{
+						client.startHandshake();
+						client.getInputStream().read();
+					}
+					catch (IOException e)
+					{
+						// client rejected our certificate
+					}
+					finally
+					{
+						client.close();
+					}
+				}
+				catch (IOException e)
+				{
+					// closed
+				}
+			}
+		}
+
+		void close() throws IOException
+		{
+			_socket.close();
+		}
+	}
+
+	/**
+	 * Reads requests via ReliableInboundHttpConnection, keeping connections open for as long as the client wants
+	 */
+	private static class TestServer extends Thread
+	{
+		private ServerSocket			_socket;
+		private File					_tempDir;
+		private AtomicInteger			_accepted = new AtomicInteger();
+		private Map<String, byte[]>		_received = new ConcurrentHashMap<String, byte[]>();
+		private boolean					_keepAlive;
+
+		TestServer() throws IOException
+		{
+			this(true);
+		}
+
+		TestServer(boolean keepAlive) throws IOException
+		{
+			_keepAlive = keepAlive;
+			_socket = new ServerSocket(0);
+			_tempDir = Files.createTempDirectory("httppool").toFile();
+
+			setDaemon(true);
+			start();
+		}
+
+		int getPort()
+		{
+			return _socket.getLocalPort();
+		}
+
+		int getAccepted()
+		{
+			return _accepted.get();
+		}
+
+		byte[] waitFor(String uniqueId) throws InterruptedException
+		{
+			for (int i = 0; i < 500 && !_received.containsKey(uniqueId); i++)
+				Thread.sleep(10);
+
+			return _received.get(uniqueId);
+		}
+
+		@Override
+		public void run()
+		{
+			while (!_socket.isClosed())
+			{
+				try
+				{
+					final Socket client = _socket.accept();
+					_accepted.incrementAndGet();
+
+					new Thread() {
+						@Override
+						public void run()
+						{
+							serve(client);
+						}
+					}.start();
+				}
+				catch (IOException e)
+				{
+					// closed
+				}
+			}
+		}
+
+		private void serve(Socket client)
+		{
+			try
+			{
+				ReliableInboundHttpConnection reader = new ReliableInboundHttpConnection(_tempDir.getAbsolutePath(), false);
+				reader.setKeepAlive(_keepAlive);
+				HttpRequestResponse request = null;
+
+				while ((request=reader.read(client)) != null)
+				{
+					if (request.getResponseCode() == 200)
+					{
+						File cached = request.getCachedFileName();
+						_received.put(cached.getName(), Files.readAllBytes(cached.toPath()));
+						cached.delete();
+					}
+
+					if (!request.isKeepAlive())
+						break;
+				}
+			}
+			catch (Exception e)
+			{
+				// client went away
+			}
+			finally
+			{
+				try
+				{
+					client.close();
+				}
+				catch (IOException e)
+				{
+					// ignore
+				}
+			}
+		}
+
+		void close() throws IOException
+		{
+			_socket.close();
+			_tempDir.delete();
+		}
+	}
+}
@@ -0,0 +1,113 @@
+package com.jc.net;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+
+import com.jc.net.NioHttpListener.RequestHandler;
+import com.jc.net.ReliableInboundHttpConnection.HttpRequestResponse;
+
+/**
+ * Test data and a recording listener shared by the tests of this package
+ */
+class NetTestHelper
+{
+	private NetTestHelper()
+	{
+	}
+
+	/**
+	 * Content that doesn't repeat within a block, but still compresses well
+	 */
+	static byte[] testData(int size)
+	{
+		byte[] data = new byte[size];
+
+		for (int i = 0; i < size; i++)
+			data[i] = (byte) (i * 13 + (i >> 3));
+
+		return data;
+	}
+
+	/**
+	 * Temporary file holding {@link #testData(int)}, to be deleted by the caller
+	 */
+	static File testFile(int size) throws IOException
+	{
+		File file = File.createTempFile("transfer", ".dat");
+		FileOutputStream out = new FileOutputStream(file);
+
+		try
+		{
+			out.write(testData(size));
+		}
+		finally
+		{
+			out.close();
+		}
+
+		return file;
+	}
+
+	/**
+	 * Reads the stream to its end, without closing it
+	 */
+	static byte[] readAll(InputStream in) throws IOException
+	{
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buf = new byte[777];
+		int bytesRead = -1;
+
+		while ((bytesRead=in.read(buf)) > 0)
+			out.write(buf, 0, bytesRead);
+
+		return out.toByteArray();
+	}
+
+	/**
+	 * Listener that puts the content of each request it receives into the given map by unique id, decompressed
+	 * if need be, and then deletes the cache file. The listener still has to be started.
+	 */
+	static NioHttpListener listener(File tempDir, final Map<String, byte[]> received, boolean decompressContent) throws IOException
+	{
+		tempDir.deleteOnExit();
+
+		NioHttpListener listener = new NioHttpListener(0, tempDir.getAbsolutePath(), decompressContent);
+		listener.setRequestHandler(new RequestHandler() {
+
+			@Override
+			public void requestReceived(HttpRequestResponse request) throws IOException
+			{
+				File cached = request.getCachedFileName();
+				InputStream in = request.getCachedInputStream();
+
+				try
+				{
+					received.put(cached.getName(), readAll(in));
+				}
+				finally
+				{
+					in.close();
+				}
+
+				cached.delete();
+			}
+		});
+
+		return listener;
+	}
+
+	/**
+	 * The handler is called after the response has been sent, so may not have run yet
+	 */
+	static byte[] waitFor(Map<String, byte[]> received, String uniqueId) throws InterruptedException
+	{
+		for (int i = 0; i < 500 && !received.containsKey(uniqueId); i++)
+			Thread.sleep(10);
+
+		return received.get(uniqueId);
+	}
+}
@@ -0,0 +1,193 @@
+package com.jc.net;
+
+import static com.jc.net.NetTestHelper.listener;
+import static com.jc.net.NetTestHelper.testData;
+import static com.jc.net.NetTestHelper.waitFor;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.URL;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Test;
+
+import com.jc.net.ReliableOutboundHttpConnection.HttpResponse;
+
+public class NioHttpListenerTester
+{
+	@Test
+	public void testConcurrentUploads() throws Exception
+	{
+		final Map<String, byte[]> received = new ConcurrentHashMap<String, byte[]>();
+		final NioHttpListener listener = listener(Files.createTempDirectory("niohttp").toFile(), received, false);
+		listener.setWorkers(4);
+		listener.setQueueSize(100);
+		listener.start();
+
+		final HttpConnectionPool pool = new HttpConnectionPool(20, 0);
+		ExecutorService clients = Executors.newFixedThreadPool(20);
+
+		try
+		{
+			final URL url = new URL("http", "localhost", listener.getPort(), "/test");
+			List<Future<Integer>> results = new ArrayList<Future<Integer>>();
+
+			for (int i = 0; i < 60; i++)
+			{
+				final int id = i;
+
+				results.add(clients.submit(new Callable<Integer>() {
+
+					@Override
+					public Integer call() throws Exception
+					{
+						ReliableOutboundHttpConnection conn = new ReliableOutboundHttpConnection("nio" + id, url, null, null, null, 1024, false);
+						conn.setConnectionPool(pool);
+
+						return conn.send(new ByteArrayInputStream(testData(20000 + id)), false).getResponseCode();
+					}
+				}));
+			}
+
+			for (Future<Integer> result : results)
+				assertEquals(200, (int) result.get());
+
+			for (int i = 0; i < 60; i++)
+				assertArrayEquals(testData(20000 + i), waitFor(received, "nio" + i));
+
+			assertTrue(listener.getOpenConnections() <= 20);
+		}
+		finally
+		{
+			clients.shutdown();
+			pool.close();
+			listener.close();
+		}
+	}
+
+	@Test
+	public void testIdleConnectionsDontHoldWorkers() throws Exception
+	{
+		Map<String, byte[]> received = new ConcurrentHashMap<String, byte[]>();
+		NioHttpListener listener = listener(Files.createTempDirectory("niohttp").toFile(), received, false);
+		listener.setWorkers(1);
+		listener.setKeepAliveTimeout(200);
+		listener.start();
+
+		HttpConnectionPool first = new HttpConnectionPool(1, 0);
+		HttpConnectionPool second = new HttpConnectionPool(1, 0);
+
+		try
+		{
+			URL url = new URL("http", "localhost", listener.getPort(), "/test");
+
+			assertEquals(200, send(url, first, "idle1", 1000).getResponseCode());
+
+			// first connection is now idle but open, the only worker should still be free
+
+			assertEquals(200, send(url, second, "idle2", 1000).getResponseCode());
+			assertEquals(2, listener.getOpenConnections());
+
+			waitForOpenConnections(listener, 0, 3000);
+
+			assertEquals(0, listener.getOpenConnections());
+		}
+		finally
+		{
+			first.close();
+			second.close();
+			listener.close();
+		}
+	}
+
+	@Test
+	public void testBusyWorkersRejectAndStalledRequestsTimeOut() throws Exception
+	{
+		Map<String, byte[]> received = new ConcurrentHashMap<String, byte[]>();
+		NioHttpListener listener = listener(Files.createTempDirectory("niohttp").toFile(), received, false);
+		listener.setWorkers(1);
+		listener.setQueueSize(0);
+		listener.setReadTimeout(300);
+		listener.start();
+
+		HttpConnectionPool pool = new HttpConnectionPool(1, 0);
+		Socket stalled = new Socket("localhost", listener.getPort());
+
+		try
+		{
+			URL url = new URL("http", "localhost", listener.getPort(), "/test");
+
+			// takes the only worker and then stops sending
+
+			OutputStream out = stalled.getOutputStream();
+			out.write(("POST /test HTTP/1.1\r\nuniqueId: stalled\r\ncurrentOffset: 0\r\nTransfer-Encoding: chunked\r\n\r\n5\r\nABC").getBytes());
+			out.flush();
+
+			Thread.sleep(100);
+
+			HttpResponse busy = send(url, pool, "busy", 1000);
+
+			assertEquals(503, busy.getResponseCode());
+			assertEquals(1, listener.getRejectedRequests());
+
+			// the stalled request is dropped after the read timeout, freeing the worker
+
+			InputStream in = stalled.getInputStream();
+			stalled.setSoTimeout(5000);
+			while (in.read() != -1)
+				;
+
+			waitForOpenConnections(listener, 0, 3000);
+
+			// the connection is closed just before the worker is ready for the next request, so may still be turned away
+
+			HttpResponse afterwards = null;
+
+			for (int i = 0; i < 50 && (afterwards == null || afterwards.getResponseCode() == 503); i++)
+			{
+				if (afterwards != null)
+					Thread.sleep(20);
+
+				afterwards = send(url, pool, "afterwards", 1000);
+			}
+
+			assertEquals(200, afterwards.getResponseCode());
+			assertArrayEquals(testData(1000), waitFor(received, "afterwards"));
+		}
+		finally
+		{
+			stalled.close();
+			pool.close();
+			listener.close();
+		}
+	}
+
+	private static HttpResponse send(URL url, HttpConnectionPool pool, String uniqueId, int size) throws Exception
+	{
+		ReliableOutboundHttpConnection conn = new ReliableOutboundHttpConnection(uniqueId, url, null, null, null, 1024, false);
+		conn.setConnectionPool(pool);
+
+		return conn.send(new ByteArrayInputStream(testData(size)), false);
+	}
+
+	private static void waitForOpenConnections(NioHttpListener listener, int openConnections, long timeout) throws InterruptedException
+	{
+		long deadline = System.currentTimeMillis() + timeout;
+
+		while (listener.getOpenConnections() != openConnections && System.currentTimeMillis() < deadline)
+			Thread.sleep(20);
+	}
+}
@@ -0,0 +1,677 @@
+package com.jc.net;
+
+import static com.jc.net.NetTestHelper.listener;
+import static com.jc.net.NetTestHelper.testFile;
+import static com.jc.net.NetTestHelper.waitFor;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.Base64;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+import com.jc.net.ReliableInboundHttpConnection.HttpRequestResponse;
+import com.jc.net.ReliableOutboundHttpConnection.HttpResponse;
+
+public class ReliableFileTransferTester
+{
+	@Test
+	public void testSendFileViaPool() throws Exception
+	{
+		File tempDir = Files.createTempDirectory("filetransfer").toFile();
+		Map<String, byte[]> received = new ConcurrentHashMap<String, byte[]>();
+		NioHttpListener listener = listener(tempDir, received, false);
+		listener.start();
+		HttpConnectionPool pool = new HttpConnectionPool(1, 0);
+
+		try
+		{
+			File dataFile = testFile(3 * 1024 * 1024 + 17);
+
+			ReliableOutboundHttpConnection conn = new ReliableOutboundHttpConnection("file1", url(listener), null, null, null, 1024, false);
+			conn.setConnectionPool(pool);
+
+			HttpResponse response = conn.sendFile(dataFile, 2, 100, 1, false);
+
+			assertEquals(200, response.getResponseCode());
+			assertArrayEquals(Files.readAllBytes(dataFile.toPath()), waitFor(received, "file1"));
+
+			dataFile.delete();
+		}
+		finally
+		{
+			pool.close();
+			listener.close();
+		}
+	}
+
+	@Test
+	public void testSendFileWithoutPool() throws Exception
+	{
+		File tempDir = Files.createTempDirectory("filetransfer").toFile();
+		Map<String, byte[]> received = new ConcurrentHashMap<String, byte[]>();
+		NioHttpListener listener = listener(tempDir, received, false);
+		listener.start();
+
+		try
+		{
+			File dataFile = testFile(1024 * 1024 + 3);
+
+			ReliableOutboundHttpConnection conn = new ReliableOutboundHttpConnection("file2", url(listener), null, null, null, 1024, false);
+
+			HttpResponse response = conn.sendFile(dataFile, 2, 100, 1, false);
+
+			assertEquals(200, response.getResponseCode());
+			assertArrayEquals(Files.readAllBytes(dataFile.toPath()), waitFor(received, "file2"));
+
+			dataFile.delete();
+		}
+		finally
+		{
+			listener.close();
+		}
+	}
+
+	@Test
+	public void testSendFileResumesFromServerOffset() throws Exception
+	{
+		File tempDir = Files.createTempDirectory("filetransfer").toFile();
+		Map<String, byte[]> received = new ConcurrentHashMap<String, byte[]>();
+		NioHttpListener listener = listener(tempDir, received, false);
+		listener.start();
+		HttpConnectionPool pool = new HttpConnectionPool(1, 0);
+
+		try
+		{
+			File dataFile = testFile(40000);
+			byte[] data = Files.readAllBytes(dataFile.toPath());
+
+			// an earlier attempt got part of the way
+
+			FileOutputStream partial = new FileOutputStream(new File(tempDir, "file3"));
+			partial.write(data, 0, 12345);
+			partial.close();
+
+			ReliableOutboundHttpConnection conn = new ReliableOutboundHttpConnection("file3", url(listener), null, null, null, 1024, false);
+			conn.setConnectionPool(pool);
+
+			HttpResponse response = conn.sendFile(dataFile, 2, 100, 1, false);
+
+			assertEquals(200, response.getResponseCode());
+			assertArrayEquals(data, waitFor(received, "file3"));
+
+			dataFile.delete();
+		}
+		finally
+		{
+			pool.close();
+			listener.close();
+		}
+	}
+
+	@Test
+	public void testSendFileInParallel() throws Exception
+	{
+		File tempDir = Files.createTempDirectory("filetransfer").toFile();
+		Map<String, byte[]> received = new ConcurrentHashMap<String, byte[]>();
+		NioHttpListener listener = listener(tempDir, received, false);
+		listener.start();
+		HttpConnectionPool pool = new HttpConnectionPool(4, 0);
+
+		try
+		{
+			File dataFile = testFile(5 * 1024 * 1024 + 7);
+
+			ReliableOutboundHttpConnection conn = new ReliableOutboundHttpConnection("parallel1", url(listener), null, null, null, 1024, false);
+			conn.setConnectionPool(pool);
+
+			HttpResponse response = conn.sendFileInParallel(dataFile, 4, 2, 100, 1, false);
+
+			assertEquals(200, response.getResponseCode());
+			assertArrayEquals(Files.readAllBytes(dataFile.toPath()), waitFor(received, "parallel1"));
+			assertFalse(new File(tempDir, "parallel1" + TransferManifest.SUFFIX).exists());
+
+			dataFile.delete();
+		}
+		finally
+		{
+			pool.close();
+			listener.close();
+		}
+	}
+
+	@Test
+	public void testParallelRangeResumesFromManifest() throws Exception
+	{
+		File tempDir = Files.createTempDirectory("filetransfer").toFile();
+		Map<String, byte[]> received = new ConcurrentHashMap<String, byte[]>();
+		NioHttpListener listener = listener(tempDir, received, false);
+		listener.start();
+
+		try
+		{
+			File dataFile = testFile(3 * 1024 * 1024 + 2);
+			byte[] data = Files.readAllBytes(dataFile.toPath());
+
+			// an earlier attempt got part of the way through the middle range
+
+			File cacheFile = new File(tempDir, "parallel2");
+			TransferManifest manifest = TransferManifest.open(cacheFile, 3, data.length);
+			long start = manifest.getRangeStart(1);
+
+			RandomAccessFile partial = new RandomAccessFile(cacheFile, "rw");
+			partial.seek(start);
+			partial.write(data, (int) start, 1000);
+			partial.close();
+
+			manifest.setPosition(1, start + 1000);
+
+			ReliableOutboundHttpConnection conn = new ReliableOutboundHttpConnection("parallel2", url(listener), null, null, null, 1024, false);
+
+			HttpResponse response = conn.sendFileInParallel(dataFile, 3, 2, 100, 1, false);
+
+			assertEquals(200, response.getResponseCode());
+			assertArrayEquals(data, waitFor(received, "parallel2"));
+
+			dataFile.delete();
+		}
+		finally
+		{
+			listener.close();
+		}
+	}
+
+	@Test
+	public void testRangeResentAfterDeliveryIsAlreadyReceived() throws Exception
+	{
+		File tempDir = Files.createTempDirectory("filetransfer").toFile();
+		byte[] data = "0123456789".getBytes();
+		String digest = "sha-256=" + Base64.getEncoder().encodeToString(MessageDigest.getInstance("SHA-256").digest(data));
+
+		try
+		{
+			ReliableInboundHttpConnection reader = new ReliableInboundHttpConnection(tempDir.getAbsolutePath(), false);
+			File cacheFile = new File(tempDir, "ranged1");
+
+			assertEquals(202, readRange(reader, "ranged1", data, 0, digest));
+			assertEquals(200, readRange(reader, "ranged1", data, 1, digest));
+
+			// the reply to the last range got lost, so the sender tries it again
+
+			assertEquals(ReliableInboundHttpConnection.ALREADY_RECEIVED, readRange(reader, "ranged1", data, 1, digest));
+			assertEquals(ReliableInboundHttpConnection.ALREADY_RECEIVED, readRange(reader, "ranged1", data, 0, digest));
+			assertArrayEquals(data, Files.readAllBytes(cacheFile.toPath()));
+
+			// whereas a file that failed verification is sent again from scratch
+
+			assertEquals(202, readRange(reader, "ranged2", data, 0, "sha-256=AAAA"));
+			assertEquals(500, readRange(reader, "ranged2", data, 1, "sha-256=AAAA"));
+			assertEquals(202, readRange(reader, "ranged2", data, 0, digest));
+			assertEquals(200, readRange(reader, "ranged2", data, 1, digest));
+		}
+		finally
+		{
+			for (File file : tempDir.listFiles())
+				file.delete();
+
+			tempDir.delete();
+		}
+	}
+
+	@Test
+	public void testResumeWithoutCacheFileRestartsFromZero() throws Exception
+	{
+		File tempDir = Files.createTempDirectory("filetransfer").toFile();
+		byte[] data = "0123456789".getBytes();
+
+		try
+		{
+			ReliableInboundHttpConnection reader = new ReliableInboundHttpConnection(tempDir.getAbsolutePath(), false);
+
+			// the cache file was lost, e.g. purged or the temp dir cleared, whilst the sender thinks half has arrived
+
+			Map<String, String> headers = new TreeMap<String, String>(String.CASE_INSENSITIVE_ORDER);
+			headers.put(ReliableOutboundHttpConnection.UNIQUE_ID, "lost1");
+			headers.put(ReliableOutboundHttpConnection.OFFSET, "5");
+
+			HttpRequestResponse response = reader.read(new ByteArrayInputStream(data, 5, 5), headers);
+
+			assertEquals(ReliableInboundHttpConnection.REQUEST_OFFSET, response.getResponseCode());
+			assertEquals("0", response.getResponseHeaders().get(ReliableOutboundHttpConnection.OFFSET));
+			assertFalse(new File(tempDir, "lost1").exists());
+		}
+		finally
+		{
+			for (File file : tempDir.listFiles())
+				file.delete();
+
+			tempDir.delete();
+		}
+	}
+
+	@Test
+	public void testSendCompressedFile() throws Exception
+	{
+		File tempDir = Files.createTempDirectory("filetransfer").toFile();
+		Map<String, byte[]> received = new ConcurrentHashMap<String, byte[]>();
+		NioHttpListener listener = listener(tempDir, received, true);
+		listener.start();
+		HttpConnectionPool pool = new HttpConnectionPool(1, 0);
+
+		try
+		{
+			File dataFile = testFile(2 * 1024 * 1024 + 5);
+
+			ReliableOutboundHttpConnection conn = new ReliableOutboundHttpConnection("compressed1", url(listener), null, null, null, 1024, true);
+			conn.setConnectionPool(pool);
+			conn.setBlockCodec(BlockCodecs.DEFLATE);
+
+			HttpResponse response = conn.sendFile(dataFile, 2, 100, 1, false);
+
+			assertEquals(200, response.getResponseCode());
+			assertArrayEquals(Files.readAllBytes(dataFile.toPath()), waitFor(received, "compressed1"));
+
+			dataFile.delete();
+		}
+		finally
+		{
+			pool.close();
+			listener.close();
+		}
+	}
+
+	@Test
+	public void testCompressedFileResumesFromLastCompleteBlock() throws Exception
+	{
+		File tempDir = Files.createTempDirectory("filetransfer").toFile();
+		Map<String, byte[]> received = new ConcurrentHashMap<String, byte[]>();
+		NioHttpListener listener = listener(tempDir, received, true);
+		listener.start();
+
+		try
+		{
+			File dataFile = testFile(1024 * 1024 + 9);
+			byte[] data = Files.readAllBytes(dataFile.toPath());
+
+			// an earlier attempt, with smaller blocks, got part of the way through the third block
+
+			ByteArrayOutputStream blocks = new ByteArrayOutputStream();
+			BlockCompressedOutputStream out = new BlockCompressedOutputStream(blocks, BlockCodecs.GZIP, 64 * 1024);
+			out.write(data, 0, 3 * 64 * 1024);
+			out.finish();
+
+			byte[] frames = blocks.toByteArray();
+
+			FileOutputStream partial = new FileOutputStream(new File(tempDir, "compressed2"));
+			partial.write(frames, 0, frames.length - 100);
+			partial.close();
+
+			ReliableOutboundHttpConnection conn = new ReliableOutboundHttpConnection("compressed2", url(listener), null, null, null, 1024, true);
+
+			HttpResponse response = conn.sendFile(dataFile, 2, 100, 1, false);
+
+			assertEquals(200, response.getResponseCode());
+			assertArrayEquals(data, waitFor(received, "compressed2"));
+
+			dataFile.delete();
+		}
+		finally
+		{
+			listener.close();
+		}
+	}
+
+	@Test
+	public void testOnlyCorruptBlocksAreResent() throws Exception
+	{
+		File tempDir = Files.createTempDirectory("filetransfer").toFile();
+		Map<String, byte[]> received = new ConcurrentHashMap<String, byte[]>();
+		NioHttpListener listener = listener(tempDir, received, false);
+		listener.start();
+		CorruptingProxy proxy = new CorruptingProxy(listener.getPort(), 2 * 1024 * 1024 + 500);
+		HttpConnectionPool pool = new HttpConnectionPool(1, 0);
+
+		try
+		{
+			File dataFile = testFile(4 * 1024 * 1024 + 11);
+
+			ReliableOutboundHttpConnection conn = new ReliableOutboundHttpConnection("corrupt1", new URL("http", "localhost", proxy.getPort(), "/test"), null, null, null, 1024, false);
+			conn.setConnectionPool(pool);
+			conn.setChecksumBlockSize(ReliableOutboundHttpConnection.RECOMMENDED_CHECKSUM_BLOCK_SIZE);
+
+			HttpResponse response = conn.sendFile(dataFile, 2, 100, 1, false);
+
+			assertEquals(200, response.getResponseCode());
+			assertArrayEquals(Files.readAllBytes(dataFile.toPath()), waitFor(received, "corrupt1"));
+			assertFalse(new File(tempDir, "corrupt1" + BlockChecksums.PENDING_SUFFIX).exists());
+
+			// the file plus the one corrupted block, rather than the file twice
+
+			assertTrue(proxy.getForwarded() < dataFile.length() + 2 * ReliableOutboundHttpConnection.RECOMMENDED_CHECKSUM_BLOCK_SIZE);
+
+			dataFile.delete();
+		}
+		finally
+		{
+			pool.close();
+			proxy.close();
+			listener.close();
+		}
+	}
+
+	@Test
+	public void testPooledSendHasFixedLengthWithoutChecksums() throws Exception
+	{
+		final ServerSocket server = new ServerSocket(0);
+		final StringBuilder head = new StringBuilder();
+		HttpConnectionPool pool = new HttpConnectionPool(1, 0);
+
+		// a body of known length can be sent straight from the file, a chunked one can't
+
+		Thread receiver = new Thread() {
+			public void run()
+			{
+				try
+				{
+					Socket socket = server.accept();
+					InputStream in = socket.getInputStream();
+
+					while (head.indexOf("\r\n\r\n") == -1)
+						head.append((char) in.read());
+
+					int start = head.indexOf("Content-Length: ");
+					long remaining = start != -1 ? Long.parseLong(head.substring(start + 16, head.indexOf("\r\n", start))) : 0;
+
+					while (remaining > 0)
+						remaining -= in.skip(remaining);
+
+					socket.getOutputStream().write("HTTP/1.1 200 OK\r\nContent-Length: 0\r\nConnection: close\r\n\r\n".getBytes("ISO-8859-1"));
+					socket.close();
+				}
+				catch (IOException e)
+				{
+					head.append(e);
+				}
+			}
+		};
+
+		receiver.start();
+
+		try
+		{
+			File dataFile = testFile(100000);
+
+			ReliableOutboundHttpConnection conn = new ReliableOutboundHttpConnection("fixed1", new URL("http", "localhost", server.getLocalPort(), "/test"), null, null, null, 1024, false);
+			conn.setConnectionPool(pool);
+
+			assertEquals(0, conn.getChecksumBlockSize());
+			assertEquals(200, conn.sendFile(dataFile, 1, 100, 1, false).getResponseCode());
+
+			receiver.join(5000);
+
+			assertTrue(head.toString(), head.indexOf("Content-Length: 100000\r\n") != -1);
+			assertFalse(head.toString(), head.indexOf("chunked") != -1);
+
+			dataFile.delete();
+		}
+		finally
+		{
+			pool.close();
+			server.close();
+		}
+	}
+
+	@Test
+	public void testContentAlreadyReceivedIsNotSentAgain() throws Exception
+	{
+		File tempDir = Files.createTempDirectory("filetransfer").toFile();
+		Map<String, byte[]> received = new ConcurrentHashMap<String, byte[]>();
+		NioHttpListener listener = listener(tempDir, received, false);
+		listener.start();
+		listener.enableDuplicateDetection(1000, 1, TimeUnit.HOURS);
+		HttpConnectionPool pool = new HttpConnectionPool(1, 0);
+
+		try
+		{
+			File dataFile = testFile(1024 * 1024 + 13);
+
+			ReliableOutboundHttpConnection first = new ReliableOutboundHttpConnection("digest1", url(listener), null, null, null, 1024, false);
+			first.setConnectionPool(pool);
+			first.setContentDigest(true);
+
+			assertEquals(200, first.sendFile(dataFile, 2, 100, 1, false).getResponseCode());
+			assertArrayEquals(Files.readAllBytes(dataFile.toPath()), waitFor(received, "digest1"));
+
+			// same content under other ids, both via the pool and via HttpURLConnection
+
+			ReliableOutboundHttpConnection pooled = new ReliableOutboundHttpConnection("digest2", url(listener), null, null, null, 1024, false);
+			pooled.setConnectionPool(pool);
+			pooled.setContentDigest(true);
+
+			assertEquals(ReliableInboundHttpConnection.ALREADY_RECEIVED, pooled.sendFile(dataFile, 2, 100, 1, false).getResponseCode());
+
+			ReliableOutboundHttpConnection unpooled = new ReliableOutboundHttpConnection("digest3", url(listener), null, null, null, 1024, false);
+			unpooled.setContentDigest(true);
+
+			assertEquals(ReliableInboundHttpConnection.ALREADY_RECEIVED, unpooled.sendFile(dataFile, 2, 100, 1, false).getResponseCode());
+
+			Thread.sleep(100);
+
+			assertFalse(received.containsKey("digest2"));
+			assertFalse(received.containsKey("digest3"));
+			assertFalse(new File(tempDir, "digest2").exists());
+
+			dataFile.delete();
+		}
+		finally
+		{
+			pool.close();
+			listener.close();
+		}
+	}
+
+	@Test
+	public void testOnlyVerifiedContentIsTakenAsReceived() throws Exception
+	{
+		File tempDir = Files.createTempDirectory("filetransfer").toFile();
+		File otherDir = Files.createTempDirectory("filetransfer").toFile();
+		byte[] data = "the same content".getBytes();
+		String digest = "sha-256=" + Base64.getEncoder().encodeToString(MessageDigest.getInstance("SHA-256").digest(data));
+
+		try
+		{
+			// not enabled, so the same content under another id is delivered
+
+			ReliableInboundHttpConnection reader = new ReliableInboundHttpConnection(tempDir.getAbsolutePath(), false);
+
+			assertEquals(200, read(reader, "plain1", data, digest));
+			assertEquals(200, read(reader, "plain2", data, digest));
+
+			// a digest that can't be verified is never remembered
+
+			reader.enableDuplicateDetection(100, 1, TimeUnit.HOURS);
+
+			assertEquals(200, read(reader, "md5-1", data, "md5=abc"));
+			assertEquals(200, read(reader, "md5-2", "other content".getBytes(), "md5=abc"));
+
+			// whereas one that has been verified is, but only by this connection
+
+			assertEquals(200, read(reader, "sha1", data, digest));
+			assertEquals(ReliableInboundHttpConnection.ALREADY_RECEIVED, read(reader, "sha2", data, digest));
+
+			ReliableInboundHttpConnection other = new ReliableInboundHttpConnection(otherDir.getAbsolutePath(), false);
+			other.enableDuplicateDetection(100, 1, TimeUnit.HOURS);
+
+			assertEquals(200, read(other, "sha3", data, digest));
+		}
+		finally
+		{
+			for (File dir : new File[] {tempDir, otherDir})
+			{
+				for (File file : dir.listFiles())
+					file.delete();
+
+				dir.delete();
+			}
+		}
+	}
+
+	private static int read(ReliableInboundHttpConnection reader, String uniqueId, byte[] data, String digest) throws Exception
+	{
+		Map<String, String> headers = new TreeMap<String, String>(String.CASE_INSENSITIVE_ORDER);
+		headers.put(ReliableOutboundHttpConnection.UNIQUE_ID, uniqueId);
+		headers.put(ReliableOutboundHttpConnection.OFFSET, "0");
+		headers.put(ReliableOutboundHttpConnection.CONTENT_DIGEST, digest);
+
+		return reader.read(new ByteArrayInputStream(data), headers).getResponseCode();
+	}
+
+	/**
+	 * Sends one of two ranges of the given data
+	 */
+	private static int readRange(ReliableInboundHttpConnection reader, String uniqueId, byte[] data, int rangeIndex, String digest) throws Exception
+	{
+		int start = (int) TransferManifest.rangeStart(rangeIndex, 2, data.length);
+		int end = (int) TransferManifest.rangeEnd(rangeIndex, 2, data.length);
+
+		Map<String, String> headers = new TreeMap<String, String>(String.CASE_INSENSITIVE_ORDER);
+		headers.put(ReliableOutboundHttpConnection.UNIQUE_ID, uniqueId);
+		headers.put(ReliableOutboundHttpConnection.OFFSET, "" + start);
+		headers.put(ReliableOutboundHttpConnection.RANGE_INDEX, "" + rangeIndex);
+		headers.put(ReliableOutboundHttpConnection.RANGE_COUNT, "2");
+		headers.put(ReliableOutboundHttpConnection.TOTAL_LENGTH, "" + data.length);
+		headers.put(ReliableOutboundHttpConnection.CONTENT_DIGEST, digest);
+
+		return reader.read(new ByteArrayInputStream(data, start, end - start), headers).getResponseCode();
+	}
+
+	private static URL url(NioHttpListener listener) throws IOException
+	{
+		return new URL("http", "localhost", listener.getPort(), "/test");
+	}
+
+	/**
+	 * Forwards connections to the listener, flipping a bit of the request data at the given position of the first
+	 * connection, as a faulty link might
+	 */
+	private static class CorruptingProxy extends Thread
+	{
+		private ServerSocket	_socket;
+		private int				_targetPort;
+		private long			_corruptAt;
+		private AtomicLong		_forwarded = new AtomicLong();
+		private AtomicInteger	_connections = new AtomicInteger();
+
+		CorruptingProxy(int targetPort, long corruptAt) throws IOException
+		{
+			_socket = new ServerSocket(0);
+			_targetPort = targetPort;
+			_corruptAt = corruptAt;
+
+			setDaemon(true);
+			start();
+		}
+
+		int getPort()
+		{
+			return _socket.getLocalPort();
+		}
+
+		long getForwarded()
+		{
+			return _forwarded.get();
+		}
+
+		@Override
+		public void run()
+		{
+			while (!_socket.isClosed())
+			{
+				try
+				{
+					Socket client = _socket.accept();
+					Socket server = new Socket("localhost", _targetPort);
+
+					pump(client, server, _connections.getAndIncrement() == 0 ? _corruptAt : -1, _forwarded);
+					pump(server, client, -1, new AtomicLong());
+				}
+				catch (IOException e)
+				{
+					// closed
+				}
+			}
+		}
+
+		private static void pump(final Socket from, final Socket to, final long corruptAt, final AtomicLong forwarded)
+		{
+			Thread t = new Thread() {
+
+				@Override
+				public void run()
+				{
+					byte[] buf = new byte[8192];
+					long position = 0;
+					int bytesRead = -1;
+
+					try
+					{
+						InputStream in = from.getInputStream();
+						OutputStream out = to.getOutputStream();
+
+						while ((bytesRead=in.read(buf)) > 0)
+						{
+							if (corruptAt >= position && corruptAt < position + bytesRead)
+								buf[(int) (corruptAt - position)] ^= 0x01;
+
+							out.write(buf, 0, bytesRead);
+							position += bytesRead;
+							forwarded.addAndGet(bytesRead);
+						}
+					}
+					catch (IOException e)
+					{
+						// either side closed
+					}
+					finally
+					{
+						try {
+							from.close();
+							to.close();
+						} catch (IOException e) {
+							// ignore
+						}
+					}
+				}
+			};
+
+			t.setDaemon(true);
+			t.start();
+		}
+
+		void close() throws IOException
+		{
+			_socket.close();
+		}
+	}
+}
@@ -0,0 +1,112 @@
+package com.jc.util;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.jc.util.CacheStatistics.RemovalCause;
+import com.jc.util.CacheStatistics.Snapshot;
+
+public class CacheStatisticsTester
+{
+	@Test
+	public void testCounters()
+	{
+		CacheStatistics stats = new CacheStatistics();
+
+		stats.recordHit(10);
+		stats.recordHit(10);
+		stats.recordHit(10);
+		stats.recordMiss(10);
+		stats.recordPut();
+		stats.recordLoad(true, TimeUnit.MILLISECONDS.toNanos(4));
+		stats.recordLoad(false, TimeUnit.MILLISECONDS.toNanos(2));
+		stats.recordRemoval(RemovalCause.EXPLICIT, 0);
+		stats.recordRemoval(RemovalCause.SIZE, TimeUnit.MILLISECONDS.toNanos(10));
+		stats.recordRemoval(RemovalCause.EXPIRED, TimeUnit.MILLISECONDS.toNanos(30));
+
+		Snapshot s = stats.snapshot(5, 100);
+
+		assertEquals(5, s.getSize());
+		assertEquals(100, s.getMaxSize());
+		assertEquals(4, s.getRequestCount());
+		assertEquals(0.75, s.getHitRate(), 0.0);
+		assertEquals(1, s.getPutCount());
+		assertEquals(1, s.getLoadSuccessCount());
+		assertEquals(1, s.getLoadFailureCount());
+		assertEquals(3.0, s.getAverageLoadTime(), 0.001);
+		assertEquals(1, s.getRemovalCount(RemovalCause.EXPLICIT));
+		assertEquals(2, s.getEvictionCount());
+		assertEquals(20, s.getAverageEvictedAge());
+
+		stats.reset();
+
+		s = stats.snapshot(0, 100);
+
+		assertEquals(0, s.getRequestCount());
+		assertEquals(1.0, s.getHitRate(), 0.0);
+		assertEquals(0, s.getEvictionCount());
+		assertEquals(0, s.getLatencyPercentile(99));
+	}
+
+	@Test
+	public void testLatencyPercentiles()
+	{
+		CacheStatistics stats = new CacheStatistics();
+
+		for (long latency = 1; latency <= 100; latency++)
+			stats.recordHit(latency);
+
+		Snapshot s = stats.snapshot(0, -1);
+
+		// each bucket is a quarter of a power of two, so the upper bound is at most 25% too high
+
+		assertBetween(50, 63, s.getLatencyPercentile(50));
+		assertBetween(90, 113, s.getLatencyPercentile(90));
+		assertBetween(100, 125, s.getLatencyPercentile(100));
+		assertEquals(1, s.getLatencyPercentile(0.5));
+
+		// small values are exact, huge and negative ones still land in a bucket
+
+		stats.reset();
+		stats.recordHit(-5);
+		stats.recordHit(3);
+		stats.recordHit(Long.MAX_VALUE);
+
+		s = stats.snapshot(0, -1);
+
+		assertEquals(0, s.getLatencyPercentile(10));
+		assertEquals(3, s.getLatencyPercentile(50));
+		assertEquals(Long.MAX_VALUE, s.getLatencyPercentile(100));
+	}
+
+	@Test
+	public void testSizeHistoryKeepsLatestSamples()
+	{
+		CacheStatistics stats = new CacheStatistics(3);
+
+		for (int size = 1; size <= 5; size++)
+			stats.recordSize(size);
+
+		Snapshot s = stats.snapshot(5, -1);
+
+		assertArrayEquals(new int[] {3, 4, 5}, s.getSizeHistory());
+		assertEquals(3, s.getSizeHistoryTimes().length);
+
+		// the snapshot is not affected by later samples nor by changes to what it returns
+
+		stats.recordSize(6);
+		s.getSizeHistory()[0] = 99;
+		s.getSizeHistoryTimes()[0] = 0;
+
+		assertArrayEquals(new int[] {3, 4, 5}, s.getSizeHistory());
+		assertTrue(s.getSizeHistoryTimes()[0] > 0);
+	}
+
+	private static void assertBetween(long min, long max, long value)
+	{
+		assertTrue(value + " not between " + min + " and " + max, value >= min && value <= max);
+	}
+}
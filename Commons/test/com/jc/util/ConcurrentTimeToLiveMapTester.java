@@ -0,0 +1,194 @@
+package com.jc.util;
+
+import static org.junit.Assert.*;
+
+import java.lang.ref.WeakReference;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import org.junit.Test;
+
+import com.jc.util.HashMapWithTimeToLive.ObjectRemovedListener;
+
+public class ConcurrentTimeToLiveMapTester 
+{
+	@Test
+	public void testBoundedUnderContention() throws InterruptedException
+	{
+		final ConcurrentTimeToLiveMap<Integer, String> cache = new ConcurrentTimeToLiveMap<Integer, String>(1000, 8, 0, TimeUnit.MILLISECONDS);
+		final AtomicInteger evicted = new AtomicInteger();
+		final CountDownLatch done = new CountDownLatch(8);
+		
+		cache.setRemovalListener(new ObjectRemovedListener<String>() {
+			public void onObjectRemoval(String object) {
+				evicted.incrementAndGet();
+			}
+		});
+		
+		for (int t = 0; t < 8; t++)
+		{
+			final int offset = t * 10000;
+			
+			new Thread() {
+				public void run() {
+					for (int i = 0; i < 10000; i++)
+					{
+						cache.put(offset + i, "v" + i);
+						cache.get(offset + (i / 2));
+					}
+					
+					done.countDown();
+				}
+			}.start();
+		}
+		
+		done.await();
+		
+		assertTrue("size " + cache.size(), cache.size() <= 1000);
+		assertEquals(80000, cache.size() + evicted.get());
+	}
+	
+	@Test
+	public void testSizeNeverExceedsMaximum()
+	{
+		for (int max : new int[] {3, 10, 100, 1000})
+		{
+			ConcurrentTimeToLiveMap<Integer, String> cache = new ConcurrentTimeToLiveMap<Integer, String>(max);
+			
+			for (int i = 0; i < 5000; i++)
+				cache.put(i, "v" + i);
+			
+			assertEquals("max " + max, max, cache.size());
+			
+			cache.close();
+		}
+	}
+	
+	@Test
+	public void testWeightIsBoundForWholeMap()
+	{
+		ConcurrentTimeToLiveMap<String, String> cache = new ConcurrentTimeToLiveMap<String, String>(-1, 16, 0, TimeUnit.MILLISECONDS);
+		final AtomicInteger evicted = new AtomicInteger();
+		
+		cache.setRemovalListener(new ObjectRemovedListener<String>() {
+			public void onObjectRemoval(String object) {
+				evicted.incrementAndGet();
+			}
+		});
+		
+		cache.setMaximumWeight(100, new Weigher<String, String>() {
+			public long weigh(String key, String value) {
+				return value.length();
+			}
+		});
+		
+		// far more than a 16th of the maximum
+		
+		cache.put("large", repeat('L', 60));
+		cache.put("a", repeat('A', 20));
+		cache.put("b", repeat('B', 20));
+		
+		assertEquals(3, cache.size());
+		assertEquals(100, cache.getWeightedSize());
+		
+		// the least recently accessed element of the whole map makes way, wherever it is
+		
+		cache.get("large");
+		cache.put("c", repeat('C', 20));
+		
+		assertNull(cache.get("a"));
+		assertEquals(60, cache.get("large").length());
+		assertEquals(100, cache.getWeightedSize());
+		assertEquals(1, evicted.get());
+		
+		// too heavy to ever fit, so is dropped without evicting anything else
+		
+		cache.put("huge", repeat('H', 101));
+		
+		assertNull(cache.get("huge"));
+		assertEquals(3, cache.size());
+		assertEquals(100, cache.getWeightedSize());
+		assertEquals(2, evicted.get());
+		
+		cache.close();
+	}
+	
+	private static String repeat(char c, int count)
+	{
+		char[] chars = new char[count];
+		Arrays.fill(chars, c);
+		
+		return new String(chars);
+	}
+	
+	@Test
+	public void testComputeIfAbsentLoadsOnce() throws InterruptedException
+	{
+		final ConcurrentTimeToLiveMap<String, String> cache = new ConcurrentTimeToLiveMap<String, String>(10, 50, TimeUnit.MILLISECONDS);
+		final AtomicInteger loads = new AtomicInteger();
+		final Function<String, String> loader = new Function<String, String>() {
+			public String apply(String key) {
+				loads.incrementAndGet();
+				return key.toUpperCase();
+			}
+		};
+		
+		assertEquals("KEY", cache.computeIfAbsent("key", loader));
+		assertEquals("KEY", cache.computeIfAbsent("key", loader));
+		assertEquals(1, loads.get());
+		
+		Thread.sleep(80);
+		
+		assertNull(cache.get("key"));
+		assertEquals("KEY", cache.computeIfAbsent("key", loader));
+		assertEquals(2, loads.get());
+	}
+
+	@Test
+	public void testMovesToNewSchedulerAfterShutdown() throws InterruptedException
+	{
+		ConcurrentTimeToLiveMap<String, String> cache = new ConcurrentTimeToLiveMap<String, String>(10, 50, TimeUnit.MILLISECONDS);
+		final AtomicInteger expired = new AtomicInteger();
+		
+		cache.setRemovalListener(new ObjectRemovedListener<String>() {
+			public void onObjectRemoval(String object) {
+				expired.incrementAndGet();
+			}
+		});
+		
+		ExpiryScheduler.shutdownDefault();
+		
+		assertNotNull(cache.enableStatistics());
+		
+		cache.put("a", "A");
+		
+		Thread.sleep(50 + 3 * ExpiryScheduler.DEFAULT_TICK_MS);
+		
+		assertEquals(1, expired.get());
+		assertEquals(0, cache.size());
+		
+		cache.close();
+	}
+
+	@Test
+	public void testUnclosedMapCanBeCollectedWithPendingTimeouts() throws InterruptedException
+	{
+		ConcurrentTimeToLiveMap<String, String> cache = new ConcurrentTimeToLiveMap<String, String>(10, 1, TimeUnit.HOURS);
+		cache.put("a", "A");
+		cache.enableStatistics();
+		
+		WeakReference<ConcurrentTimeToLiveMap<String, String>> ref = new WeakReference<ConcurrentTimeToLiveMap<String, String>>(cache);
+		cache = null;
+		
+		for (int i = 0; i < 50 && ref.get() != null; i++)
+		{
+			System.gc();
+			Thread.sleep(20);
+		}
+		
+		assertNull(ref.get());
+	}
+}
@@ -0,0 +1,385 @@
+package com.jc.util;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import com.jc.util.HashMapWithTimeToLive.ObjectRemovedListener;
+
+public class HashMapWithTimeToLiveTester 
+{
+	@Test
+	public void testEvictsLeastRecentlyAccessed()
+	{
+		HashMapWithTimeToLive<String, String> cache = new HashMapWithTimeToLive<String, String>(3, 0.8f);
+		final List<String> removed = new ArrayList<String>();
+		
+		cache.setRemovalListener(new ObjectRemovedListener<String>() {
+			public void onObjectRemoval(String object) {
+				removed.add(object);
+			}
+		});
+		
+		cache.put("a", "A");
+		cache.put("b", "B");
+		cache.put("c", "C");
+		
+		cache.get("a");			// b is now the eldest
+		cache.put("d", "D");
+		
+		assertEquals(3, cache.size());
+		assertNull(cache.get("b"));
+		assertEquals("A", cache.get("a"));
+		assertEquals(1, removed.size());
+		assertEquals("B", removed.get(0));
+		assertEquals("c", cache.getFirstInKey());
+		assertEquals("a", cache.getLastInKey());
+	}
+	
+	@Test
+	public void testTimeToLive() throws InterruptedException
+	{
+		HashMapWithTimeToLive<String, String> cache = new HashMapWithTimeToLive<String, String>(10, 0.8f);
+		
+		cache.put("short", "S", 20, TimeUnit.MILLISECONDS);
+		cache.put("forever", "F");
+		
+		assertEquals("S", cache.get("short"));
+		
+		Thread.sleep(50);
+		
+		assertFalse(cache.containsKey("short"));
+		assertNull(cache.get("short"));
+		assertEquals("F", cache.get("forever"));
+		assertEquals(1, cache.size());
+		
+		cache.close();
+	}
+	
+	@Test
+	public void testExpiredWithoutAccess() throws InterruptedException
+	{
+		HashMapWithTimeToLive<String, String> cache = new HashMapWithTimeToLive<String, String>(10, 0.8f, 50, TimeUnit.MILLISECONDS);
+		final List<String> removed = new ArrayList<String>();
+		
+		cache.setRemovalListener(new ObjectRemovedListener<String>() {
+			public void onObjectRemoval(String object) {
+				removed.add(object);
+			}
+		});
+		
+		cache.put("a", "A");
+		cache.put("b", "B");
+		cache.remove("b");
+		
+		Thread.sleep(50 + 3 * ExpiryScheduler.DEFAULT_TICK_MS);
+		
+		assertEquals(0, cache.size());
+		assertEquals(1, removed.size());
+		assertEquals("A", removed.get(0));
+		
+		cache.close();
+	}
+	
+	@Test
+	public void testLoaderCoalescesMisses() throws Exception
+	{
+		final HashMapWithTimeToLive<String, String> cache = new HashMapWithTimeToLive<String, String>(10, 0.8f);
+		final AtomicInteger loads = new AtomicInteger();
+		final CountDownLatch done = new CountDownLatch(4);
+		final CacheLoader<String, String> loader = new CacheLoader<String, String>() {
+			public String load(String key) throws Exception {
+				loads.incrementAndGet();
+				Thread.sleep(100);
+				return key.toUpperCase();
+			}
+		};
+		
+		for (int t = 0; t < 4; t++)
+		{
+			new Thread() {
+				public void run() {
+					try {
+						assertEquals("KEY", cache.get("key", loader));
+					} catch (CacheLoader.LoadException e) {
+						fail(e.getMessage());
+					}
+					
+					done.countDown();
+				}
+			}.start();
+		}
+		
+		done.await();
+		
+		assertEquals(1, loads.get());
+		assertEquals("KEY", cache.get("key"));
+	}
+	
+	@Test
+	public void testServesStaleWhilstReloading() throws Exception
+	{
+		HashMapWithTimeToLive<String, String> cache = new HashMapWithTimeToLive<String, String>(10, 0.8f, 200, TimeUnit.MILLISECONDS);
+		final AtomicInteger loads = new AtomicInteger();
+		final CacheLoader<String, String> loader = new CacheLoader<String, String>() {
+			public String load(String key) throws Exception {
+				return key + loads.incrementAndGet();
+			}
+		};
+		
+		cache.setStaleWindow(5, TimeUnit.SECONDS);
+		
+		assertEquals("k1", cache.get("k", loader));
+		
+		Thread.sleep(250);
+		
+		assertNull(cache.get("k"));
+		assertEquals("k1", cache.get("k", loader));
+		
+		// the reload has to be checked well within the time to live of its value, which would otherwise be stale in turn
+		
+		for (int i = 0; i < 100 && cache.get("k") == null; i++)
+			Thread.sleep(5);
+		
+		assertEquals("k2", cache.get("k", loader));
+		assertEquals(2, loads.get());
+		
+		cache.close();
+	}
+	
+	@Test
+	public void testEvictsByWeight()
+	{
+		HashMapWithTimeToLive<String, String> cache = new HashMapWithTimeToLive<String, String>(100, 0.8f);
+		
+		cache.setMaximumWeight(10, new Weigher<String, String>() {
+			public long weigh(String key, String value) {
+				return value.length();
+			}
+		});
+		
+		cache.put("a", "AAAA");
+		cache.put("b", "BBBB");
+		cache.get("a");			// b is now the eldest
+		cache.put("c", "CCCC");
+		
+		assertEquals(8, cache.getWeightedSize());
+		assertNull(cache.get("b"));
+		assertEquals("AAAA", cache.get("a"));
+		
+		// too heavy to ever fit, so is dropped without evicting anything else
+		
+		cache.put("d", "DDDDDDDDDDDD");
+		
+		assertNull(cache.get("d"));
+		assertEquals(2, cache.size());
+		assertEquals(8, cache.getWeightedSize());
+		
+		// and replacing an element with one that is too heavy removes it
+		
+		cache.put("a", "AAAAAAAAAAAA");
+		
+		assertNull(cache.get("a"));
+		assertEquals("CCCC", cache.get("c"));
+		assertEquals(4, cache.getWeightedSize());
+		
+		cache.close();
+	}
+	
+	@Test
+	public void testPromotesFromOverflow()
+	{
+		HashMapWithTimeToLive<String, String> cache = new HashMapWithTimeToLive<String, String>(2, 0.8f);
+		
+		cache.setOverflowStore(new OffHeapOverflowStore<String, String>(1024, 64, new ValueSerializer<String>() {
+			public byte[] serialize(String value) throws IOException {
+				return value.getBytes("UTF-8");
+			}
+			
+			public String deserialize(byte[] data) throws IOException {
+				return new String(data, "UTF-8");
+			}
+		}));
+		
+		cache.put("a", "A");
+		cache.put("b", "B");
+		cache.put("c", "C");			// a moves off heap
+		
+		assertEquals(2, cache.size());
+		assertTrue(cache.containsKey("a"));
+		assertEquals("A", cache.get("a"));	// b moves off heap
+		assertEquals(1, cache.getOverflowStore().size());
+		
+		cache.remove("b");
+		
+		assertNull(cache.get("b"));
+		
+		cache.close();
+	}
+	
+	@Test
+	public void testOverflowIsWrittenOutsideTheLock()
+	{
+		final HashMapWithTimeToLive<String, String> cache = new HashMapWithTimeToLive<String, String>(2, 0.8f);
+		final AtomicInteger locked = new AtomicInteger();
+		final AtomicInteger serialized = new AtomicInteger();
+		
+		cache.setOverflowStore(new OffHeapOverflowStore<String, String>(1024, 64, new ValueSerializer<String>() {
+			public byte[] serialize(String value) throws IOException {
+				serialized.incrementAndGet();
+				
+				if (Thread.holdsLock(cache))
+					locked.incrementAndGet();
+				
+				return value.getBytes("UTF-8");
+			}
+			
+			public String deserialize(byte[] data) throws IOException {
+				return new String(data, "UTF-8");
+			}
+		}));
+		
+		cache.put("a", "A");
+		cache.put("b", "B");
+		cache.put("c", "C");			// a moves off heap
+		cache.putAll(Collections.singletonMap("d", "D"));
+		
+		assertEquals("A", cache.get("a"));
+		assertEquals(3, serialized.get());
+		assertEquals(0, locked.get());
+		
+		cache.close();
+		
+		assertNull(cache.getOverflowStore());
+	}
+
+	@Test
+	public void testUnclosedMapCanBeCollectedWithPendingTimeouts() throws InterruptedException
+	{
+		HashMapWithTimeToLive<String, String> cache = new HashMapWithTimeToLive<String, String>(10, 0.8f, 1, TimeUnit.HOURS);
+		cache.put("a", "A");
+		
+		WeakReference<HashMapWithTimeToLive<String, String>> ref = new WeakReference<HashMapWithTimeToLive<String, String>>(cache);
+		cache = null;
+		
+		for (int i = 0; i < 50 && ref.get() != null; i++)
+		{
+			System.gc();
+			Thread.sleep(20);
+		}
+		
+		assertNull(ref.get());
+	}
+	
+	@Test
+	public void testMovesToNewSchedulerAfterShutdown() throws InterruptedException
+	{
+		HashMapWithTimeToLive<String, String> cache = new HashMapWithTimeToLive<String, String>(10, 0.8f, 200, TimeUnit.MILLISECONDS);
+		final List<String> removed = Collections.synchronizedList(new ArrayList<String>());
+		
+		cache.setRemovalListener(new ObjectRemovedListener<String>() {
+			public void onObjectRemoval(String object) {
+				removed.add(object);
+			}
+		});
+		
+		cache.put("a", "A");
+		
+		ExpiryScheduler.shutdownDefault();
+		
+		assertNotNull(cache.enableStatistics());
+		
+		cache.put("b", "B", 50, TimeUnit.MILLISECONDS);
+		
+		Thread.sleep(200 + 3 * ExpiryScheduler.DEFAULT_TICK_MS);
+		
+		assertEquals(0, cache.size());
+		assertTrue(removed.contains("A"));
+		assertTrue(removed.contains("B"));
+		
+		cache.close();
+	}
+
+	@Test
+	public void testDefaultMethodsGoThroughPut()
+	{
+		HashMapWithTimeToLive<String, String> cache = new HashMapWithTimeToLive<String, String>(10, 0.8f);
+		
+		for (int i = 0; i < 50; i++)
+			assertNull(cache.putIfAbsent("k" + i, "v" + i));
+		
+		assertEquals(10, cache.size());
+		assertEquals("v49", cache.putIfAbsent("k49", "x"));
+		assertTrue(cache.containsKey("k49"));
+		assertFalse(cache.containsKey("k0"));
+		
+		cache.clear();
+		
+		assertEquals("A", cache.computeIfAbsent("a", k -> "A"));
+		assertEquals("A", cache.get("a"));
+		assertEquals("A1", cache.merge("a", "1", String::concat));
+		assertEquals("B", cache.merge("b", "B", String::concat));
+		assertEquals("A1", cache.replace("a", "A2"));
+		assertTrue(cache.replace("a", "A2", "A3"));
+		assertEquals("A3!", cache.compute("a", (k, v) -> v + "!"));
+		assertEquals("B!", cache.computeIfPresent("b", (k, v) -> v + "!"));
+		assertNull(cache.replace("c", "C"));
+		assertFalse(cache.containsKey("c"));
+		
+		assertNull(cache.compute("a", (k, v) -> null));
+		assertFalse(cache.containsKey("a"));
+		assertTrue(cache.remove("b", "B!"));
+		assertFalse(cache.containsKey("b"));
+		assertEquals(0, cache.size());
+		assertNull(cache.getFirstInKey());
+		
+		cache.close();
+	}
+	
+	@Test
+	public void testKeyAndEntrySetRemoveFromMap()
+	{
+		HashMapWithTimeToLive<String, String> cache = new HashMapWithTimeToLive<String, String>(10, 0.8f);
+		
+		cache.put("a", "A");
+		cache.put("b", "B");
+		cache.put("c", "C");
+		
+		assertTrue(cache.keySet().remove("a"));
+		assertFalse(cache.containsKey("a"));
+		
+		for (Iterator<Map.Entry<String, String>> it = cache.entrySet().iterator(); it.hasNext();)
+		{
+			Map.Entry<String, String> e = it.next();
+			
+			if (e.getKey().equals("b"))
+				it.remove();
+			else
+				e.setValue("C2");
+		}
+		
+		assertFalse(cache.containsKey("b"));
+		assertEquals("C2", cache.get("c"));
+		assertEquals(1, cache.size());
+		assertEquals("c", cache.getFirstInKey());
+		
+		cache.keySet().clear();
+		
+		assertFalse(cache.containsKey("c"));
+		assertNull(cache.getFirstInKey());
+		assertEquals(0, cache.size());
+		
+		cache.close();
+	}
+}
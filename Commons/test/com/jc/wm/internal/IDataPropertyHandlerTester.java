@@ -0,0 +1,83 @@
+package com.jc.wm.internal;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import com.wm.data.IData;
+import com.wm.data.IDataCursor;
+import com.wm.data.IDataFactory;
+
+public class IDataPropertyHandlerTester
+{
+	@Test
+	public void testNamesInDocumentOrder()
+	{
+		IData doc = IDataFactory.create();
+		IDataCursor c = doc.getCursor();
+		c.insertAfter("b", "1");
+		c.insertAfter("a", "2");
+		c.insertAfter("b", "3");
+		c.insertAfter("c", "4");
+		c.destroy();
+
+		assertArrayEquals(new String[] {"b", "a", "c"}, new IDataPropertyHandler().getPropertyNames(doc));
+	}
+
+	@Test
+	public void testSetPropertyRefreshesNames()
+	{
+		IDataPropertyHandler handler = new IDataPropertyHandler();
+		IData doc = IDataFactory.create();
+
+		IDataPropertyHandler.beginEvaluation();
+
+		assertEquals(0, handler.getPropertyNames(doc).length);
+
+		handler.setProperty(doc, "x", "1");
+
+		assertArrayEquals(new String[] {"x"}, handler.getPropertyNames(doc));
+		assertEquals("1", handler.getProperty(doc, "x"));
+
+		IDataPropertyHandler.endEvaluation();
+	}
+
+	@Test
+	public void testFactoryRefreshesNames()
+	{
+		IDataPropertyHandler handler = new IDataPropertyHandler();
+		IDataXPathFactory factory = new IDataXPathFactory(new TypeHints().hint("child", TypeHints.Type.DOCUMENT).hint("lines", TypeHints.Type.DOCUMENT_LIST));
+		IData doc = IDataFactory.create();
+
+		IDataPropertyHandler.beginEvaluation();
+
+		assertEquals(0, handler.getPropertyNames(doc).length);
+
+		factory.createObject(null, null, doc, "child", -1);
+
+		assertArrayEquals(new String[] {"child"}, handler.getPropertyNames(doc));
+
+		factory.createObject(null, null, doc, "lines", 0);
+
+		assertArrayEquals(new String[] {"child", "lines"}, handler.getPropertyNames(doc));
+
+		IDataPropertyHandler.endEvaluation();
+	}
+
+	@Test
+	public void testWideDocumentWithDuplicates()
+	{
+		IData doc = IDataFactory.create();
+		IDataCursor c = doc.getCursor();
+
+		for (int i = 0; i < 40; i++)
+			c.insertAfter("k" + (i % 30), "" + i);
+
+		c.destroy();
+
+		String[] names = new IDataPropertyHandler().getPropertyNames(doc);
+
+		assertEquals(30, names.length);
+		assertEquals("k29", names[29]);
+	}
+}
@@ -0,0 +1,65 @@
+package com.jc.wm.internal;
+
+import static com.jc.wm.util.IDataTestHelper.doc;
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import com.wm.data.IData;
+import com.wm.data.IDataCursor;
+import com.wm.data.IDataFactory;
+import com.wm.data.IDataUtil;
+
+public class PathSetTester
+{
+	@Test
+	public void testExtractsAllPaths() throws XPathException
+	{
+		PathSet paths = new PathSet("order/id", "order/header/city", "order/lines[2]/price", "order/lines[1]/price", "order/header/city", "order/missing/x", "order/tags[2]");
+
+		Object[] values = paths.extract(createPipeline());
+
+		assertArrayEquals(new Object[] {"o1", "Paris", "20", "10", "Paris", null, "b"}, values);
+	}
+
+	@Test
+	public void testSinglePassOverWideDocument() throws XPathException
+	{
+		IData doc = IDataFactory.create();
+		IDataCursor c = doc.getCursor();
+		String[] paths = new String[20];
+
+		for (int i = 0; i < 40; i++)
+			IDataUtil.put(c, "field" + i, "value" + i);
+
+		c.last();
+		c.insertAfter("field3", "duplicate");
+		c.destroy();
+
+		for (int i = 0; i < paths.length; i++)
+			paths[i] = "field" + (i * 2 + 1);
+
+		Object[] values = new PathSet(paths).extract(doc);
+
+		for (int i = 0; i < paths.length; i++)
+			assertEquals("value" + (i * 2 + 1), values[i]);
+	}
+
+	@Test
+	public void testMatchesXPathExpression() throws XPathException
+	{
+		String[] paths = {"order/header/city", "order/lines[1]/price", "order/id[1]", "order/id[2]"};
+		IData pipeline = createPipeline();
+		Object[] values = new PathSet(paths).extract(pipeline);
+
+		for (int i = 0; i < paths.length; i++)
+			assertEquals(new XPathExpression(paths[i]).getObject(pipeline), values[i]);
+	}
+
+	private static IData createPipeline()
+	{
+		IData order = doc("id", "o1", "header", doc("city", "Paris"), "lines", new IData[] {doc("price", "10"), doc("price", "20")}, "tags", new String[] {"a", "b"});
+
+		return doc("order", order);
+	}
+}
@@ -0,0 +1,136 @@
+package com.jc.wm.internal;
+
+import static com.jc.wm.util.IDataTestHelper.doc;
+import static org.junit.Assert.*;
+
+import java.util.HashMap;
+
+import org.junit.Test;
+
+import com.wm.data.IData;
+import com.wm.data.IDataFactory;
+import com.wm.data.IDataUtil;
+
+public class XPathExpressionTester
+{
+	@Test
+	public void testDetectsSimplePaths()
+	{
+		assertTrue(new XPathExpression("order/lines[2]/price").isSimplePath());
+		assertTrue(new XPathExpression("/order/header-1/ship.to").isSimplePath());
+
+		assertFalse(new XPathExpression("order/lines[price > 2]").isSimplePath());
+		assertFalse(new XPathExpression("order//price").isSimplePath());
+		assertFalse(new XPathExpression("order/*").isSimplePath());
+		assertFalse(new XPathExpression("order/@id").isSimplePath());
+		assertFalse(new XPathExpression("count(order/lines)").isSimplePath());
+		assertFalse(new XPathExpression("order/lines[0]").isSimplePath());
+		assertFalse(new XPathExpression("../order").isSimplePath());
+	}
+
+	@Test
+	public void testGetObject()
+	{
+		IData pipeline = createPipeline();
+
+		assertEquals("Paris", new XPathExpression("order/header/city").getObject(pipeline));
+		assertEquals("20", new XPathExpression("order/lines[2]/price").getObject(pipeline));
+		assertEquals("b", new XPathExpression("order/tags[2]").getObject(pipeline));
+		assertEquals("o1", new XPathExpression("order/id[1]").getObject(pipeline));
+		assertNull(new XPathExpression("order/lines[5]/price").getObject(pipeline));
+		assertNull(new XPathExpression("order/missing/price").getObject(pipeline));
+		assertArrayEquals(new Object[] {"10"}, new XPathExpression("order/lines[1]/price").getObjectArray(pipeline));
+		assertNull(new XPathExpression("order/nothing").getObjectArray(pipeline));
+	}
+
+	@Test
+	public void testSetValue()
+	{
+		IData pipeline = createPipeline();
+		HashMap<String, String> arrayMap = new HashMap<String, String>();
+
+		new XPathExpression("order/header/city").setValue(pipeline, "Lyon", arrayMap);
+		new XPathExpression("order/header/country").setValue(pipeline, "FR", arrayMap);
+		new XPathExpression("order/lines[1]/price").setValue(pipeline, "11", arrayMap);
+		new XPathExpression("order/tags[1]").setValue(pipeline, "z", arrayMap);
+
+		assertEquals("Lyon", new XPathExpression("order/header/city").getObject(pipeline));
+		assertEquals("FR", new XPathExpression("order/header/country").getObject(pipeline));
+		assertEquals("11", new XPathExpression("order/lines[1]/price").getObject(pipeline));
+		assertEquals("z", new XPathExpression("order/tags[1]").getObject(pipeline));
+	}
+
+	@Test
+	public void testStreamOverRecords()
+	{
+		IData[] records = new IData[1000];
+
+		for (int i = 0; i < records.length; i++)
+			records[i] = doc("order", doc("id", "o" + i, "lines", new IData[] {doc("price", "" + i)}));
+
+		XPathExpression expression = new XPathExpression("order/lines[1]/price");
+
+		assertEquals(1000, expression.stream(records, false).count());
+		assertEquals(1000, expression.stream(records, true).count());
+		assertEquals("999", expression.stream(records, true).reduce((a, b) -> b).get());
+		assertEquals(3, expression.stream(records, false).limit(3).count());
+
+		assertEquals(1, new XPathExpression("order/id[1]").filter(new IData[] {records[0], doc("other", "x"), null}, false).count());
+	}
+
+	@Test
+	public void testFirstAndExists()
+	{
+		IData pipeline = createPipeline();
+
+		assertTrue(new XPathExpression("order/header/city").exists(pipeline));
+		assertFalse(new XPathExpression("order/header/postcode").exists(pipeline));
+		assertArrayEquals(new Object[] {"Paris"}, new XPathExpression("order/header/city").getObjectArray(pipeline, 1));
+	}
+
+	@Test
+	public void testCreatesTypedPath()
+	{
+		IData pipeline = IDataFactory.create();
+		TypeHints hints = new TypeHints().hint("lines", TypeHints.Type.DOCUMENT_LIST, 3).hint("tags", TypeHints.Type.STRING_LIST);
+
+		new XPathExpression("order/lines[2]/price").setValue(pipeline, "20", hints);
+		new XPathExpression("order/lines[1]/price").setValue(pipeline, "10", hints);
+		new XPathExpression("order/tags[2]").setValue(pipeline, "b", hints);
+		new XPathExpression("order/header/city").setValue(pipeline, "Paris", hints);
+
+		IData[] lines = IDataUtil.getIDataArray(((IData) new XPathExpression("order").getObject(pipeline)).getCursor(), "lines");
+
+		assertEquals(3, lines.length);
+		assertNull(lines[2]);
+		assertEquals("10", new XPathExpression("order/lines[1]/price").getObject(pipeline));
+		assertEquals("20", new XPathExpression("order/lines[2]/price").getObject(pipeline));
+		assertArrayEquals(new String[] {null, "b"}, (String[]) IDataUtil.get(((IData) new XPathExpression("order").getObject(pipeline)).getCursor(), "tags"));
+		assertEquals("Paris", new XPathExpression("order/header/city").getObject(pipeline));
+	}
+
+	@Test
+	public void testLegacyArrayMapCodes()
+	{
+		IData pipeline = IDataFactory.create();
+		HashMap<String, String> arrayMap = new HashMap<String, String>();
+		arrayMap.put("amounts", "4");
+
+		new XPathExpression("totals/amounts[3]").setValue(pipeline, 1.5, arrayMap);
+
+		Object amounts = IDataUtil.get(((IData) new XPathExpression("totals").getObject(pipeline)).getCursor(), "amounts");
+
+		assertTrue(amounts instanceof Double[]);
+		assertEquals(3, ((Double[]) amounts).length);
+		assertEquals(1.5, ((Double[]) amounts)[2].doubleValue(), 0.0);
+	}
+
+	private static IData createPipeline()
+	{
+		IData line1 = doc("price", "10");
+		IData line2 = doc("price", "20");
+		IData order = doc("id", "o1", "header", doc("city", "Paris"), "lines", new IData[] {line1, line2}, "tags", new String[] {"a", "b"});
+
+		return doc("order", order);
+	}
+}
@@ -0,0 +1,150 @@
+package com.jc.wm.util;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InvalidClassException;
+import java.io.Serializable;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Date;
+
+import org.junit.Test;
+
+import com.wm.data.IData;
+import com.wm.data.IDataCursor;
+import com.wm.data.IDataFactory;
+import com.wm.data.IDataUtil;
+
+public class IDataBinaryCoderTester 
+{
+	@Test
+	public void testRoundTrip() throws IOException
+	{
+		IData doc = createDoc();
+		byte[] bytes = IDataUtils.convertToCompactBytes(doc);
+		
+		assertTrue(IDataBinaryCoder.isBinaryEncoded(bytes));
+		assertEquals(doc.toString(), IDataUtils.convertCompactBytesToIData(bytes).toString());
+	}
+	
+	@Test
+	public void testStringsWrittenOnce() throws IOException
+	{
+		IData[] list = new IData[100];
+		
+		for (int i = 0; i < list.length; i++)
+		{
+			list[i] = IDataFactory.create();
+			IDataCursor c = list[i].getCursor();
+			IDataUtil.put(c, "description", "a fairly long repeating description");
+			c.destroy();
+		}
+		
+		IData doc = IDataFactory.create();
+		IDataCursor c = doc.getCursor();
+		IDataUtil.put(c, "list", list);
+		c.destroy();
+		
+		assertTrue(IDataUtils.convertToCompactBytes(doc).length < 600);
+	}
+	
+	@Test
+	public void testConsecutiveDocuments() throws IOException
+	{
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		IDataBinaryCoder coder = new IDataBinaryCoder();
+		
+		coder.encode(out, createDoc());
+		coder.encode(out, IDataFactory.create());
+		
+		ByteArrayInputStream in = new ByteArrayInputStream(out.toByteArray());
+		
+		assertEquals(createDoc().toString(), coder.decode(in).toString());
+		assertEquals("{}", coder.decode(in).toString());
+		assertEquals(-1, in.read());
+	}
+	
+	@Test(expected=IOException.class)
+	public void testRejectsOtherFormats() throws IOException
+	{
+		new IDataBinaryCoder().decodeFromBytes("<IDataXMLCoder version=\"1.0\">".getBytes());
+	}
+	
+	@Test
+	public void testOnlyAllowedClassesAreDeserialized() throws IOException
+	{
+		IData doc = IDataFactory.create();
+		IDataCursor c = doc.getCursor();
+		IDataUtil.put(c, "custom", new Custom("x"));
+		c.destroy();
+		
+		byte[] bytes = IDataUtils.convertToCompactBytes(doc);
+		
+		try
+		{
+			IDataUtils.convertCompactBytesToIData(bytes);
+			fail("Class that has not been allowed was deserialized");
+		}
+		catch (InvalidClassException e)
+		{
+			assertEquals(Custom.class.getName(), e.classname);
+		}
+		
+		IDataBinaryCoder.allowSerializable(Custom.class.getName());
+		
+		c = IDataUtils.convertCompactBytesToIData(bytes).getCursor();
+		assertEquals("x", ((Custom) IDataUtil.get(c, "custom"))._value);
+		c.destroy();
+		
+		assertTrue(IDataBinaryCoder.isAllowedSerializable("[[I"));
+		assertTrue(IDataBinaryCoder.isAllowedSerializable("[Ljava.util.ArrayList;"));
+		assertFalse(IDataBinaryCoder.isAllowedSerializable("java.lang.invoke.SerializedLambda"));
+	}
+	
+	private static IData createDoc()
+	{
+		IData doc = IDataFactory.create();
+		IDataCursor c = doc.getCursor();
+		
+		IData child = IDataFactory.create();
+		IDataCursor cc = child.getCursor();
+		IDataUtil.put(cc, "name", "child");
+		IDataUtil.put(cc, "empty", null);
+		cc.destroy();
+		
+		ArrayList<String> serializable = new ArrayList<String>();
+		serializable.add("x");
+		
+		IDataUtil.put(c, "string", "value \u00e9\u4e2d");
+		IDataUtil.put(c, "int", Integer.valueOf(-42));
+		IDataUtil.put(c, "long", Long.valueOf(Long.MAX_VALUE));
+		IDataUtil.put(c, "double", Double.valueOf(1.5));
+		IDataUtil.put(c, "bool", Boolean.TRUE);
+		IDataUtil.put(c, "date", new Date(1234567890L));
+		IDataUtil.put(c, "decimal", new BigDecimal("12.340"));
+		IDataUtil.put(c, "child", child);
+		IDataUtil.put(c, "children", new IData[] {child, null});
+		IDataUtil.put(c, "strings", new String[] {"string", null, "name"});
+		IDataUtil.put(c, "table", new String[][] {{"a", "b"}, null});
+		IDataUtil.put(c, "serializable", serializable);
+		c.insertAfter("string", "duplicate key");
+		c.destroy();
+		
+		return doc;
+	}
+	
+	private static class Custom implements Serializable
+	{
+		private static final long serialVersionUID = 1L;
+		
+		private String _value;
+		
+		Custom(String value)
+		{
+			_value = value;
+		}
+	}
+}
@@ -0,0 +1,109 @@
+package com.jc.wm.util;
+
+import static com.jc.wm.util.IDataTestHelper.doc;
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+
+import org.junit.Test;
+
+import com.jc.wm.util.IDataDiff.Patch;
+import com.jc.wm.util.IDataDiff.PatchException;
+import com.jc.wm.util.IDataDiff.Type;
+import com.wm.data.IData;
+import com.wm.data.IDataUtil;
+
+public class IDataDiffTester
+{
+	@Test
+	public void testIdenticalDocuments() throws IOException
+	{
+		IData doc = createOrder(50);
+
+		assertTrue(IDataDiff.diff(doc, copy(doc)).isEmpty());
+		assertEquals(IDataDiff.hash(doc), IDataDiff.hash(copy(doc)));
+	}
+
+	@Test
+	public void testKeyOrderIgnored()
+	{
+		assertTrue(IDataDiff.isEqual(doc("a", "1", "b", "2"), doc("b", "2", "a", "1")));
+		assertFalse(IDataDiff.isEqual(doc("a", "1", "b", "2"), doc("a", "2", "b", "1")));
+	}
+
+	@Test
+	public void testOperations() throws IOException
+	{
+		IData from = doc("a", "1", "b", "2", "c/d", doc("x", "1"));
+		IData to = doc("a", "1", "c/d", doc("x", "2"), "e", "3");
+
+		Patch patch = IDataDiff.diff(from, to);
+
+		assertEquals(3, patch.size());
+		assertEquals(Type.REMOVE, patch.getOperations().get(0).getType());
+		assertEquals("/b", patch.getOperations().get(0).getPath());
+		assertEquals("/c~1d/x", patch.getOperations().get(1).getPath());
+		assertEquals("/e", patch.getOperations().get(2).getPath());
+	}
+
+	@Test
+	public void testApplyArrayChanges() throws IOException, PatchException
+	{
+		IData from = createOrder(10);
+		IData to = copy(from);
+
+		IData[] lines = IDataUtil.getIDataArray(to.getCursor(), "lines");
+		IData[] changed = new IData[lines.length];
+		System.arraycopy(lines, 0, changed, 0, lines.length);
+		changed[3] = doc("lineId", "inserted");
+		IDataUtil.put(lines[8].getCursor(), "qty", "999");
+		IDataUtil.put(to.getCursor(), "lines", changed);
+		IDataUtil.put(to.getCursor(), "tags", new String[] {"x", "y", "z"});
+
+		Patch patch = IDataDiff.diff(from, to);
+		IData target = copy(from);
+		patch.apply(target);
+
+		assertTrue(IDataDiff.isEqual(to, target));
+		assertEquals(to.toString(), target.toString());
+	}
+
+	@Test
+	public void testPatchRoundTrip() throws IOException, PatchException
+	{
+		IData from = createOrder(5);
+		IData to = copy(from);
+		IDataUtil.put(to.getCursor(), "status", "shipped");
+		IDataUtil.remove(to.getCursor(), "customer");
+
+		IData encoded = IDataUtils.convertCompactBytesToIData(IDataUtils.convertToCompactBytes(IDataDiff.diff(from, to).toIData()));
+
+		IData target = copy(from);
+		Patch.fromIData(encoded).apply(target);
+
+		assertEquals(to.toString(), target.toString());
+	}
+
+	@Test(expected = PatchException.class)
+	public void testApplyToWrongDocument() throws PatchException
+	{
+		Patch patch = IDataDiff.diff(doc("a", doc("b", "1")), doc("a", doc("b", "2")));
+
+		patch.apply(doc("x", "1"));
+	}
+
+	private static IData createOrder(int size)
+	{
+		IData[] lines = new IData[size];
+
+		for (int i = 0; i < size; i++)
+			lines[i] = doc("lineId", "" + i, "qty", "" + (i * 3));
+
+		return doc("orderId", "o1", "customer", doc("name", "ACME", "country", "FR"), "lines", lines, "tags", new String[] {"x", "y"});
+	}
+
+	private static IData copy(IData doc) throws IOException
+	{
+		return IDataUtils.convertCompactBytesToIData(IDataUtils.convertToCompactBytes(doc));
+	}
+}
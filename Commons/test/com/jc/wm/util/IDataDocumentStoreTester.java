@@ -0,0 +1,203 @@
+package com.jc.wm.util;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.jc.util.ExpiryScheduler;
+import com.wm.data.IData;
+import com.wm.data.IDataCursor;
+import com.wm.data.IDataFactory;
+import com.wm.data.IDataUtil;
+
+public class IDataDocumentStoreTester
+{
+	@Test
+	public void testReopenRebuildsIndex() throws IOException
+	{
+		File dir = Files.createTempDirectory("docstore").toFile();
+
+		IDataDocumentStore store = new IDataDocumentStore(dir, 4096, 0);
+
+		for (int i = 0; i < 10; i++)
+			store.put("doc" + i, createDoc(i));
+
+		store.put("doc3", createDoc(33));
+		store.remove("doc5");
+		store.close();
+
+		store = new IDataDocumentStore(dir, 4096, 0);
+
+		assertEquals(9, store.size());
+		assertNull(store.get("doc5"));
+		assertEquals(createDoc(33).toString(), store.get("doc3").toString());
+		assertEquals(createDoc(9).toString(), store.get("doc9").toString());
+
+		store.close();
+	}
+
+	@Test
+	public void testCompactionDropsDeadSegments() throws IOException
+	{
+		File dir = Files.createTempDirectory("docstore").toFile();
+		IDataDocumentStore store = new IDataDocumentStore(dir, 1024, 0);
+
+		for (int r = 0; r < 20; r++)
+		{
+			for (int i = 0; i < 5; i++)
+				store.put("doc" + i, createDoc(r * 10 + i));
+		}
+
+		int before = dir.list().length;
+
+		assertTrue(store.compact() > 0);
+		assertTrue(dir.list().length < before);
+
+		for (int i = 0; i < 5; i++)
+			assertEquals(createDoc(190 + i).toString(), store.get("doc" + i).toString());
+
+		store.close();
+
+		store = new IDataDocumentStore(dir, 1024, 0);
+		assertEquals(5, store.size());
+		assertEquals(createDoc(194).toString(), store.get("doc4").toString());
+		store.close();
+	}
+
+	@Test
+	public void testPeriodicCompactionDoesNotNeedScheduler() throws Exception
+	{
+		File dir = Files.createTempDirectory("docstore").toFile();
+		final CountDownLatch blocked = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+
+		// keep the shared expiry thread busy throughout
+
+		ScheduledFuture<?> busy = ExpiryScheduler.getDefault().scheduleAtFixedRate(new Runnable() {
+			public void run() {
+				blocked.countDown();
+
+				try {
+					release.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		}, 1, TimeUnit.MILLISECONDS);
+
+		IDataDocumentStore store = new IDataDocumentStore(dir, 1024, 10);
+
+		try
+		{
+			assertTrue(blocked.await(5, TimeUnit.SECONDS));
+
+			for (int r = 0; r < 20; r++)
+			{
+				for (int i = 0; i < 5; i++)
+					store.put("doc" + i, createDoc(r * 10 + i));
+			}
+
+			int before = dir.list().length;
+
+			for (int i = 0; i < 500 && dir.list().length >= before; i++)
+				Thread.sleep(10);
+
+			assertTrue(dir.list().length < before);
+			assertEquals(createDoc(194).toString(), store.get("doc4").toString());
+		}
+		finally
+		{
+			busy.cancel(false);
+			release.countDown();
+			store.close();
+		}
+	}
+
+	@Test
+	public void testCompactionKeepsTombstones() throws IOException
+	{
+		File dir = Files.createTempDirectory("docstore").toFile();
+		IDataDocumentStore store = new IDataDocumentStore(dir, 1024, 0);
+
+		for (int i = 0; i < 8; i++)
+			store.put("keep" + i, createDoc(i));
+
+		store.remove("keep0");
+
+		for (int r = 0; r < 20; r++)
+			store.put("churn", createDoc(r));
+
+		assertTrue(store.compact() > 0);
+		store.close();
+
+		store = new IDataDocumentStore(dir, 1024, 0);
+		assertNull(store.get("keep0"));
+		assertEquals(createDoc(7).toString(), store.get("keep7").toString());
+		store.close();
+	}
+
+	@Test
+	public void testTornRecordDiscarded() throws IOException
+	{
+		File dir = Files.createTempDirectory("docstore").toFile();
+		IDataDocumentStore store = new IDataDocumentStore(dir, 4096, 0);
+
+		store.put("first", createDoc(1));
+		store.put("second", createDoc(2));
+		store.close();
+
+		// damage the last byte of the second record
+
+		File segment = dir.listFiles()[0];
+		RandomAccessFile raf = new RandomAccessFile(segment, "rw");
+		raf.seek(raf.length() - 1);
+		raf.write(0x7F);
+		raf.close();
+
+		store = new IDataDocumentStore(dir, 4096, 0);
+
+		assertEquals(createDoc(1).toString(), store.get("first").toString());
+		assertNull(store.get("second"));
+
+		store.put("third", createDoc(3));
+		store.close();
+
+		store = new IDataDocumentStore(dir, 4096, 0);
+		assertEquals(2, store.size());
+		assertEquals(createDoc(3).toString(), store.get("third").toString());
+		store.close();
+	}
+
+	@Test
+	public void testUtilsShareStore() throws IOException
+	{
+		String dir = Files.createTempDirectory("docstore").toString();
+
+		IDataUtils.writeDocToStore(dir, "order", createDoc(7));
+		assertEquals(createDoc(7).toString(), IDataUtils.restoreDocFromStore(dir, "order").toString());
+		assertTrue(IDataUtils.removeDocFromStore(dir, "order"));
+		assertNull(IDataUtils.restoreDocFromStore(dir, "order"));
+
+		IDataUtils.closeDocStores();
+	}
+
+	private IData createDoc(int id)
+	{
+		IData doc = IDataFactory.create();
+		IDataCursor c = doc.getCursor();
+		IDataUtil.put(c, "id", "" + id);
+		IDataUtil.put(c, "description", "document number " + id);
+		IDataUtil.put(c, "lines", new String[] {"a", "b", "" + id});
+		c.destroy();
+
+		return doc;
+	}
+}
@@ -0,0 +1,113 @@
+package com.jc.wm.util;
+
+import static com.jc.wm.util.IDataTestHelper.doc;
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import com.jc.wm.util.IDataMerger.Strategy;
+import com.wm.data.IData;
+import com.wm.data.IDataUtil;
+
+public class IDataMergerTester
+{
+	@Test
+	public void testMergeAddsMissingDocument()
+	{
+		IData src = doc("a", "1");
+		IData tgt = doc("b", "2", "child", doc("c", "3"));
+
+		IDataUtils.merge(src, tgt);
+
+		assertEquals("{a=1, b=2, child={c=3}}", src.toString());
+	}
+
+	@Test
+	public void testMergeListsByPosition()
+	{
+		IData src = doc("lines", new IData[] {doc("id", "1"), doc("id", "2"), doc("id", "3")});
+		IData tgt = doc("lines", new IData[] {doc("qty", "5")});
+
+		IDataUtils.merge(src, tgt);
+
+		assertEquals("{lines=[{id=1}, {id=2}, {id=3}, {qty=5}]}", src.toString());
+
+		src = doc("lines", new IData[] {doc("id", "1")});
+		tgt = doc("lines", new IData[] {doc("qty", "5"), doc("qty", "6")});
+
+		IDataUtils.merge(src, tgt);
+
+		assertEquals("{lines=[{id=1, qty=5}, {qty=6}]}", src.toString());
+	}
+
+	@Test
+	public void testKeepAndOverwrite()
+	{
+		IData dest = doc("a", "1", "b", "2");
+
+		new IDataMerger(Strategy.KEEP).merge(dest, doc("a", "x", "c", "3"));
+		assertEquals("{a=1, b=2, c=3}", dest.toString());
+
+		new IDataMerger(Strategy.OVERWRITE).merge(dest, doc("a", "x"), doc("b", "y"), null, doc("a", "z"));
+		assertEquals("{a=z, b=y, c=3}", dest.toString());
+	}
+
+	@Test
+	public void testAppendArray()
+	{
+		IData dest = doc("tags", new String[] {"a", "b"});
+
+		new IDataMerger(Strategy.APPEND_ARRAY).merge(dest, doc("tags", new String[] {"c"}));
+
+		assertTrue(IDataUtil.get(dest.getCursor(), "tags") instanceof String[]);
+		assertEquals("{tags=[a, b, c]}", dest.toString());
+	}
+
+	@Test
+	public void testMergeListsByKey()
+	{
+		IData[] lines = new IData[20];
+
+		for (int i = 0; i < lines.length; i++)
+			lines[i] = doc("lineId", "" + i, "qty", "1");
+
+		IData dest = doc("order", "o1", "lines", lines);
+		IData update = doc("lines", new IData[] {doc("lineId", "7", "qty", "9"), doc("lineId", "99", "qty", "2")});
+
+		IDataMerger merger = new IDataMerger(Strategy.OVERWRITE);
+		merger.setStrategy("lines", Strategy.MERGE_LISTS_BY_KEY);
+		merger.setListKey("lineId");
+		merger.merge(dest, update);
+
+		IData[] merged = IDataUtil.getIDataArray(dest.getCursor(), "lines");
+
+		assertEquals(21, merged.length);
+		assertEquals("{lineId=7, qty=9}", merged[7].toString());
+		assertEquals("{lineId=99, qty=2}", merged[20].toString());
+	}
+
+	@Test
+	public void testMergeListsByKeyMatchesAppendedElements()
+	{
+		for (int count : new int[] {2, 20})
+		{
+			IData[] lines = new IData[count];
+
+			for (int i = 0; i < lines.length; i++)
+				lines[i] = doc("lineId", "" + i, "qty", "1");
+
+			IData dest = doc("lines", lines);
+			IData update = doc("lines", new IData[] {doc("lineId", "99", "qty", "2"), doc("lineId", "99", "note", "x")});
+
+			IDataMerger merger = new IDataMerger(Strategy.OVERWRITE);
+			merger.setStrategy("lines", Strategy.MERGE_LISTS_BY_KEY);
+			merger.setListKey("lineId");
+			merger.merge(dest, update);
+
+			IData[] merged = IDataUtil.getIDataArray(dest.getCursor(), "lines");
+
+			assertEquals(count + 1, merged.length);
+			assertEquals("{lineId=99, qty=2, note=x}", merged[count].toString());
+		}
+	}
+}
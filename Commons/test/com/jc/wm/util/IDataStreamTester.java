@@ -0,0 +1,188 @@
+package com.jc.wm.util;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import org.junit.Test;
+
+import com.jc.wm.util.IDataStreamReader.Event;
+import com.wm.data.IData;
+import com.wm.data.IDataCursor;
+import com.wm.data.IDataFactory;
+import com.wm.data.IDataUtil;
+
+public class IDataStreamTester 
+{
+	@Test
+	public void testWriteListIncrementally() throws IOException
+	{
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		IDataStreamWriter writer = new IDataStreamWriter(out);
+		
+		writer.write("name", "batch");
+		writer.startList("lines");
+		
+		for (int i = 0; i < 3; i++)
+			writer.write(createLine(i));
+		
+		writer.startDocument();
+		writer.write("lineNo", "3");
+		writer.endDocument();
+		writer.endList();
+		writer.startDocument("trailer");
+		writer.write("count", Integer.valueOf(4));
+		writer.close();
+		
+		IData doc = IDataUtils.convertCompactBytesToIData(out.toByteArray());
+		IDataCursor c = doc.getCursor();
+		IData[] lines = IDataUtil.getIDataArray(c, "lines");
+		
+		assertEquals("batch", IDataUtil.getString(c, "name"));
+		assertEquals(4, lines.length);
+		assertEquals("{lineNo=3}", lines[3].toString());
+		assertEquals("{count=4}", IDataUtil.getIData(c, "trailer").toString());
+		c.destroy();
+	}
+	
+	@Test
+	public void testReadListElementByElement() throws IOException
+	{
+		IData doc = IDataFactory.create();
+		IDataCursor c = doc.getCursor();
+		IDataUtil.put(c, "name", "batch");
+		IDataUtil.put(c, "lines", new IData[] {createLine(0), createLine(1)});
+		IDataUtil.put(c, "other", new IData[] {createLine(2)});
+		c.destroy();
+		
+		IDataStreamReader reader = new IDataStreamReader(new ByteArrayInputStream(IDataUtils.convertToCompactBytes(doc)));
+		int lines = 0;
+		Event event = null;
+		
+		assertEquals(Event.START_DOCUMENT, reader.next());
+		assertEquals(Event.VALUE, reader.next());
+		assertEquals("name", reader.getKey());
+		assertEquals("batch", reader.getValue());
+		
+		while ((event=reader.next()) != Event.END_STREAM)
+		{
+			if (event == Event.START_LIST && reader.getKey().equals("lines"))
+			{
+				while (reader.next() == Event.START_DOCUMENT)
+					assertEquals(createLine(lines++).toString(), reader.readDocument().toString());
+				
+				assertEquals(Event.END_LIST, reader.getEvent());
+			}
+			else if (event == Event.START_LIST)
+			{
+				reader.skip();
+			}
+		}
+		
+		assertEquals(2, lines);
+		assertEquals(0, reader.getDepth());
+	}
+	
+	@Test
+	public void testStringTableIsBounded() throws IOException
+	{
+		int count = IDataBinaryCoder.MAX_TABLE_STRINGS * 2 + 10;
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		IDataStreamWriter writer = new IDataStreamWriter(out);
+		
+		writer.startList("lines");
+		
+		// distinct strings enough to fill the table twice, with long strings that are never added to it
+		
+		for (int i = 0; i < count; i++)
+		{
+			writer.startDocument();
+			writer.write("sku", "SKU" + i);
+			writer.write("description", longString(i % 3));
+			writer.write("previous", "SKU" + Math.max(i - 1, 0));
+			writer.endDocument();
+		}
+		
+		writer.write((IData) null);
+		writer.endList();
+		writer.close();
+		
+		IDataStreamReader reader = new IDataStreamReader(new ByteArrayInputStream(out.toByteArray()));
+		Event event = null;
+		int lines = 0;
+		int nulls = 0;
+		
+		assertEquals(Event.START_DOCUMENT, reader.next());
+		assertEquals(Event.START_LIST, reader.next());
+		
+		while ((event=reader.next()) != Event.END_LIST)
+		{
+			if (event == Event.START_DOCUMENT)
+			{
+				IDataCursor c = reader.readDocument().getCursor();
+				
+				assertEquals("SKU" + lines, IDataUtil.getString(c, "sku"));
+				assertEquals(longString(lines % 3), IDataUtil.getString(c, "description"));
+				assertEquals("SKU" + Math.max(lines - 1, 0), IDataUtil.getString(c, "previous"));
+				c.destroy();
+				
+				lines++;
+			}
+			else
+			{
+				assertEquals(Event.VALUE, event);
+				assertNull(reader.getValue());
+				nulls++;
+			}
+		}
+		
+		assertEquals(count, lines);
+		assertEquals(1, nulls);
+	}
+	
+	@Test
+	public void testVersion2StringTableIsUnbounded() throws IOException
+	{
+		int count = IDataBinaryCoder.MAX_TABLE_STRINGS + 10;
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		IDataBinaryCoder.Writer writer = new IDataBinaryCoder.Writer(out);
+		String[] values = new String[count * 2];
+		
+		for (int i = 0; i < count; i++)
+			values[i] = values[count + i] = "value" + i;
+		
+		writer.writeHeader(2);
+		writer.writeTag(IDataBinaryCoder.IDATA);
+		writer.writeEntry("values", values);
+		writer.writeTag(IDataBinaryCoder.END);
+		writer.flush();
+		
+		IDataCursor c = IDataUtils.convertCompactBytesToIData(out.toByteArray()).getCursor();
+		
+		assertArrayEquals(values, IDataUtil.getStringArray(c, "values"));
+		c.destroy();
+	}
+	
+	private static String longString(int i)
+	{
+		StringBuffer s = new StringBuffer();
+		
+		while (s.length() <= IDataBinaryCoder.MAX_TABLE_STRING_LENGTH)
+			s.append("description ").append(i).append(' ');
+		
+		return s.toString();
+	}
+	
+	private static IData createLine(int i)
+	{
+		IData line = IDataFactory.create();
+		IDataCursor c = line.getCursor();
+		IDataUtil.put(c, "lineNo", "" + i);
+		IDataUtil.put(c, "sku", "SKU" + i);
+		c.destroy();
+		
+		return line;
+	}
+}
@@ -0,0 +1,32 @@
+package com.jc.wm.util;
+
+import com.wm.data.IData;
+import com.wm.data.IDataCursor;
+import com.wm.data.IDataFactory;
+import com.wm.data.IDataUtil;
+
+/**
+ * Builds documents for the IData tests of this and the internal package
+ */
+public class IDataTestHelper
+{
+	private IDataTestHelper()
+	{
+	}
+
+	/**
+	 * Creates a document from alternating keys and values, e.g. doc("a", "1", "child", doc("b", "2"))
+	 */
+	public static IData doc(Object... keyValues)
+	{
+		IData doc = IDataFactory.create();
+		IDataCursor c = doc.getCursor();
+
+		for (int i = 0; i < keyValues.length; i += 2)
+			IDataUtil.put(c, (String) keyValues[i], keyValues[i + 1]);
+
+		c.destroy();
+
+		return doc;
+	}
+}
@@ -0,0 +1,68 @@
+package com.jc.wm.util;
+
+import static org.junit.Assert.*;
+
+import java.util.Locale;
+
+import org.junit.Test;
+
+import com.jc.util.CacheStatistics;
+import com.jc.util.CacheStatistics.RemovalCause;
+import com.wm.data.IData;
+import com.wm.data.IDataCursor;
+import com.wm.data.IDataUtil;
+
+public class IDataUtilsTester
+{
+	@Test
+	public void testConvertCacheStatisticsToIData()
+	{
+		CacheStatistics stats = new CacheStatistics();
+
+		stats.recordHit(100);
+		stats.recordHit(100);
+		stats.recordMiss(100);
+		stats.recordRemoval(RemovalCause.EXPIRED, 0);
+		stats.recordSize(7);
+
+		Locale locale = Locale.getDefault();
+		IData doc = null;
+
+		try
+		{
+			// decimals and keys must not depend on where the server happens to be
+
+			Locale.setDefault(new Locale("tr", "TR"));
+			doc = IDataUtils.convertCacheStatisticsToIData(stats.snapshot(7, 10));
+		}
+		finally
+		{
+			Locale.setDefault(locale);
+		}
+
+		IDataCursor c = doc.getCursor();
+
+		assertEquals("7", IDataUtil.getString(c, "size"));
+		assertEquals("10", IDataUtil.getString(c, "maxSize"));
+		assertEquals("2", IDataUtil.getString(c, "hitCount"));
+		assertEquals("0.6667", IDataUtil.getString(c, "hitRate"));
+		assertEquals("0.000", IDataUtil.getString(c, "averageLoadTime"));
+		assertEquals("1", IDataUtil.getString(c, "evictionCount"));
+
+		IDataCursor rc = IDataUtil.getIData(c, "removals").getCursor();
+		assertEquals("1", IDataUtil.getString(rc, "expired"));
+		assertEquals("0", IDataUtil.getString(rc, "explicit"));
+		rc.destroy();
+
+		IData[] history = IDataUtil.getIDataArray(c, "sizeHistory");
+		assertEquals(1, history.length);
+
+		IDataCursor hc = history[0].getCursor();
+		assertEquals("7", IDataUtil.getString(hc, "size"));
+		hc.destroy();
+
+		c.destroy();
+
+		assertNull(IDataUtils.convertCacheStatisticsToIData(null));
+	}
+}
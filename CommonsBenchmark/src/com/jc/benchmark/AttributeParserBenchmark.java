@@ -0,0 +1,76 @@
+package com.jc.benchmark;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.jc.util.AttributeParser;
+import com.jc.util.AttributeParser.CommitSequenceException;
+import com.jc.util.AttributeParser.InvalidFormatException;
+import com.jc.util.AttributeParser.SequenceGenerator;
+
+/**
+ * Variable substitution in a typical file name template, sequences are generated in memory
+ * so that no file access is included in the timing
+ *
+ * @author John Carter
+ * @version 1.0
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AttributeParserBenchmark
+{
+	private static final String 	TEMPLATE = "{senderId}_{receiverId}_{docType}_{seq}_{random}.{extension}";
+
+	private AttributeParser			_parser;
+	private Map<String, String>		_vars;
+
+	@Setup(Level.Trial)
+	public void setUp()
+	{
+		_parser = new AttributeParser(new SequenceGenerator() {
+
+			private long _next = 0;
+
+			@Override
+			public String getNextSequence(String id)
+			{
+				return "" + _next++;
+			}
+
+			@Override
+			public void commitSequence(String id) throws CommitSequenceException
+			{
+			}
+		});
+
+		_vars = new HashMap<String, String>();
+		_vars.put(AttributeParser.DEFAULT_ID_KEY, "orders");
+		_vars.put("senderId", "ACME");
+		_vars.put("receiverId", "GLOBEX");
+		_vars.put("docType", "ORDERS");
+		_vars.put("extension", "xml");
+	}
+
+	@Benchmark
+	public String parseAndReplaceVariables() throws InvalidFormatException
+	{
+		return _parser.parseAndReplaceVariables(TEMPLATE, _vars);
+	}
+}
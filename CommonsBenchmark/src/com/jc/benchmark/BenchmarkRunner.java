@@ -0,0 +1,39 @@
+package com.jc.benchmark;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the Commons benchmarks and writes the results as json, so that the results of two runs
+ * can be compared before and after a change, e.g.
+ *
+ * <pre>
+ * java -cp ... com.jc.benchmark.BenchmarkRunner [regex] [result-file]
+ * </pre>
+ *
+ * The optional regex limits the benchmarks run, e.g. "TimeToLiveMap". By default all benchmarks
+ * are run and the results written to commons-benchmark.json. The project must be built with
+ * annotation processing enabled so that JMH can generate its harness, see .factorypath.
+ *
+ * @author John Carter
+ * @version 1.0
+ */
+public class BenchmarkRunner
+{
+	public static void main(String[] args) throws RunnerException
+	{
+		String include = args.length > 0 ? args[0] : BenchmarkRunner.class.getPackage().getName() + ".*";
+		String resultFile = args.length > 1 ? args[1] : "commons-benchmark.json";
+
+		Options opts = new OptionsBuilder()
+				.include(include)
+				.resultFormat(ResultFormatType.JSON)
+				.result(resultFile)
+				.build();
+
+		new Runner(opts).run();
+	}
+}
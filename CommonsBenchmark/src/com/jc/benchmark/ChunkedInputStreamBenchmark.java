@@ -0,0 +1,83 @@
+package com.jc.benchmark;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.jc.net.ChunkedInputStream;
+
+/**
+ * Decoding of a 1MB chunked transfer encoded body, read in 8KB blocks as a receiver would
+ *
+ * @author John Carter
+ * @version 1.0
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ChunkedInputStreamBenchmark
+{
+	private static final int 	BODY_SIZE = 1024 * 1024;
+
+	@Param({"1024", "32768"})
+	public int 					chunkSize;
+
+	private byte[]				_encoded;
+	private byte[]				_readBuffer;
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException
+	{
+		byte[] body = new byte[BODY_SIZE];
+		new Random(42).nextBytes(body);
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream(BODY_SIZE + BODY_SIZE / 10);
+
+		for (int offset = 0; offset < body.length; offset += chunkSize)
+		{
+			int len = Math.min(chunkSize, body.length - offset);
+
+			out.write((Integer.toHexString(len) + "\r\n").getBytes("US-ASCII"));
+			out.write(body, offset, len);
+			out.write("\r\n".getBytes("US-ASCII"));
+		}
+
+		out.write("0\r\n\r\n".getBytes("US-ASCII"));
+
+		_encoded = out.toByteArray();
+		_readBuffer = new byte[8192];
+	}
+
+	@Benchmark
+	public long read() throws IOException
+	{
+		ChunkedInputStream in = new ChunkedInputStream(new ByteArrayInputStream(_encoded));
+		long total = 0;
+		int read = 0;
+
+		while ((read=in.read(_readBuffer)) > 0)
+			total += read;
+
+		in.close();
+
+		return total;
+	}
+}
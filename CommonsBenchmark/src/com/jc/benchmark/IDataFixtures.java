@@ -0,0 +1,100 @@
+package com.jc.benchmark;
+
+import java.util.Random;
+
+import com.wm.data.IData;
+import com.wm.data.IDataCursor;
+import com.wm.data.IDataFactory;
+import com.wm.data.IDataUtil;
+
+/**
+ * Generates documents resembling typical integration payloads, i.e. an order with a header,
+ * addresses and a list of order lines. Documents are generated from a fixed seed so that every
+ * run of a benchmark works on identical data.
+ *
+ * @author John Carter
+ * @version 1.0
+ */
+public class IDataFixtures
+{
+	public static final int 		SMALL = 5;
+	public static final int 		MEDIUM = 100;
+	public static final int 		LARGE = 2000;
+
+	private static final String[]	PRODUCTS = {"widget", "gadget", "sprocket", "flange", "gizmo", "doohickey"};
+	private static final String[]	CITIES = {"Paris", "Berlin", "Madrid", "Rome", "Lisbon", "Vienna"};
+
+	/**
+	 * Returns an order document with the given number of lines
+	 *
+	 * @param lines number of order lines
+	 * @param seed seed for generated values, the same seed always produces the same document
+	 * @return order document
+	 */
+	public static IData createOrder(int lines, long seed)
+	{
+		Random rnd = new Random(seed);
+
+		IData order = IDataFactory.create();
+		IDataCursor c = order.getCursor();
+
+		IData header = IDataFactory.create();
+		IDataCursor hc = header.getCursor();
+		IDataUtil.put(hc, "orderId", "ORD-" + Math.abs(rnd.nextLong()));
+		IDataUtil.put(hc, "customerId", "C" + rnd.nextInt(100000));
+		IDataUtil.put(hc, "orderDate", "2020-0" + (1 + rnd.nextInt(9)) + "-1" + rnd.nextInt(10));
+		IDataUtil.put(hc, "currency", "EUR");
+		IDataUtil.put(hc, "billTo", createAddress(rnd));
+		IDataUtil.put(hc, "shipTo", createAddress(rnd));
+		hc.destroy();
+
+		IData[] orderLines = new IData[lines];
+
+		for (int i = 0; i < lines; i++)
+		{
+			orderLines[i] = IDataFactory.create();
+			IDataCursor lc = orderLines[i].getCursor();
+			IDataUtil.put(lc, "lineNo", "" + (i + 1));
+			IDataUtil.put(lc, "product", PRODUCTS[rnd.nextInt(PRODUCTS.length)]);
+			IDataUtil.put(lc, "sku", "SKU" + rnd.nextInt(1000000));
+			IDataUtil.put(lc, "quantity", "" + (1 + rnd.nextInt(50)));
+			IDataUtil.put(lc, "price", String.format("%.2f", rnd.nextDouble() * 1000));
+			IDataUtil.put(lc, "tags", new String[] {"tag" + rnd.nextInt(10), "tag" + rnd.nextInt(10)});
+			lc.destroy();
+		}
+
+		IDataUtil.put(c, "header", header);
+		IDataUtil.put(c, "lines", orderLines);
+		IDataUtil.put(c, "comment", "Generated order with " + lines + " lines");
+		c.destroy();
+
+		return order;
+	}
+
+	/**
+	 * Returns a pipeline wrapping an order document, as a service would receive it
+	 */
+	public static IData createPipeline(int lines, long seed)
+	{
+		IData pipeline = IDataFactory.create();
+		IDataCursor c = pipeline.getCursor();
+		IDataUtil.put(c, "order", createOrder(lines, seed));
+		IDataUtil.put(c, "transferType", "benchmark");
+		c.destroy();
+
+		return pipeline;
+	}
+
+	private static IData createAddress(Random rnd)
+	{
+		IData address = IDataFactory.create();
+		IDataCursor c = address.getCursor();
+		IDataUtil.put(c, "street", rnd.nextInt(200) + " Main Street");
+		IDataUtil.put(c, "city", CITIES[rnd.nextInt(CITIES.length)]);
+		IDataUtil.put(c, "postCode", "" + (10000 + rnd.nextInt(89999)));
+		IDataUtil.put(c, "country", "EU");
+		c.destroy();
+
+		return address;
+	}
+}
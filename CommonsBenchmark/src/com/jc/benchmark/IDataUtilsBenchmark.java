@@ -0,0 +1,101 @@
+package com.jc.benchmark;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.jc.wm.util.IDataUtils;
+import com.wm.data.IData;
+
+/**
+ * Encoding, decoding and merging of order documents of increasing size
+ *
+ * @author John Carter
+ * @version 1.0
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class IDataUtilsBenchmark
+{
+	@Param({"" + IDataFixtures.SMALL, "" + IDataFixtures.MEDIUM, "" + IDataFixtures.LARGE})
+	public int 			lines;
+
+	private IData		_doc;
+	private byte[]		_bytes;
+	private byte[]		_compactBytes;
+
+	private IData		_mergeTarget;
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException
+	{
+		_doc = IDataFixtures.createOrder(lines, 42);
+		_bytes = IDataUtils.convertToBytes(_doc);
+		_compactBytes = IDataUtils.convertToCompactBytes(_doc);
+		_mergeTarget = IDataFixtures.createOrder(lines, 43);
+	}
+
+	@Benchmark
+	public byte[] convertToBytes() throws IOException
+	{
+		return IDataUtils.convertToBytes(_doc);
+	}
+
+	@Benchmark
+	public IData convertBytesToIData() throws IOException
+	{
+		return IDataUtils.convertBytesToIData(_bytes);
+	}
+
+	@Benchmark
+	public byte[] convertToCompactBytes() throws IOException
+	{
+		return IDataUtils.convertToCompactBytes(_doc);
+	}
+
+	@Benchmark
+	public IData convertCompactBytesToIData() throws IOException
+	{
+		return IDataUtils.convertCompactBytesToIData(_compactBytes);
+	}
+
+	/**
+	 * merge() updates the source in place, so each call builds a fresh one, subtract the time of
+	 * {@link #createMergeSource()} from the result. A per invocation setup would instead swamp
+	 * the smaller documents with the overhead of timing every single call.
+	 */
+	@Benchmark
+	public IData merge()
+	{
+		IData source = IDataFixtures.createOrder(lines, 42);
+
+		IDataUtils.merge(source, _mergeTarget);
+
+		return source;
+	}
+
+	/**
+	 * Baseline for {@link #merge()}, only builds the source
+	 */
+	@Benchmark
+	public IData createMergeSource()
+	{
+		return IDataFixtures.createOrder(lines, 42);
+	}
+}
@@ -0,0 +1,105 @@
+package com.jc.benchmark;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.jc.util.ConcurrentTimeToLiveMap;
+import com.jc.util.HashMapWithTimeToLive;
+
+/**
+ * Get, put and evict throughput of the time to live caches when shared by several threads.
+ * Keys are drawn from a range twice the size of the cache so that roughly half of all puts
+ * evict an element and half of all gets miss.
+ *
+ * @author John Carter
+ * @version 1.0
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(4)
+public class TimeToLiveMapBenchmark
+{
+	@Param({"1000", "100000"})
+	public int 										maxEntries;
+
+	private String[]								_keys;
+	private HashMapWithTimeToLive<String, String>	_map;
+	private ConcurrentTimeToLiveMap<String, String>	_concurrentMap;
+
+	@Setup(Level.Trial)
+	public void setUp()
+	{
+		_keys = new String[maxEntries * 2];
+
+		for (int i = 0; i < _keys.length; i++)
+			_keys[i] = "key-" + i;
+
+		_map = new HashMapWithTimeToLive<String, String>(maxEntries, 0.8f, 10, TimeUnit.MINUTES);
+		_concurrentMap = new ConcurrentTimeToLiveMap<String, String>(maxEntries, 10, TimeUnit.MINUTES);
+
+		for (int i = 0; i < maxEntries; i++)
+		{
+			_map.put(_keys[i], _keys[i]);
+			_concurrentMap.put(_keys[i], _keys[i]);
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown()
+	{
+		_map.close();
+		_concurrentMap.close();
+	}
+
+	@Benchmark
+	public String get()
+	{
+		return _map.get(nextKey());
+	}
+
+	@Benchmark
+	public String put()
+	{
+		String key = nextKey();
+
+		return _map.put(key, key);
+	}
+
+	@Benchmark
+	public String getConcurrent()
+	{
+		return _concurrentMap.get(nextKey());
+	}
+
+	@Benchmark
+	public String putConcurrent()
+	{
+		String key = nextKey();
+
+		return _concurrentMap.put(key, key);
+	}
+
+	private String nextKey()
+	{
+		return _keys[ThreadLocalRandom.current().nextInt(_keys.length)];
+	}
+}
@@ -0,0 +1,76 @@
+package com.jc.benchmark;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.jc.wm.internal.XPathException;
+import com.jc.wm.internal.XPathExpression;
+import com.wm.data.IData;
+
+/**
+ * Reading and writing a pipeline via xpath, both for a simple nested path and for an indexed
+ * path into a document list
+ *
+ * @author John Carter
+ * @version 1.0
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class XPathExpressionBenchmark
+{
+	@Param({"order/header/billTo/city", "order/lines[50]/price"})
+	public String					xpath;
+
+	private IData					_pipeline;
+	private XPathExpression			_expression;
+	private Map<String, String>		_arrayMap;
+
+	@Setup(Level.Trial)
+	public void setUp() throws XPathException
+	{
+		_pipeline = IDataFixtures.createPipeline(IDataFixtures.MEDIUM, 42);
+		_expression = XPathExpression.compile(xpath);
+		_arrayMap = new HashMap<String, String>();
+	}
+
+	@Benchmark
+	public Object getObject()
+	{
+		return _expression.getObject(_pipeline);
+	}
+
+	/**
+	 * New instance per call, as per IDataUtils.getObjectUsingNameSpace(), relies on the cache of parsed expressions
+	 */
+	@Benchmark
+	public Object getObjectNewInstance()
+	{
+		return new XPathExpression(xpath).getObject(_pipeline);
+	}
+
+	@Benchmark
+	public IData setValue()
+	{
+		_expression.setValue(_pipeline, "updated", _arrayMap);
+
+		return _pipeline;
+	}
+}